@@ -19,11 +19,15 @@ package com.android.ddmlib;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.ddmlib.log.LogReceiver;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
@@ -271,15 +275,48 @@ final class AdbHelper {
             throws TimeoutException, AdbCommandRejectedException, IOException {
 
         RawImage imageParams = new RawImage();
+
+        SocketChannel adbChan = null;
+        try {
+            adbChan = openFrameBuffer(adbSockAddr, device, imageParams);
+            if (adbChan == null) {
+                return null;
+            }
+
+            byte[] reply = new byte[imageParams.size];
+            read(adbChan, reply, imageParams.size, unit.toMillis(timeout));
+
+            imageParams.data = reply;
+        } finally {
+            if (adbChan != null) {
+                adbChan.close();
+            }
+        }
+
+        return imageParams;
+    }
+
+    /**
+     * Opens a frame buffer connection to the device, and reads the header of the frame in
+     * <var>imageParams</var>. The pixels, {@link RawImage#size} bytes, are then ready to be read
+     * from the returned channel, which is non-blocking and must be closed by the caller.
+     *
+     * @return the channel, or <code>null</code> if the protocol of the device is not supported.
+     * @throws TimeoutException in case of timeout on the connection.
+     * @throws AdbCommandRejectedException if adb rejects the command
+     * @throws IOException in case of I/O error on the connection.
+     */
+    static SocketChannel openFrameBuffer(InetSocketAddress adbSockAddr, IDevice device, RawImage imageParams)
+            throws TimeoutException, AdbCommandRejectedException, IOException {
         byte[] request = formAdbRequest("framebuffer:"); //$NON-NLS-1$
         byte[] nudge = {
             0
         };
         byte[] reply;
 
-        SocketChannel adbChan = null;
+        SocketChannel adbChan = SocketChannel.open(adbSockAddr);
+        boolean success = false;
         try {
-            adbChan = SocketChannel.open(adbSockAddr);
             adbChan.configureBlocking(false);
 
             // if the device is not -1, then we first tell adb we're looking to talk
@@ -323,18 +360,13 @@ final class AdbHelper {
                     + ", height=" + imageParams.height);
 
             write(adbChan, nudge);
-
-            reply = new byte[imageParams.size];
-            read(adbChan, reply, imageParams.size, unit.toMillis(timeout));
-
-            imageParams.data = reply;
+            success = true;
+            return adbChan;
         } finally {
-            if (adbChan != null) {
+            if (!success) {
                 adbChan.close();
             }
         }
-
-        return imageParams;
     }
 
     /**
@@ -636,6 +668,52 @@ final class AdbHelper {
                 is);
     }
 
+    /**
+     * Starts a remote command on the device without blocking. The output is handed to
+     * <var>rcvr</var> as it arrives, on a selector thread shared with the other asynchronous
+     * commands: the receiver must not block, nor keep the array it is handed.
+     *
+     * @param adbSockAddr the {@link InetSocketAddress} to adb.
+     * @param adbService the {@link AdbService} to use to run the command.
+     * @param command the shell command to execute
+     * @param device the {@link IDevice} on which to execute the command.
+     * @param rcvr the {@link IShellOutputReceiver} that will receives the output of the shell
+     *     command
+     * @param maxTimeout max timeout for the full command to execute. A value of 0 means no timeout.
+     * @param maxTimeToOutputResponse max time between command output. A value of 0 means the
+     *     command may wait forever for output.
+     * @param maxTimeUnits Units for non-zero {@code maxTimeout} and {@code maxTimeToOutputResponse}
+     *     values.
+     * @return a future set when the command ends, or when the receiver or the caller cancels it.
+     *     It fails with the exceptions thrown by
+     *     {@link #executeRemoteCommand(InetSocketAddress, AdbService, String, IDevice,
+     *     IShellOutputReceiver, long, long, TimeUnit, InputStream)}.
+     * @see DdmPreferences#getShellReactorThreadCount()
+     */
+    @NonNull
+    static ListenableFuture<Void> executeRemoteCommandAsync(
+            @NonNull InetSocketAddress adbSockAddr,
+            @NonNull AdbService adbService,
+            @NonNull String command,
+            @Nullable IDevice device,
+            @Nullable IShellOutputReceiver rcvr,
+            long maxTimeout,
+            long maxTimeToOutputResponse,
+            @Nullable TimeUnit maxTimeUnits) {
+        if ((maxTimeout > 0 || maxTimeToOutputResponse > 0) && maxTimeUnits == null) {
+            throw new NullPointerException("Time unit must not be null for non-zero max.");
+        }
+        try {
+            return ShellReactor.getInstance().execute(adbSockAddr, adbService, command, device,
+                    rcvr,
+                    maxTimeout > 0 ? maxTimeUnits.toMillis(maxTimeout) : 0L,
+                    maxTimeToOutputResponse > 0 ? maxTimeUnits.toMillis(maxTimeToOutputResponse)
+                            : 0L);
+        } catch (IOException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
     /**
      * Runs the Event log service on the {@link Device}, and provides its output to the
      * {@link LogReceiver}.
@@ -882,6 +960,60 @@ final class AdbHelper {
         }
     }
 
+    /**
+     * Reads from the socket until <var>buf</var> is full. Unlike
+     * {@link #read(SocketChannel, byte[], int, long)}, this waits for the data on
+     * <var>selector</var> rather than spinning, which matters for large transfers like frames.
+     *
+     * @param chan the opened socket to read from, in non-blocking mode.
+     * @param buf the buffer to fill, from its position to its limit.
+     * @param selector a selector the channel can be registered with.
+     * @param timeout The timeout value in ms, since the previous successful read. A timeout of
+     *      zero means "wait forever".
+     * @throws TimeoutException in case of timeout on the connection.
+     * @throws IOException in case of I/O error on the connection.
+     */
+    static void read(SocketChannel chan, ByteBuffer buf, Selector selector, long timeout)
+            throws TimeoutException, IOException {
+        SelectionKey key = null;
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (buf.hasRemaining()) {
+                int count = chan.read(buf);
+                if (count < 0) {
+                    Log.d("ddms", "read: channel EOF");
+                    throw new IOException("EOF");
+                } else if (count > 0) {
+                    deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+                    continue;
+                }
+                long wait = 0;
+                if (timeout != 0) {
+                    wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (wait <= 0) {
+                        Log.d("ddms", "read: timeout");
+                        throw new TimeoutException();
+                    }
+                }
+                if (key == null) {
+                    key = chan.register(selector, SelectionKey.OP_READ);
+                }
+                selector.select(wait);
+                selector.selectedKeys().clear();
+                if (Thread.currentThread().isInterrupted()) {
+                    // Throw a timeout exception in place of interrupted exception to avoid API changes.
+                    throw new TimeoutException("Read interrupted with immediate timeout via interruption.");
+                }
+            }
+        } finally {
+            if (key != null) {
+                key.cancel();
+                // flushes the cancelled key, so that the channel can be closed or registered again.
+                selector.selectNow();
+            }
+        }
+    }
+
     /**
      * Write until all data in "data" is written or the connection fails or times out.
      * <p>This uses the default time out value.
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.ddmlib.AndroidDebugBridge.IClientChangeListener;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Builds a continuous allocation profile of a {@link Client} from periodic polls of its
+ * allocation tracker.
+ * <p>
+ * Each poll requests the tracked allocations, merges them into a stack trie holding the
+ * number of allocations and bytes of each call path and allocated class, and restarts the
+ * tracker so the next poll only returns new allocations. Only the trie is kept, so memory
+ * depends on the number of distinct call paths, not on the duration of the profile.
+ * <p>
+ * The VM tracker only keeps its most recent allocations, so allocations are sampled rather
+ * than all counted when more than that happen between two polls.
+ * The profile can be exported in the folded stack format used by flame graph tools with
+ * {@link #writeFoldedStacks(Writer, boolean)}.
+ * <p>
+ * The sampler keeps at most one request of its own outstanding, and ignores the allocation
+ * details received while it has none, so that the details requested by other callers of
+ * {@link Client#requestAllocationDetails()} are neither merged nor cleared by the sampler.
+ * A request left unanswered for 10 seconds, because the reply failed or was lost, is given
+ * up so that polling carries on.
+ */
+public final class AllocationSampler implements IClientChangeListener {
+
+    /** Separator of the frames in a folded stack. */
+    private static final char FOLDED_SEPARATOR = ';';
+
+    /** Time after which an unanswered request is given up, and a new one can be sent. */
+    private static final long REQUEST_TIMEOUT_MILLIS = 10000;
+
+    private final Client mClient;
+    private final long mIntervalMillis;
+
+    private ScheduledExecutorService mExecutor;
+
+    /** Whether the sampler requested allocation details, and is waiting for them. */
+    private final AtomicBoolean mRequestPending = new AtomicBoolean();
+    /** {@link System#nanoTime()} of the last request. Polling thread only. */
+    private long mRequestTime;
+
+    // frames of the trie: stack frames, and allocated classes as leaves.
+    private final Map<String, Integer> mFrameIds = new HashMap<String, Integer>();
+    private final Map<String, Integer> mClassFrameIds = new HashMap<String, Integer>();
+    private String[] mFrameLabels = new String[256];
+    private int mFrameCount;
+
+    // trie nodes, node 0 being the root.
+    private final Map<Long, Integer> mChildren = new HashMap<Long, Integer>();
+    private int[] mNodeParents = new int[256];
+    private int[] mNodeFrames = new int[256];
+    private long[] mNodeCounts = new long[256];
+    private long[] mNodeBytes = new long[256];
+    private int mNodeCount = 1;
+
+    private long mTotalCount;
+    private long mTotalBytes;
+    private int mBatchCount;
+
+    /**
+     * Creates a sampler.
+     * @param client the client to profile.
+     * @param interval the time between two polls of the allocation tracker.
+     * @param unit the unit of <code>interval</code>.
+     */
+    public AllocationSampler(@NonNull Client client, long interval, @NonNull TimeUnit unit) {
+        mClient = client;
+        mIntervalMillis = unit.toMillis(interval);
+        mNodeFrames[0] = -1;
+    }
+
+    /**
+     * Enables the allocation tracker of the client, and starts polling it.
+     */
+    public synchronized void start() {
+        if (mExecutor != null) {
+            return;
+        }
+        AndroidDebugBridge.addClientChangeListener(this);
+        mClient.enableAllocationTracker(true);
+
+        mExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("Allocation Sampler-" + mClient.getClientData().getPid())
+                        .setDaemon(true)
+                        .build());
+        mExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (mClient.isValid()) {
+                    long now = System.nanoTime();
+                    if (mRequestPending.compareAndSet(false, true)
+                            || now - mRequestTime
+                                    >= TimeUnit.MILLISECONDS.toNanos(REQUEST_TIMEOUT_MILLIS)) {
+                        // either nothing is pending, or the pending request is given up.
+                        mRequestTime = now;
+                        mRequestPending.set(true);
+                        mClient.requestAllocationDetails();
+                    }
+                } else {
+                    stop();
+                }
+            }
+        }, mIntervalMillis, mIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops polling, and disables the allocation tracker of the client. The profile is kept.
+     */
+    public synchronized void stop() {
+        if (mExecutor == null) {
+            return;
+        }
+        mExecutor.shutdown();
+        mExecutor = null;
+        mRequestPending.set(false);
+        AndroidDebugBridge.removeClientChangeListener(this);
+        if (mClient.isValid()) {
+            mClient.enableAllocationTracker(false);
+        }
+    }
+
+    @Override
+    public void clientChanged(@NonNull Client client, int changeMask) {
+        if (client != mClient || (changeMask & Client.CHANGE_HEAP_ALLOCATIONS) == 0) {
+            return;
+        }
+        // the data is only set during the notification.
+        byte[] data = client.getClientData().getAllocationsData();
+        if (!mRequestPending.compareAndSet(true, false)) {
+            // not an answer to our request.
+            return;
+        }
+        if (data == null) {
+            return;
+        }
+
+        // restart the tracker so that the next poll doesn't return these allocations again.
+        client.enableAllocationTracker(false);
+        client.enableAllocationTracker(true);
+
+        try {
+            addBatch(AllocationsParser.parseTable(ByteBuffer.wrap(data)));
+        } catch (RuntimeException e) {
+            Log.e("ddm-heap", "Failed to parse allocations: " + e);
+        }
+    }
+
+    /**
+     * Merges a batch of allocations into the profile.
+     * @param table the allocations.
+     */
+    public synchronized void addBatch(@NonNull AllocationTable table) {
+        // map the frames and stacks of the batch to the ones of the trie once, then merge
+        // the allocations through these maps.
+        int[] frames = new int[table.getFrameCount()];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = internFrame(mFrameIds, frameLabel(table, i));
+        }
+
+        // stacks are created after their caller stack, so callers are mapped first.
+        int[] nodes = new int[table.getStackCount()];
+        nodes[AllocationTable.EMPTY_STACK] = 0;
+        for (int stack = 1; stack < nodes.length; stack++) {
+            nodes[stack] = getChild(nodes[table.getCallerStack(stack)],
+                    frames[table.getTopFrame(stack)]);
+        }
+
+        int[] classFrames = new int[table.getClassCount()];
+        Arrays.fill(classFrames, -1);
+        for (int row = 0; row < table.getCount(); row++) {
+            int classIndex = table.getClassIndex(row);
+            if (classFrames[classIndex] == -1) {
+                classFrames[classIndex] = internFrame(mClassFrameIds,
+                        table.getClassName(classIndex));
+            }
+            int node = getChild(nodes[table.getStackId(row)], classFrames[classIndex]);
+            int size = table.getSize(row);
+            mNodeCounts[node]++;
+            mNodeBytes[node] += size;
+            mTotalCount++;
+            mTotalBytes += size;
+        }
+        mBatchCount++;
+    }
+
+    /** Returns the number of allocations merged in the profile. */
+    public synchronized long getTotalCount() {
+        return mTotalCount;
+    }
+
+    /** Returns the number of bytes allocated by the allocations of the profile. */
+    public synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /** Returns the number of batches merged in the profile. */
+    public synchronized int getBatchCount() {
+        return mBatchCount;
+    }
+
+    /** Returns the number of nodes of the stack trie. */
+    public synchronized int getNodeCount() {
+        return mNodeCount;
+    }
+
+    /**
+     * Clears the profile.
+     */
+    public synchronized void reset() {
+        mFrameIds.clear();
+        mClassFrameIds.clear();
+        mChildren.clear();
+        mFrameCount = 0;
+        mNodeCount = 1;
+        Arrays.fill(mNodeCounts, 0);
+        Arrays.fill(mNodeBytes, 0);
+        mTotalCount = 0;
+        mTotalBytes = 0;
+        mBatchCount = 0;
+    }
+
+    /**
+     * Writes the profile in the folded stack format: one line per call path and allocated
+     * class, made of the frames from the outermost one, separated by semicolons, followed by a
+     * space and the value.
+     * @param out the writer.
+     * @param bytes whether the values are allocated bytes, or allocation counts.
+     * @throws IOException
+     */
+    public synchronized void writeFoldedStacks(@NonNull Writer out, boolean bytes)
+            throws IOException {
+        int[] path = new int[64];
+        StringBuilder sb = new StringBuilder();
+        for (int node = 1; node < mNodeCount; node++) {
+            long value = bytes ? mNodeBytes[node] : mNodeCounts[node];
+            if (value == 0) {
+                continue;
+            }
+
+            int depth = 0;
+            for (int n = node; n != 0; n = mNodeParents[n]) {
+                if (depth == path.length) {
+                    path = Arrays.copyOf(path, depth * 2);
+                }
+                path[depth++] = mNodeFrames[n];
+            }
+
+            sb.setLength(0);
+            for (int i = depth - 1; i >= 0; i--) {
+                sb.append(mFrameLabels[path[i]]);
+                if (i > 0) {
+                    sb.append(FOLDED_SEPARATOR);
+                }
+            }
+            sb.append(' ').append(value).append('\n');
+            out.write(sb.toString());
+        }
+        out.flush();
+    }
+
+    private static String frameLabel(AllocationTable table, int frameId) {
+        String label = table.getFrameClassName(frameId) + "." + table.getFrameMethodName(frameId);
+        int line = table.getFrameLineNumber(frameId);
+        if (line > 0) {
+            label += ":" + line;
+        }
+        // the separators of the folded format can't appear in a frame.
+        return label.replace(FOLDED_SEPARATOR, '_').replace(' ', '_');
+    }
+
+    private int internFrame(Map<String, Integer> ids, String label) {
+        Integer id = ids.get(label);
+        if (id != null) {
+            return id;
+        }
+        int frame = mFrameCount++;
+        if (frame == mFrameLabels.length) {
+            mFrameLabels = Arrays.copyOf(mFrameLabels, frame * 2);
+        }
+        mFrameLabels[frame] = label;
+        ids.put(label, frame);
+        return frame;
+    }
+
+    private int getChild(int parent, int frame) {
+        Long key = ((long) parent << 32) | frame;
+        Integer child = mChildren.get(key);
+        if (child != null) {
+            return child;
+        }
+        int node = mNodeCount++;
+        if (node == mNodeParents.length) {
+            int capacity = node * 2;
+            mNodeParents = Arrays.copyOf(mNodeParents, capacity);
+            mNodeFrames = Arrays.copyOf(mNodeFrames, capacity);
+            mNodeCounts = Arrays.copyOf(mNodeCounts, capacity);
+            mNodeBytes = Arrays.copyOf(mNodeBytes, capacity);
+        }
+        mNodeParents[node] = parent;
+        mNodeFrames[node] = frame;
+        mChildren.put(key, node);
+        return node;
+    }
+}
@@ -0,0 +1,582 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.ddmlib.AllocationInfo.SortMode;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Compact form of the allocations returned by the allocation tracker, as parsed by
+ * {@link AllocationsParser#parseTable(java.nio.ByteBuffer)}.
+ * <p>
+ * Allocations are stored as parallel primitive arrays (size, thread id, allocated class index
+ * and stack id), indexed by row. Identical stack frames are stored once, and stacks are nodes
+ * of a trie of frames rooted at the outermost frame, so allocations sharing a call path share
+ * its nodes. {@link StackTraceElement}s are only created when a stack trace is requested,
+ * and then cached per frame.
+ * <p>
+ * Rows are in the order of the tracker, so row <code>i</code> has the allocation number
+ * <code>getCount() - i</code>, as {@link AllocationsParser#parse(java.nio.ByteBuffer)} does.
+ */
+public final class AllocationTable {
+
+    /** Stack id of allocations without a stack trace. */
+    public static final int EMPTY_STACK = 0;
+
+    /**
+     * Keys that allocations can be grouped by with {@link AllocationTable#group(GroupBy)}.
+     */
+    public enum GroupBy {
+        /** Groups by allocated class, keyed by class index. */
+        CLASS,
+        /** Groups by thread, keyed by thread id. */
+        THREAD,
+        /** Groups by full stack, keyed by stack id. */
+        STACK,
+        /** Groups by top stack frame, keyed by frame id, or -1 without a stack. */
+        ALLOCATION_SITE
+    }
+
+    /**
+     * Allocation count and total size of each group of a {@link GroupBy}.
+     */
+    public static final class Grouping {
+        private final int[] mKeys;
+        private final int[] mCounts;
+        private final long[] mSizes;
+        private final int[] mGroupOfRow;
+
+        private Grouping(int[] keys, int[] counts, long[] sizes, int[] groupOfRow) {
+            mKeys = keys;
+            mCounts = counts;
+            mSizes = sizes;
+            mGroupOfRow = groupOfRow;
+        }
+
+        /** Returns the number of groups. */
+        public int getGroupCount() {
+            return mKeys.length;
+        }
+
+        /** Returns the key of a group, whose meaning depends on the {@link GroupBy}. */
+        public int getKey(int group) {
+            return mKeys[group];
+        }
+
+        /** Returns the number of allocations of a group. */
+        public int getCount(int group) {
+            return mCounts[group];
+        }
+
+        /** Returns the total size of the allocations of a group. */
+        public long getTotalSize(int group) {
+            return mSizes[group];
+        }
+
+        /** Returns the group of an allocation row. */
+        public int getGroup(int row) {
+            return mGroupOfRow[row];
+        }
+    }
+
+    private final String[] mClassNames;
+    private final String[] mMethodNames;
+    private final String[] mFileNames;
+
+    // allocations
+    private final int mCount;
+    private final int[] mSizes;
+    private final short[] mThreadIds;
+    private final int[] mClassIndexes;
+    private final int[] mStackIds;
+
+    // frames
+    private int mFrameCount;
+    private int[] mFrameClasses = new int[256];
+    private int[] mFrameMethods = new int[256];
+    private int[] mFrameFiles = new int[256];
+    private short[] mFrameLines = new short[256];
+    private final LongIntMap mFrameIndex = new LongIntMap();
+    private StackTraceElement[] mFrameElements;
+
+    // stack trie, node 0 being the empty stack
+    private int mNodeCount = 1;
+    private int[] mNodeParents = new int[256];
+    private int[] mNodeFrames = new int[256];
+    private int[] mNodeDepths = new int[256];
+    private final LongIntMap mNodeIndex = new LongIntMap();
+
+    // sort ranks of the strings, computed on demand
+    private int[] mClassRanks;
+    private int[] mMethodRanks;
+    private int[] mFrameRanks;
+
+    AllocationTable(String[] classNames, String[] methodNames, String[] fileNames, int count) {
+        mClassNames = classNames;
+        mMethodNames = methodNames;
+        mFileNames = fileNames;
+        mCount = count;
+        mSizes = new int[count];
+        mThreadIds = new short[count];
+        mClassIndexes = new int[count];
+        mStackIds = new int[count];
+        mNodeFrames[0] = -1;
+    }
+
+    void setAllocation(int row, int size, short threadId, int classIndex, int stackId) {
+        mSizes[row] = size;
+        mThreadIds[row] = threadId;
+        mClassIndexes[row] = classIndex;
+        mStackIds[row] = stackId;
+    }
+
+    /**
+     * Returns the id of a frame, adding it if it is new.
+     */
+    int internFrame(int classIndex, int methodIndex, int fileIndex, short line) {
+        long key = ((long) classIndex << 48) | ((long) methodIndex << 32)
+                | ((long) fileIndex << 16) | (line & 0xffff);
+        int id = mFrameIndex.get(key);
+        if (id >= 0) {
+            return id;
+        }
+        id = mFrameCount++;
+        if (id == mFrameClasses.length) {
+            int capacity = id * 2;
+            mFrameClasses = Arrays.copyOf(mFrameClasses, capacity);
+            mFrameMethods = Arrays.copyOf(mFrameMethods, capacity);
+            mFrameFiles = Arrays.copyOf(mFrameFiles, capacity);
+            mFrameLines = Arrays.copyOf(mFrameLines, capacity);
+        }
+        mFrameClasses[id] = classIndex;
+        mFrameMethods[id] = methodIndex;
+        mFrameFiles[id] = fileIndex;
+        mFrameLines[id] = line;
+        mFrameIndex.put(key, id);
+        return id;
+    }
+
+    /**
+     * Returns the stack made of a parent stack called from a frame, adding it if it is new.
+     */
+    int internStack(int parent, int frameId) {
+        long key = ((long) parent << 32) | frameId;
+        int id = mNodeIndex.get(key);
+        if (id >= 0) {
+            return id;
+        }
+        id = mNodeCount++;
+        if (id == mNodeParents.length) {
+            int capacity = id * 2;
+            mNodeParents = Arrays.copyOf(mNodeParents, capacity);
+            mNodeFrames = Arrays.copyOf(mNodeFrames, capacity);
+            mNodeDepths = Arrays.copyOf(mNodeDepths, capacity);
+        }
+        mNodeParents[id] = parent;
+        mNodeFrames[id] = frameId;
+        mNodeDepths[id] = mNodeDepths[parent] + 1;
+        mNodeIndex.put(key, id);
+        return id;
+    }
+
+    /** Returns the number of allocations. */
+    public int getCount() {
+        return mCount;
+    }
+
+    /** Returns the allocation number of a row, the most recent having the highest number. */
+    public int getAllocNumber(int row) {
+        return mCount - row;
+    }
+
+    /** Returns the size of an allocation. */
+    public int getSize(int row) {
+        return mSizes[row];
+    }
+
+    /** Returns the id of the thread that performed an allocation. */
+    public short getThreadId(int row) {
+        return mThreadIds[row];
+    }
+
+    /** Returns the index of the allocated class, see {@link #getClassName(int)}. */
+    public int getClassIndex(int row) {
+        return mClassIndexes[row];
+    }
+
+    /** Returns the name of the allocated class. */
+    public String getAllocatedClass(int row) {
+        return mClassNames[mClassIndexes[row]];
+    }
+
+    /** Returns the stack id of an allocation. */
+    public int getStackId(int row) {
+        return mStackIds[row];
+    }
+
+    /** Returns the number of class names. */
+    public int getClassCount() {
+        return mClassNames.length;
+    }
+
+    /** Returns a class name by index. */
+    public String getClassName(int classIndex) {
+        return mClassNames[classIndex];
+    }
+
+    /** Returns the number of distinct frames. */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /** Returns the number of distinct stacks, including {@link #EMPTY_STACK}. */
+    public int getStackCount() {
+        return mNodeCount;
+    }
+
+    /** Returns the depth of a stack. */
+    public int getStackDepth(int stackId) {
+        return mNodeDepths[stackId];
+    }
+
+    /**
+     * Returns the innermost frame of a stack, or -1 for {@link #EMPTY_STACK}.
+     */
+    public int getTopFrame(int stackId) {
+        return mNodeFrames[stackId];
+    }
+
+    /**
+     * Returns the stack a stack was called from, which is {@link #EMPTY_STACK} for a stack of
+     * depth 1.
+     */
+    public int getCallerStack(int stackId) {
+        return mNodeParents[stackId];
+    }
+
+    /** Returns the class name of a frame. */
+    public String getFrameClassName(int frameId) {
+        return mClassNames[mFrameClasses[frameId]];
+    }
+
+    /** Returns the method name of a frame. */
+    public String getFrameMethodName(int frameId) {
+        return mMethodNames[mFrameMethods[frameId]];
+    }
+
+    /** Returns the source file of a frame. */
+    public String getFrameFileName(int frameId) {
+        return mFileNames[mFrameFiles[frameId]];
+    }
+
+    /** Returns the line number of a frame. */
+    public int getFrameLineNumber(int frameId) {
+        return mFrameLines[frameId];
+    }
+
+    /**
+     * Returns the {@link StackTraceElement} of a frame. Elements are shared by all the stack
+     * traces of this table.
+     */
+    @NonNull
+    public synchronized StackTraceElement getStackTraceElement(int frameId) {
+        if (mFrameElements == null) {
+            mFrameElements = new StackTraceElement[mFrameCount];
+        }
+        StackTraceElement element = mFrameElements[frameId];
+        if (element == null) {
+            element = new StackTraceElement(getFrameClassName(frameId),
+                    getFrameMethodName(frameId), getFrameFileName(frameId),
+                    mFrameLines[frameId]);
+            mFrameElements[frameId] = element;
+        }
+        return element;
+    }
+
+    /**
+     * Returns the stack trace of a stack, the innermost frame first.
+     */
+    @NonNull
+    public StackTraceElement[] getStackTrace(int stackId) {
+        StackTraceElement[] trace = new StackTraceElement[mNodeDepths[stackId]];
+        int node = stackId;
+        for (int i = 0; i < trace.length; i++) {
+            trace[i] = getStackTraceElement(mNodeFrames[node]);
+            node = mNodeParents[node];
+        }
+        return trace;
+    }
+
+    /**
+     * Creates the {@link AllocationInfo} of a row.
+     */
+    @NonNull
+    public AllocationInfo getAllocation(int row) {
+        return new AllocationInfo(getAllocNumber(row), getAllocatedClass(row), mSizes[row],
+                mThreadIds[row], getStackTrace(mStackIds[row]));
+    }
+
+    /**
+     * Creates the {@link AllocationInfo}s of all rows, as
+     * {@link AllocationsParser#parse(java.nio.ByteBuffer)} would.
+     */
+    @NonNull
+    public AllocationInfo[] toAllocationInfos() {
+        AllocationInfo[] allocations = new AllocationInfo[mCount];
+        for (int i = 0; i < mCount; i++) {
+            allocations[i] = getAllocation(i);
+        }
+        return allocations;
+    }
+
+    /**
+     * Sorts the allocations, with the same order as an
+     * {@link AllocationInfo.AllocationSorter} set to the same mode.
+     * @param mode the sort mode.
+     * @param descending whether to sort in descending order.
+     * @return the rows, sorted.
+     */
+    @NonNull
+    public int[] sort(@NonNull SortMode mode, boolean descending) {
+        // the sort key holds the mode specific order in the high bits, and the size (the
+        // secondary order of AllocationSorter) in the low bits.
+        long[] keys = new long[mCount];
+        for (int i = 0; i < mCount; i++) {
+            long primary = 0;
+            int top = mNodeFrames[mStackIds[i]];
+            switch (mode) {
+                case NUMBER:
+                    primary = getAllocNumber(i);
+                    break;
+                case SIZE:
+                    break;
+                case CLASS:
+                    primary = getClassRanks()[mClassIndexes[i]];
+                    break;
+                case THREAD:
+                    primary = mThreadIds[i];
+                    break;
+                case IN_CLASS:
+                    primary = top == -1 ? Integer.MAX_VALUE
+                            : getClassRanks()[mFrameClasses[top]];
+                    break;
+                case IN_METHOD:
+                    primary = top == -1 ? Integer.MAX_VALUE
+                            : getMethodRanks()[mFrameMethods[top]];
+                    break;
+                case ALLOCATION_SITE:
+                    primary = top == -1 ? Integer.MAX_VALUE : getFrameRanks()[top];
+                    break;
+            }
+            keys[i] = (primary << 32) + ((long) mSizes[i] - Integer.MIN_VALUE);
+        }
+
+        int[] rows = new int[mCount];
+        for (int i = 0; i < mCount; i++) {
+            rows[i] = i;
+        }
+        mergeSort(rows, new int[mCount], 0, mCount, keys, descending);
+        return rows;
+    }
+
+    /**
+     * Groups the allocations.
+     * @param groupBy the key of the groups.
+     * @return the groups, in order of first appearance.
+     */
+    @NonNull
+    public Grouping group(@NonNull GroupBy groupBy) {
+        LongIntMap groupOfKey = new LongIntMap();
+        int[] groupOfRow = new int[mCount];
+        int[] keys = new int[16];
+        int[] counts = new int[16];
+        long[] sizes = new long[16];
+        int groupCount = 0;
+        for (int i = 0; i < mCount; i++) {
+            int key;
+            switch (groupBy) {
+                case CLASS:
+                    key = mClassIndexes[i];
+                    break;
+                case THREAD:
+                    key = mThreadIds[i];
+                    break;
+                case STACK:
+                    key = mStackIds[i];
+                    break;
+                default:
+                    key = mNodeFrames[mStackIds[i]];
+                    break;
+            }
+            int group = groupOfKey.get(key);
+            if (group < 0) {
+                group = groupCount++;
+                if (group == keys.length) {
+                    keys = Arrays.copyOf(keys, group * 2);
+                    counts = Arrays.copyOf(counts, group * 2);
+                    sizes = Arrays.copyOf(sizes, group * 2);
+                }
+                keys[group] = key;
+                groupOfKey.put(key, group);
+            }
+            counts[group]++;
+            sizes[group] += mSizes[i];
+            groupOfRow[i] = group;
+        }
+        return new Grouping(Arrays.copyOf(keys, groupCount), Arrays.copyOf(counts, groupCount),
+                Arrays.copyOf(sizes, groupCount), groupOfRow);
+    }
+
+    private int[] getClassRanks() {
+        if (mClassRanks == null) {
+            mClassRanks = rank(mClassNames);
+        }
+        return mClassRanks;
+    }
+
+    private int[] getMethodRanks() {
+        if (mMethodRanks == null) {
+            mMethodRanks = rank(mMethodNames);
+        }
+        return mMethodRanks;
+    }
+
+    private int[] getFrameRanks() {
+        if (mFrameRanks == null) {
+            String[] sites = new String[mFrameCount];
+            for (int i = 0; i < mFrameCount; i++) {
+                sites[i] = getStackTraceElement(i).toString();
+            }
+            mFrameRanks = rank(sites);
+        }
+        return mFrameRanks;
+    }
+
+    /**
+     * Returns the rank of each string in the sorted strings, equal strings sharing a rank.
+     */
+    private static int[] rank(String[] strings) {
+        Integer[] order = new Integer[strings.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        final String[] s = strings;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return s[a].compareTo(s[b]);
+            }
+        });
+        int[] ranks = new int[strings.length];
+        int rank = 0;
+        for (int i = 0; i < order.length; i++) {
+            if (i > 0 && !s[order[i]].equals(s[order[i - 1]])) {
+                rank = i;
+            }
+            ranks[order[i]] = rank;
+        }
+        return ranks;
+    }
+
+    /**
+     * Stable sort of rows[from, to) by key.
+     */
+    private static void mergeSort(int[] rows, int[] tmp, int from, int to, long[] keys,
+            boolean descending) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(rows, tmp, from, mid, keys, descending);
+        mergeSort(rows, tmp, mid, to, keys, descending);
+        System.arraycopy(rows, from, tmp, from, to - from);
+        int i = from;
+        int j = mid;
+        for (int k = from; k < to; k++) {
+            if (j >= to) {
+                rows[k] = tmp[i++];
+            } else if (i >= mid) {
+                rows[k] = tmp[j++];
+            } else {
+                long a = keys[tmp[i]];
+                long b = keys[tmp[j]];
+                boolean takeRight = descending ? b > a : b < a;
+                rows[k] = takeRight ? tmp[j++] : tmp[i++];
+            }
+        }
+    }
+
+    /**
+     * Minimal open addressing map of long keys to non negative int values.
+     */
+    private static final class LongIntMap {
+        private long[] mKeys = new long[64];
+        private int[] mValues = new int[64];
+        private boolean[] mUsed = new boolean[64];
+        private int mSize;
+
+        /** Returns the value of a key, or -1. */
+        int get(long key) {
+            int mask = mKeys.length - 1;
+            int slot = hash(key) & mask;
+            while (mUsed[slot]) {
+                if (mKeys[slot] == key) {
+                    return mValues[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        void put(long key, int value) {
+            if (mSize * 2 >= mKeys.length) {
+                long[] keys = mKeys;
+                int[] values = mValues;
+                boolean[] used = mUsed;
+                mKeys = new long[keys.length * 2];
+                mValues = new int[keys.length * 2];
+                mUsed = new boolean[keys.length * 2];
+                mSize = 0;
+                for (int i = 0; i < keys.length; i++) {
+                    if (used[i]) {
+                        put(keys[i], values[i]);
+                    }
+                }
+            }
+            int mask = mKeys.length - 1;
+            int slot = hash(key) & mask;
+            while (mUsed[slot]) {
+                if (mKeys[slot] == key) {
+                    mValues[slot] = value;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            mUsed[slot] = true;
+            mKeys[slot] = key;
+            mValues[slot] = value;
+            mSize++;
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
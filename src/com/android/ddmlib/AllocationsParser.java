@@ -206,6 +206,69 @@ public class AllocationsParser {
         return allocations;
     }
 
+    /**
+     * Parses the allocation tracker data into an {@link AllocationTable}, which keeps a single
+     * copy of each stack frame and stack prefix instead of an {@link AllocationInfo} and a
+     * {@link StackTraceElement} array per allocation.
+     *
+     * @see #parse(ByteBuffer) for the message format.
+     */
+    @NonNull
+    public static AllocationTable parseTable(@NonNull ByteBuffer data) {
+        data = fixAllocOverflow(data);
+
+        int messageHdrLen = (data.get() & 0xff);
+        int entryHdrLen = (data.get() & 0xff);
+        int stackFrameLen = (data.get() & 0xff);
+        int numEntries = (data.getShort() & 0xffff);
+        int offsetToStrings = data.getInt();
+        int numClassNames = (data.getShort() & 0xffff);
+        int numMethodNames = (data.getShort() & 0xffff);
+        int numFileNames = (data.getShort() & 0xffff);
+
+        data.position(offsetToStrings);
+
+        String[] classNames = new String[numClassNames];
+        String[] methodNames = new String[numMethodNames];
+        String[] fileNames = new String[numFileNames];
+
+        readStringTable(data, classNames);
+        readStringTable(data, methodNames);
+        readStringTable(data, fileNames);
+
+        data.position(messageHdrLen);
+
+        AllocationTable table = new AllocationTable(classNames, methodNames, fileNames,
+                numEntries);
+        int[] frames = new int[256];
+        for (int i = 0; i < numEntries; i++) {
+            int totalSize = data.getInt();
+            int threadId = (data.getShort() & 0xffff);
+            int classNameIndex = (data.getShort() & 0xffff);
+            int stackDepth = (data.get() & 0xff);
+            data.position(data.position() + entryHdrLen - 9);
+
+            // frames come innermost first, but the trie is built from the outermost one.
+            for (int sti = 0; sti < stackDepth; sti++) {
+                int methodClassNameIndex = (data.getShort() & 0xffff);
+                int methodNameIndex = (data.getShort() & 0xffff);
+                int methodSourceFileIndex = (data.getShort() & 0xffff);
+                short lineNumber = data.getShort();
+                frames[sti] = table.internFrame(methodClassNameIndex, methodNameIndex,
+                        methodSourceFileIndex, lineNumber);
+                data.position(data.position() + stackFrameLen - 8);
+            }
+
+            int stackId = AllocationTable.EMPTY_STACK;
+            for (int sti = stackDepth - 1; sti >= 0; sti--) {
+                stackId = table.internStack(stackId, frames[sti]);
+            }
+
+            table.setAllocation(i, totalSize, (short) threadId, classNameIndex, stackId);
+        }
+        return table;
+    }
+
     /**
      * In older versions of Android, there is a bug where the .alloc file will allow the header
      * field "number of entries" to overflow by 1. This results in the parser thinking there are 0
@@ -220,6 +283,16 @@ public class AllocationsParser {
      */
     @NonNull
     private static ByteBuffer fixAllocOverflow(@NonNull ByteBuffer original) {
+        // check the header in place first, so that only affected files get copied.
+        int base = original.position();
+        int headerEntries = (original.getShort(base + 3) & 0xffff);
+        int headerOffsetToStrings = original.getInt(base + 5);
+        if (headerEntries != 0 || headerOffsetToStrings - (original.get(base) & 0xff)
+                < (original.get(base + 1) & 0xff) + (original.get(base + 2) & 0xff)) {
+            original.rewind();
+            return original;
+        }
+
         ByteBuffer output = ByteBuffer.allocate(original.capacity());
 
         int messageHdrLen = (original.get() & 0xff);
@@ -229,21 +302,11 @@ public class AllocationsParser {
         int stackFrameLen = (original.get() & 0xff);
         output.put((byte) stackFrameLen);
 
-        int numEntries = (original.getShort() & 0xffff);
-        if (numEntries != 0) {
-            original.rewind();
-            return original;
-        }
-
+        original.getShort(); // the overflowed number of entries, checked above
+        int numEntries = 65535;
+        output.putShort((short) numEntries);
         int offsetToStrings = original.getInt();
-        if (offsetToStrings - messageHdrLen < entryHdrLen + stackFrameLen) {
-            original.rewind();
-            return original;
-        } else {
-            numEntries = 65535;
-            output.putShort((short) numEntries);
-            output.putInt(offsetToStrings);
-        }
+        output.putInt(offsetToStrings);
 
         int numClassNames = (original.getShort() & 0xffff);
         output.putShort((short) numClassNames);
@@ -33,6 +33,8 @@ class BatteryFetcher {
     /** The amount of time to wait between unsuccessful battery fetch attempts. */
     private static final long BATTERY_TIMEOUT_MS = 2 * 1000; // 2 seconds
 
+    static final String SYSFS_BATTERY_COMMAND = "cat /sys/class/power_supply/*/capacity"; //$NON-NLS-1$
+
     /**
      * Output receiver for "cat /sys/class/power_supply/.../capacity" command line.
      */
@@ -128,11 +130,24 @@ class BatteryFetcher {
 
     private Integer mBatteryLevel;
     private final IDevice mDevice;
+    private final PropertyFetcher mPropertyFetcher;
     private long mLastSuccessTime;
     private SettableFuture<Integer> mPendingRequest;
 
     public BatteryFetcher(IDevice device) {
+        this(device, null);
+    }
+
+    /**
+     * Creates a fetcher reading the battery level from sysfs along the properties queried by
+     * <var>propertyFetcher</var>, in a single shell command.
+     */
+    BatteryFetcher(IDevice device, @Nullable PropertyFetcher propertyFetcher) {
         mDevice = device;
+        mPropertyFetcher = propertyFetcher;
+        if (propertyFetcher != null) {
+            propertyFetcher.setBatteryFetcher(this);
+        }
     }
 
     /**
@@ -168,36 +183,70 @@ class BatteryFetcher {
     }
 
     private void initiateBatteryQuery() {
-        String threadName = String.format("query-battery-%s", mDevice.getSerialNumber());
-        Thread fetchThread = new Thread(threadName) {
+        if (mPropertyFetcher != null) {
+            mPropertyFetcher.requestBatteryLevel();
+            return;
+        }
+        PropertyFetcher.getQueryExecutor().execute(new Runnable() {
             @Override
             public void run() {
-                Throwable exception;
                 try {
                     // first try to get it from sysfs
                     SysFsBatteryLevelReceiver sysBattReceiver = new SysFsBatteryLevelReceiver();
-                    mDevice.executeShellCommand("cat /sys/class/power_supply/*/capacity",
+                    mDevice.executeShellCommand(SYSFS_BATTERY_COMMAND,
                             sysBattReceiver, BATTERY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
                     if (!setBatteryLevel(sysBattReceiver.getBatteryLevel())) {
                         // failed! try dumpsys
-                        BatteryReceiver receiver = new BatteryReceiver();
-                        mDevice.executeShellCommand("dumpsys battery", receiver, BATTERY_TIMEOUT_MS,
-                                TimeUnit.MILLISECONDS);
-                        if (setBatteryLevel(receiver.getBatteryLevel())) {
-                            return;
-                        }
-                    } else {
-                        return;
+                        queryDumpsysBatteryLevel();
                     }
-                    exception = new IOException("Unrecognized response to battery level queries");
                 } catch (Throwable e) {
-                    exception = e;
+                    handleBatteryLevelFailure(e);
                 }
-                handleBatteryLevelFailure(exception);
             }
-        };
-        fetchThread.setDaemon(true);
-        fetchThread.start();
+        });
+    }
+
+    /**
+     * Handles the battery level read from sysfs by a query of the {@link PropertyFetcher}, on its
+     * thread. The level is cached even if it was not requested, and dumpsys is tried when it
+     * could not be read and a request is pending.
+     */
+    void handleCombinedQueryResult(@Nullable Integer batteryLevel) {
+        if (setBatteryLevel(batteryLevel)) {
+            return;
+        }
+        synchronized (this) {
+            if (mPendingRequest == null) {
+                return;
+            }
+        }
+        try {
+            queryDumpsysBatteryLevel();
+        } catch (Throwable e) {
+            handleBatteryLevelFailure(e);
+        }
+    }
+
+    /**
+     * Handles the failure of a query of the {@link PropertyFetcher}.
+     */
+    void handleCombinedQueryFailure(Throwable e) {
+        synchronized (this) {
+            if (mPendingRequest == null) {
+                return;
+            }
+        }
+        handleBatteryLevelFailure(e);
+    }
+
+    private void queryDumpsysBatteryLevel() throws TimeoutException, AdbCommandRejectedException,
+            ShellCommandUnresponsiveException, IOException {
+        BatteryReceiver receiver = new BatteryReceiver();
+        mDevice.executeShellCommand("dumpsys battery", receiver, BATTERY_TIMEOUT_MS,
+                TimeUnit.MILLISECONDS);
+        if (!setBatteryLevel(receiver.getBatteryLevel())) {
+            throw new IOException("Unrecognized response to battery level queries");
+        }
     }
 
     private synchronized boolean setBatteryLevel(Integer batteryLevel) {
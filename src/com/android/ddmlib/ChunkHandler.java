@@ -238,7 +238,7 @@ abstract class ChunkHandler extends JdwpInterceptor {
         } else if (packet.isEmpty()) {
           Log.d("ddms", "Got empty reply for 0x" + Integer.toHexString(packet.getId()));
         } else {
-          handlePacket(client, packet);
+          MonitorThread.getInstance().dispatchPacket(this, client, packet);
         }
         return null;
       }
@@ -17,6 +17,7 @@
 package com.android.ddmlib;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.ddmlib.AndroidDebugBridge.IClientChangeListener;
 import com.android.ddmlib.DebugPortManager.IDebugPortProvider;
 import com.android.ddmlib.jdwp.JdwpAgent;
@@ -27,6 +28,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -75,6 +77,9 @@ public class Client extends JdwpAgent {
 
     private SocketChannel mChan;
 
+    /** The data written to {@link #mChan}, kept until the channel takes it. */
+    private final JdwpOutput mOutput = new JdwpOutput();
+
     // debugger we're associated with, if any
     private Debugger mDebugger;
     private int mDebuggerListenPort;
@@ -88,6 +93,9 @@ public class Client extends JdwpAgent {
     private boolean mHeapInfoUpdateEnabled;
     private boolean mHeapSegmentUpdateEnabled;
 
+    // the sampler whose STKL replies are routed to it, if any.
+    private volatile StackSampler mStackSampler;
+
     /*
      * Read/write buffers.  We can get large quantities of data from the
      * client, e.g. the response to a "give me the list of all known classes"
@@ -404,6 +412,41 @@ public class Client extends JdwpAgent {
         HandleThread.requestThreadStackCallRefresh(this, threadId);
     }
 
+    /**
+     * Starts sampling the stack traces of all the threads, replacing any running sampler.
+     * <p>The samples are merged into the call trees of the returned {@link StackSampler}, and do
+     * not update the stack traces of the {@link ThreadInfo}s.
+     *
+     * @param interval the minimum time between two rounds of samples.
+     * @param unit the unit of <var>interval</var>.
+     */
+    @NonNull
+    public StackSampler startStackSampling(long interval, @NonNull TimeUnit unit) {
+        StackSampler sampler = new StackSampler(this);
+        sampler.setInterval(interval, unit);
+        sampler.start();
+        return sampler;
+    }
+
+    @Nullable
+    StackSampler getStackSampler() {
+        return mStackSampler;
+    }
+
+    void setStackSampler(@NonNull StackSampler sampler) {
+        StackSampler previous = mStackSampler;
+        mStackSampler = sampler;
+        if (previous != null && previous != sampler) {
+            previous.stop();
+        }
+    }
+
+    void clearStackSampler(@NonNull StackSampler sampler) {
+        if (mStackSampler == sampler) {
+            mStackSampler = null;
+        }
+    }
+
     /**
      * Enables or disables the heap update.
      * <p>If <code>true</code>, any GC will cause the client to send its heap information.
@@ -553,10 +596,20 @@ public class Client extends JdwpAgent {
      */
     void register(Selector sel) throws IOException {
         if (mChan != null) {
-            mChan.register(sel, SelectionKey.OP_READ, this);
+            // data may have been kept before the registration.
+            mChan.register(sel, SelectionKey.OP_READ
+                    | (mOutput.hasPending() ? SelectionKey.OP_WRITE : 0), this);
         }
     }
 
+    /**
+     * Returns the key of the client with a Selector, or null if it isn't registered with it.
+     */
+    SelectionKey keyFor(Selector sel) {
+        SocketChannel chan = mChan;
+        return chan != null ? chan.keyFor(sel) : null;
+    }
+
     /**
      * Sets the client to accept debugger connection on the "selected debugger port".
      *
@@ -627,8 +680,9 @@ public class Client extends JdwpAgent {
      * Send a DDM packet to the client.
      *
      * Ideally, we can do this with a single channel write.  If that doesn't
-     * happen, we have to prevent anybody else from writing to the channel
-     * until this packet completes, so we synchronize on the channel.
+     * happen, the rest of the packet is copied and written by the monitor
+     * thread once the channel is writable, and the packets sent meanwhile are
+     * queued behind it (see {@link JdwpOutput}).
      *
      * Another goal is to avoid unnecessary buffer copies, so we write
      * directly out of the JdwpPacket's ByteBuffer.
@@ -648,16 +702,105 @@ public class Client extends JdwpAgent {
         // Synchronizing on this variable is still useful as we do not want to threads
         // reading at the same time from the same channel, and the only change that
         // can happen to this channel is to be closed and mChan become null.
+        boolean written;
         //noinspection SynchronizationOnLocalVariableOrMethodParameter
         synchronized (chan) {
             try {
-                packet.write(chan);
+                written = mOutput.write(chan, new ByteBuffer[] { packet.toBuffer() }, 1,
+                        true /* copy */, null);
             }
             catch (IOException ioe) {
                 removeReplyInterceptor(packet.getId());
                 throw ioe;
             }
         }
+        if (!written) {
+            writeLater();
+        }
+    }
+
+    /**
+     * Send packets to the client, with gathering writes. What the channel doesn't take is kept,
+     * and <var>onWritable</var> runs once the monitor thread wrote it.
+     */
+    @Override
+    protected boolean send(@NonNull JdwpPacket[] packets, int count,
+            @NonNull Runnable onWritable) throws IOException {
+        SocketChannel chan = mChan;
+        if (chan == null) {
+            Log.v("ddms", "Not sending packets -- client is closed");
+            return true;
+        }
+
+        for (int i = 0; i < count; i++) {
+            packets[i].log("Client: sending jdwp packet to Android Device");
+        }
+
+        boolean written;
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (chan) {
+            try {
+                // the packets belong to the pipeline, and can be kept as they are.
+                written = mOutput.write(chan, JdwpPacket.toBuffers(packets, count), count,
+                        false /* copy */, onWritable);
+            }
+            catch (IOException ioe) {
+                for (int i = 0; i < count; i++) {
+                    removeReplyInterceptor(packets[i].getId());
+                }
+                throw ioe;
+            }
+        }
+        if (!written) {
+            writeLater();
+        }
+        return written;
+    }
+
+    /**
+     * Asks the monitor thread to write the data kept by {@link #mOutput} once the channel is
+     * writable.
+     */
+    private void writeLater() {
+        MonitorThread monitorThread = MonitorThread.getInstance();
+        if (monitorThread != null) {
+            monitorThread.writeClientLater(this);
+        }
+    }
+
+    /**
+     * Writes the data kept by {@link #mOutput}, on the monitor thread, once the channel is
+     * writable. Stops watching for it once all is written.
+     */
+    void writePending(@NonNull SelectionKey key) throws IOException {
+        List<Runnable> waiters = mOutput.writePending((SocketChannel) key.channel());
+        if (waiters != null) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            JdwpOutput.run(waiters);
+        }
+    }
+
+    /**
+     * Forwarding the packets of the client to the debugger failed: drop the client, as when
+     * the forwarding is done on the selector thread.
+     */
+    @Override
+    protected void incomingFailed(@NonNull IOException e) {
+        MonitorThread monitorThread = MonitorThread.getInstance();
+        if (monitorThread != null) {
+            monitorThread.dropClient(this, true /* notify */);
+        }
+    }
+
+    /**
+     * The pipeline of the client's packets made room: go back to reading them.
+     */
+    @Override
+    protected void resumeIncoming() {
+        MonitorThread monitorThread = MonitorThread.getInstance();
+        if (monitorThread != null) {
+            monitorThread.resumeClient(this);
+        }
     }
 
     /**
@@ -837,6 +980,8 @@ public class Client extends JdwpAgent {
             Log.w("ddms", "failed to close " + this);
             // swallow it -- not much else to do
         }
+        // the pipeline waiting for the data kept can go on, and find the client closed.
+        JdwpOutput.run(mOutput.clear());
 
         mDevice.removeClient(this, notify);
     }
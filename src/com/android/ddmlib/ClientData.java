@@ -201,6 +201,9 @@ public class ClientData {
     /** Native Alloc info list */
     private ArrayList<NativeAllocationInfo> mNativeAllocationList =
         new ArrayList<NativeAllocationInfo>();
+    /** Native allocations of the last NHGT, from which the list above is created on demand. */
+    private NativeHeapSnapshot mNativeHeapSnapshot;
+    private boolean mNativeAllocationListStale;
     private int mNativeTotalMemory;
 
     private byte[] mAllocationsData;
@@ -218,12 +221,17 @@ public class ClientData {
      * <p>The heap is composed of several {@link HeapSegment} objects.
      * <p>A call to {@link #isHeapDataComplete()} will indicate if the segments (available through
      * {@link #getHeapSegments()}) represent the full heap.
+     * <p>Once sealed, the runs of the segments are also available as a compact
+     * {@link HeapSegmentStore}, through {@link #getSegmentStore()}.
      */
     public static class HeapData {
         private TreeSet<HeapSegment> mHeapSegments = new TreeSet<HeapSegment>();
         private boolean mHeapDataComplete = false;
         private byte[] mProcessedHeapData;
         private Map<Integer, ArrayList<HeapSegmentElement>> mProcessedHeapMap;
+        private HeapSegmentStore mSegmentStore;
+        /** The store of the refresh before the last one, whose arrays are reused. */
+        private HeapSegmentStore mSpareSegmentStore;
 
         /**
          * Abandon the current list of heap segments.
@@ -262,6 +270,11 @@ public class ClientData {
          * Called when all heap data has arrived.
          */
         synchronized void sealHeapData() {
+            HeapSegmentStore store = mSpareSegmentStore != null
+                    ? mSpareSegmentStore : new HeapSegmentStore();
+            store.load(mHeapSegments);
+            mSpareSegmentStore = mSegmentStore;
+            mSegmentStore = store;
             mHeapDataComplete = true;
         }
 
@@ -284,6 +297,20 @@ public class ClientData {
             return null;
         }
 
+        /**
+         * Get the runs of the collected heap data as a {@link HeapSegmentStore}, if sealed.
+         * <p>The store is reused by the refresh after the next one: it should not be kept longer.
+         *
+         * @return The runs of the heap segments if the heap data has been sealed, or null if it
+         *         hasn't.
+         */
+        public synchronized HeapSegmentStore getSegmentStore() {
+            if (isHeapDataComplete()) {
+                return mSegmentStore;
+            }
+            return null;
+        }
+
         /**
          * Sets the processed heap data.
          *
@@ -725,22 +752,37 @@ public class ClientData {
      * @see Client#requestNativeHeapInformation()
      */
     public synchronized List<NativeAllocationInfo> getNativeAllocationList() {
+        if (mNativeAllocationListStale) {
+            mNativeAllocationListStale = false;
+            mNativeAllocationList.addAll(mNativeHeapSnapshot.toAllocationInfos());
+        }
         return Collections.unmodifiableList(mNativeAllocationList);
     }
 
     /**
-     * adds a new {@link NativeAllocationInfo} to the {@link Client}
-     * @param allocInfo The {@link NativeAllocationInfo} to add.
+     * Returns the native allocations of the last native heap information request, stored as
+     * arrays. Cheaper than {@link #getNativeAllocationList()} for large heaps.
+     * @see Client#requestNativeHeapInformation()
+     */
+    @Nullable
+    public synchronized NativeHeapSnapshot getNativeHeapSnapshot() {
+        return mNativeHeapSnapshot;
+    }
+
+    /**
+     * Replaces the native allocations.
      */
-    synchronized void addNativeAllocation(NativeAllocationInfo allocInfo) {
-        mNativeAllocationList.add(allocInfo);
+    synchronized void setNativeHeapSnapshot(@Nullable NativeHeapSnapshot snapshot) {
+        mNativeHeapSnapshot = snapshot;
+        mNativeAllocationList.clear();
+        mNativeAllocationListStale = snapshot != null;
     }
 
     /**
      * Clear the current malloc info.
      */
     synchronized void clearNativeAllocationInfo() {
-        mNativeAllocationList.clear();
+        setNativeHeapSnapshot(null);
     }
 
     /**
@@ -807,6 +849,18 @@ public class ClientData {
         return null;
     }
 
+    /**
+     * Returns the tracked allocations in the compact form of an {@link AllocationTable}.
+     * @see Client#requestAllocationDetails()
+     */
+    @Nullable
+    public synchronized AllocationTable getAllocationTable() {
+        if (mAllocationsData != null) {
+            return AllocationsParser.parseTable(ByteBuffer.wrap(mAllocationsData));
+        }
+        return null;
+    }
+
     void addFeature(String feature) {
         mFeatures.add(feature);
     }
@@ -17,6 +17,8 @@
 package com.android.ddmlib;
 
 import com.android.ddmlib.Log.LogLevel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Preferences for the ddm library.
@@ -47,6 +49,22 @@ public final class DdmPreferences {
     /** Default values for the use of the ADBHOST environment variable. */
     public static final boolean DEFAULT_USE_ADBHOST = false;
     public static final String DEFAULT_ADBHOST_VALUE = "127.0.0.1";
+    /** Default number of selector threads monitoring the clients. */
+    public static final int DEFAULT_MONITOR_THREAD_COUNT = 1;
+    /** Default number of threads running the client chunk handlers. */
+    public static final int DEFAULT_CHUNK_DISPATCH_THREAD_COUNT = 1;
+    /** Default number of threads running the JDWP interceptors. */
+    public static final int DEFAULT_JDWP_PIPELINE_THREAD_COUNT = 1;
+    /** Default number of threads querying the properties and battery level of the devices. */
+    public static final int DEFAULT_DEVICE_QUERY_THREAD_COUNT = 4;
+    /** Default number of threads opening the connections to the devices and their clients. */
+    public static final int DEFAULT_DEVICE_CONNECT_THREAD_COUNT = 4;
+    /** Default number of selector threads running the asynchronous shell commands. */
+    public static final int DEFAULT_SHELL_REACTOR_THREAD_COUNT = 2;
+    /** Default time a query of mutable properties waits for other requests to share it (ms). */
+    public static final int DEFAULT_PROPERTY_COALESCING_WINDOW = 20;
+    /** Default time a mutable property read from a device is reused (ms). */
+    public static final int DEFAULT_MUTABLE_PROPERTY_TTL = 0;
 
     private static boolean sThreadUpdate = DEFAULT_INITIAL_THREAD_UPDATE;
     private static boolean sInitialHeapUpdate = DEFAULT_INITIAL_HEAP_UPDATE;
@@ -60,6 +78,18 @@ public final class DdmPreferences {
     private static boolean sUseAdbHost = DEFAULT_USE_ADBHOST;
     private static String sAdbHostValue = DEFAULT_ADBHOST_VALUE;
 
+    private static int sMonitorThreadCount = DEFAULT_MONITOR_THREAD_COUNT;
+    private static int sChunkDispatchThreadCount = DEFAULT_CHUNK_DISPATCH_THREAD_COUNT;
+    private static int sJdwpPipelineThreadCount = DEFAULT_JDWP_PIPELINE_THREAD_COUNT;
+
+    private static int sDeviceQueryThreadCount = DEFAULT_DEVICE_QUERY_THREAD_COUNT;
+    private static int sShellReactorThreadCount = DEFAULT_SHELL_REACTOR_THREAD_COUNT;
+    private static int sDeviceConnectThreadCount = DEFAULT_DEVICE_CONNECT_THREAD_COUNT;
+    private static int sPropertyCoalescingWindow = DEFAULT_PROPERTY_COALESCING_WINDOW;
+    private static int sMutablePropertyTtl = DEFAULT_MUTABLE_PROPERTY_TTL;
+    private static final Map<String, Integer> sMutablePropertyTtls =
+            new ConcurrentHashMap<String, Integer>();
+
     /**
      * Returns the initial {@link Client} flag for thread updates.
      * @see #setInitialThreadUpdate(boolean)
@@ -211,6 +241,163 @@ public final class DdmPreferences {
         sAdbHostValue = adbHostValue;
     }
 
+    /**
+     * Returns the number of selector threads monitoring the clients.
+     */
+    public static int getMonitorThreadCount() {
+        return sMonitorThreadCount;
+    }
+
+    /**
+     * Sets the number of selector threads monitoring the clients. The clients of a device are
+     * always handled by the same thread.
+     * <p>This must be called before {@link AndroidDebugBridge#init(boolean)}.
+     * @param count the number of threads, at least 1.
+     */
+    public static void setMonitorThreadCount(int count) {
+        sMonitorThreadCount = Math.max(1, count);
+    }
+
+    /**
+     * Returns the number of threads running the client chunk handlers.
+     */
+    public static int getChunkDispatchThreadCount() {
+        return sChunkDispatchThreadCount;
+    }
+
+    /**
+     * Sets the number of threads running the client chunk handlers. The chunks of a client are
+     * always handled in order, by the same thread. A value of 0 runs the handlers directly on
+     * the selector threads.
+     * <p>This must be called before {@link AndroidDebugBridge#init(boolean)}.
+     * @param count the number of threads.
+     */
+    public static void setChunkDispatchThreadCount(int count) {
+        sChunkDispatchThreadCount = Math.max(0, count);
+    }
+
+    /**
+     * Returns the number of threads running the JDWP interceptors of the clients and debuggers.
+     */
+    public static int getJdwpPipelineThreadCount() {
+        return sJdwpPipelineThreadCount;
+    }
+
+    /**
+     * Sets the number of threads running the JDWP interceptors of the clients and debuggers, and
+     * forwarding their packets. The packets of a client or debugger are always intercepted in
+     * order. A value of 0 runs the interceptors directly on the selector threads.
+     * <p>This must be called before {@link AndroidDebugBridge#init(boolean)}.
+     * @param count the number of threads.
+     */
+    public static void setJdwpPipelineThreadCount(int count) {
+        sJdwpPipelineThreadCount = Math.max(0, count);
+    }
+
+    /**
+     * Returns the number of threads querying the properties and battery level of the devices.
+     */
+    public static int getDeviceQueryThreadCount() {
+        return sDeviceQueryThreadCount;
+    }
+
+    /**
+     * Sets the number of threads querying the properties and battery level of the devices. The
+     * threads are shared by all the devices.
+     * <p>This must be called before the first query.
+     * @param count the number of threads, at least 1.
+     */
+    public static void setDeviceQueryThreadCount(int count) {
+        sDeviceQueryThreadCount = Math.max(1, count);
+    }
+
+    /**
+     * Returns the number of threads opening the connections to the devices and their clients.
+     */
+    public static int getDeviceConnectThreadCount() {
+        return sDeviceConnectThreadCount;
+    }
+
+    /**
+     * Sets the number of threads opening the connections to the devices and their clients. The
+     * connections are then read by a single thread.
+     * <p>This must be called before {@link AndroidDebugBridge#init(boolean)}.
+     * @param count the number of threads, at least 1.
+     */
+    public static void setDeviceConnectThreadCount(int count) {
+        sDeviceConnectThreadCount = Math.max(1, count);
+    }
+
+    /**
+     * Returns the number of selector threads running the asynchronous shell commands.
+     */
+    public static int getShellReactorThreadCount() {
+        return sShellReactorThreadCount;
+    }
+
+    /**
+     * Sets the number of selector threads running the asynchronous shell commands. The threads
+     * are shared by all the devices, and each runs many commands at once.
+     * <p>This must be called before the first asynchronous command.
+     * @param count the number of threads, at least 1.
+     */
+    public static void setShellReactorThreadCount(int count) {
+        sShellReactorThreadCount = Math.max(1, count);
+    }
+
+    /**
+     * Returns the time a query of mutable properties waits for other requests to share it
+     * (milliseconds).
+     */
+    public static int getPropertyCoalescingWindow() {
+        return sPropertyCoalescingWindow;
+    }
+
+    /**
+     * Sets the time a query of mutable properties waits for other requests to share it. All the
+     * requests made for a device during that time are answered by a single query.
+     * <p>This change takes effect right away.
+     * @param window the time (milliseconds).
+     */
+    public static void setPropertyCoalescingWindow(int window) {
+        sPropertyCoalescingWindow = Math.max(0, window);
+    }
+
+    /**
+     * Returns the time the value of a mutable property read from a device is reused
+     * (milliseconds).
+     * @see #setMutablePropertyTtl(String, int)
+     */
+    public static int getMutablePropertyTtl(String name) {
+        Integer ttl = sMutablePropertyTtls.get(name);
+        return ttl != null ? ttl : sMutablePropertyTtl;
+    }
+
+    /**
+     * Sets the time the values of mutable properties read from a device are reused, before they
+     * are read again. Defaults to 0: they are read for each request.
+     * <p>This change takes effect right away.
+     * @param ttl the time (milliseconds).
+     */
+    public static void setMutablePropertyTtl(int ttl) {
+        sMutablePropertyTtl = Math.max(0, ttl);
+    }
+
+    /**
+     * Sets the time the value of a mutable property read from a device is reused, overriding
+     * {@link #setMutablePropertyTtl(int)} for this property.
+     * <p>This change takes effect right away.
+     * @param name the name of the property.
+     * @param ttl the time (milliseconds), or a negative value to remove the override.
+     */
+    public static void setMutablePropertyTtl(String name, int ttl) {
+        if (ttl < 0) {
+            sMutablePropertyTtls.remove(name);
+        } else {
+            sMutablePropertyTtls.put(name, ttl);
+        }
+    }
+
     /**
      * Non accessible constructor.
      */
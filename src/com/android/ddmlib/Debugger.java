@@ -33,6 +33,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.List;
 
 /**
  * This represents a pending or established connection with a JDWP debugger.
@@ -69,7 +70,10 @@ public class Debugger extends JdwpAgent {
     private ServerSocketChannel mListenChannel;
 
     /* this goes up and down; synchronize methods that access the field */
-    private SocketChannel mChannel;
+    private volatile SocketChannel mChannel;
+
+    /** The data written to {@link #mChannel}, kept until the channel takes it. */
+    private final JdwpOutput mOutput = new JdwpOutput();
 
     /**
      * Create a new Debugger object, configured to listen for connections
@@ -146,6 +150,23 @@ public class Debugger extends JdwpAgent {
         mListenChannel.register(sel, SelectionKey.OP_ACCEPT, this);
     }
 
+    /**
+     * Returns the key of the data connection with a Selector, or null if there is none.
+     * Called on the selector thread, so doesn't wait for the writers.
+     */
+    SelectionKey keyFor(Selector sel) {
+        SocketChannel chan = mChannel;
+        return chan != null ? chan.keyFor(sel) : null;
+    }
+
+    /**
+     * Returns the operations to register the data connection for: reading, and writing if data
+     * was kept before the registration.
+     */
+    int getInterestOps() {
+        return SelectionKey.OP_READ | (mOutput.hasPending() ? SelectionKey.OP_WRITE : 0);
+    }
+
     /**
      * Return the Client being debugged.
      */
@@ -212,6 +233,9 @@ public class Debugger extends JdwpAgent {
         } catch (IOException ioe) {
             Log.w("ddms", "Failed to close data " + this);
         }
+        // the pipeline waiting for the data kept can go on, its packets being saved for the
+        // next debugger.
+        JdwpOutput.run(mOutput.clear());
     }
 
     /**
@@ -232,12 +256,23 @@ public class Debugger extends JdwpAgent {
 
     // TODO: ?? add a finalizer that verifies the channel was closed
 
-    void processChannelData() {
+    void processChannelData(@NonNull SelectionKey key, boolean resume) {
         try {
-            /*
-             * Read pending data.
-             */
-            read();
+            if (resume) {
+                // the packets left in the buffer can be forwarded again.
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            } else {
+                if (key.isWritable()) {
+                    writePending(key);
+                    if (!key.isReadable()) {
+                        return;
+                    }
+                }
+                /*
+                 * Read pending data.
+                 */
+                read();
+            }
 
             /*
              * See if we have a full packet in the buffer. It's possible we have
@@ -245,6 +280,12 @@ public class Debugger extends JdwpAgent {
              */
             JdwpPacket packet = getJdwpPacket();
             while (packet != null) {
+                if (isIncomingPaused()) {
+                    // the client is not keeping up: leave the packets in the buffer and stop
+                    // reading until resumeIncoming().
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    return;
+                }
                 Log.v(
                         "ddms",
                         "Forwarding dbg req 0x"
@@ -258,30 +299,53 @@ public class Debugger extends JdwpAgent {
                 packet = getJdwpPacket();
             }
         } catch (IOException | BufferOverflowException e) {
-            /*
-             * Close data connection; automatically un-registers dbg from
-             * selector. The failure could be caused by the debugger going away,
-             * or by the client going away and failing to accept our data.
-             * Either way, the debugger connection does not need to exist any
-             * longer. We also need to recycle the connection to the client, so
-             * that the VM sees the debugger disconnect.
-             */
-            Log.d(
-                    "ddms",
-                    "Closing connection to debugger "
-                            + this
-                            + " (recycling client connection as well)");
-            closeData();
-            Client client = getClient();
-            // we should drop the client, but also attempt to reopen it.
-            // This is done by the DeviceMonitor.
-            client.getDeviceImpl()
-                    .getClientTracker()
-                    .trackClientToDropAndReopen(
-                            client, DebugPortManager.IDebugPortProvider.NO_STATIC_PORT);
+            dropConnection();
         }
     }
 
+    /**
+     * Forwarding the packets of the debugger to the client failed, off the selector thread.
+     */
+    @Override
+    protected void incomingFailed(@NonNull IOException e) {
+        dropConnection();
+    }
+
+    /**
+     * The pipeline of the debugger's packets made room: go back to reading them.
+     */
+    @Override
+    protected void resumeIncoming() {
+        MonitorThread monitorThread = MonitorThread.getInstance();
+        if (monitorThread != null) {
+            monitorThread.resumeDebugger(this);
+        }
+    }
+
+    private void dropConnection() {
+        /*
+         * Close data connection; automatically un-registers dbg from
+         * selector. The failure could be caused by the debugger going away,
+         * or by the client going away and failing to accept our data.
+         * Either way, the debugger connection does not need to exist any
+         * longer. We also need to recycle the connection to the client, so
+         * that the VM sees the debugger disconnect.
+         */
+        Log.d(
+                "ddms",
+                "Closing connection to debugger "
+                        + this
+                        + " (recycling client connection as well)");
+        closeData();
+        Client client = getClient();
+        // we should drop the client, but also attempt to reopen it.
+        // This is done by the DeviceMonitor.
+        client.getDeviceImpl()
+                .getClientTracker()
+                .trackClientToDropAndReopen(
+                        client, DebugPortManager.IDebugPortProvider.NO_STATIC_PORT);
+    }
+
     /**
      * Read data from our channel.
      *
@@ -423,6 +487,7 @@ public class Debugger extends JdwpAgent {
     @Override
     protected void send(@NonNull JdwpPacket packet) throws IOException {
         packet.log("Debugger: forwarding jdwp packet from Client to Java Debugger");
+        boolean written = true;
         synchronized (this) {
             if (mChannel == null) {
                 /*
@@ -437,9 +502,66 @@ public class Debugger extends JdwpAgent {
                         + Integer.toHexString(packet.getId()));
                 packet.move(mPreDataBuffer);
             } else {
-                packet.write(mChannel);
+                written = mOutput.write(mChannel, new ByteBuffer[] { packet.toBuffer() }, 1,
+                        true /* copy */, null);
+            }
+        }
+        if (!written) {
+            writeLater();
+        }
+    }
+
+    /**
+     * Send packets to the debugger, with gathering writes once it is connected. What the channel
+     * doesn't take is kept, and <var>onWritable</var> runs once the monitor thread wrote it.
+     */
+    @Override
+    protected boolean send(@NonNull JdwpPacket[] packets, int count,
+            @NonNull Runnable onWritable) throws IOException {
+        for (int i = 0; i < count; i++) {
+            packets[i].log("Debugger: forwarding jdwp packet from Client to Java Debugger");
+        }
+        boolean written = true;
+        synchronized (this) {
+            if (mChannel == null) {
+                for (int i = 0; i < count; i++) {
+                    Log.d("ddms", "Saving packet 0x"
+                            + Integer.toHexString(packets[i].getId()));
+                    packets[i].move(mPreDataBuffer);
+                }
+            } else {
+                // the packets belong to the pipeline, and can be kept as they are.
+                written = mOutput.write(mChannel, JdwpPacket.toBuffers(packets, count), count,
+                        false /* copy */, onWritable);
             }
         }
+        if (!written) {
+            writeLater();
+        }
+        return written;
+    }
+
+    /**
+     * Asks the monitor thread to write the data kept by {@link #mOutput} once the channel is
+     * writable.
+     */
+    private void writeLater() {
+        MonitorThread monitorThread = MonitorThread.getInstance();
+        if (monitorThread != null) {
+            monitorThread.writeDebuggerLater(this);
+        }
+    }
+
+    /**
+     * Writes the data kept by {@link #mOutput}, on the monitor thread, once the channel is
+     * writable. Stops watching for it once all is written.
+     */
+    private void writePending(@NonNull SelectionKey key) throws IOException {
+        List<Runnable> waiters = mOutput.writePending((SocketChannel) key.channel());
+        if (waiters != null) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            JdwpOutput.run(waiters);
+        }
     }
 }
 
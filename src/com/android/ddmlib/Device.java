@@ -19,7 +19,6 @@ package com.android.ddmlib;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
-import com.android.annotations.concurrency.GuardedBy;
 import com.android.ddmlib.log.LogReceiver;
 import com.android.sdklib.AndroidVersion;
 import com.google.common.base.Joiner;
@@ -27,16 +26,17 @@ import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Atomics;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.io.File;
 import java.io.IOException;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -69,10 +69,10 @@ final class Device implements IDevice {
     private final PropertyFetcher mPropFetcher = new PropertyFetcher(this);
     private final Map<String, String> mMountPoints = new HashMap<String, String>();
 
-    private final BatteryFetcher mBatteryFetcher = new BatteryFetcher(this);
+    private final BatteryFetcher mBatteryFetcher = new BatteryFetcher(this, mPropFetcher);
 
-    @GuardedBy("mClients")
-    private final List<Client> mClients = new ArrayList<Client>();
+    /** Copy on write: the clients are read without locking, and rarely change. */
+    private final List<Client> mClients = new CopyOnWriteArrayList<Client>();
 
     /** Maps pid's of clients in {@link #mClients} to their package name. */
     private final Map<Integer, String> mClientInfo = new ConcurrentHashMap<Integer, String>();
@@ -120,6 +120,9 @@ final class Device implements IDevice {
     /** Cached list of hardware characteristics */
     private Set<String> mHardwareCharacteristics;
 
+    /** File listing service, shared so that its listings are cached across uses. */
+    private FileListingService mFileListingService;
+
     private int mApiLevel;
     @Nullable private AndroidVersion mVersion;
     private String mName;
@@ -529,8 +532,24 @@ final class Device implements IDevice {
      * @see com.android.ddmlib.IDevice#getFileListingService()
      */
     @Override
-    public FileListingService getFileListingService() {
-        return new FileListingService(this);
+    public synchronized FileListingService getFileListingService() {
+        if (mFileListingService == null) {
+            mFileListingService = new FileListingService(this);
+        }
+        return mFileListingService;
+    }
+
+    /**
+     * Marks the cached file listings affected by a change of a remote path as stale.
+     */
+    void invalidateFileListing(String remotePath) {
+        FileListingService fileListingService;
+        synchronized (this) {
+            fileListingService = mFileListingService;
+        }
+        if (fileListingService != null) {
+            fileListingService.invalidate(remotePath);
+        }
     }
 
     @Override
@@ -545,6 +564,16 @@ final class Device implements IDevice {
         return AdbHelper.getFrameBuffer(AndroidDebugBridge.getSocketAddress(), this, timeout, unit);
     }
 
+    @NonNull
+    @Override
+    public ScreenCaptureStream startScreenCapture(long interval, @NonNull TimeUnit unit,
+            @NonNull ScreenCaptureStream.FrameListener listener) {
+        ScreenCaptureStream stream = new ScreenCaptureStream(this, listener);
+        stream.setInterval(interval, unit);
+        stream.start();
+        return stream;
+    }
+
     @Override
     public void startScreenRecorder(
             @NonNull String remoteFilePath,
@@ -642,6 +671,22 @@ final class Device implements IDevice {
                 maxTimeUnits);
     }
 
+    @NonNull
+    @Override
+    public ListenableFuture<Void> executeShellCommandAsync(@NonNull String command,
+            @Nullable IShellOutputReceiver receiver, long maxTimeout, long maxTimeToOutputResponse,
+            @Nullable TimeUnit maxTimeUnits) {
+        return AdbHelper.executeRemoteCommandAsync(
+                AndroidDebugBridge.getSocketAddress(),
+                AdbHelper.AdbService.SHELL,
+                command,
+                this,
+                receiver,
+                maxTimeout,
+                maxTimeToOutputResponse,
+                maxTimeUnits);
+    }
+
     @Override
     public void runEventLogService(LogReceiver receiver)
             throws TimeoutException, AdbCommandRejectedException, IOException {
@@ -700,25 +745,20 @@ final class Device implements IDevice {
 
     @Override
     public boolean hasClients() {
-        synchronized (mClients) {
-            return !mClients.isEmpty();
-        }
+        return !mClients.isEmpty();
     }
 
     @Override
     public Client[] getClients() {
-        synchronized (mClients) {
-            return mClients.toArray(new Client[mClients.size()]);
-        }
+        //noinspection ToArrayCallWithZeroLengthArrayArgument
+        return mClients.toArray(new Client[0]);
     }
 
     @Override
     public Client getClient(String applicationName) {
-        synchronized (mClients) {
-            for (Client c : mClients) {
-                if (applicationName.equals(c.getClientData().getClientDescription())) {
-                    return c;
-                }
+        for (Client c : mClients) {
+            if (applicationName.equals(c.getClientData().getClientDescription())) {
+                return c;
             }
         }
 
@@ -726,23 +766,20 @@ final class Device implements IDevice {
     }
 
     void addClient(Client client) {
-        synchronized (mClients) {
-            mClients.add(client);
-        }
+        mClients.add(client);
 
         addClientInfo(client);
     }
 
+    /**
+     * Returns the clients. The list is copy on write: iterating it reads a snapshot.
+     */
     List<Client> getClientList() {
-        synchronized (mClients) {
-            return mClients;
-        }
+        return mClients;
     }
 
     void clearClientList() {
-        synchronized (mClients) {
-            mClients.clear();
-        }
+        mClients.clear();
 
         clearClientInfo();
     }
@@ -754,9 +791,7 @@ final class Device implements IDevice {
      */
     void removeClient(Client client, boolean notify) {
         mClientTracer.trackDisconnectedClient(client);
-        synchronized (mClients) {
-            mClients.remove(client);
-        }
+        mClients.remove(client);
         if (notify) {
             AndroidDebugBridge.deviceChanged(this, CHANGE_CLIENT_LIST);
         }
@@ -24,40 +24,54 @@ import com.android.ddmlib.ClientData.DebuggerStatus;
 import com.android.ddmlib.DebugPortManager.IDebugPortProvider;
 import com.android.ddmlib.IDevice.DeviceState;
 import com.android.ddmlib.utils.DebuggerPorts;
-import com.android.utils.Pair;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Queues;
-import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.IOException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The {@link DeviceMonitor} monitors devices attached to adb.
  *
- * <p>On one thread, it runs the {@link DeviceListMonitorTask}.
- * This establishes a socket connection to the adb host, and issues a {@link
- * #ADB_TRACK_DEVICES_COMMAND}. It then monitors that socket for all changes about device connection
- * and device state.
+ * <p>It runs the {@link DeviceListMonitorTask}, which establishes a socket connection to the adb
+ * host, and issues a {@link #ADB_TRACK_DEVICES_COMMAND}. It then monitors that socket for all
+ * changes about device connection and device state.
  *
  * <p>For each device that is detected to be online, it then opens a new socket connection to adb,
  * and issues a "track-jdwp" command to that device. On this connection, it monitors active clients
- * on the device. Note: a single thread monitors jdwp connections from all devices. The different
- * socket connections to adb (one per device) are multiplexed over a single selector.
+ * on the device.
+ *
+ * <p>A single thread reads all those connections, multiplexed over a single selector, and never
+ * blocks on them: opening the connections and the clients is done on a small pool of threads,
+ * and lost connections are reopened after a delay growing exponentially with the failures.
+ * The device listeners are notified on threads of their own, in order for each device, so that
+ * a listener blocking in a notification stops neither the monitoring nor the connections.
  */
 final class DeviceMonitor implements ClientTracker {
     private static final String ADB_TRACK_DEVICES_COMMAND = "host:track-devices";
     private static final String ADB_TRACK_JDWP_COMMAND = "track-jdwp";
 
-    private final byte[] mLengthBuffer2 = new byte[4];
+    /** Delay before reconnecting after a first failure (ms), doubled on each failure. */
+    private static final long INITIAL_RECONNECT_DELAY = 100;
+    /** Maximum delay before reconnecting (ms). */
+    private static final long MAX_RECONNECT_DELAY = 2000;
+
+    /**
+     * Delay before reopening a dropped client (ms). If we don't wait a bit, the client will never
+     * answer the second handshake!
+     */
+    private static final long REOPEN_DELAY = 1000;
 
     private volatile boolean mQuit = false;
 
@@ -65,13 +79,23 @@ final class DeviceMonitor implements ClientTracker {
     private DeviceListMonitorTask mDeviceListMonitorTask;
 
     private Selector mSelector;
+    private ExecutorService mConnectExecutor;
+    /** Runs the listener notifications, so that slow listeners don't hold the connections. */
+    private ExecutorService mNotifyExecutor;
 
     private final List<Device> mDevices = Lists.newCopyOnWriteArrayList();
     private final DebuggerPorts mDebuggerPorts =
             new DebuggerPorts(DdmPreferences.getDebugPortBase());
     private final Map<Client, Integer> mClientsToReopen = new HashMap<Client, Integer>();
-    private final BlockingQueue<Pair<SocketChannel,Device>> mChannelsToRegister =
-            Queues.newLinkedBlockingQueue();
+
+    /** Tasks to run on the monitor thread, posted by other threads. */
+    private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+
+    // accessed on the monitor thread only.
+    private final PriorityQueue<ScheduledTask> mTimers = new PriorityQueue<ScheduledTask>();
+    private final Map<Device, JdwpTracker> mJdwpTrackers = new HashMap<Device, JdwpTracker>();
+    private final Map<Device, DeviceNotifier> mNotifiers = new HashMap<Device, DeviceNotifier>();
+    private SelectionKey mDeviceListKey;
 
     /**
      * Creates a new {@link DeviceMonitor} object and links it to the running
@@ -86,8 +110,32 @@ final class DeviceMonitor implements ClientTracker {
      * Starts the monitoring.
      */
     void start() {
+        try {
+            mSelector = Selector.open();
+        } catch (IOException e) {
+            Log.e("DeviceMonitor", "Failed to open the device monitor selector: " + e);
+            return;
+        }
+        mConnectExecutor = Executors.newFixedThreadPool(
+                DdmPreferences.getDeviceConnectThreadCount(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("Device Monitor Connect-%d")
+                        .setDaemon(true)
+                        .build());
+        // a thread per device at most, as the notifications of a device are run one at a time.
+        mNotifyExecutor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("Device Monitor Notify-%d")
+                        .setDaemon(true)
+                        .build());
         mDeviceListMonitorTask = new DeviceListMonitorTask(mServer, new DeviceListUpdateListener());
-        new Thread(mDeviceListMonitorTask, "Device List Monitor").start(); //$NON-NLS-1$
+        new Thread("Device Monitor") { //$NON-NLS-1$
+            @Override
+            public void run() {
+                monitorLoop();
+            }
+        }.start();
+        connectDeviceList();
     }
 
     /**
@@ -100,7 +148,7 @@ final class DeviceMonitor implements ClientTracker {
             mDeviceListMonitorTask.stop();
         }
 
-        // wake up the secondary loop by closing the selector.
+        // wake up the monitor loop, which closes the connections on its way out.
         if (mSelector != null) {
             mSelector.wakeup();
         }
@@ -143,17 +191,262 @@ final class DeviceMonitor implements ClientTracker {
     }
 
     @Override
-    public void trackClientToDropAndReopen(@NonNull Client client, int port) {
+    public void trackClientToDropAndReopen(@NonNull final Client client, int port) {
         synchronized (mClientsToReopen) {
             Log.d("DeviceMonitor",
                     "Adding " + client + " to list of client to reopen (" + port + ").");
-            if (mClientsToReopen.get(client) == null) {
-                mClientsToReopen.put(client, port);
+            if (mClientsToReopen.get(client) != null) {
+                return;
             }
+            mClientsToReopen.put(client, port);
         }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                reopenClient(client);
+            }
+        });
+    }
+
+    /**
+     * Runs a task on the monitor thread.
+     */
+    private void execute(@NonNull Runnable task) {
+        mTasks.add(task);
         mSelector.wakeup();
     }
 
+    /**
+     * Runs a task on the monitor thread after a delay. Must be called on the monitor thread.
+     */
+    private void schedule(@NonNull Runnable task, long delay) {
+        mTimers.add(new ScheduledTask(System.currentTimeMillis() + delay, task));
+    }
+
+    /**
+     * Runs a task on the connection threads.
+     */
+    private void executeConnect(@NonNull Runnable task) {
+        try {
+            mConnectExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // stopping.
+        }
+    }
+
+    /**
+     * Runs a listener notification on the notification threads.
+     */
+    private void executeNotify(@NonNull Runnable task) {
+        try {
+            mNotifyExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // stopping.
+        }
+    }
+
+    /**
+     * Notifies the listeners that a device is connected. Must be called on the monitor thread.
+     */
+    private void notifyDeviceConnected(@NonNull final Device device) {
+        getNotifier(device).execute(new Runnable() {
+            @Override
+            public void run() {
+                AndroidDebugBridge.deviceConnected(device);
+            }
+        });
+    }
+
+    /**
+     * Notifies the listeners that a device is disconnected, which is the last notification of
+     * the device. Must be called on the monitor thread.
+     */
+    private void notifyDeviceDisconnected(@NonNull final Device device) {
+        getNotifier(device).execute(new Runnable() {
+            @Override
+            public void run() {
+                AndroidDebugBridge.deviceDisconnected(device);
+            }
+        });
+        mNotifiers.remove(device);
+    }
+
+    /**
+     * Notifies the listeners that a device changed, unless it is not monitored anymore. Must be
+     * called on the monitor thread.
+     */
+    private void notifyDeviceChanged(@NonNull final Device device, final int changeMask) {
+        if (!mDevices.contains(device)) {
+            return;
+        }
+        getNotifier(device).execute(new Runnable() {
+            @Override
+            public void run() {
+                AndroidDebugBridge.deviceChanged(device, changeMask);
+            }
+        });
+    }
+
+    @NonNull
+    private DeviceNotifier getNotifier(@NonNull Device device) {
+        DeviceNotifier notifier = mNotifiers.get(device);
+        if (notifier == null) {
+            notifier = new DeviceNotifier();
+            mNotifiers.put(device, notifier);
+        }
+        return notifier;
+    }
+
+    /**
+     * Returns the delay before reconnecting after <var>attempt</var> consecutive failures, with
+     * some jitter so that the connections lost at once are not reopened at once.
+     */
+    private static long getReconnectDelay(int attempt) {
+        long delay = Math.min(MAX_RECONNECT_DELAY,
+                INITIAL_RECONNECT_DELAY << Math.min(Math.max(attempt - 1, 0), 16));
+        return delay + ThreadLocalRandom.current().nextLong(delay / 4 + 1);
+    }
+
+    private void monitorLoop() {
+        while (!mQuit) {
+            try {
+                long timeout = runTimers();
+                if (timeout > 0) {
+                    mSelector.select(timeout);
+                } else {
+                    mSelector.select();
+                }
+
+                if (mQuit) {
+                    break;
+                }
+
+                Runnable task;
+                while ((task = mTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Set<SelectionKey> keys = mSelector.selectedKeys();
+                Iterator<SelectionKey> iter = keys.iterator();
+
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+
+                    if (key.isValid() && key.isReadable()) {
+                        Object attachment = key.attachment();
+                        if (attachment instanceof JdwpTracker) {
+                            readJdwpTracker((JdwpTracker) attachment);
+                        } else if (attachment instanceof DeviceListMonitorTask) {
+                            readDeviceList();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.e("DeviceMonitor", "Connection error while monitoring devices.");
+            } catch (RuntimeException e) {
+                Log.e("DeviceMonitor", e);
+            }
+        }
+
+        for (SelectionKey key : mSelector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // doesn't really matter if the close fails.
+            }
+        }
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            // ignore.
+        }
+        mConnectExecutor.shutdownNow();
+        // let the notifications already posted run.
+        mNotifyExecutor.shutdown();
+    }
+
+    /**
+     * Runs the timers which are due, and returns the time until the next one (ms), or 0 if none
+     * is pending.
+     */
+    private long runTimers() {
+        while (!mTimers.isEmpty()) {
+            long delay = mTimers.peek().mDeadline - System.currentTimeMillis();
+            if (delay > 0) {
+                return delay;
+            }
+            mTimers.poll().mTask.run();
+        }
+        return 0;
+    }
+
+    /**
+     * Connects to adb and sends the device list tracking request, on a connection thread.
+     */
+    private void connectDeviceList() {
+        executeConnect(new Runnable() {
+            @Override
+            public void run() {
+                final SocketChannel channel;
+                try {
+                    channel = mDeviceListMonitorTask.connect();
+                } catch (final Exception e) {
+                    execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            mDeviceListMonitorTask.handleExceptionInMonitorLoop(e);
+                            scheduleDeviceListConnection();
+                        }
+                    });
+                    return;
+                }
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (channel == null) {
+                            scheduleDeviceListConnection();
+                            return;
+                        }
+                        try {
+                            channel.configureBlocking(false);
+                            mDeviceListKey = channel.register(mSelector, SelectionKey.OP_READ,
+                                    mDeviceListMonitorTask);
+                        } catch (IOException e) {
+                            mDeviceListMonitorTask.handleExceptionInMonitorLoop(e);
+                            scheduleDeviceListConnection();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void scheduleDeviceListConnection() {
+        if (mQuit) {
+            return;
+        }
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                connectDeviceList();
+            }
+        }, getReconnectDelay(mDeviceListMonitorTask.getFailureCount()));
+    }
+
+    private void readDeviceList() {
+        try {
+            mDeviceListMonitorTask.read();
+        } catch (IOException e) {
+            if (mDeviceListKey != null) {
+                mDeviceListKey.cancel();
+                mDeviceListKey = null;
+            }
+            mDeviceListMonitorTask.handleExceptionInMonitorLoop(e);
+            scheduleDeviceListConnection();
+        }
+    }
+
     /**
      * Attempts to connect to the debug bridge server.
      * @return a connect socket if success, null otherwise
@@ -182,7 +475,7 @@ final class DeviceMonitor implements ClientTracker {
         DeviceListComparisonResult result = DeviceListComparisonResult.compare(mDevices, newList);
         for (IDevice device : result.removed) {
             removeDevice((Device) device);
-            AndroidDebugBridge.deviceDisconnected(device);
+            notifyDeviceDisconnected((Device) device);
         }
 
         List<Device> newlyOnline = Lists.newArrayListWithExpectedSize(mDevices.size());
@@ -190,7 +483,7 @@ final class DeviceMonitor implements ClientTracker {
         for (Map.Entry<IDevice, DeviceState> entry : result.updated.entrySet()) {
             Device device = (Device) entry.getKey();
             device.setState(entry.getValue());
-            device.update(Device.CHANGE_STATE);
+            notifyDeviceChanged(device, Device.CHANGE_STATE);
 
             if (device.isOnline()) {
                 newlyOnline.add(device);
@@ -199,7 +492,7 @@ final class DeviceMonitor implements ClientTracker {
 
         for (IDevice device : result.added) {
             mDevices.add((Device) device);
-            AndroidDebugBridge.deviceConnected(device);
+            notifyDeviceConnected((Device) device);
             if (device.isOnline()) {
                 newlyOnline.add((Device) device);
             }
@@ -207,15 +500,17 @@ final class DeviceMonitor implements ClientTracker {
 
         if (AndroidDebugBridge.getClientSupport()) {
             for (Device device : newlyOnline) {
-                if (!startMonitoringDevice(device)) {
-                    Log.e("DeviceMonitor", "Failed to start monitoring "
-                            + device.getSerialNumber());
-                }
+                startMonitoringDevice(device);
             }
         }
 
-        for (Device device : newlyOnline) {
-            queryAvdName(device);
+        for (final Device device : newlyOnline) {
+            executeConnect(new Runnable() {
+                @Override
+                public void run() {
+                    queryAvdName(device);
+                }
+            });
 
             // Initiate a property fetch so that future requests can be served out of this cache.
             // This is necessary for backwards compatibility
@@ -228,13 +523,9 @@ final class DeviceMonitor implements ClientTracker {
         device.clearClientList();
         mDevices.remove(device);
 
-        SocketChannel channel = device.getClientMonitoringSocket();
-        if (channel != null) {
-            try {
-                channel.close();
-            } catch (IOException e) {
-                // doesn't really matter if the close fails.
-            }
+        JdwpTracker tracker = mJdwpTrackers.remove(device);
+        if (tracker != null) {
+            tracker.close();
         }
     }
 
@@ -251,175 +542,126 @@ final class DeviceMonitor implements ClientTracker {
     }
 
     /**
-     * Starts a monitoring service for a device.
+     * Starts a monitoring service for a device: the track-jdwp request is sent on a connection
+     * thread, and the responses are then read on the monitor thread.
      * @param device the device to monitor.
-     * @return true if success.
      */
-    private boolean startMonitoringDevice(@NonNull Device device) {
-        SocketChannel socketChannel = openAdbConnection();
-
-        if (socketChannel != null) {
-            try {
-                boolean result = sendDeviceMonitoringRequest(socketChannel, device);
-                if (result) {
+    private void startMonitoringDevice(@NonNull Device device) {
+        JdwpTracker tracker = mJdwpTrackers.get(device);
+        if (tracker == null) {
+            tracker = new JdwpTracker(device);
+            mJdwpTrackers.put(device, tracker);
+        } else {
+            tracker.close();
+        }
+        connectJdwpTracker(tracker, tracker.mGeneration);
+    }
 
-                    if (mSelector == null) {
-                        startDeviceMonitorThread();
+    private void connectJdwpTracker(@NonNull final JdwpTracker tracker, final int generation) {
+        executeConnect(new Runnable() {
+            @Override
+            public void run() {
+                final SocketChannel socketChannel = openDeviceMonitoringConnection(tracker.mDevice);
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mJdwpTrackers.get(tracker.mDevice) != tracker
+                                || tracker.mGeneration != generation) {
+                            // the device went away, or the monitoring restarted meanwhile.
+                            closeQuietly(socketChannel);
+                            return;
+                        }
+                        if (socketChannel == null) {
+                            restartMonitoringDevice(tracker);
+                            return;
+                        }
+                        try {
+                            socketChannel.configureBlocking(false);
+                            tracker.mReader.reset();
+                            tracker.mKey = socketChannel.register(mSelector,
+                                    SelectionKey.OP_READ, tracker);
+                            tracker.mChannel = socketChannel;
+                            tracker.mDevice.setClientMonitoringSocket(socketChannel);
+                        } catch (IOException e) {
+                            closeQuietly(socketChannel);
+                            restartMonitoringDevice(tracker);
+                        }
                     }
+                });
+            }
+        });
+    }
 
-                    device.setClientMonitoringSocket(socketChannel);
-
-                    socketChannel.configureBlocking(false);
+    /**
+     * Reopens the track-jdwp connection of a device after a delay, if it is still monitored.
+     */
+    private void restartMonitoringDevice(@NonNull final JdwpTracker tracker) {
+        tracker.close();
+        if (mQuit || !mDevices.contains(tracker.mDevice)) {
+            mJdwpTrackers.remove(tracker.mDevice);
+            return;
+        }
+        tracker.mFailureCount++;
+        final int generation = tracker.mGeneration;
+        long delay = getReconnectDelay(tracker.mFailureCount);
+        Log.d("DeviceMonitor", "Restarting monitoring service for " + tracker.mDevice
+                + " in " + delay + "ms");
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (mJdwpTrackers.get(tracker.mDevice) == tracker
+                        && tracker.mGeneration == generation) {
+                    connectJdwpTracker(tracker, generation);
+                }
+            }
+        }, delay);
+    }
 
-                    try {
-                        mChannelsToRegister.put(Pair.of(socketChannel, device));
-                    } catch (InterruptedException e) {
-                        // the queue is unbounded, and isn't going to block
-                    }
-                    mSelector.wakeup();
+    /**
+     * Opens a connection to adb and sends the track-jdwp request of a device.
+     * @return the connection, or null if this failed.
+     */
+    @Nullable
+    private static SocketChannel openDeviceMonitoringConnection(@NonNull Device device) {
+        SocketChannel socketChannel = openAdbConnection();
 
-                    return true;
+        if (socketChannel != null) {
+            try {
+                if (sendDeviceMonitoringRequest(socketChannel, device)) {
+                    return socketChannel;
                 }
+                closeQuietly(socketChannel);
             } catch (TimeoutException e) {
-                try {
-                    // attempt to close the socket if needed.
-                    socketChannel.close();
-                } catch (IOException e1) {
-                    // we can ignore that one. It may already have been closed.
-                }
+                closeQuietly(socketChannel);
                 Log.d("DeviceMonitor",
                         "Connection Failure when starting to monitor device '"
                         + device + "' : timeout");
             } catch (AdbCommandRejectedException e) {
-                try {
-                    // attempt to close the socket if needed.
-                    socketChannel.close();
-                } catch (IOException e1) {
-                    // we can ignore that one. It may already have been closed.
-                }
+                closeQuietly(socketChannel);
                 Log.d("DeviceMonitor",
                         "Adb refused to start monitoring device '"
                         + device + "' : " + e.getMessage());
             } catch (IOException e) {
-                try {
-                    // attempt to close the socket if needed.
-                    socketChannel.close();
-                } catch (IOException e1) {
-                    // we can ignore that one. It may already have been closed.
-                }
+                closeQuietly(socketChannel);
                 Log.d("DeviceMonitor",
                         "Connection Failure when starting to monitor device '"
                         + device + "' : " + e.getMessage());
             }
         }
 
-        return false;
+        Log.e("DeviceMonitor", "Failed to start monitoring " + device.getSerialNumber());
+        return null;
     }
 
-    private void startDeviceMonitorThread() throws IOException {
-        mSelector = Selector.open();
-        new Thread("Device Client Monitor") { //$NON-NLS-1$
-            @Override
-            public void run() {
-                deviceClientMonitorLoop();
-            }
-        }.start();
-    }
-
-    private void deviceClientMonitorLoop() {
-        do {
+    private static void closeQuietly(@Nullable SocketChannel channel) {
+        if (channel != null) {
             try {
-                int count = mSelector.select();
-
-                if (mQuit) {
-                    return;
-                }
-
-                synchronized (mClientsToReopen) {
-                    if (!mClientsToReopen.isEmpty()) {
-                        Set<Client> clients = mClientsToReopen.keySet();
-                        MonitorThread monitorThread = MonitorThread.getInstance();
-
-                        for (Client client : clients) {
-                            Device device = client.getDeviceImpl();
-                            int pid = client.getClientData().getPid();
-
-                            monitorThread.dropClient(client, false /* notify */);
-
-                            // This is kinda bad, but if we don't wait a bit, the client
-                            // will never answer the second handshake!
-                            Uninterruptibles.sleepUninterruptibly(1, TimeUnit.SECONDS);
-
-                            int port = mClientsToReopen.get(client);
-
-                            if (port == IDebugPortProvider.NO_STATIC_PORT) {
-                                port = getNextDebuggerPort();
-                            }
-                            Log.d("DeviceMonitor", "Reopening " + client);
-                            openClient(device, pid, port, monitorThread);
-                            device.update(Device.CHANGE_CLIENT_LIST);
-                        }
-
-                        mClientsToReopen.clear();
-                    }
-                }
-
-                // register any new channels
-                while (!mChannelsToRegister.isEmpty()) {
-                    try {
-                        Pair<SocketChannel, Device> data = mChannelsToRegister.take();
-                        data.getFirst().register(mSelector, SelectionKey.OP_READ, data.getSecond());
-                    } catch (InterruptedException e) {
-                        // doesn't block: this thread is the only reader and it reads only when
-                        // there is data
-                    }
-                }
-
-                if (count == 0) {
-                    continue;
-                }
-
-                Set<SelectionKey> keys = mSelector.selectedKeys();
-                Iterator<SelectionKey> iter = keys.iterator();
-
-                while (iter.hasNext()) {
-                    SelectionKey key = iter.next();
-                    iter.remove();
-
-                    if (key.isValid() && key.isReadable()) {
-                        Object attachment = key.attachment();
-
-                        if (attachment instanceof Device) {
-                            Device device = (Device)attachment;
-
-                            SocketChannel socket = device.getClientMonitoringSocket();
-
-                            if (socket != null) {
-                                try {
-                                    int length = readLength(socket, mLengthBuffer2);
-
-                                    processIncomingJdwpData(device, socket, length);
-                                } catch (IOException ioe) {
-                                    Log.d("DeviceMonitor",
-                                            "Error reading jdwp list: " + ioe.getMessage());
-                                    socket.close();
-
-                                    // restart the monitoring of that device
-                                    if (mDevices.contains(device)) {
-                                        Log.d("DeviceMonitor",
-                                                "Restarting monitoring service for " + device);
-                                        startMonitoringDevice(device);
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
+                // attempt to close the socket if needed.
+                channel.close();
             } catch (IOException e) {
-                Log.e("DeviceMonitor", "Connection error while monitoring clients.");
+                // we can ignore that one. It may already have been closed.
             }
-
-        } while (!mQuit);
+        }
     }
 
     private static boolean sendDeviceMonitoringRequest(@NonNull SocketChannel socket,
@@ -446,69 +688,207 @@ final class DeviceMonitor implements ClientTracker {
         }
     }
 
-    private void processIncomingJdwpData(@NonNull Device device,
-            @NonNull SocketChannel monitorSocket, int length) throws IOException {
-
-        // This methods reads @length bytes from the @monitorSocket channel.
-        // These bytes correspond to the pids of the current set of processes on the device.
-        // It takes this set of pids and compares them with the existing set of clients
-        // for the device. Clients that correspond to pids that are not alive anymore are
-        // dropped, and new clients are created for pids that don't have a corresponding Client.
-
-        if (length >= 0) {
-            // array for the current pids.
-            Set<Integer> newPids = new HashSet<Integer>();
-
-            // get the string data if there are any
-            if (length > 0) {
-                byte[] buffer = new byte[length];
-                String result = read(monitorSocket, buffer);
-
-                // split each line in its own list and create an array of integer pid
-                String[] pids = result == null ? new String[0] : result.split("\n"); //$NON-NLS-1$
+    private void readJdwpTracker(@NonNull JdwpTracker tracker) {
+        byte[] message;
+        try {
+            message = tracker.mReader.read(tracker.mChannel);
+        } catch (IOException ioe) {
+            Log.d("DeviceMonitor", "Error reading jdwp list: " + ioe.getMessage());
+            restartMonitoringDevice(tracker);
+            return;
+        }
+        if (message != null) {
+            tracker.mFailureCount = 0;
+            processIncomingJdwpData(tracker, parsePids(message));
+        }
+    }
 
-                for (String pid : pids) {
-                    try {
-                        newPids.add(Integer.valueOf(pid));
-                    } catch (NumberFormatException nfe) {
-                        // looks like this pid is not really a number. Lets ignore it.
-                        continue;
+    /**
+     * Parses the pids of a track-jdwp message, one per line, into a sorted array without
+     * duplicates.
+     */
+    @VisibleForTesting
+    static int[] parsePids(@NonNull byte[] message) {
+        int[] pids = new int[16];
+        int count = 0;
+        int pid = 0;
+        boolean valid = true;
+        boolean digits = false;
+        for (int i = 0; i <= message.length; i++) {
+            byte b = i < message.length ? message[i] : (byte) '\n';
+            if (b == '\n') {
+                // looks like this pid is not really a number. Lets ignore it.
+                if (valid && digits) {
+                    if (count == pids.length) {
+                        pids = Arrays.copyOf(pids, count * 2);
                     }
+                    pids[count++] = pid;
                 }
+                pid = 0;
+                valid = true;
+                digits = false;
+            } else if (b >= '0' && b <= '9' && pid <= (Integer.MAX_VALUE - 9) / 10) {
+                pid = pid * 10 + (b - '0');
+                digits = true;
+            } else {
+                valid = false;
+            }
+        }
+        Arrays.sort(pids, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || pids[unique - 1] != pids[i]) {
+                pids[unique++] = pids[i];
             }
+        }
+        return Arrays.copyOf(pids, unique);
+    }
 
-            MonitorThread monitorThread = MonitorThread.getInstance();
+    private void processIncomingJdwpData(@NonNull final JdwpTracker tracker, @NonNull int[] pids) {
+
+        // It takes the set of pids of the current processes on the device, and compares them with
+        // the existing set of clients for the device. Clients that correspond to pids that are not
+        // alive anymore are dropped, and new clients are created for pids that don't have a
+        // corresponding Client, or one being opened.
+
+        tracker.mPids = pids;
+        Device device = tracker.mDevice;
+        MonitorThread monitorThread = MonitorThread.getInstance();
+
+        // the client list is copy on write: this is a snapshot, read without locking.
+        List<Client> clients = device.getClientList();
+        int[] existingPids = new int[clients.size()];
+        List<Client> clientsToRemove = new ArrayList<Client>();
+        int existingCount = 0;
+        for (Client c : clients) {
+            int pid = c.getClientData().getPid();
+            if (Arrays.binarySearch(pids, pid) < 0) {
+                clientsToRemove.add(c);
+            } else if (existingCount < existingPids.length) {
+                existingPids[existingCount++] = pid;
+            }
+        }
+        Arrays.sort(existingPids, 0, existingCount);
+
+        int[] pidsToAdd = new int[pids.length];
+        int addCount = 0;
+        for (int pid : pids) {
+            if (Arrays.binarySearch(existingPids, 0, existingCount, pid) < 0
+                    && tracker.mOpeningPids.add(pid)) {
+                pidsToAdd[addCount++] = pid;
+            }
+        }
 
-            List<Client> clients = device.getClientList();
-            Map<Integer, Client> existingClients = new HashMap<Integer, Client>();
+        if (monitorThread != null) {
+            monitorThread.dropClients(clientsToRemove, false);
+        }
 
-            synchronized (clients) {
-                for (Client c : clients) {
-                    existingClients.put(c.getClientData().getPid(), c);
-                }
+        if (addCount == 0) {
+            if (!clientsToRemove.isEmpty()) {
+                notifyDeviceChanged(device, Device.CHANGE_CLIENT_LIST);
             }
+            return;
+        }
 
-            Set<Client> clientsToRemove = new HashSet<Client>();
-            for (Integer pid : existingClients.keySet()) {
-                if (!newPids.contains(pid)) {
-                    clientsToRemove.add(existingClients.get(pid));
+        // at this point whatever pid is left needs to be converted into Clients. This is done in
+        // parallel, and the listeners are notified once, when all the clients are open.
+        final AtomicInteger remaining = new AtomicInteger(addCount);
+        for (int i = 0; i < addCount; i++) {
+            final int newPid = pidsToAdd[i];
+            executeConnect(new Runnable() {
+                @Override
+                public void run() {
+                    MonitorThread monitorThread = MonitorThread.getInstance();
+                    if (monitorThread != null) {
+                        openClient(tracker.mDevice, newPid, getNextDebuggerPort(), monitorThread);
+                    }
+                    final boolean last = remaining.decrementAndGet() == 0;
+                    execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            clientOpened(tracker, newPid);
+                            if (last) {
+                                notifyDeviceChanged(tracker.mDevice, Device.CHANGE_CLIENT_LIST);
+                            }
+                        }
+                    });
                 }
-            }
+            });
+        }
+    }
 
-            Set<Integer> pidsToAdd = new HashSet<Integer>(newPids);
-            pidsToAdd.removeAll(existingClients.keySet());
+    /**
+     * Called on the monitor thread once a client is open, or failed to: drops it if its process
+     * went away meanwhile.
+     */
+    private void clientOpened(@NonNull JdwpTracker tracker, int pid) {
+        tracker.mOpeningPids.remove(pid);
+        if (Arrays.binarySearch(tracker.mPids, pid) >= 0) {
+            return;
+        }
+        MonitorThread monitorThread = MonitorThread.getInstance();
+        for (Client c : tracker.mDevice.getClientList()) {
+            if (c.getClientData().getPid() == pid && monitorThread != null) {
+                // notified in order with the other notifications of the device.
+                monitorThread.dropClient(c, false /* notify */);
+                notifyDeviceChanged(tracker.mDevice, Device.CHANGE_CLIENT_LIST);
+            }
+        }
+    }
 
-            monitorThread.dropClients(clientsToRemove, false);
+    /**
+     * Drops a client, and opens it again after a delay. Runs on the monitor thread.
+     */
+    private void reopenClient(@NonNull final Client client) {
+        final Device device = client.getDeviceImpl();
+        final int pid = client.getClientData().getPid();
+        MonitorThread monitorThread = MonitorThread.getInstance();
+        if (monitorThread != null) {
+            monitorThread.dropClient(client, false /* notify */);
+        }
 
-            // at this point whatever pid is left in the list needs to be converted into Clients.
-            for (int newPid : pidsToAdd) {
-                openClient(device, newPid, getNextDebuggerPort(), monitorThread);
+        // don't let the track-jdwp updates open the client until it is reopened.
+        final JdwpTracker tracker = mJdwpTrackers.get(device);
+        if (tracker != null && !tracker.mOpeningPids.add(pid)) {
+            // the client is already being opened, from track-jdwp or a previous reopen.
+            Log.d("DeviceMonitor", "Not reopening " + client + ", it is already being opened.");
+            synchronized (mClientsToReopen) {
+                mClientsToReopen.remove(client);
             }
+            return;
+        }
 
-            if (!pidsToAdd.isEmpty() || !clientsToRemove.isEmpty()) {
-                AndroidDebugBridge.deviceChanged(device, Device.CHANGE_CLIENT_LIST);
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                executeConnect(new Runnable() {
+                    @Override
+                    public void run() {
+                        int port;
+                        synchronized (mClientsToReopen) {
+                            port = mClientsToReopen.remove(client);
+                        }
+                        if (port == IDebugPortProvider.NO_STATIC_PORT) {
+                            port = getNextDebuggerPort();
+                        }
+                        MonitorThread monitorThread = MonitorThread.getInstance();
+                        if (monitorThread != null) {
+                            Log.d("DeviceMonitor", "Reopening " + client);
+                            openClient(device, pid, port, monitorThread);
+                        }
+                        execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (tracker != null) {
+                                    clientOpened(tracker, pid);
+                                }
+                                notifyDeviceChanged(device, Device.CHANGE_CLIENT_LIST);
+                            }
+                        });
+                    }
+                });
             }
-        }
+        }, REOPEN_DELAY);
     }
 
     /** Opens and creates a new client. */
@@ -595,48 +975,170 @@ final class DeviceMonitor implements ClientTracker {
     }
 
     /**
-     * Reads the length of the next message from a socket.
-     * @param socket The {@link SocketChannel} to read from.
-     * @return the length, or 0 (zero) if no data is available from the socket.
-     * @throws IOException if the connection failed.
+     * Parses the length of a message, 4 hexadecimal digits at the position of a buffer.
+     * @throws IOException if the length can't be read.
+     */
+    private static int parseLength(@NonNull ByteBuffer buffer) throws IOException {
+        int length = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(buffer.get(buffer.position() + i), 16);
+            if (digit < 0) {
+                // we receive something we can't read. It's better to reset the connection at
+                // this point.
+                throw new IOException("Unable to read length");
+            }
+            length = (length << 4) | digit;
+        }
+        return length;
+    }
+
+    /**
+     * Reads the messages of a tracking service without blocking: each message is its length, as
+     * 4 hexadecimal digits, followed by its content. Each message describes the whole list of
+     * devices or processes, so only the last complete message read at once matters.
+     * <p>
+     * The reader must be {@link #reset()} for each new connection. It resets itself when
+     * reading fails.
      */
-    private static int readLength(@NonNull SocketChannel socket, @NonNull byte[] buffer)
-            throws IOException {
-        String msg = read(socket, buffer);
+    private static final class TrackingReader {
+        private ByteBuffer mBuffer = ByteBuffer.allocate(1024);
+
+        /**
+         * Drops any partial message, before reading a new connection.
+         */
+        void reset() {
+            mBuffer.clear();
+        }
 
-        if (msg != null) {
+        /**
+         * Reads the available data.
+         * @return the content of the last complete message, or null if there is none yet.
+         * @throws IOException if the connection failed. The reader is then reset.
+         */
+        @Nullable
+        byte[] read(@NonNull SocketChannel socket) throws IOException {
             try {
-                return Integer.parseInt(msg, 16);
-            } catch (NumberFormatException nfe) {
-                // we'll throw an exception below.
+                return readMessages(socket);
+            } catch (IOException e) {
+                reset();
+                throw e;
             }
         }
 
-        // we receive something we can't read. It's better to reset the connection at this point.
-        throw new IOException("Unable to read length");
+        @Nullable
+        private byte[] readMessages(@NonNull SocketChannel socket) throws IOException {
+            byte[] message = null;
+            while (true) {
+                if (!mBuffer.hasRemaining()) {
+                    ByteBuffer buffer = ByteBuffer.allocate(mBuffer.capacity() * 2);
+                    mBuffer.flip();
+                    buffer.put(mBuffer);
+                    mBuffer = buffer;
+                }
+                int count = socket.read(mBuffer);
+                if (count < 0) {
+                    throw new IOException("EOF");
+                }
+                if (count == 0) {
+                    return message;
+                }
+
+                mBuffer.flip();
+                while (mBuffer.remaining() >= 4) {
+                    int length = parseLength(mBuffer);
+                    if (mBuffer.remaining() < 4 + length) {
+                        break;
+                    }
+                    mBuffer.position(mBuffer.position() + 4);
+                    message = new byte[length];
+                    mBuffer.get(message);
+                }
+                mBuffer.compact();
+            }
+        }
     }
 
     /**
-     * Fills a buffer by reading data from a socket.
-     *
-     * @return the content of the buffer as a string, or null if it failed to convert the buffer.
-     * @throws IOException if there was not enough data to fill the buffer
+     * The state of the track-jdwp connection of a device, used on the monitor thread only.
      */
-    @NonNull
-    private static String read(@NonNull SocketChannel socket, @NonNull byte[] buffer)
-            throws IOException {
-        ByteBuffer buf = ByteBuffer.wrap(buffer, 0, buffer.length);
+    private static final class JdwpTracker {
+        @NonNull final Device mDevice;
+        final TrackingReader mReader = new TrackingReader();
+        /** The pids of the last message. */
+        int[] mPids = new int[0];
+        /** The pids of the clients being opened, or about to be reopened. */
+        final Set<Integer> mOpeningPids = new HashSet<Integer>();
+
+        SocketChannel mChannel;
+        SelectionKey mKey;
+        int mFailureCount;
+        /** Incremented when the connection closes, to ignore the connections still opening. */
+        int mGeneration;
+
+        JdwpTracker(@NonNull Device device) {
+            mDevice = device;
+        }
 
-        while (buf.position() != buf.limit()) {
-            int count;
+        void close() {
+            mGeneration++;
+            if (mKey != null) {
+                mKey.cancel();
+                mKey = null;
+            }
+            closeQuietly(mChannel);
+            mChannel = null;
+            mReader.reset();
+        }
+    }
 
-            count = socket.read(buf);
-            if (count < 0) {
-                throw new IOException("EOF");
+    /**
+     * Runs the listener notifications of a device one at a time, in order, on the notification
+     * threads.
+     */
+    private final class DeviceNotifier implements Runnable {
+        private final Queue<Runnable> mPending = new ArrayDeque<Runnable>();
+        private boolean mRunning;
+
+        void execute(@NonNull Runnable notification) {
+            synchronized (this) {
+                mPending.add(notification);
+                if (mRunning) {
+                    return;
+                }
+                mRunning = true;
             }
+            executeNotify(this);
         }
 
-        return new String(buffer, 0, buf.position(), AdbHelper.DEFAULT_CHARSET);
+        @Override
+        public void run() {
+            while (true) {
+                Runnable notification;
+                synchronized (this) {
+                    notification = mPending.poll();
+                    if (notification == null) {
+                        mRunning = false;
+                        return;
+                    }
+                }
+                notification.run();
+            }
+        }
+    }
+
+    private static final class ScheduledTask implements Comparable<ScheduledTask> {
+        final long mDeadline;
+        final Runnable mTask;
+
+        ScheduledTask(long deadline, @NonNull Runnable task) {
+            mDeadline = deadline;
+            mTask = task;
+        }
+
+        @Override
+        public int compareTo(@NonNull ScheduledTask other) {
+            return mDeadline < other.mDeadline ? -1 : (mDeadline == other.mDeadline ? 0 : 1);
+        }
     }
 
     private class DeviceListUpdateListener implements DeviceListMonitorTask.UpdateListener {
@@ -644,7 +1146,7 @@ final class DeviceMonitor implements ClientTracker {
         public void connectionError(@NonNull Exception e) {
             for (Device device : mDevices) {
                 removeDevice(device);
-                AndroidDebugBridge.deviceDisconnected(device);
+                notifyDeviceDisconnected(device);
             }
         }
 
@@ -712,18 +1214,23 @@ final class DeviceMonitor implements ClientTracker {
         }
     }
 
+    /**
+     * Tracks the list of devices. The connection to adb is opened by {@link #connect()}, which
+     * blocks, and the messages are then read without blocking by {@link #read()}.
+     */
     @VisibleForTesting
-    static class DeviceListMonitorTask implements Runnable {
-        private final byte[] mLengthBuffer = new byte[4];
-
+    static class DeviceListMonitorTask {
         private final AndroidDebugBridge mBridge;
         private final UpdateListener mListener;
+        private final TrackingReader mReader = new TrackingReader();
 
-        private SocketChannel mAdbConnection = null;
-        private boolean mMonitoring = false;
-        private int mConnectionAttempt = 0;
-        private int mRestartAttemptCount = 0;
-        private boolean mInitialDeviceListDone = false;
+        private volatile SocketChannel mAdbConnection = null;
+        private volatile boolean mMonitoring = false;
+        private volatile int mConnectionAttempt = 0;
+        private volatile int mRestartAttemptCount = 0;
+        private volatile boolean mInitialDeviceListDone = false;
+        /** Consecutive failures, to compute the delay before reconnecting. */
+        private volatile int mFailureCount = 0;
 
         private volatile boolean mQuit;
 
@@ -738,56 +1245,64 @@ final class DeviceMonitor implements ClientTracker {
             mListener = listener;
         }
 
-        @Override
-        public void run() {
-            do {
-                if (mAdbConnection == null) {
-                    Log.d("DeviceMonitor", "Opening adb connection");
-                    mAdbConnection = openAdbConnection();
-                    if (mAdbConnection == null) {
-                        mConnectionAttempt++;
-                        Log.e("DeviceMonitor", "Connection attempts: " + mConnectionAttempt);
-                        if (mConnectionAttempt > 10) {
-                            if (!mBridge.startAdb()) {
-                                mRestartAttemptCount++;
-                                Log.e("DeviceMonitor",
-                                        "adb restart attempts: " + mRestartAttemptCount);
-                            } else {
-                                Log.i("DeviceMonitor", "adb restarted");
-                                mRestartAttemptCount = 0;
-                            }
-                        }
-                        Uninterruptibles.sleepUninterruptibly(1, TimeUnit.SECONDS);
+        /**
+         * Opens the connection to adb, restarting adb after too many failures, and sends the
+         * tracking request.
+         * @return the connection, or null if adb could not be reached or refused the request.
+         */
+        @Nullable
+        SocketChannel connect() throws TimeoutException, IOException {
+            if (mQuit) {
+                return null;
+            }
+            Log.d("DeviceMonitor", "Opening adb connection");
+            mAdbConnection = openAdbConnection();
+            if (mAdbConnection == null) {
+                mConnectionAttempt++;
+                mFailureCount++;
+                Log.e("DeviceMonitor", "Connection attempts: " + mConnectionAttempt);
+                if (mConnectionAttempt > 10) {
+                    if (!mBridge.startAdb()) {
+                        mRestartAttemptCount++;
+                        Log.e("DeviceMonitor",
+                                "adb restart attempts: " + mRestartAttemptCount);
                     } else {
-                        Log.d("DeviceMonitor", "Connected to adb for device monitoring");
-                        mConnectionAttempt = 0;
+                        Log.i("DeviceMonitor", "adb restarted");
+                        mRestartAttemptCount = 0;
                     }
                 }
+                return null;
+            }
+            Log.d("DeviceMonitor", "Connected to adb for device monitoring");
+            mConnectionAttempt = 0;
+            // the reader is handed to the monitor thread with the connection.
+            mReader.reset();
+
+            mMonitoring = sendDeviceListMonitoringRequest();
+            if (!mMonitoring) {
+                mFailureCount++;
+                closeQuietly(mAdbConnection);
+                mAdbConnection = null;
+                return null;
+            }
+            return mAdbConnection;
+        }
 
-                try {
-                    if (mAdbConnection != null && !mMonitoring) {
-                        mMonitoring = sendDeviceListMonitoringRequest();
-                    }
-
-                    if (mMonitoring) {
-                        int length = readLength(mAdbConnection, mLengthBuffer);
+        /**
+         * Reads the available messages, and reports the last device list.
+         * @throws IOException if the connection failed.
+         */
+        void read() throws IOException {
+            byte[] message = mReader.read(mAdbConnection);
+            if (message != null) {
+                mFailureCount = 0;
 
-                        if (length >= 0) {
-                            // read the incoming message
-                            processIncomingDeviceData(length);
+                // read the incoming message
+                processIncomingDeviceData(message);
 
-                            // flag the fact that we have build the list at least once.
-                            mInitialDeviceListDone = true;
-                        }
-                    }
-                } catch (AsynchronousCloseException ace) {
-                    // this happens because of a call to Quit. We do nothing, and the loop will break.
-                } catch (TimeoutException ioe) {
-                    handleExceptionInMonitorLoop(ioe);
-                } catch (IOException ioe) {
-                    handleExceptionInMonitorLoop(ioe);
-                }
-            } while (!mQuit);
+                // flag the fact that we have build the list at least once.
+                mInitialDeviceListDone = true;
+            }
         }
 
         private boolean sendDeviceListMonitoringRequest() throws TimeoutException, IOException {
@@ -809,7 +1324,8 @@ final class DeviceMonitor implements ClientTracker {
             }
         }
 
-        private void handleExceptionInMonitorLoop(@NonNull Exception e) {
+        void handleExceptionInMonitorLoop(@NonNull Exception e) {
+            mFailureCount++;
             if (!mQuit) {
                 if (e instanceof TimeoutException) {
                     Log.e("DeviceMonitor", "Adb connection Error: timeout");
@@ -817,6 +1333,7 @@ final class DeviceMonitor implements ClientTracker {
                     Log.e("DeviceMonitor", "Adb connection Error:" + e.getMessage());
                 }
                 mMonitoring = false;
+                mReader.reset();
                 if (mAdbConnection != null) {
                     try {
                         mAdbConnection.close();
@@ -830,13 +1347,13 @@ final class DeviceMonitor implements ClientTracker {
             }
         }
 
-        /** Processes an incoming device message from the socket */
-        private void processIncomingDeviceData(int length) throws IOException {
+        /** Processes an incoming device message */
+        private void processIncomingDeviceData(@NonNull byte[] message) {
             Map<String, DeviceState> result;
-            if (length <= 0) {
+            if (message.length == 0) {
                 result = Collections.emptyMap();
             } else {
-                String response = read(mAdbConnection, new byte[length]);
+                String response = new String(message, AdbHelper.DEFAULT_CHARSET);
                 result = parseDeviceListResponse(response);
             }
 
@@ -874,10 +1391,14 @@ final class DeviceMonitor implements ClientTracker {
             return mRestartAttemptCount;
         }
 
+        int getFailureCount() {
+            return mFailureCount;
+        }
+
         public void stop() {
             mQuit = true;
 
-            // wakeup the main loop thread by closing the main connection to adb.
+            // close the main connection to adb.
             if (mAdbConnection != null) {
                 try {
                     mAdbConnection.close();
@@ -21,6 +21,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -103,8 +105,12 @@ public final class FileListingService {
             ".*" + // toolbox ls (<=M) didn't have the filename in the "/sdcard/" case!
             "$"); //$NON-NLS-1$
 
+    /** Maximum number of links checked by a single shell command. */
+    private static final int LINK_BATCH_SIZE = 64;
+
     private Device mDevice;
     private FileEntry mRoot;
+    private volatile long mCacheTtl = REFRESH_TEST;
 
     // Used for locking so final.
     final private ArrayList<Thread> mThreadList = new ArrayList<Thread>();
@@ -153,6 +159,11 @@ public final class FileListingService {
          */
         long fetchTime = 0;
 
+        /**
+         * Time at which the whole tree under the entry was fetched by a recursive listing, or 0.
+         */
+        long subtreeFetchTime = 0;
+
         final ArrayList<FileEntry> mChildren = new ArrayList<FileEntry>();
 
         /**
@@ -341,12 +352,34 @@ public final class FileListingService {
         }
 
         boolean needFetch() {
+            return needFetch(REFRESH_TEST);
+        }
+
+        boolean needFetch(long ttl) {
             if (fetchTime == 0) {
                 return true;
             }
             long current = System.currentTimeMillis();
-            return current - fetchTime > REFRESH_TEST;
+            return current - fetchTime > ttl;
+        }
 
+        boolean needSubtreeFetch(long ttl) {
+            if (subtreeFetchTime == 0) {
+                return true;
+            }
+            long current = System.currentTimeMillis();
+            return current - subtreeFetchTime > ttl;
+        }
+
+        /**
+         * Marks the listings of the entry and of the whole tree under it as stale.
+         */
+        void invalidateSubtree() {
+            fetchTime = 0;
+            subtreeFetchTime = 0;
+            for (FileEntry child : mChildren) {
+                child.invalidateSubtree();
+            }
         }
 
         /**
@@ -427,6 +460,7 @@ public final class FileListingService {
         private ArrayList<String> mLinkList;
         private FileEntry[] mCurrentChildren;
         private FileEntry mParentEntry;
+        private final LsLine mLine = new LsLine();
 
         /**
          * Create an ls receiver/parser.
@@ -460,92 +494,22 @@ public final class FileListingService {
                     continue;
                 }
 
-                // get the name
-                String name = m.group(7);
-
-                // get the rest of the groups
-                String permissions = m.group(1);
-                String owner = m.group(2);
-                String group = m.group(3);
-                String size = m.group(4);
-                String date = m.group(5);
-                String time = m.group(6);
-                String info = null;
-
-                // and the type
-                int objectType = TYPE_OTHER;
-                switch (permissions.charAt(0)) {
-                    case '-' :
-                        objectType = TYPE_FILE;
-                        break;
-                    case 'b' :
-                        objectType = TYPE_BLOCK;
-                        break;
-                    case 'c' :
-                        objectType = TYPE_CHARACTER;
-                        break;
-                    case 'd' :
-                        objectType = TYPE_DIRECTORY;
-                        break;
-                    case 'l' :
-                        objectType = TYPE_LINK;
-                        break;
-                    case 's' :
-                        objectType = TYPE_SOCKET;
-                        break;
-                    case 'p' :
-                        objectType = TYPE_FIFO;
-                        break;
-                }
-
-
-                // now check what we may be linking to
-                if (objectType == TYPE_LINK) {
-                    String[] segments = name.split("\\s->\\s"); //$NON-NLS-1$
-
-                    // we should have 2 segments
-                    if (segments.length == 2) {
-                        // update the entry name to not contain the link
-                        name = segments[0];
-
-                        // and the link name
-                        info = segments[1];
-
-                        // now get the path to the link
-                        String[] pathSegments = info.split(FILE_SEPARATOR);
-                        if (pathSegments.length == 1) {
-                            // the link is to something in the same directory,
-                            // unless the link is ..
-                            if ("..".equals(pathSegments[0])) { //$NON-NLS-1$
-                                // set the type and we're done.
-                                objectType = TYPE_DIRECTORY_LINK;
-                            } else {
-                                // either we found the object already
-                                // or we'll find it later.
-                            }
-                        }
-                    }
-
-                    // add an arrow in front to specify it's a link.
-                    info = "-> " + info; //$NON-NLS-1$;
-                }
+                mLine.permissions = m.group(1);
+                mLine.owner = m.group(2);
+                mLine.group = m.group(3);
+                mLine.size = m.group(4);
+                mLine.date = m.group(5);
+                mLine.time = m.group(6);
+                mLine.name = m.group(7);
+                mLine.resolveType();
 
                 // get the entry, either from an existing one, or a new one
-                FileEntry entry = getExistingEntry(name);
+                FileEntry entry = getExistingEntry(mLine.name);
                 if (entry == null) {
-                    entry = new FileEntry(mParentEntry, name, objectType, false /* isRoot */);
-                }
-
-                // add some misc info
-                entry.permissions = permissions;
-                entry.size = size;
-                entry.date = date;
-                entry.time = time;
-                entry.owner = owner;
-                entry.group = group;
-                if (objectType == TYPE_LINK) {
-                    entry.info = info;
+                    entry = new FileEntry(mParentEntry, mLine.name, mLine.type,
+                            false /* isRoot */);
                 }
+                mLine.fill(entry);
 
                 mEntryList.add(entry);
             }
@@ -631,6 +595,378 @@ public final class FileListingService {
         }
     }
 
+    /**
+     * The fields of a line of <code>ls -l</code> output.
+     */
+    private static final class LsLine {
+        /** The characters allowed at each position of the permissions, as in LS_L_PATTERN. */
+        private static final String[] PERMISSION_CHARS = {
+                "bcdlsp-", "-r", "-w", "-xsS", "-r", "-w", "-xsS", "-r", "-w", "-xstST" //$NON-NLS-1$
+        };
+
+        /** Maximum number of fields before the date in a line. */
+        private static final int MAX_FIELDS = 8;
+
+        String permissions;
+        String owner;
+        String group;
+        String size;
+        String date;
+        String time;
+        String name;
+        String info;
+        int type;
+
+        private final int[] mStarts = new int[MAX_FIELDS];
+        private final int[] mEnds = new int[MAX_FIELDS];
+
+        /**
+         * Parses a line without going through a regular expression, accepting the lines matched
+         * by {@link FileListingService#LS_L_PATTERN}.
+         * @return true if the line was parsed, false if it is not a file line.
+         */
+        boolean parse(String line) {
+            int length = line.length();
+            if (length <= PERMISSION_CHARS.length) {
+                return false;
+            }
+            for (int i = 0; i < PERMISSION_CHARS.length; i++) {
+                if (PERMISSION_CHARS[i].indexOf(line.charAt(i)) == -1) {
+                    return false;
+                }
+            }
+            int pos = PERMISSION_CHARS.length;
+            if (!Character.isWhitespace(line.charAt(pos))) {
+                return false;
+            }
+
+            // split the fields up to the date, which is followed by the time and the name.
+            int fields = 0;
+            while (true) {
+                int spaceStart = pos;
+                while (pos < length && Character.isWhitespace(line.charAt(pos))) {
+                    pos++;
+                }
+                if (pos == length) {
+                    return false;
+                }
+                int start = pos;
+                while (pos < length && !Character.isWhitespace(line.charAt(pos))) {
+                    pos++;
+                }
+                if (fields >= 2 && isDate(line, start, pos)) {
+                    if (!setFields(line, fields, start - spaceStart)) {
+                        return false;
+                    }
+                    date = line.substring(start, pos);
+                    break;
+                }
+                if (fields == MAX_FIELDS) {
+                    return false;
+                }
+                mStarts[fields] = start;
+                mEnds[fields] = pos;
+                fields++;
+            }
+
+            // time
+            int timeStart = skipWhitespace(line, pos);
+            if (timeStart == pos || timeStart + 5 > length || !isTime(line, timeStart)) {
+                return false;
+            }
+            pos = timeStart + 5;
+            int nameStart = skipWhitespace(line, pos);
+            if (nameStart == pos) {
+                return false;
+            }
+            time = line.substring(timeStart, pos);
+            name = line.substring(nameStart);
+            permissions = line.substring(0, PERMISSION_CHARS.length);
+            return true;
+        }
+
+        /**
+         * Sets the owner, group and size from the fields before the date, trying with a link
+         * count first, as the pattern does.
+         * @param fields the number of fields.
+         * @param spaceBeforeDate the number of whitespace characters before the date.
+         */
+        private boolean setFields(String line, int fields, int spaceBeforeDate) {
+            if (isDigits(line, mStarts[0], mEnds[0]) && fields >= 3
+                    && setFields(line, 1, fields, spaceBeforeDate)) {
+                return true;
+            }
+            return setFields(line, 0, fields, spaceBeforeDate);
+        }
+
+        private boolean setFields(String line, int first, int fields, int spaceBeforeDate) {
+            int sizeFirst = first + 2;
+            // an empty size still needs whitespace on both sides.
+            if (sizeFirst == fields && spaceBeforeDate < 2) {
+                return false;
+            }
+            for (int i = sizeFirst; i < fields; i++) {
+                for (int j = mStarts[i]; j < mEnds[i]; j++) {
+                    char c = line.charAt(j);
+                    if ((c < '0' || c > '9') && c != ',') {
+                        return false;
+                    }
+                }
+            }
+            owner = line.substring(mStarts[first], mEnds[first]);
+            group = line.substring(mStarts[first + 1], mEnds[first + 1]);
+            size = sizeFirst == fields
+                    ? "" : line.substring(mStarts[sizeFirst], mEnds[fields - 1]); //$NON-NLS-1$
+            return true;
+        }
+
+        /**
+         * Sets the type from the permissions, and splits the target out of the name of links.
+         */
+        void resolveType() {
+            info = null;
+            switch (permissions.charAt(0)) {
+                case '-' :
+                    type = TYPE_FILE;
+                    break;
+                case 'b' :
+                    type = TYPE_BLOCK;
+                    break;
+                case 'c' :
+                    type = TYPE_CHARACTER;
+                    break;
+                case 'd' :
+                    type = TYPE_DIRECTORY;
+                    break;
+                case 'l' :
+                    type = TYPE_LINK;
+                    break;
+                case 's' :
+                    type = TYPE_SOCKET;
+                    break;
+                case 'p' :
+                    type = TYPE_FIFO;
+                    break;
+                default:
+                    type = TYPE_OTHER;
+                    break;
+            }
+
+            // now check what we may be linking to
+            if (type == TYPE_LINK) {
+                String[] segments = name.split("\\s->\\s"); //$NON-NLS-1$
+
+                // we should have 2 segments
+                if (segments.length == 2) {
+                    // update the entry name to not contain the link
+                    name = segments[0];
+
+                    // and the link name
+                    info = segments[1];
+
+                    // now get the path to the link
+                    String[] pathSegments = info.split(FILE_SEPARATOR);
+                    if (pathSegments.length == 1) {
+                        // the link is to something in the same directory,
+                        // unless the link is ..
+                        if ("..".equals(pathSegments[0])) { //$NON-NLS-1$
+                            // set the type and we're done.
+                            type = TYPE_DIRECTORY_LINK;
+                        } else {
+                            // either we found the object already
+                            // or we'll find it later.
+                        }
+                    }
+                }
+
+                // add an arrow in front to specify it's a link.
+                info = "-> " + info; //$NON-NLS-1$;
+            }
+        }
+
+        /**
+         * Copies the fields to an entry.
+         */
+        void fill(FileEntry entry) {
+            entry.permissions = permissions;
+            entry.size = size;
+            entry.date = date;
+            entry.time = time;
+            entry.owner = owner;
+            entry.group = group;
+            if (type == TYPE_LINK) {
+                entry.info = info;
+            }
+        }
+
+        private static int skipWhitespace(String line, int pos) {
+            while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+                pos++;
+            }
+            return pos;
+        }
+
+        private static boolean isDigits(String line, int start, int end) {
+            for (int i = start; i < end; i++) {
+                char c = line.charAt(i);
+                if (c < '0' || c > '9') {
+                    return false;
+                }
+            }
+            return end > start;
+        }
+
+        /** Returns whether a field is a yyyy-mm-dd date. */
+        private static boolean isDate(String line, int start, int end) {
+            return end - start == 10
+                    && isDigits(line, start, start + 4) && line.charAt(start + 4) == '-'
+                    && isDigits(line, start + 5, start + 7) && line.charAt(start + 7) == '-'
+                    && isDigits(line, start + 8, start + 10);
+        }
+
+        /** Returns whether a line has a hh:mm time at an offset. */
+        private static boolean isTime(String line, int start) {
+            return isDigits(line, start, start + 2) && line.charAt(start + 2) == ':'
+                    && isDigits(line, start + 3, start + 5);
+        }
+    }
+
+    /**
+     * Receiver of the output of <code>ls -l -R</code>, which builds the {@link FileEntry} tree
+     * of all the directories as they are listed.
+     * <p>
+     * Each directory listing starts with a "path:" header following an empty line. The entries
+     * already in the tree are reused, to keep the tree stable during updates.
+     */
+    private static final class LsRecursiveReceiver extends MultiLineReceiver {
+        private final FileEntry mRootEntry;
+        private final int mRootSegmentCount;
+        private final long mFetchTime;
+        private final LsLine mLine = new LsLine();
+        private final ArrayList<FileEntry> mLinks = new ArrayList<FileEntry>();
+
+        /** The directory being listed, or null. */
+        private FileEntry mDirectory;
+        private Map<String, FileEntry> mExisting;
+        private ArrayList<FileEntry> mEntries;
+        private boolean mExpectHeader = true;
+        private boolean mSeenHeader = false;
+
+        LsRecursiveReceiver(FileEntry rootEntry, long fetchTime) {
+            mRootEntry = rootEntry;
+            mRootSegmentCount = rootEntry.getPathSegments().length;
+            mFetchTime = fetchTime;
+        }
+
+        /**
+         * Returns the links found in the tree, whose targets still need to be checked.
+         */
+        List<FileEntry> getLinks() {
+            return mLinks;
+        }
+
+        @Override
+        public void processNewLines(String[] lines) {
+            for (String line : lines) {
+                if (line.isEmpty()) {
+                    finish();
+                    mExpectHeader = true;
+                    continue;
+                }
+                if (mExpectHeader && line.endsWith(":")) { //$NON-NLS-1$
+                    finish();
+                    mSeenHeader = true;
+                    mExpectHeader = false;
+                    FileEntry directory = findDirectory(line.substring(0, line.length() - 1));
+                    if (directory != null) {
+                        start(directory);
+                    }
+                    continue;
+                }
+                mExpectHeader = false;
+
+                if (mDirectory == null) {
+                    if (mSeenHeader) {
+                        // listing of a directory out of the tree.
+                        continue;
+                    }
+                    // no header for the first directory.
+                    start(mRootEntry);
+                }
+                if (!mLine.parse(line)) {
+                    continue;
+                }
+                mLine.resolveType();
+
+                FileEntry entry = mExisting.remove(mLine.name);
+                if (entry == null) {
+                    entry = new FileEntry(mDirectory, mLine.name, mLine.type, false /* isRoot */);
+                }
+                mLine.fill(entry);
+                if (entry.getType() == TYPE_LINK) {
+                    mLinks.add(entry);
+                }
+                mEntries.add(entry);
+            }
+        }
+
+        @Override
+        public void done() {
+            finish();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        /**
+         * Completes the listing of the current directory.
+         */
+        void finish() {
+            if (mDirectory == null) {
+                return;
+            }
+            Collections.sort(mEntries, FileEntry.sEntryComparator);
+            mDirectory.setChildren(mEntries);
+            mDirectory.fetchTime = mFetchTime;
+            mDirectory.subtreeFetchTime = mFetchTime;
+            mDirectory = null;
+            mExisting = null;
+            mEntries = null;
+        }
+
+        private void start(FileEntry directory) {
+            mDirectory = directory;
+            mExisting = new HashMap<String, FileEntry>();
+            for (FileEntry child : directory.mChildren) {
+                mExisting.put(child.name, child);
+            }
+            mEntries = new ArrayList<FileEntry>();
+        }
+
+        /**
+         * Returns the entry of a listed directory, from the directories listed already.
+         */
+        private FileEntry findDirectory(String path) {
+            FileEntry entry = mRootEntry;
+            int index = 0;
+            for (String segment : path.split(FILE_SEPARATOR)) {
+                if (segment.isEmpty()) {
+                    continue;
+                }
+                if (index++ < mRootSegmentCount) {
+                    continue;
+                }
+                entry = entry.findChild(segment);
+                if (entry == null) {
+                    return null;
+                }
+            }
+            return index >= mRootSegmentCount ? entry : null;
+        }
+    }
+
     /**
      * Classes which implement this interface provide a method that deals with asynchronous
      * result from <code>ls</code> command on the device.
@@ -698,7 +1034,7 @@ public final class FileListingService {
             final IListingReceiver receiver) {
         // first thing we do is check the cache, and if we already have a recent
         // enough children list, we just return that.
-        if (useCache && !entry.needFetch()) {
+        if (useCache && !entry.needFetch(mCacheTtl)) {
             return entry.getCachedChildren();
         }
 
@@ -857,4 +1193,143 @@ public final class FileListingService {
         }
     }
 
+
+    /**
+     * Sets how long listings are cached, in milliseconds.
+     * <p>The default is slightly lower than {@link #REFRESH_RATE}.
+     */
+    public void setCacheTtl(long ttl) {
+        mCacheTtl = ttl;
+    }
+
+    /**
+     * Returns how long listings are cached, in milliseconds.
+     */
+    public long getCacheTtl() {
+        return mCacheTtl;
+    }
+
+    /**
+     * Returns the children of a {@link FileEntry}, after fetching the whole tree under it.
+     * <p>
+     * The tree is fetched with a single recursive <code>ls</code> command, instead of one command
+     * per directory, and the children of all the directories under the entry are then available
+     * through {@link FileEntry#getCachedChildren()}. Links to directories are not followed.
+     * <p>
+     * If <var>useCache</var> is true, the tree is only fetched again if its listing is older
+     * than the cache TTL, see {@link #setCacheTtl(long)}, or was invalidated.
+     *
+     * @param entry The parent entry.
+     * @param useCache A flag to use the cache or to force a new ls command.
+     * @return The list of children
+     * @throws TimeoutException in case of timeout on the connection when sending the command.
+     * @throws AdbCommandRejectedException if adb rejects the command.
+     * @throws ShellCommandUnresponsiveException in case the shell command doesn't send any output
+     *            for a period longer than <var>maxTimeToOutputResponse</var>.
+     * @throws IOException in case of I/O error on the connection.
+     *
+     * @see #invalidate(String)
+     */
+    public FileEntry[] getChildrenRecursiveSync(FileEntry entry, boolean useCache)
+            throws TimeoutException, AdbCommandRejectedException,
+            ShellCommandUnresponsiveException, IOException {
+        if (!useCache || entry.needSubtreeFetch(mCacheTtl)) {
+            doLsRecursive(entry);
+        }
+        return entry.getCachedChildren();
+    }
+
+    /**
+     * Marks the cached listings affected by a change of a remote path as stale: the listing of
+     * its parent directory, and the listings of the whole tree under it.
+     * <p>Only the tree under {@link #getRoot()} is affected.
+     *
+     * @param remotePath the full path of the remote file or directory that changed.
+     */
+    public void invalidate(String remotePath) {
+        FileEntry entry = mRoot;
+        if (entry == null) {
+            return;
+        }
+        for (String segment : remotePath.split(FILE_SEPARATOR)) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            entry.subtreeFetchTime = 0;
+            FileEntry child = entry.findChild(segment);
+            if (child == null) {
+                // new entry: its closest listed ancestor needs to be listed again.
+                entry.fetchTime = 0;
+                return;
+            }
+            entry = child;
+        }
+        entry.invalidateSubtree();
+        if (entry.parent != null) {
+            entry.parent.fetchTime = 0;
+        }
+    }
+
+    private void doLsRecursive(FileEntry entry) throws TimeoutException,
+            AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException {
+        LsRecursiveReceiver receiver =
+                new LsRecursiveReceiver(entry, System.currentTimeMillis());
+        try {
+            // the path of a directory ends with a "/" so that links to directories are listed.
+            String command = "ls -l -R " + entry.getFullEscapedPath() //$NON-NLS-1$
+                    + FILE_SEPARATOR;
+            mDevice.executeShellCommand(command, receiver);
+
+            finishLinks(receiver.getLinks());
+        } finally {
+            receiver.finish();
+        }
+    }
+
+    /**
+     * Determines which links are links to directories, with one shell command per batch of
+     * links, and marks them as such.
+     */
+    private void finishLinks(List<FileEntry> links) throws TimeoutException,
+            AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException {
+        for (int batchStart = 0; batchStart < links.size(); batchStart += LINK_BATCH_SIZE) {
+            final List<FileEntry> batch = links.subList(batchStart,
+                    Math.min(links.size(), batchStart + LINK_BATCH_SIZE));
+
+            // same check as LsReceiver.finishLinks, each listing preceded by the link index.
+            StringBuilder command = new StringBuilder();
+            for (int i = 0; i < batch.size(); i++) {
+                if (i > 0) {
+                    command.append("; "); //$NON-NLS-1$
+                }
+                command.append("echo @").append(i).append("; ls -l -d ") //$NON-NLS-1$ //$NON-NLS-2$
+                        .append(batch.get(i).getFullEscapedPath()).append(FILE_SEPARATOR);
+            }
+
+            mDevice.executeShellCommand(command.toString(), new MultiLineReceiver() {
+                private int mIndex = -1;
+
+                @Override
+                public void processNewLines(String[] lines) {
+                    for (String line : lines) {
+                        if (line.startsWith("@")) { //$NON-NLS-1$
+                            try {
+                                mIndex = Integer.parseInt(line.substring(1));
+                            } catch (NumberFormatException e) {
+                                mIndex = -1;
+                            }
+                        } else if (mIndex >= 0 && mIndex < batch.size()
+                                && LS_LD_PATTERN.matcher(line).matches()) {
+                            batch.get(mIndex).setType(TYPE_DIRECTORY_LINK);
+                        }
+                    }
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return false;
+                }
+            });
+        }
+    }
 }
@@ -22,6 +22,8 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Handle thread status updates.
@@ -241,29 +243,49 @@ final class HandleNativeHeap extends ChunkHandler {
           return;
         }
 
+        List<NativeLibraryMapInfo> libraries = new ArrayList<NativeLibraryMapInfo>();
         if (mapSize > 0) {
             byte[] maps = new byte[mapSize];
             data.get(maps, 0, mapSize);
-            parseMaps(clientData, maps);
+            parseMaps(clientData, maps, libraries);
         }
 
+        // The allocations are read with absolute gets, into the arrays of a snapshot: for large
+        // heaps, allocating a NativeAllocationInfo and boxing every address is too slow.
         int iterations = allocSize / allocInfoSize;
+        NativeHeapSnapshot snapshot = new NativeHeapSnapshot(iterations, libraries);
+        long[] addresses = new long[backtraceSize];
+        int position = data.position();
         for (int i = 0 ; i < iterations ; i++) {
-            NativeAllocationInfo info = new NativeAllocationInfo(
-                    buffer.getSizeT() /* size */,
-                    buffer.getSizeT() /* allocations */);
-
-            for (int j = 0 ; j < backtraceSize ; j++) {
-                long addr = buffer.getPtr();
-                if (addr == 0x0) {
+            int size;
+            int allocations;
+            int length = 0;
+            if (pointerSize == 8) {
+                size = (int) data.getLong(position);
+                allocations = (int) data.getLong(position + 8);
+                position += 16;
+                for (int j = 0 ; j < backtraceSize ; j++, position += 8) {
+                    long addr = data.getLong(position);
                     // skip past null addresses
-                    continue;
+                    if (addr != 0x0) {
+                        addresses[length++] = addr;
+                    }
+                }
+            } else {
+                size = data.getInt(position);
+                allocations = data.getInt(position + 4);
+                position += 8;
+                for (int j = 0 ; j < backtraceSize ; j++, position += 4) {
+                    long addr = (long) data.getInt(position) & 0x00000000ffffffffL;
+                    if (addr != 0x0) {
+                        addresses[length++] = addr;
+                    }
                 }
-
-                info.addStackCallAddress(addr);
             }
-            clientData.addNativeAllocation(info);
+            snapshot.add(size, allocations, addresses, length);
         }
+        data.position(position);
+        clientData.setNativeHeapSnapshot(snapshot);
     }
 
     private void handleNHSG(Client client, ByteBuffer data) {
@@ -296,7 +318,8 @@ final class HandleNativeHeap extends ChunkHandler {
         }
     }
 
-    private void parseMaps(ClientData clientData, byte[] maps) {
+    private void parseMaps(ClientData clientData, byte[] maps,
+            List<NativeLibraryMapInfo> libraries) {
         InputStreamReader input = new InputStreamReader(new ByteArrayInputStream(maps));
         BufferedReader reader = new BufferedReader(input);
 
@@ -338,6 +361,7 @@ final class HandleNativeHeap extends ChunkHandler {
                 }
 
                 clientData.addNativeLibraryMapInfo(startAddr, endAddr, library);
+                libraries.add(new NativeLibraryMapInfo(startAddr, endAddr, library));
                 Log.d("ddms", library + "(" + Long.toHexString(startAddr) +
                       " - " + Long.toHexString(endAddr) + ")");
             }
@@ -84,8 +84,19 @@ final class HandleThread extends ChunkHandler {
         } else if (type == CHUNK_THNM) {
             handleTHNM(client, data);
         } else if (type == CHUNK_STKL) {
-            handleSTKL(client, data);
+            StackSampler sampler = client.getStackSampler();
+            if (isReply && sampler != null && sampler.isPending(msgId)) {
+                sampler.handleStackTrace(msgId, data);
+            } else {
+                handleSTKL(client, data);
+            }
         } else {
+            StackSampler sampler = client.getStackSampler();
+            if (type == CHUNK_FAIL && isReply && sampler != null && sampler.isPending(msgId)) {
+                // the thread went away before it was sampled.
+                sampler.handleFailure(msgId);
+                return;
+            }
             handleUnknownChunk(client, type, data, isReply, msgId);
         }
     }
@@ -295,6 +306,13 @@ final class HandleThread extends ChunkHandler {
             return;
         }
 
+        sendSTKL(client, threadId, createSTKL(threadId));
+    }
+
+    /**
+     * Creates a STKL request, whose id the caller can track before it is sent.
+     */
+    static JdwpPacket createSTKL(int threadId) {
         ByteBuffer rawBuf = allocBuffer(4);
         JdwpPacket packet = new JdwpPacket(rawBuf);
         ByteBuffer buf = getChunkDataBuf(rawBuf);
@@ -302,6 +320,10 @@ final class HandleThread extends ChunkHandler {
         buf.putInt(threadId);
 
         finishChunkPacket(packet, CHUNK_STKL, buf.position());
+        return packet;
+    }
+
+    static void sendSTKL(Client client, int threadId, JdwpPacket packet) throws IOException {
         Log.d("ddm-thread", "Sending " + name(CHUNK_STKL) + ": " + threadId);
         client.send(packet, mInst);
     }
@@ -364,7 +386,7 @@ final class HandleThread extends ChunkHandler {
     /*
      * Send a THST request to the specified client.
      */
-    private static void sendTHST(Client client) throws IOException {
+    static void sendTHST(Client client) throws IOException {
         ByteBuffer rawBuf = allocBuffer(0);
         JdwpPacket packet = new JdwpPacket(rawBuf);
         ByteBuffer buf = getChunkDataBuf(rawBuf);
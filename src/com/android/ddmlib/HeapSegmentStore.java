@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.HeapSegment.HeapSegmentElement;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The runs of objects described by the {@link HeapSegment}s of a heap, stored as parallel arrays
+ * of primitives rather than as one {@link HeapSegmentElement} per run.
+ * <p>Runs are ordered by heap, then by address. Elements split with the partial bit, including
+ * across contiguous segments, are stored as a single run.
+ * <p>{@link #load(Iterable)} reuses the arrays of the store, which only grow.
+ */
+public final class HeapSegmentStore {
+
+    /** Histogram bin of the free blocks, after the bins of the {@code KIND_*} values. */
+    public static final int BIN_FREE = HeapSegmentElement.KIND_NATIVE + 1;
+
+    /** Number of bins by kind: one per {@code KIND_*} value, and {@link #BIN_FREE}. */
+    public static final int KIND_BIN_COUNT = BIN_FREE + 1;
+
+    /** Number of size classes: runs of 2^(n-1) + 1 to 2^n bytes are in class n. */
+    public static final int SIZE_CLASS_COUNT = 32;
+
+    /** The partial bit of the HPSG state bytes, see {@link HeapSegmentElement}. */
+    private static final int PARTIAL_MASK = 1 << 7;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int mCount;
+    private int[] mHeapIds = new int[0];
+    private long[] mAddresses = new long[0];
+    private int[] mLengths = new int[0];
+    private byte[] mSolidities = new byte[0];
+    private byte[] mKinds = new byte[0];
+
+    // the run being parsed, which the next state bytes may continue.
+    private boolean mOpen;
+    private int mOpenState;
+    private int mOpenHeapId;
+    private long mOpenAddress;
+    private int mOpenLength;
+
+    /**
+     * Replaces the runs of the store with those described by <var>segments</var>, which must be
+     * ordered by heap and address, as {@link ClientData.HeapData#getHeapSegments()} are.
+     */
+    public void load(Iterable<HeapSegment> segments) {
+        clear();
+        for (HeapSegment segment : segments) {
+            if (segment.isValid()) {
+                add(segment);
+            }
+        }
+        closeRun();
+    }
+
+    /**
+     * Removes all the runs, keeping the arrays.
+     */
+    public void clear() {
+        mCount = 0;
+        mOpen = false;
+    }
+
+    private void add(HeapSegment segment) {
+        int heapId = segment.mHeapId;
+        int unit = segment.mAllocationUnitSize;
+        long address = segment.getStartAddress();
+        if (mOpen && (mOpenHeapId != heapId || mOpenAddress + mOpenLength != address)) {
+            // a truncated element: the next segment does not continue it.
+            closeRun();
+        }
+        long end = segment.getEndAddress();
+        ByteBuffer data = segment.mUsageData;
+        byte[] bytes;
+        int position;
+        int limit;
+        if (data.hasArray()) {
+            bytes = data.array();
+            position = data.arrayOffset();
+            limit = position + data.limit();
+        } else {
+            bytes = new byte[data.limit()];
+            ByteBuffer copy = data.duplicate();
+            copy.rewind();
+            copy.get(bytes);
+            position = 0;
+            limit = bytes.length;
+        }
+        // the data of an appended segment can be followed by unused bytes.
+        while (address < end && position + 2 <= limit) {
+            int state = bytes[position++] & 0xff;
+            int length = ((bytes[position++] & 0xff) + 1) * unit;
+            if (mOpen && (state & ~PARTIAL_MASK) != (mOpenState & ~PARTIAL_MASK)) {
+                // malformed data: keep what was read of the previous element.
+                closeRun();
+            }
+            if (mOpen) {
+                mOpenLength += length;
+            } else {
+                mOpen = true;
+                mOpenHeapId = heapId;
+                mOpenAddress = address;
+                mOpenLength = length;
+            }
+            mOpenState = state;
+            address += length;
+            if ((state & PARTIAL_MASK) == 0) {
+                closeRun();
+            }
+        }
+    }
+
+    private void closeRun() {
+        if (!mOpen) {
+            return;
+        }
+        mOpen = false;
+        if (mCount == mAddresses.length) {
+            grow();
+        }
+        mHeapIds[mCount] = mOpenHeapId;
+        mAddresses[mCount] = mOpenAddress;
+        mLengths[mCount] = mOpenLength;
+        mSolidities[mCount] = (byte) (mOpenState & 0x7);
+        mKinds[mCount] = (byte) ((mOpenState >> 3) & 0x7);
+        mCount++;
+    }
+
+    private void grow() {
+        int capacity = Math.max(INITIAL_CAPACITY, mAddresses.length * 2);
+        mHeapIds = Arrays.copyOf(mHeapIds, capacity);
+        mAddresses = Arrays.copyOf(mAddresses, capacity);
+        mLengths = Arrays.copyOf(mLengths, capacity);
+        mSolidities = Arrays.copyOf(mSolidities, capacity);
+        mKinds = Arrays.copyOf(mKinds, capacity);
+    }
+
+    /**
+     * Returns the number of runs.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    public int getHeapId(int index) {
+        return mHeapIds[index];
+    }
+
+    public long getAddress(int index) {
+        return mAddresses[index];
+    }
+
+    /**
+     * Returns the length of a run, in bytes.
+     */
+    public int getLength(int index) {
+        return mLengths[index];
+    }
+
+    /**
+     * Returns the solidity of a run, one of the {@code HeapSegmentElement.SOLIDITY_*} values.
+     */
+    public int getSolidity(int index) {
+        return mSolidities[index];
+    }
+
+    /**
+     * Returns the kind of a run, one of the {@code HeapSegmentElement.KIND_*} values.
+     */
+    public int getKind(int index) {
+        return mKinds[index];
+    }
+
+    /**
+     * Returns the histogram bin of a run: its kind, or {@link #BIN_FREE} for free blocks.
+     */
+    public int getKindBin(int index) {
+        return mSolidities[index] == HeapSegmentElement.SOLIDITY_FREE ? BIN_FREE : mKinds[index];
+    }
+
+    /**
+     * Returns the size class of a length in bytes: the smallest n such that length <= 2^n.
+     */
+    public static int getSizeClass(int length) {
+        return length <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(length - 1);
+    }
+
+    /**
+     * Adds up the runs by kind and size class, for all the heaps.
+     *
+     * @param counts if not null, receives the number of runs of kind bin <var>k</var> and size
+     *     class <var>c</var> at index <code>k * SIZE_CLASS_COUNT + c</code>. At least
+     *     {@link #KIND_BIN_COUNT} * {@link #SIZE_CLASS_COUNT} long.
+     * @param bytes if not null, receives the total length of the runs, at the same indices.
+     */
+    public void histogram(int[] counts, long[] bytes) {
+        histogram(-1, counts, bytes);
+    }
+
+    /**
+     * Adds up the runs of a heap by kind and size class, like {@link #histogram(int[], long[])}.
+     *
+     * @param heapId the heap, or -1 for all the heaps.
+     */
+    public void histogram(int heapId, int[] counts, long[] bytes) {
+        int size = KIND_BIN_COUNT * SIZE_CLASS_COUNT;
+        if (counts != null) {
+            Arrays.fill(counts, 0, size, 0);
+        }
+        if (bytes != null) {
+            Arrays.fill(bytes, 0, size, 0);
+        }
+        int[] lengths = mLengths;
+        byte[] solidities = mSolidities;
+        byte[] kinds = mKinds;
+        int[] heapIds = mHeapIds;
+        for (int i = 0; i < mCount; i++) {
+            if (heapId != -1 && heapIds[i] != heapId) {
+                continue;
+            }
+            int length = lengths[i];
+            int bin = solidities[i] == HeapSegmentElement.SOLIDITY_FREE ? BIN_FREE : kinds[i];
+            int index = bin * SIZE_CLASS_COUNT + getSizeClass(length);
+            if (counts != null) {
+                counts[index]++;
+            }
+            if (bytes != null) {
+                bytes[index] += length;
+            }
+        }
+    }
+
+    /**
+     * Adds up the length of the runs by kind, for all the heaps.
+     *
+     * @param bytes receives the total length of the runs of each kind bin, at least
+     *     {@link #KIND_BIN_COUNT} long.
+     */
+    public void getBytesByKind(long[] bytes) {
+        Arrays.fill(bytes, 0, KIND_BIN_COUNT, 0);
+        for (int i = 0; i < mCount; i++) {
+            int bin = mSolidities[i] == HeapSegmentElement.SOLIDITY_FREE ? BIN_FREE : mKinds[i];
+            bytes[bin] += mLengths[i];
+        }
+    }
+}
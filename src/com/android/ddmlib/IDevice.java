@@ -20,6 +20,7 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.ddmlib.log.LogReceiver;
 import com.android.sdklib.AndroidVersion;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.File;
 import java.io.IOException;
@@ -49,6 +50,7 @@ public interface IDevice extends IShellEnabledDevice {
     String PROP_DEVICE_EMULATOR_DENSITY = "qemu.sf.lcd_density";
     String PROP_DEVICE_LANGUAGE = "persist.sys.language";
     String PROP_DEVICE_REGION = "persist.sys.country";
+    String PROP_DEVICE_TIME_ZONE = "persist.sys.timezone";
 
     String PROP_DEBUGGABLE = "ro.debuggable";
 
@@ -336,6 +338,20 @@ public interface IDevice extends IShellEnabledDevice {
     RawImage getScreenshot(long timeout, TimeUnit unit)
             throws TimeoutException, AdbCommandRejectedException, IOException;
 
+    /**
+     * Starts capturing the screen of the device continuously.
+     *
+     * @param interval the minimum time between the start of two captures, or 0 to capture as
+     *            fast as possible.
+     * @param unit the unit of <var>interval</var>.
+     * @param listener the listener receiving the frames which changed.
+     * @return the running stream, to stop it and read its metrics.
+     * @see ScreenCaptureStream
+     */
+    @NonNull
+    ScreenCaptureStream startScreenCapture(long interval, @NonNull TimeUnit unit,
+            @NonNull ScreenCaptureStream.FrameListener listener);
+
     /**
      * Initiates screen recording on the device if the device supports {@link Feature#SCREEN_RECORD}.
      */
@@ -374,6 +390,31 @@ public interface IDevice extends IShellEnabledDevice {
             throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException,
             IOException;
 
+    /**
+     * Executes a shell command on the device without blocking the calling thread.
+     * <p>The asynchronous commands of all the devices share a few threads: the output is handed
+     * to <var>receiver</var> on one of them, so the receiver must not block, nor keep the array
+     * it is handed.
+     *
+     * @param command the shell command to execute
+     * @param receiver the {@link IShellOutputReceiver} that will receives the output of the shell
+     *            command
+     * @param maxTimeout the maximum timeout for the command to return. A value of 0 means no max
+     *            timeout will be applied.
+     * @param maxTimeToOutputResponse the maximum amount of time during which the command is
+     *            allowed to not output any response. A value of 0 means no max.
+     * @param maxTimeUnits Units for non-zero {@code maxTimeout} and
+     *            {@code maxTimeToOutputResponse} values.
+     * @return a future set when the command ends, or when the receiver or the caller cancels
+     *            it. It fails with the exceptions thrown by
+     *            {@link #executeShellCommand(String, IShellOutputReceiver, long, long, TimeUnit)}.
+     * @see DdmPreferences#getShellReactorThreadCount()
+     */
+    @NonNull
+    ListenableFuture<Void> executeShellCommandAsync(@NonNull String command,
+            @Nullable IShellOutputReceiver receiver, long maxTimeout, long maxTimeToOutputResponse,
+            @Nullable TimeUnit maxTimeUnits);
+
     /**
      * Runs the event log service and outputs the event log to the {@link LogReceiver}.
      * <p>This call is blocking until {@link LogReceiver#isCancelled()} returns true.
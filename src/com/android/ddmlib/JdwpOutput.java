@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * The data written to a non-blocking JDWP connection, by the pipelines and the other threads.
+ * <p>
+ * Writes never wait for the peer: what the channel doesn't accept is kept, in order, and the
+ * following writes are queued behind it. The selector thread of the connection must then be
+ * asked for {@link java.nio.channels.SelectionKey#OP_WRITE}, and writes the data kept with
+ * {@link #writePending(SocketChannel)} once the channel is writable.
+ */
+final class JdwpOutput {
+
+    private final Deque<ByteBuffer> mPending = new ArrayDeque<ByteBuffer>();
+
+    /** Run once the data kept is written, or dropped. */
+    private final List<Runnable> mWaiters = new ArrayList<Runnable>();
+
+    /**
+     * Writes the first <var>count</var> buffers, from their position, as far as the channel
+     * accepts them.
+     * @param copy whether the buffers must be copied to be kept, as their content is only valid
+     *             during the call.
+     * @param onWritable run once the data kept is written, if some is kept, or null.
+     * @return true if all the data was written, false if some is kept, in which case the selector
+     * must be asked for {@link java.nio.channels.SelectionKey#OP_WRITE}.
+     * @throws IOException if the connection failed.
+     */
+    synchronized boolean write(@NonNull SocketChannel chan, @NonNull ByteBuffer[] buffers,
+            int count, boolean copy, @Nullable Runnable onWritable) throws IOException {
+        int offset = 0;
+        if (mPending.isEmpty()) {
+            while (offset < count && chan.write(buffers, offset, count - offset) > 0) {
+                while (offset < count && !buffers[offset].hasRemaining()) {
+                    offset++;
+                }
+            }
+            if (offset == count) {
+                return true;
+            }
+        }
+        for (int i = offset; i < count; i++) {
+            ByteBuffer buffer = buffers[i];
+            if (copy) {
+                ByteBuffer kept = ByteBuffer.allocate(buffer.remaining());
+                kept.put(buffer).flip();
+                buffer = kept;
+            }
+            mPending.add(buffer);
+        }
+        if (onWritable != null) {
+            mWaiters.add(onWritable);
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether data is kept, waiting for the channel to be writable.
+     */
+    synchronized boolean hasPending() {
+        return !mPending.isEmpty();
+    }
+
+    /**
+     * Writes the data kept, as far as the channel accepts it. Called on the selector thread once
+     * the channel is writable.
+     * @return the callbacks to run once all the data kept is written, or null if some is still
+     * kept.
+     * @throws IOException if the connection failed.
+     */
+    @Nullable
+    synchronized List<Runnable> writePending(@NonNull SocketChannel chan) throws IOException {
+        while (!mPending.isEmpty()) {
+            ByteBuffer buffer = mPending.peek();
+            chan.write(buffer);
+            if (buffer.hasRemaining()) {
+                return null;
+            }
+            mPending.poll();
+        }
+        return takeWaiters();
+    }
+
+    /**
+     * Drops the data kept, once the connection is closed.
+     * @return the callbacks to run, so that nobody waits for the connection anymore.
+     */
+    @NonNull
+    synchronized List<Runnable> clear() {
+        mPending.clear();
+        return takeWaiters();
+    }
+
+    private List<Runnable> takeWaiters() {
+        if (mWaiters.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Runnable> waiters = new ArrayList<Runnable>(mWaiters);
+        mWaiters.clear();
+        return waiters;
+    }
+
+    /**
+     * Runs the callbacks returned by {@link #writePending(SocketChannel)} or {@link #clear()},
+     * out of the locks of the connection.
+     */
+    static void run(@Nullable List<Runnable> waiters) {
+        if (waiters != null) {
+            for (Runnable waiter : waiters) {
+                waiter.run();
+            }
+        }
+    }
+}
@@ -185,6 +185,28 @@ public final class JdwpPacket {
         mBuffer.position(oldPosn);
     }
 
+    /**
+     * Returns a buffer over the data of this packet, for writes which may not complete at once.
+     */
+    ByteBuffer toBuffer() {
+        assert mLength > 0;
+        ByteBuffer buf = mBuffer.duplicate();
+        buf.limit(mLength);
+        buf.position(0);
+        return buf;
+    }
+
+    /**
+     * Returns buffers over the data of the first <var>count</var> packets, see {@link #toBuffer()}.
+     */
+    static ByteBuffer[] toBuffers(JdwpPacket[] packets, int count) {
+        ByteBuffer[] buffers = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            buffers[i] = packets[i].toBuffer();
+        }
+        return buffers;
+    }
+
     /**
      * "Move" the packet data out of the buffer we're sitting on and into
      * buf at the current position.
@@ -200,6 +222,25 @@ public final class JdwpPacket {
         mBuffer.position(oldPosn);
     }
 
+    /**
+     * Returns a copy of this packet backed by its own buffer, for use once the original buffer
+     * has been consumed.
+     */
+    public JdwpPacket copy() {
+        ByteBuffer buf = ByteBuffer.allocate(mLength);
+        buf.order(mBuffer.order());
+        move(buf);
+
+        JdwpPacket pkt = new JdwpPacket(buf);
+        pkt.mLength = mLength;
+        pkt.mId = mId;
+        pkt.mFlags = mFlags;
+        pkt.mCmdSet = mCmdSet;
+        pkt.mCmd = mCmd;
+        pkt.mErrCode = mErrCode;
+        return pkt;
+    }
+
     /**
      * Consume the JDWP packet.
      *
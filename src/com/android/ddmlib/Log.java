@@ -250,7 +250,11 @@ public final class Log {
         sLevel = logLevel;
     }
 
-    static boolean isAtLeast(@NonNull LogLevel logLevel) {
+    /**
+     * Returns whether messages of the given level are currently output, so that callers can
+     * skip building messages that would be dropped.
+     */
+    public static boolean isAtLeast(@NonNull LogLevel logLevel) {
         return logLevel.getPriority() >= sLevel.getPriority();
     }
 
@@ -19,6 +19,7 @@ package com.android.ddmlib;
 
 import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.jdwp.JdwpExtension;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -29,15 +30,28 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Monitor open connections.
+ * <p>Client and debugger sockets are spread over a pool of selector threads (see
+ * {@link DdmPreferences#setMonitorThreadCount(int)}), with all the clients of a given device
+ * handled by the same selector. This thread runs the first selector, and also owns the
+ * "debug selected" port. Chunk handlers are run on a separate pool of dispatch threads (see
+ * {@link DdmPreferences#setChunkDispatchThreadCount(int)}) so that a slow handler does not
+ * stall I/O for the other clients.
  */
 final class MonitorThread extends Thread {
 
@@ -45,12 +59,14 @@ final class MonitorThread extends Thread {
 
     private volatile boolean mQuit = false;
 
-    // List of clients we're paying attention to
-    // Used for locking so final.
-    final private ArrayList<Client> mClientList;
+    // Clients we're paying attention to, mapped to the selector shard serving them.
+    private final ConcurrentMap<Client, Shard> mClients;
 
-    // The almighty mux
-    private Selector mSelector;
+    // The almighty muxes. mShards[0] is run by this thread.
+    private final Shard[] mShards;
+
+    // Single threaded executors running chunk handlers, or null to run them inline.
+    private final ExecutorService[] mDispatchers;
 
     private final List<JdwpExtension> mJdwpExtensions;
 
@@ -74,7 +90,27 @@ final class MonitorThread extends Thread {
      */
     private MonitorThread() {
         super("Monitor");
-        mClientList = new ArrayList<Client>();
+        mClients = new ConcurrentHashMap<Client, Shard>();
+
+        int shardCount = Math.max(1, DdmPreferences.getMonitorThreadCount());
+        mShards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            mShards[i] = new Shard(i);
+        }
+
+        int dispatchCount = DdmPreferences.getChunkDispatchThreadCount();
+        if (dispatchCount > 0) {
+            mDispatchers = new ExecutorService[dispatchCount];
+            for (int i = 0; i < dispatchCount; i++) {
+                mDispatchers[i] = Executors.newSingleThreadExecutor(
+                        new ThreadFactoryBuilder()
+                                .setNameFormat("Monitor Dispatch-" + i)
+                                .setDaemon(true)
+                                .build());
+            }
+        } else {
+            mDispatchers = null;
+        }
 
         mNewDebugSelectedPort = DdmPreferences.getSelectedDebugPort();
 
@@ -165,9 +201,7 @@ final class MonitorThread extends Thread {
      * Get an array of known clients.
      */
     Client[] getClients() {
-        synchronized (mClientList) {
-            return mClientList.toArray(new Client[mClientList.size()]);
-        }
+        return mClients.keySet().toArray(new Client[0]);
     }
 
     /**
@@ -187,48 +221,80 @@ final class MonitorThread extends Thread {
     public void run() {
         Log.d("ddms", "Monitor is up");
 
-        // create a selector
+        // create the selectors
         try {
-            mSelector = Selector.open();
+            for (Shard shard : mShards) {
+                shard.mSelector = Selector.open();
+            }
         } catch (IOException ioe) {
             Log.logAndDisplay(LogLevel.ERROR, "ddms",
                     "Failed to initialize Monitor Thread: " + ioe.getMessage());
             return;
         }
 
+        for (int i = 1; i < mShards.length; i++) {
+            final Shard shard = mShards[i];
+            shard.mThread = new Thread("Monitor-" + i) {
+                @Override
+                public void run() {
+                    runSelectorLoop(shard);
+                }
+            };
+            shard.mThread.setDaemon(true);
+            shard.mThread.start();
+        }
+
+        mShards[0].mThread = this;
+        runSelectorLoop(mShards[0]);
+
+        for (int i = 1; i < mShards.length; i++) {
+            try {
+                mShards[i].mThread.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Runs the select loop of a shard until {@link #quit()} is called.
+     */
+    private void runSelectorLoop(Shard shard) {
+        Selector selector = shard.mSelector;
+        boolean ownsDebugSelectedPort = shard.mIndex == 0;
+
         while (!mQuit) {
 
             try {
-                /*
-                 * sync with new registrations: we wait until addClient is done before going through
-                 * and doing mSelector.select() again.
-                 * @see {@link #addClient(Client)}
-                 */
-                synchronized (mClientList) {
-                }
+                // apply registrations requested by other threads since the last select. Those
+                // can't be done while the selector is blocked in select().
+                shard.runPendingTasks();
 
                 // (re-)open the "debug selected" port, if it's not opened yet or
                 // if the port changed.
-                try {
-                    if (AndroidDebugBridge.getClientSupport()) {
-                        if ((mDebugSelectedChan == null ||
-                                mNewDebugSelectedPort != mDebugSelectedPort) &&
-                                mNewDebugSelectedPort != -1) {
-                            if (reopenDebugSelectedPort()) {
-                                mDebugSelectedPort = mNewDebugSelectedPort;
+                if (ownsDebugSelectedPort) {
+                    try {
+                        if (AndroidDebugBridge.getClientSupport()) {
+                            if ((mDebugSelectedChan == null ||
+                                    mNewDebugSelectedPort != mDebugSelectedPort) &&
+                                    mNewDebugSelectedPort != -1) {
+                                if (reopenDebugSelectedPort()) {
+                                    mDebugSelectedPort = mNewDebugSelectedPort;
+                                }
                             }
                         }
+                    } catch (IOException ioe) {
+                        Log.e("ddms",
+                                "Failed to reopen debug port for Selected Client to: " + mNewDebugSelectedPort);
+                        Log.e("ddms", ioe);
+                        mNewDebugSelectedPort = mDebugSelectedPort; // no retry
                     }
-                } catch (IOException ioe) {
-                    Log.e("ddms",
-                            "Failed to reopen debug port for Selected Client to: " + mNewDebugSelectedPort);
-                    Log.e("ddms", ioe);
-                    mNewDebugSelectedPort = mDebugSelectedPort; // no retry
                 }
 
                 int count;
                 try {
-                    count = mSelector.select();
+                    count = selector.select();
                 } catch (IOException ioe) {
                     ioe.printStackTrace();
                     continue;
@@ -242,7 +308,7 @@ final class MonitorThread extends Thread {
                     continue;
                 }
 
-                Set<SelectionKey> keys = mSelector.selectedKeys();
+                Set<SelectionKey> keys = selector.selectedKeys();
                 Iterator<SelectionKey> iter = keys.iterator();
 
                 while (iter.hasNext()) {
@@ -251,7 +317,7 @@ final class MonitorThread extends Thread {
 
                     try {
                         if (key.attachment() instanceof Client) {
-                            processClientActivity(key);
+                            processClientActivity(key, false);
                         }
                         else if (key.attachment() instanceof Debugger) {
                             processDebuggerActivity(key);
@@ -278,7 +344,6 @@ final class MonitorThread extends Thread {
         }
     }
 
-
     /**
      * Returns the port on which the selected client listen for debugger
      */
@@ -289,17 +354,28 @@ final class MonitorThread extends Thread {
     /*
      * Something happened. Figure out what.
      */
-    private void processClientActivity(SelectionKey key) {
+    private void processClientActivity(SelectionKey key, boolean resume) {
         Client client = (Client)key.attachment();
 
         try {
-            if (!key.isReadable() || !key.isValid()) {
-                Log.d("ddms", "Invalid key from " + client + ". Dropping client.");
-                dropClient(client, true /* notify */);
-                return;
-            }
+            if (resume) {
+                // the packets left in the buffer can be forwarded again.
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            } else {
+                if (!key.isValid() || !(key.isReadable() || key.isWritable())) {
+                    Log.d("ddms", "Invalid key from " + client + ". Dropping client.");
+                    dropClient(client, true /* notify */);
+                    return;
+                }
 
-            client.read();
+                if (key.isWritable()) {
+                    client.writePending(key);
+                    if (!key.isReadable()) {
+                        return;
+                    }
+                }
+                client.read();
+            }
 
             /*
              * See if we have a full packet in the buffer. It's possible we have
@@ -307,6 +383,13 @@ final class MonitorThread extends Thread {
              */
             JdwpPacket packet = client.getJdwpPacket();
             while (packet != null) {
+                if (client.isIncomingPaused()) {
+                    // the debugger is not keeping up: leave the packets in the buffer and stop
+                    // reading the client, without blocking the other clients of the shard,
+                    // until resumeClient().
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    return;
+                }
                 packet.log("Client: received jdwp packet");
                 client.incoming(packet, client.getDebugger());
 
@@ -338,37 +421,84 @@ final class MonitorThread extends Thread {
         }
     }
 
+    /**
+     * Goes back to reading a client whose packets were left in its buffer while its JDWP pipeline
+     * was full.
+     */
+    void resumeClient(final Client client) {
+        final Shard shard = mClients.get(client);
+        if (shard == null) {
+            return;
+        }
+        shard.execute(new Runnable() {
+            @Override
+            public void run() {
+                SelectionKey key = client.keyFor(shard.mSelector);
+                if (key != null && key.isValid()) {
+                    processClientActivity(key, true);
+                }
+            }
+        });
+    }
+
+    /**
+     * Asks the selector of a client to write the data its channel didn't take, once it is
+     * writable.
+     */
+    void writeClientLater(final Client client) {
+        final Shard shard = mClients.get(client);
+        if (shard == null) {
+            return;
+        }
+        shard.execute(new Runnable() {
+            @Override
+            public void run() {
+                SelectionKey key = client.keyFor(shard.mSelector);
+                if (key != null && key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+        });
+    }
+
     /**
      * Drops a client from the monitor.
      * <p>This will lock the {@link Client} list of the {@link Device} running <var>client</var>.
      * @param client
      * @param notify
      */
-    synchronized void dropClient(Client client, boolean notify) {
+    void dropClient(final Client client, boolean notify) {
         if (sInstance == null) {
             return;
         }
 
-        synchronized (mClientList) {
-            if (!mClientList.remove(client)) {
-                return;
-            }
+        Shard shard = mClients.remove(client);
+        if (shard == null) {
+            return;
         }
         client.close(notify);
-        mDdmJdwpExtension.broadcast(DdmJdwpExtension.Event.CLIENT_DISCONNECTED, client);
+
+        // go through the client's dispatch queue so that handlers see the disconnection after
+        // any chunk still pending for this client.
+        dispatch(client, new Runnable() {
+            @Override
+            public void run() {
+                mDdmJdwpExtension.broadcast(DdmJdwpExtension.Event.CLIENT_DISCONNECTED, client);
+            }
+        });
 
         /*
          * http://forum.java.sun.com/thread.jspa?threadID=726715&start=0
          * http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=5073504
          */
-        wakeup();
+        shard.wakeup();
     }
 
     /**
      * Drops the provided list of clients from the monitor. This will lock the {@link Client}
      * list of the {@link Device} running each of the clients.
      */
-    synchronized void dropClients(Collection<? extends Client> clients, boolean notify) {
+    void dropClients(Collection<? extends Client> clients, boolean notify) {
         for (Client c : clients) {
             dropClient(c, notify);
         }
@@ -389,7 +519,7 @@ final class MonitorThread extends Thread {
                     Log.w("ddms", "debugger accept() failed");
                     ioe.printStackTrace();
                 }
-            } else if (key.isReadable()) {
+            } else if (key.isReadable() || key.isWritable()) {
                 processDebuggerData(key);
             } else {
                 Log.d("ddm-debugger", "key in unknown state");
@@ -403,37 +533,37 @@ final class MonitorThread extends Thread {
      * Accept a new connection from a debugger. If successful, register it with
      * the Selector.
      */
-    private void acceptNewDebugger(Debugger dbg, ServerSocketChannel acceptChan)
+    private void acceptNewDebugger(final Debugger dbg, ServerSocketChannel acceptChan)
             throws IOException {
 
-        synchronized (mClientList) {
-            SocketChannel chan;
+        final SocketChannel chan;
 
-            if (acceptChan == null)
-                chan = dbg.accept();
-            else
-                chan = dbg.accept(acceptChan);
+        if (acceptChan == null)
+            chan = dbg.accept();
+        else
+            chan = dbg.accept(acceptChan);
 
-            if (chan != null) {
-                chan.socket().setTcpNoDelay(true);
+        if (chan != null) {
+            chan.socket().setTcpNoDelay(true);
 
-                wakeup();
-
-                try {
-                    chan.register(mSelector, SelectionKey.OP_READ, dbg);
-                } catch (IOException ioe) {
-                    // failed, drop the connection
-                    dbg.closeData();
-                    throw ioe;
-                } catch (RuntimeException re) {
-                    // failed, drop the connection
-                    dbg.closeData();
-                    throw re;
+            // the data channel goes to the same selector as the client, which may not be the one
+            // that accepted the connection (e.g. for the "debug selected" port).
+            final Shard shard = shardFor(dbg.getClient());
+            shard.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        chan.register(shard.mSelector, dbg.getInterestOps(), dbg);
+                    } catch (IOException | RuntimeException e) {
+                        // failed, drop the connection
+                        Log.w("ddms", "Failed to register debugger " + dbg);
+                        dbg.closeData();
+                    }
                 }
-            } else {
-                Log.w("ddms", "ignoring duplicate debugger");
-                // new connection already closed
-            }
+            });
+        } else {
+            Log.w("ddms", "ignoring duplicate debugger");
+            // new connection already closed
         }
     }
 
@@ -443,14 +573,118 @@ final class MonitorThread extends Thread {
     private void processDebuggerData(SelectionKey key) {
         Debugger dbg = (Debugger)key.attachment();
 
-        dbg.processChannelData();
+        dbg.processChannelData(key, false);
+    }
+
+    /**
+     * Goes back to reading a debugger whose packets were left in its buffer while its JDWP
+     * pipeline was full.
+     */
+    void resumeDebugger(final Debugger dbg) {
+        final Shard shard = shardFor(dbg.getClient());
+        shard.execute(new Runnable() {
+            @Override
+            public void run() {
+                SelectionKey key = dbg.keyFor(shard.mSelector);
+                if (key == null || !key.isValid()) {
+                    return;
+                }
+                try {
+                    dbg.processChannelData(key, true);
+                } catch (CancelledKeyException cke) {
+                    // the connection was closed in the meantime.
+                }
+            }
+        });
+    }
+
+    /**
+     * Asks the selector of a debugger to write the data its channel didn't take, once it is
+     * writable.
+     */
+    void writeDebuggerLater(final Debugger dbg) {
+        final Shard shard = shardFor(dbg.getClient());
+        shard.execute(new Runnable() {
+            @Override
+            public void run() {
+                SelectionKey key = dbg.keyFor(shard.mSelector);
+                if (key == null || !key.isValid()) {
+                    return;
+                }
+                try {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                } catch (CancelledKeyException cke) {
+                    // the connection was closed in the meantime.
+                }
+            }
+        });
     }
 
     /*
-     * Tell the thread that something has changed.
+     * Tell the thread owning the "debug selected" port that something has changed.
      */
     private void wakeup() {
-        mSelector.wakeup();
+        mShards[0].wakeup();
+    }
+
+    /**
+     * Returns the selector shard serving the given client. All the clients of a device share
+     * the same shard.
+     */
+    private Shard shardFor(Client client) {
+        if (mShards.length == 1) {
+            return mShards[0];
+        }
+        Shard shard = mClients.get(client);
+        if (shard != null) {
+            return shard;
+        }
+        String serial = client.getDeviceImpl().getSerialNumber();
+        return mShards[(serial.hashCode() & Integer.MAX_VALUE) % mShards.length];
+    }
+
+    /**
+     * Runs the given task on the chunk dispatch thread for the client. Tasks for a given client
+     * are run in order.
+     */
+    void dispatch(Client client, Runnable task) {
+        ExecutorService[] dispatchers = mDispatchers;
+        if (dispatchers == null) {
+            task.run();
+            return;
+        }
+        int index = (System.identityHashCode(client) & Integer.MAX_VALUE) % dispatchers.length;
+        try {
+            dispatchers[index].execute(task);
+        } catch (RejectedExecutionException e) {
+            // shutting down.
+            Log.d("ddms", "Dropping chunk dispatch for " + client);
+        }
+    }
+
+    /**
+     * Hands a chunk packet to its handler, on the client's dispatch thread.
+     * <p>The packet is only valid until the selector thread consumes it, so it is copied when the
+     * handler runs asynchronously.
+     */
+    void dispatchPacket(final ChunkHandler handler, final Client client, JdwpPacket packet) {
+        if (mDispatchers == null) {
+            handler.handlePacket(client, packet);
+            return;
+        }
+        final JdwpPacket copy = packet.copy();
+        dispatch(client, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handler.handlePacket(client, copy);
+                } catch (Exception e) {
+                    // same as on the selector thread, don't let a handler kill the dispatcher.
+                    Log.e("ddms", "Exception while handling chunk for " + client);
+                    Log.e("ddms", e);
+                }
+            }
+        });
     }
 
     /**
@@ -461,15 +695,27 @@ final class MonitorThread extends Thread {
         wakeup();
         Log.d("ddms", "Waiting for Monitor thread");
         try {
+            for (Shard shard : mShards) {
+                shard.wakeup();
+            }
             this.join();
+
+            if (mDispatchers != null) {
+                for (ExecutorService dispatcher : mDispatchers) {
+                    dispatcher.shutdown();
+                }
+                for (ExecutorService dispatcher : mDispatchers) {
+                    dispatcher.awaitTermination(DdmPreferences.getTimeOut(), TimeUnit.MILLISECONDS);
+                }
+            }
+
             // since we're quitting, lets drop all the client and disconnect
             // the DebugSelectedPort
-            synchronized (mClientList) {
-                for (Client c : mClientList) {
+            for (Client c : mClients.keySet()) {
+                if (mClients.remove(c) != null) {
                     c.close(false /* notify */);
                     mDdmJdwpExtension.broadcast(DdmJdwpExtension.Event.CLIENT_DISCONNECTED, c);
                 }
-                mClientList.clear();
             }
 
             if (mDebugSelectedChan != null) {
@@ -477,7 +723,11 @@ final class MonitorThread extends Thread {
                 mDebugSelectedChan.socket().close();
                 mDebugSelectedChan = null;
             }
-            mSelector.close();
+            for (Shard shard : mShards) {
+                if (shard.mSelector != null) {
+                    shard.mSelector.close();
+                }
+            }
         } catch (InterruptedException ie) {
             ie.printStackTrace();
         } catch (IOException e) {
@@ -494,42 +744,43 @@ final class MonitorThread extends Thread {
      * should only be called from one thread (the VMWatcherThread) to avoid a
      * race between "alreadyOpen" and Client creation.
      */
-    synchronized void addClient(Client client) {
+    void addClient(final Client client) {
         if (sInstance == null) {
             return;
         }
 
         Log.d("ddms", "Adding new client " + client);
 
-        synchronized (mClientList) {
-            mClientList.add(client);
-
-            for (JdwpExtension extension : mJdwpExtensions) {
-                extension.intercept(client);
-            }
+        for (JdwpExtension extension : mJdwpExtensions) {
+            extension.intercept(client);
+        }
 
-            /*
-             * Register the Client's socket channel with the selector. We attach
-             * the Client to the SelectionKey. If you try to register a new
-             * channel with the Selector while it is waiting for I/O, you will
-             * block. The solution is to call wakeup() and then hold a lock to
-             * ensure that the registration happens before the Selector goes
-             * back to sleep.
-             */
-            try {
-                wakeup();
+        final Shard shard = shardFor(client);
+        mClients.put(client, shard);
 
-                client.register(mSelector);
+        /*
+         * Register the Client's socket channel with the selector. We attach
+         * the Client to the SelectionKey. If you try to register a new
+         * channel with the Selector while it is waiting for I/O, you will
+         * block, so the registration is queued and run by the shard's own
+         * thread before it goes back to sleep.
+         */
+        shard.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    client.register(shard.mSelector);
 
-                Debugger dbg = client.getDebugger();
-                if (dbg != null) {
-                    dbg.registerListener(mSelector);
+                    Debugger dbg = client.getDebugger();
+                    if (dbg != null) {
+                        dbg.registerListener(shard.mSelector);
+                    }
+                } catch (IOException ioe) {
+                    // not really expecting this to happen
+                    ioe.printStackTrace();
                 }
-            } catch (IOException ioe) {
-                // not really expecting this to happen
-                ioe.printStackTrace();
             }
-        }
+        });
     }
 
     /**
@@ -558,7 +809,7 @@ final class MonitorThread extends Thread {
                 mSelectedClient.update(Client.CHANGE_PORT);
             }
 
-            mDebugSelectedChan.register(mSelector, SelectionKey.OP_ACCEPT, this);
+            mDebugSelectedChan.register(mShards[0].mSelector, SelectionKey.OP_ACCEPT, this);
 
             return true;
         } catch (java.net.BindException e) {
@@ -621,4 +872,49 @@ final class MonitorThread extends Thread {
     public DdmJdwpExtension getDdmExtension() {
         return mDdmJdwpExtension;
     }
+
+    /**
+     * A selector and the thread running its select loop.
+     */
+    private static final class Shard {
+        final int mIndex;
+
+        volatile Selector mSelector;
+
+        Thread mThread;
+
+        // Work that must run on this shard's thread, e.g. channel registrations.
+        private final Queue<Runnable> mPendingTasks = new ConcurrentLinkedQueue<Runnable>();
+
+        Shard(int index) {
+            mIndex = index;
+        }
+
+        /**
+         * Runs the task on this shard's thread: right away if called from it, or before the next
+         * select otherwise.
+         */
+        void execute(Runnable task) {
+            if (Thread.currentThread() == mThread) {
+                task.run();
+            } else {
+                mPendingTasks.add(task);
+                wakeup();
+            }
+        }
+
+        void runPendingTasks() {
+            Runnable task;
+            while ((task = mPendingTasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        void wakeup() {
+            Selector selector = mSelector;
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+    }
 }
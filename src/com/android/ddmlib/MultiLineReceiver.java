@@ -16,6 +16,7 @@
 
 package com.android.ddmlib;
 
+import com.android.ddmlib.utils.LineScanner;
 import com.google.common.base.Charsets;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -24,20 +25,46 @@ import java.util.Collection;
  * Base implementation of {@link IShellOutputReceiver}, that takes the raw data coming from the
  * socket, and convert it into {@link String} objects.
  *
- * <p>Additionally, it splits the string by lines.
+ * <p>Additionally, it splits the string by lines. Lines are split on the raw bytes, so only
+ * complete lines are decoded.
  *
  * <p>Classes extending it must implement {@link #processNewLines(String[])} which receives new
  * parsed lines as they become available.
+ *
+ * @see StreamingLineReceiver
  */
 public abstract class MultiLineReceiver implements IShellOutputReceiver {
 
     private boolean mTrimLines = true;
 
-    /** unfinished message line, stored for next packet */
-    private String mUnfinishedLine = null;
+    /** splits the packets in lines, and stores the unfinished line for next packet */
+    private final LineScanner mScanner = new LineScanner();
 
     private final Collection<String> mArray = new ArrayList<>();
 
+    /** whether some output was received, in which case {@link #flush()} always ends with a line */
+    private boolean mHasOutput = false;
+
+    private final LineScanner.LineHandler mLineHandler = new LineScanner.LineHandler() {
+        @Override
+        public void onLine(byte[] data, int offset, int length) {
+            int start = offset;
+            int end = offset + length;
+            if (mTrimLines) {
+                start = LineScanner.trimStart(data, start, end);
+                end = LineScanner.trimEnd(data, start, end);
+            }
+            processNewLine(data, start, end - start);
+        }
+    };
+
+    private final LineScanner.LineHandler mUnfinishedLineHandler = new LineScanner.LineHandler() {
+        @Override
+        public void onLine(byte[] data, int offset, int length) {
+            processNewLine(data, offset, length);
+        }
+    };
+
     /**
      * Set the trim lines flag.
      *
@@ -54,54 +81,24 @@ public abstract class MultiLineReceiver implements IShellOutputReceiver {
     @Override
     public final void addOutput(byte[] data, int offset, int length) {
         if (!isCancelled()) {
-            String s = new String(data, offset, length, Charsets.UTF_8);
+            // split the lines, decoding only the complete ones. An unfinished line
+            // is kept by the scanner to be processed with the next packet.
+            mHasOutput = true;
+            mArray.clear();
+            mScanner.scan(data, offset, length, mLineHandler);
 
-            // ok we've got a string
-            // if we had an unfinished line we add it.
-            if (mUnfinishedLine != null) {
-                s = mUnfinishedLine + s;
-                mUnfinishedLine = null;
-            }
+            processPendingLines();
+        }
+    }
 
-            // now we split the lines
-            mArray.clear();
-            int start = 0;
-            do {
-                int index = s.indexOf('\n', start); // $NON-NLS-1$
-
-                // if \n was not found, this is an unfinished line
-                // and we store it to be processed for the next packet
-                if (index == -1) {
-                    mUnfinishedLine = s.substring(start);
-                    break;
-                }
-
-                // we found a \n, in older devices, this is preceded by a \r
-                int newlineLength = 1;
-                if (index > 0 && s.charAt(index - 1) == '\r') {
-                    index--;
-                    newlineLength = 2;
-                }
-
-                // extract the line
-                String line = s.substring(start, index);
-                if (mTrimLines) {
-                    line = line.trim();
-                }
-                mArray.add(line);
-
-                // move start to after the \r\n we found
-                start = index + newlineLength;
-            } while (true);
-
-            if (!mArray.isEmpty()) {
-                // at this point we've split all the lines.
-                // make the array
-                String[] lines = mArray.toArray(new String[mArray.size()]);
-
-                // send it for final processing
-                processNewLines(lines);
-            }
+    private void processPendingLines() {
+        if (!mArray.isEmpty()) {
+            // at this point we've split all the lines.
+            // make the array
+            String[] lines = mArray.toArray(new String[mArray.size()]);
+
+            // send it for final processing
+            processNewLines(lines);
         }
     }
 
@@ -110,8 +107,16 @@ public abstract class MultiLineReceiver implements IShellOutputReceiver {
      */
     @Override
     public void flush() {
-        if (mUnfinishedLine != null) {
-            processNewLines(new String[] {mUnfinishedLine});
+        if (mHasOutput) {
+            // the unfinished line is always sent, untrimmed, even when it is empty because the
+            // output ended with a newline: receivers may rely on this last line.
+            mArray.clear();
+            if (mScanner.hasUnfinishedLine()) {
+                mScanner.flush(mUnfinishedLineHandler);
+            } else {
+                processNewLine(new byte[0], 0, 0);
+            }
+            processPendingLines();
         }
 
         done();
@@ -125,6 +130,23 @@ public abstract class MultiLineReceiver implements IShellOutputReceiver {
         // do nothing.
     }
 
+    /**
+     * Called for each complete line, still encoded in UTF-8, with the line separator removed
+     * and trimmed if requested by {@link #setTrimLine(boolean)}. The bytes are only valid
+     * during the call.
+     *
+     * <p>The default implementation decodes the line and queues it for
+     * {@link #processNewLines(String[])}. Receivers able to work on the raw bytes can override it
+     * to skip creating the {@link String}s.
+     *
+     * @param data the buffer holding the line.
+     * @param offset the offset of the line in the buffer.
+     * @param length the length of the line.
+     */
+    protected void processNewLine(byte[] data, int offset, int length) {
+        mArray.add(new String(data, offset, length, Charsets.UTF_8));
+    }
+
     /**
      * Called when new lines are being received by the remote process.
      *
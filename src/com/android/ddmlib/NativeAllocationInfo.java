@@ -289,7 +289,7 @@ public class NativeAllocationInfo {
         return null;
     }
 
-    private boolean isRelevantLibrary(String libPath) {
+    static boolean isRelevantLibrary(String libPath) {
         for (String l : FILTERED_LIBRARIES) {
             if (libPath.endsWith(l)) {
                 return false;
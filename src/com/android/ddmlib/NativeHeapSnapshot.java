@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The native allocations of a client, as decoded from a NHGT reply, stored as parallel arrays of
+ * primitives rather than as {@link NativeAllocationInfo}s.
+ * <p>Backtraces are deduplicated: allocations with the same stack call addresses share a
+ * backtrace id. The mapped libraries are sorted by address, to find the library of an address
+ * with a binary search.
+ */
+public final class NativeHeapSnapshot {
+
+    private static final int FLAG_ZYGOTE_CHILD = 1 << 31;
+
+    private int mCount;
+    private int[] mSizes;
+    private int[] mAllocationCounts;
+    private int[] mBacktraceIds;
+
+    private int mBacktraceCount;
+    private int[] mBacktraceStarts = new int[257];
+    private int[] mBacktraceHashes = new int[256];
+    private int[] mBacktraceTable = new int[512];
+    private long[] mAddresses = new long[4096];
+    private int mAddressCount;
+
+    private final NativeLibraryMapInfo[] mLibraries;
+    private final long[] mLibraryStarts;
+    private final long[] mLibraryEnds;
+    private final boolean[] mRelevantLibraries;
+
+    /** The library of each backtrace, computed on first use. */
+    private int[] mBacktraceLibraries;
+
+    NativeHeapSnapshot(int capacity, @NonNull List<NativeLibraryMapInfo> libraries) {
+        mSizes = new int[capacity];
+        mAllocationCounts = new int[capacity];
+        mBacktraceIds = new int[capacity];
+
+        mLibraries = libraries.toArray(new NativeLibraryMapInfo[libraries.size()]);
+        Arrays.sort(mLibraries, new Comparator<NativeLibraryMapInfo>() {
+            @Override
+            public int compare(NativeLibraryMapInfo a, NativeLibraryMapInfo b) {
+                return Long.compare(a.getStartAddress(), b.getStartAddress());
+            }
+        });
+        mLibraryStarts = new long[mLibraries.length];
+        mLibraryEnds = new long[mLibraries.length];
+        mRelevantLibraries = new boolean[mLibraries.length];
+        for (int i = 0; i < mLibraries.length; i++) {
+            mLibraryStarts[i] = mLibraries[i].getStartAddress();
+            mLibraryEnds[i] = mLibraries[i].getEndAddress();
+            mRelevantLibraries[i] =
+                    NativeAllocationInfo.isRelevantLibrary(mLibraries[i].getLibraryName());
+        }
+    }
+
+    /**
+     * Adds an allocation.
+     *
+     * @param size the size, with the zygote child flag in the top bit.
+     * @param allocations the allocation count.
+     * @param addresses the stack call addresses, whose first <var>length</var> are used.
+     */
+    void add(int size, int allocations, long[] addresses, int length) {
+        if (mCount == mSizes.length) {
+            int capacity = Math.max(16, mCount * 2);
+            mSizes = Arrays.copyOf(mSizes, capacity);
+            mAllocationCounts = Arrays.copyOf(mAllocationCounts, capacity);
+            mBacktraceIds = Arrays.copyOf(mBacktraceIds, capacity);
+        }
+        mSizes[mCount] = size;
+        mAllocationCounts[mCount] = allocations;
+        mBacktraceIds[mCount] = internBacktrace(addresses, length);
+        mCount++;
+    }
+
+    private int internBacktrace(long[] addresses, int length) {
+        int hash = 1;
+        for (int i = 0; i < length; i++) {
+            long address = addresses[i];
+            hash = 31 * hash + (int) (address ^ (address >>> 32));
+        }
+        int mask = mBacktraceTable.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (true) {
+            int id = mBacktraceTable[slot] - 1;
+            if (id < 0) {
+                break;
+            }
+            if (mBacktraceHashes[id] == hash && backtraceEquals(id, addresses, length)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int id = mBacktraceCount++;
+        if (id == mBacktraceHashes.length) {
+            mBacktraceHashes = Arrays.copyOf(mBacktraceHashes, id * 2);
+            mBacktraceStarts = Arrays.copyOf(mBacktraceStarts, id * 2 + 1);
+        }
+        if (mAddressCount + length > mAddresses.length) {
+            mAddresses = Arrays.copyOf(mAddresses,
+                    Math.max(mAddressCount + length, mAddresses.length * 2));
+        }
+        System.arraycopy(addresses, 0, mAddresses, mAddressCount, length);
+        mAddressCount += length;
+        mBacktraceStarts[id + 1] = mAddressCount;
+        mBacktraceHashes[id] = hash;
+        mBacktraceTable[slot] = id + 1;
+        if (mBacktraceCount * 2 > mBacktraceTable.length) {
+            rehashBacktraces();
+        }
+        return id;
+    }
+
+    private boolean backtraceEquals(int id, long[] addresses, int length) {
+        int start = mBacktraceStarts[id];
+        if (mBacktraceStarts[id + 1] - start != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (mAddresses[start + i] != addresses[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehashBacktraces() {
+        int[] table = new int[mBacktraceTable.length * 2];
+        int mask = table.length - 1;
+        for (int id = 0; id < mBacktraceCount; id++) {
+            int hash = mBacktraceHashes[id];
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+        mBacktraceTable = table;
+    }
+
+    /**
+     * Returns the number of allocation records.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the size of the allocations of a record.
+     */
+    public int getSize(int index) {
+        return mSizes[index] & ~FLAG_ZYGOTE_CHILD;
+    }
+
+    /**
+     * Returns whether the allocations of a record happened in a child of the zygote process.
+     */
+    public boolean isZygoteChild(int index) {
+        return (mSizes[index] & FLAG_ZYGOTE_CHILD) != 0;
+    }
+
+    /**
+     * Returns the number of allocations of a record.
+     */
+    public int getAllocationCount(int index) {
+        return mAllocationCounts[index];
+    }
+
+    /**
+     * Returns the backtrace id of a record.
+     */
+    public int getBacktraceId(int index) {
+        return mBacktraceIds[index];
+    }
+
+    /**
+     * Returns the number of distinct backtraces.
+     */
+    public int getBacktraceCount() {
+        return mBacktraceCount;
+    }
+
+    public int getBacktraceLength(int backtraceId) {
+        return mBacktraceStarts[backtraceId + 1] - mBacktraceStarts[backtraceId];
+    }
+
+    /**
+     * Returns a stack call address of a backtrace, from the innermost call.
+     */
+    public long getAddress(int backtraceId, int frame) {
+        return mAddresses[mBacktraceStarts[backtraceId] + frame];
+    }
+
+    @NonNull
+    public long[] getBacktrace(int backtraceId) {
+        return Arrays.copyOfRange(mAddresses, mBacktraceStarts[backtraceId],
+                mBacktraceStarts[backtraceId + 1]);
+    }
+
+    /**
+     * Returns the total size of the allocations, in bytes.
+     */
+    public long getTotalSize() {
+        long total = 0;
+        for (int i = 0; i < mCount; i++) {
+            total += (long) (mSizes[i] & ~FLAG_ZYGOTE_CHILD) * mAllocationCounts[i];
+        }
+        return total;
+    }
+
+    /**
+     * Returns the mapped libraries, sorted by start address.
+     */
+    @NonNull
+    public List<NativeLibraryMapInfo> getLibraries() {
+        return Collections.unmodifiableList(Arrays.asList(mLibraries));
+    }
+
+    public int getLibraryCount() {
+        return mLibraries.length;
+    }
+
+    /**
+     * Returns the index of the library mapped at an address, in {@link #getLibraries()}, or -1.
+     */
+    public int findLibrary(long address) {
+        int low = 0;
+        int high = mLibraryStarts.length - 1;
+        // the last library starting at or before the address.
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (mLibraryStarts[mid] <= address) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high >= 0 && address <= mLibraryEnds[high] ? high : -1;
+    }
+
+    /**
+     * Returns the library a backtrace is attributed to: the library of its innermost address not
+     * in the allocator libraries, or else of its innermost mapped address. Returns -1 if no
+     * library maps any of its addresses.
+     */
+    public int getBacktraceLibrary(int backtraceId) {
+        return getBacktraceLibraries()[backtraceId];
+    }
+
+    private synchronized int[] getBacktraceLibraries() {
+        if (mBacktraceLibraries == null) {
+            int[] libraries = new int[mBacktraceCount];
+            for (int id = 0; id < mBacktraceCount; id++) {
+                int library = -1;
+                int first = -1;
+                for (int i = mBacktraceStarts[id]; i < mBacktraceStarts[id + 1]; i++) {
+                    library = findLibrary(mAddresses[i]);
+                    if (first == -1) {
+                        first = library;
+                    }
+                    if (library >= 0 && mRelevantLibraries[library]) {
+                        break;
+                    }
+                    library = -1;
+                }
+                libraries[id] = library >= 0 ? library : first;
+            }
+            mBacktraceLibraries = libraries;
+        }
+        return mBacktraceLibraries;
+    }
+
+    /**
+     * Adds up the allocations by the library of their backtrace.
+     *
+     * @param bytes if not null, receives the total size of the allocations of library
+     *     <var>i</var> at index <var>i</var>, and of those without library at index
+     *     {@link #getLibraryCount()}.
+     * @param counts if not null, receives the number of allocations, at the same indices.
+     * @see #getBacktraceLibrary(int)
+     */
+    public void groupByLibrary(long[] bytes, long[] counts) {
+        int size = mLibraries.length + 1;
+        if (bytes != null) {
+            Arrays.fill(bytes, 0, size, 0);
+        }
+        if (counts != null) {
+            Arrays.fill(counts, 0, size, 0);
+        }
+        int[] libraries = getBacktraceLibraries();
+        int unknown = mLibraries.length;
+        for (int i = 0; i < mCount; i++) {
+            int library = libraries[mBacktraceIds[i]];
+            if (library < 0) {
+                library = unknown;
+            }
+            if (bytes != null) {
+                bytes[library] += (long) (mSizes[i] & ~FLAG_ZYGOTE_CHILD) * mAllocationCounts[i];
+            }
+            if (counts != null) {
+                counts[library] += mAllocationCounts[i];
+            }
+        }
+    }
+
+    /**
+     * Creates the {@link NativeAllocationInfo}s of the records.
+     */
+    @NonNull
+    List<NativeAllocationInfo> toAllocationInfos() {
+        List<NativeAllocationInfo> infos = new ArrayList<NativeAllocationInfo>(mCount);
+        for (int i = 0; i < mCount; i++) {
+            NativeAllocationInfo info = new NativeAllocationInfo(mSizes[i], mAllocationCounts[i]);
+            int id = mBacktraceIds[i];
+            for (int j = mBacktraceStarts[id]; j < mBacktraceStarts[id + 1]; j++) {
+                info.addStackCallAddress(mAddresses[j]);
+            }
+            infos.add(info);
+        }
+        return infos;
+    }
+}
@@ -16,17 +16,32 @@
 package com.android.ddmlib;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Fetches and caches 'getprop' values from device.
+ * <p>Queries run on a pool of threads shared by all the devices, sized by
+ * {@link DdmPreferences#getDeviceQueryThreadCount()}. Requests for mutable properties made while
+ * a query is pending, or within {@link DdmPreferences#getPropertyCoalescingWindow()} of the
+ * first one, share the same query, and their values can be reused for
+ * {@link DdmPreferences#getMutablePropertyTtl(String)}. When a {@link BatteryFetcher} is
+ * attached, the battery level is read by the same shell command.
  */
 class PropertyFetcher {
     /** the amount of time to wait between unsuccessful prop fetch attempts */
@@ -35,9 +50,12 @@ class PropertyFetcher {
     private static final int GETPROP_TIMEOUT_SEC = 2;
     private static final int EXPECTED_PROP_COUNT = 150;
 
-    private enum CacheState {
-        UNPOPULATED, FETCHING, POPULATED
-    }
+    /** Separates the properties from the battery level in the output of the combined query. */
+    private static final String BATTERY_SEPARATOR = "--ddms-battery--"; //$NON-NLS-1$
+    private static final String GETPROP_AND_BATTERY_COMMAND = GETPROP_COMMAND
+            + "; echo " + BATTERY_SEPARATOR + "; " + BatteryFetcher.SYSFS_BATTERY_COMMAND; //$NON-NLS-1$
+
+    private static ScheduledExecutorService sQueryExecutor;
 
     /**
      * Shell output parser for a getprop command
@@ -82,10 +100,58 @@ class PropertyFetcher {
         }
     }
 
-    private final Map<String, String> mProperties = Maps.newHashMapWithExpectedSize(
-            EXPECTED_PROP_COUNT);
+    /**
+     * Shell output parser for a getprop command followed by the battery level from sysfs.
+     */
+    @VisibleForTesting
+    static class GetPropAndBatteryReceiver extends MultiLineReceiver {
+        private final GetPropReceiver mPropReceiver = new GetPropReceiver();
+        private final BatteryFetcher.SysFsBatteryLevelReceiver mBatteryReceiver =
+                new BatteryFetcher.SysFsBatteryLevelReceiver();
+        private boolean mInBattery;
+
+        @Override
+        public void processNewLines(String[] lines) {
+            List<String> propLines = new ArrayList<String>(lines.length);
+            List<String> batteryLines = new ArrayList<String>();
+            for (String line : lines) {
+                if (!mInBattery && line.equals(BATTERY_SEPARATOR)) {
+                    mInBattery = true;
+                } else if (mInBattery) {
+                    batteryLines.add(line);
+                } else {
+                    propLines.add(line);
+                }
+            }
+            mPropReceiver.processNewLines(propLines.toArray(new String[propLines.size()]));
+            mBatteryReceiver.processNewLines(batteryLines.toArray(new String[batteryLines.size()]));
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        Map<String, String> getCollectedProperties() {
+            return mPropReceiver.getCollectedProperties();
+        }
+
+        @Nullable
+        Integer getBatteryLevel() {
+            return mBatteryReceiver.getBatteryLevel();
+        }
+    }
+
+    private final Map<String, String> mProperties =
+            new ConcurrentHashMap<String, String>(EXPECTED_PROP_COUNT);
     private final IDevice mDevice;
-    private CacheState mCacheState = CacheState.UNPOPULATED;
+    private BatteryFetcher mBatteryFetcher;
+    private volatile boolean mPopulated;
+    /** Whether a query is scheduled or running. */
+    private boolean mQueryPending;
+    /** The properties read by the last successful query, and when. */
+    private Map<String, String> mLastProperties = Collections.emptyMap();
+    private long mLastQueryTime;
     private final Map<String, SettableFuture<String>> mPendingRequests =
             Maps.newHashMapWithExpectedSize(4);
 
@@ -93,10 +159,36 @@ class PropertyFetcher {
         mDevice = device;
     }
 
+    /**
+     * Returns the pool of threads running the property and battery queries of all the devices.
+     */
+    static synchronized ScheduledExecutorService getQueryExecutor() {
+        if (sQueryExecutor == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+                    DdmPreferences.getDeviceQueryThreadCount(),
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("query-device-%d")
+                            .setDaemon(true)
+                            .build());
+            executor.setKeepAliveTime(30, TimeUnit.SECONDS);
+            executor.allowCoreThreadTimeOut(true);
+            sQueryExecutor = executor;
+        }
+        return sQueryExecutor;
+    }
+
+    /**
+     * Attaches the battery fetcher of the device, which then receives the battery level read
+     * along the properties.
+     */
+    synchronized void setBatteryFetcher(@NonNull BatteryFetcher batteryFetcher) {
+        mBatteryFetcher = batteryFetcher;
+    }
+
     /**
      * Returns the full list of cached properties.
      */
-    public synchronized Map<String, String> getProperties() {
+    public Map<String, String> getProperties() {
         return mProperties;
     }
 
@@ -117,22 +209,37 @@ class PropertyFetcher {
      * @return a {@link Future} that can be used to retrieve the prop value
      */
     @NonNull
-    public synchronized Future<String> getProperty(@NonNull String name) {
-        SettableFuture<String> result;
-        if (mCacheState.equals(CacheState.FETCHING)) {
-            result = addPendingRequest(name);
-        } else if (mDevice.isOnline() && mCacheState.equals(CacheState.UNPOPULATED)
-                || !isImmutableProperty(name)) {
-            // cache is empty, or this is a volatile prop that requires a query
-            result = addPendingRequest(name);
-            mCacheState = CacheState.FETCHING;
-            initiatePropertiesQuery();
-        } else {
-            result = SettableFuture.create();
+    public Future<String> getProperty(@NonNull String name) {
+        boolean immutable = isImmutableProperty(name);
+        if (immutable && mPopulated) {
             // cache is populated and this is a ro prop
-            result.set(mProperties.get(name));
+            return Futures.immediateFuture(mProperties.get(name));
+        }
+        synchronized (this) {
+            if (!immutable) {
+                if (mPopulated && isFresh(name)) {
+                    return Futures.immediateFuture(mLastProperties.get(name));
+                }
+            } else if (mPopulated || !mDevice.isOnline() && !mQueryPending) {
+                return Futures.immediateFuture(mProperties.get(name));
+            }
+            // cache is empty, or this is a volatile prop that requires a query
+            SettableFuture<String> result = addPendingRequest(name);
+            scheduleQuery();
+            return result;
         }
-        return result;
+    }
+
+    /**
+     * Requests a query, to read the battery level along the properties.
+     */
+    synchronized void requestBatteryLevel() {
+        scheduleQuery();
+    }
+
+    private boolean isFresh(String name) {
+        int ttl = DdmPreferences.getMutablePropertyTtl(name);
+        return ttl > 0 && System.currentTimeMillis() - mLastQueryTime < ttl;
     }
 
     private SettableFuture<String> addPendingRequest(String name) {
@@ -144,28 +251,57 @@ class PropertyFetcher {
         return future;
     }
 
-    private void initiatePropertiesQuery() {
-        String threadName = String.format("query-prop-%s", mDevice.getSerialNumber());
-        Thread propThread = new Thread(threadName) {
+    /**
+     * Schedules a query unless one is already pending. Once the cache is populated, the query
+     * waits for the coalescing window, so that close requests share it.
+     */
+    private void scheduleQuery() {
+        if (mQueryPending) {
+            return;
+        }
+        mQueryPending = true;
+        long delay = mPopulated ? DdmPreferences.getPropertyCoalescingWindow() : 0;
+        final BatteryFetcher batteryFetcher = mBatteryFetcher;
+        getQueryExecutor().schedule(new Runnable() {
             @Override
             public void run() {
-                try {
-                    GetPropReceiver propReceiver = new GetPropReceiver();
-                    mDevice.executeShellCommand(GETPROP_COMMAND, propReceiver, GETPROP_TIMEOUT_SEC,
-                            TimeUnit.SECONDS);
-                    populateCache(propReceiver.getCollectedProperties());
-                } catch (Throwable e) {
-                    handleException(e);
-                }
+                queryProperties(batteryFetcher);
             }
-        };
-        propThread.setDaemon(true);
-        propThread.start();
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void queryProperties(@Nullable BatteryFetcher batteryFetcher) {
+        Integer batteryLevel;
+        try {
+            if (batteryFetcher != null) {
+                GetPropAndBatteryReceiver receiver = new GetPropAndBatteryReceiver();
+                mDevice.executeShellCommand(GETPROP_AND_BATTERY_COMMAND, receiver,
+                        GETPROP_TIMEOUT_SEC, TimeUnit.SECONDS);
+                populateCache(receiver.getCollectedProperties());
+                batteryLevel = receiver.getBatteryLevel();
+            } else {
+                GetPropReceiver propReceiver = new GetPropReceiver();
+                mDevice.executeShellCommand(GETPROP_COMMAND, propReceiver, GETPROP_TIMEOUT_SEC,
+                        TimeUnit.SECONDS);
+                populateCache(propReceiver.getCollectedProperties());
+                return;
+            }
+        } catch (Throwable e) {
+            handleException(e);
+            if (batteryFetcher != null) {
+                batteryFetcher.handleCombinedQueryFailure(e);
+            }
+            return;
+        }
+        batteryFetcher.handleCombinedQueryResult(batteryLevel);
     }
 
     private synchronized void populateCache(@NonNull Map<String, String> props) {
-        mCacheState = props.isEmpty() ? CacheState.UNPOPULATED : CacheState.POPULATED;
+        mQueryPending = false;
+        mPopulated = !props.isEmpty();
         if (!props.isEmpty()) {
+            mLastProperties = props;
+            mLastQueryTime = System.currentTimeMillis();
             if (sEnableCachingMutableProps) {
                 mProperties.putAll(props);
             } else {
@@ -187,7 +323,8 @@ class PropertyFetcher {
     }
 
     private synchronized void handleException(Throwable e) {
-        mCacheState = CacheState.UNPOPULATED;
+        mQueryPending = false;
+        mPopulated = false;
         Log.w("PropertyFetcher",
                 String.format("%s getting properties for device %s: %s",
                         e.getClass().getSimpleName(), mDevice.getSerialNumber(),
@@ -204,8 +341,8 @@ class PropertyFetcher {
      * @deprecated implementation detail
      */
     @Deprecated
-    public synchronized boolean arePropertiesSet() {
-        return CacheState.POPULATED.equals(mCacheState);
+    public boolean arePropertiesSet() {
+        return mPopulated;
     }
 
     private static boolean isImmutableProperty(@NonNull String propName) {
@@ -17,6 +17,9 @@
 package com.android.ddmlib;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 
 /**
  * Data representing an image taken from a device frame buffer.
@@ -44,6 +47,32 @@ public final class RawImage {
     public static final int COLOR_SPACE_SRGB = 1;
     public static final int COLOR_SPACE_DISPLAY_P3 = 2;
 
+    private static final int LAYOUT_RGB_565 = 0;
+    /** 32 bits, bytes in B, G, R, A order, which is the layout of the ARGB integer values. */
+    private static final int LAYOUT_BGRA_8888 = 1;
+    /** 32 bits, bytes in R, G, B, A order. */
+    private static final int LAYOUT_RGBA_8888 = 2;
+    /** 32 bits, any other layout. */
+    private static final int LAYOUT_GENERIC = 3;
+
+    /** Number of rows converted at once when rotating by a quarter turn. */
+    private static final int ROTATION_BAND_HEIGHT = 16;
+
+    /** 5 and 6 bits color values scaled to 8 bits, as in {@link #getARGB(int)}. */
+    private static final int[] RGB_565_RED = new int[32];
+    private static final int[] RGB_565_GREEN = new int[64];
+    private static final int[] RGB_565_BLUE = new int[32];
+
+    static {
+        for (int i = 0; i < 32; i++) {
+            RGB_565_RED[i] = (i * 255 / 31) << 16;
+            RGB_565_BLUE[i] = i * 255 / 31;
+        }
+        for (int i = 0; i < 64; i++) {
+            RGB_565_GREEN[i] = (i * 255 / 63) << 8;
+        }
+    }
+
     /**
      * Reads the header of a RawImage from a {@link ByteBuffer}.
      * <p>The way the data is sent over adb is defined in system/core/adb/framebuffer_service.c
@@ -209,6 +238,226 @@ public final class RawImage {
         return a << 24 | r << 16 | g << 8 | b;
     }
 
+    /**
+     * Returns the whole image as ARGB integer values, like {@link #getARGB(int)}, row by row.
+     */
+    public int[] getARGB() {
+        int[] argb = new int[width * height];
+        getARGB(0, 0, width, height, 0, argb, 0);
+        return argb;
+    }
+
+    /**
+     * Converts a region of the image to ARGB integer values, like {@link #getARGB(int)}, rotating
+     * it in the same pass.
+     * <p>The region is written row by row, after its rotation: it is <var>width</var> values wide
+     * when <var>quarterTurns</var> is even, and <var>height</var> values wide otherwise.
+     * @param x the left of the region.
+     * @param y the top of the region.
+     * @param width the width of the region.
+     * @param height the height of the region.
+     * @param quarterTurns the number of counter-clockwise quarter turns to rotate the region of,
+     *     like {@link #getRotated()} does once.
+     * @param dest the array to write to.
+     * @param offset the index in <var>dest</var> of the first value.
+     */
+    public void getARGB(int x, int y, int width, int height, int quarterTurns, int[] dest,
+            int offset) {
+        convert(this, ByteBuffer.wrap(data), x, y, width, height, quarterTurns, dest, offset, null);
+    }
+
+    /**
+     * Converts a region of the image like {@link #getARGB(int, int, int, int, int, int[], int)},
+     * to a buffer, from its position which is then moved past the region.
+     */
+    public void getARGB(int x, int y, int width, int height, int quarterTurns, IntBuffer dest) {
+        convert(this, ByteBuffer.wrap(data), x, y, width, height, quarterTurns, null, 0, dest);
+    }
+
+    /**
+     * Converts a region of the image like {@link #getARGB(int, int, int, int, int, int[], int)},
+     * to a buffer as integers of its byte order, from its position which is then moved past the
+     * region.
+     */
+    public void getARGB(int x, int y, int width, int height, int quarterTurns, ByteBuffer dest) {
+        IntBuffer ints = dest.slice().order(dest.order()).asIntBuffer();
+        getARGB(x, y, width, height, quarterTurns, ints);
+        dest.position(dest.position() + ints.position() * 4);
+    }
+
+    /**
+     * Converts a region of the pixels <var>src</var>, in the format of <var>format</var>, to ARGB
+     * integer values in either <var>destArray</var> or <var>destBuffer</var>.
+     * <p>Each row of the region is read in bulk, converted with a loop specialized for the
+     * layout of the pixels, then written at its place in the rotated region.
+     */
+    static void convert(RawImage format, ByteBuffer src, int x, int y, int width, int height,
+            int quarterTurns, int[] destArray, int destOffset, IntBuffer destBuffer) {
+        if (x < 0 || y < 0 || width < 0 || height < 0
+                || x + width > format.width || y + height > format.height) {
+            throw new IllegalArgumentException("Region " + width + "x" + height + "+" + x + "+" + y
+                    + " out of the " + format.width + "x" + format.height + " image");
+        }
+        int turns = quarterTurns & 3;
+        int layout = getLayout(format);
+        int base = destBuffer != null ? destBuffer.position() : destOffset;
+
+        ByteBuffer pixels = src.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        pixels.clear();
+        IntBuffer ints = null;
+        ShortBuffer shorts = null;
+        short[] shortRow = null;
+        if (layout == LAYOUT_RGB_565) {
+            shorts = pixels.asShortBuffer();
+            shortRow = new short[width];
+        } else {
+            ints = pixels.asIntBuffer();
+        }
+        // rotated by a quarter turn, the rows of the region become columns: they are converted
+        // by bands, so that the values are written to the destination by runs.
+        int bandHeight = (turns & 1) != 0 ? Math.min(ROTATION_BAND_HEIGHT, height) : 1;
+        int[] band = new int[bandHeight * width];
+
+        for (int top = 0; top < height; top += bandHeight) {
+            int rows = Math.min(bandHeight, height - top);
+            for (int k = 0; k < rows; k++) {
+                int srcIndex = (y + top + k) * format.width + x;
+                int offset = k * width;
+                if (shorts != null) {
+                    shorts.position(srcIndex);
+                    shorts.get(shortRow);
+                    for (int i = 0; i < width; i++) {
+                        int value = shortRow[i];
+                        band[offset + i] = 0xFF000000 | RGB_565_RED[(value >>> 11) & 0x1f]
+                                | RGB_565_GREEN[(value >>> 5) & 0x3f] | RGB_565_BLUE[value & 0x1f];
+                    }
+                } else {
+                    ints.position(srcIndex);
+                    ints.get(band, offset, width);
+                    convertRow(format, layout, band, offset, width);
+                }
+            }
+
+            switch (turns) {
+                case 0:
+                    for (int k = 0; k < rows; k++) {
+                        int d = base + (top + k) * width;
+                        if (destArray != null) {
+                            System.arraycopy(band, k * width, destArray, d, width);
+                        } else {
+                            destBuffer.position(d);
+                            destBuffer.put(band, k * width, width);
+                        }
+                    }
+                    break;
+                case 2:
+                    for (int k = 0; k < rows; k++) {
+                        int d = base + (height - top - k) * width - 1;
+                        for (int i = k * width, end = i + width; i < end; i++, d--) {
+                            put(destArray, destBuffer, d, band[i]);
+                        }
+                    }
+                    break;
+                case 1:
+                    for (int i = 0; i < width; i++) {
+                        int d = base + (width - 1 - i) * height + top;
+                        for (int k = 0; k < rows; k++, d++) {
+                            put(destArray, destBuffer, d, band[k * width + i]);
+                        }
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < width; i++) {
+                        int d = base + i * height + height - 1 - top;
+                        for (int k = 0; k < rows; k++, d--) {
+                            put(destArray, destBuffer, d, band[k * width + i]);
+                        }
+                    }
+                    break;
+            }
+        }
+        if (destBuffer != null) {
+            destBuffer.position(base + width * height);
+        }
+    }
+
+    private static void put(int[] destArray, IntBuffer destBuffer, int index, int value) {
+        if (destArray != null) {
+            destArray[index] = value;
+        } else {
+            destBuffer.put(index, value);
+        }
+    }
+
+    private static int getLayout(RawImage format) {
+        if (format.bpp == 16) {
+            return LAYOUT_RGB_565;
+        }
+        if (format.bpp != 32) {
+            throw new UnsupportedOperationException(
+                    "RawImage.getARGB only works in 16 and 32 bit mode.");
+        }
+        if (format.red_length == 8 && format.green_length == 8 && format.blue_length == 8
+                && format.green_offset == 8
+                && (format.alpha_length == 0 || format.alpha_length == 8 && format.alpha_offset == 24)) {
+            if (format.red_offset == 16 && format.blue_offset == 0) {
+                return LAYOUT_BGRA_8888;
+            }
+            if (format.red_offset == 0 && format.blue_offset == 16) {
+                return LAYOUT_RGBA_8888;
+            }
+        }
+        return LAYOUT_GENERIC;
+    }
+
+    /**
+     * Converts in place a row of 32 bits pixels, read as little endian integers, from
+     * <var>offset</var>.
+     */
+    private static void convertRow(RawImage format, int layout, int[] row, int offset, int length) {
+        int end = offset + length;
+        // without alpha channel, getARGB(int) gives a 0 alpha.
+        int argbMask = format.alpha_length == 0 ? 0x00FFFFFF : 0xFFFFFFFF;
+        switch (layout) {
+            case LAYOUT_BGRA_8888:
+                if (argbMask != 0xFFFFFFFF) {
+                    for (int i = offset; i < end; i++) {
+                        row[i] &= argbMask;
+                    }
+                }
+                break;
+            case LAYOUT_RGBA_8888:
+                for (int i = offset; i < end; i++) {
+                    int value = row[i];
+                    row[i] = ((value & 0xFF00FF00) | ((value >>> 16) & 0xFF) | ((value & 0xFF) << 16))
+                            & argbMask;
+                }
+                break;
+            default:
+                int redOffset = format.red_offset;
+                int redMask = getMask(format.red_length);
+                int redShift = 8 - format.red_length;
+                int greenOffset = format.green_offset;
+                int greenMask = getMask(format.green_length);
+                int greenShift = 8 - format.green_length;
+                int blueOffset = format.blue_offset;
+                int blueMask = getMask(format.blue_length);
+                int blueShift = 8 - format.blue_length;
+                int alphaOffset = format.alpha_offset;
+                int alphaMask = getMask(format.alpha_length);
+                int alphaShift = 8 - format.alpha_length;
+                for (int i = offset; i < end; i++) {
+                    int value = row[i];
+                    int r = ((value >>> redOffset) & redMask) << redShift;
+                    int g = ((value >>> greenOffset) & greenMask) << greenShift;
+                    int b = ((value >>> blueOffset) & blueMask) << blueShift;
+                    int a = ((value >>> alphaOffset) & alphaMask) << alphaShift;
+                    row[i] = a << 24 | r << 16 | g << 8 | b;
+                }
+                break;
+        }
+    }
+
     /**
      * creates a mask value based on a length and offset.
      * <p>This value is compatible with org.eclipse.swt.graphics.PaletteData
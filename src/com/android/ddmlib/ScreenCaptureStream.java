@@ -0,0 +1,545 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Captures the screen of a device continuously, as a stream of frames.
+ * <p>
+ * Frames are read from the adb frame buffer service, like {@link IDevice#getScreenshot()}, but
+ * into a small pool of reused direct buffers, and the next frame is requested while the listener
+ * is still handling the previous one. Each frame is split in square tiles, which are hashed as
+ * soon as the frame is read: a frame with no changed tile is dropped without reaching the
+ * listener, and the listener can restrict its work to the changed tiles of the others.
+ * <p>
+ * The listener is called on a single thread, in the order of the frames.
+ */
+public final class ScreenCaptureStream {
+
+    private static final String LOG_TAG = "ScreenCaptureStream";
+
+    /** Number of consecutive failed captures after which the stream stops. */
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+
+    /** Number of frame buffers: one being read, one queued, one being handled by the listener. */
+    private static final int BUFFER_COUNT = 3;
+
+    /** Weight of the last frame in the frames per second average. */
+    private static final double FPS_SMOOTHING = 0.2;
+
+    /**
+     * Receives the frames of a {@link ScreenCaptureStream}.
+     */
+    public interface FrameListener {
+        /**
+         * Called with each frame which changed since the previous one. The frame is only valid
+         * during the call: its buffer is reused afterwards.
+         */
+        void frameCaptured(@NonNull Frame frame);
+
+        /**
+         * Called when a capture failed. The stream stops after several consecutive failures.
+         */
+        void captureFailed(@NonNull Exception e);
+    }
+
+    /**
+     * A frame of the screen, with the tiles that changed since the previous frame.
+     */
+    public static final class Frame {
+        private final RawImage mHeader;
+        private final ByteBuffer mData;
+        private final long mSequence;
+        private final long mTimestamp;
+        private final int mTileSize;
+        private final int mTileColumns;
+        private final int mTileRows;
+        private final boolean[] mDirtyTiles;
+        private final int mDirtyTileCount;
+
+        Frame(RawImage header, ByteBuffer data, long sequence, long timestamp, int tileSize,
+                int tileColumns, int tileRows, boolean[] dirtyTiles, int dirtyTileCount) {
+            mHeader = header;
+            mData = data;
+            mSequence = sequence;
+            mTimestamp = timestamp;
+            mTileSize = tileSize;
+            mTileColumns = tileColumns;
+            mTileRows = tileRows;
+            mDirtyTiles = dirtyTiles;
+            mDirtyTileCount = dirtyTileCount;
+        }
+
+        /**
+         * Returns the format of the frame, as a {@link RawImage} without data.
+         */
+        @NonNull
+        public RawImage getHeader() {
+            return copyHeader(mHeader);
+        }
+
+        public int getWidth() {
+            return mHeader.width;
+        }
+
+        public int getHeight() {
+            return mHeader.height;
+        }
+
+        /**
+         * Returns a read-only, little endian view of the pixels, in the format of
+         * {@link RawImage#data}.
+         */
+        @NonNull
+        public ByteBuffer getData() {
+            return mData.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Returns the sequence number of the frame among all the captured frames, including the
+         * unchanged ones which were dropped.
+         */
+        public long getSequence() {
+            return mSequence;
+        }
+
+        /**
+         * Returns the time the frame was read, in milliseconds since the epoch.
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public int getTileSize() {
+            return mTileSize;
+        }
+
+        public int getTileColumns() {
+            return mTileColumns;
+        }
+
+        public int getTileRows() {
+            return mTileRows;
+        }
+
+        /**
+         * Returns whether a tile changed since the previous frame. All the tiles of the first
+         * frame, and of a frame whose format changed, are dirty.
+         */
+        public boolean isTileDirty(int column, int row) {
+            return mDirtyTiles[row * mTileColumns + column];
+        }
+
+        public int getDirtyTileCount() {
+            return mDirtyTileCount;
+        }
+
+        /**
+         * Converts a region of the frame to ARGB integer values, like
+         * {@link RawImage#getARGB(int, int, int, int, int, int[], int)}, without copying it first.
+         */
+        public void getARGB(int x, int y, int width, int height, int quarterTurns, @NonNull int[] dest,
+                int offset) {
+            RawImage.convert(mHeader, mData, x, y, width, height, quarterTurns, dest, offset, null);
+        }
+
+        /**
+         * Copies the frame in a new {@link RawImage}, which stays valid after the listener
+         * returned.
+         */
+        @NonNull
+        public RawImage toRawImage() {
+            RawImage image = copyHeader(mHeader);
+            image.data = new byte[mHeader.size];
+            getData().get(image.data);
+            return image;
+        }
+    }
+
+    private final IDevice mDevice;
+    private final FrameListener mListener;
+    private long mInterval;
+    private long mTimeout = DdmPreferences.getTimeOut();
+    private int mTileSize = 32;
+
+    private final BlockingQueue<ByteBuffer> mFreeBuffers =
+            new ArrayBlockingQueue<ByteBuffer>(BUFFER_COUNT);
+    private int mAllocatedBuffers;
+
+    private volatile boolean mRunning;
+    private Thread mCaptureThread;
+    private ExecutorService mListenerExecutor;
+
+    // capture thread only.
+    private RawImage mPreviousHeader;
+    private long[] mPreviousHashes;
+
+    private final AtomicLong mCapturedFrames = new AtomicLong();
+    private final AtomicLong mUnchangedFrames = new AtomicLong();
+    private final AtomicLong mFailedCaptures = new AtomicLong();
+    private volatile double mFrameInterval;
+    private volatile long mLastCaptureTime;
+
+    /**
+     * Creates a stream, which captures the screen once {@link #start()} is called.
+     *
+     * @param device the device to capture.
+     * @param listener the listener receiving the frames.
+     */
+    public ScreenCaptureStream(@NonNull IDevice device, @NonNull FrameListener listener) {
+        mDevice = device;
+        mListener = listener;
+    }
+
+    /**
+     * Sets the minimum time between the start of two captures. Defaults to 0: the next frame is
+     * requested as soon as the previous one is read.
+     */
+    public void setInterval(long interval, @NonNull TimeUnit unit) {
+        mInterval = unit.toMillis(interval);
+    }
+
+    /**
+     * Sets the timeout of the reads of a frame. Defaults to {@link DdmPreferences#getTimeOut()}.
+     * A timeout of 0 waits forever.
+     */
+    public void setTimeout(long timeout, @NonNull TimeUnit unit) {
+        mTimeout = unit.toMillis(timeout);
+    }
+
+    /**
+     * Sets the size of the side of the tiles, in pixels. Defaults to 32.
+     */
+    public void setTileSize(int tileSize) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("tileSize must be positive");
+        }
+        mTileSize = tileSize;
+    }
+
+    /**
+     * Starts capturing frames, on a new thread.
+     */
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        final String name = "Screen Capture " + mDevice.getSerialNumber();
+        mListenerExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, name + " Listener");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mCaptureThread = new Thread(name) {
+            @Override
+            public void run() {
+                captureLoop();
+            }
+        };
+        mCaptureThread.setDaemon(true);
+        mCaptureThread.start();
+    }
+
+    /**
+     * Stops capturing frames. The frames already captured are still delivered to the listener.
+     */
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mCaptureThread.interrupt();
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Returns the rate at which frames are captured, including the unchanged ones, averaged over
+     * the last frames. Returns 0 when the stream is not running.
+     */
+    public double getFramesPerSecond() {
+        double interval = mFrameInterval;
+        if (!mRunning || interval <= 0) {
+            return 0;
+        }
+        return 1000 / interval;
+    }
+
+    /**
+     * Returns the number of frames captured, including the unchanged ones.
+     */
+    public long getCapturedFrameCount() {
+        return mCapturedFrames.get();
+    }
+
+    /**
+     * Returns the number of frames dropped because no tile changed.
+     */
+    public long getUnchangedFrameCount() {
+        return mUnchangedFrames.get();
+    }
+
+    public long getFailedCaptureCount() {
+        return mFailedCaptures.get();
+    }
+
+    private void captureLoop() {
+        int failures = 0;
+        Selector selector = null;
+        try {
+            selector = Selector.open();
+            InetSocketAddress adbSockAddr = AndroidDebugBridge.getSocketAddress();
+            long nextCapture = System.currentTimeMillis();
+            while (mRunning) {
+                long wait = nextCapture - System.currentTimeMillis();
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+                nextCapture = System.currentTimeMillis() + mInterval;
+                try {
+                    capture(adbSockAddr, selector);
+                    failures = 0;
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    if (!mRunning) {
+                        break;
+                    }
+                    mFailedCaptures.incrementAndGet();
+                    notifyFailure(e);
+                    if (++failures >= MAX_CONSECUTIVE_FAILURES) {
+                        Log.w(LOG_TAG, "Stopping the capture of " + mDevice.getSerialNumber()
+                                + " after " + failures + " failures");
+                        break;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped.
+        } catch (IOException e) {
+            notifyFailure(e);
+        } finally {
+            mRunning = false;
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            mListenerExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Reads a frame, and hands it to the listener thread if it changed.
+     */
+    private void capture(InetSocketAddress adbSockAddr, Selector selector)
+            throws TimeoutException, AdbCommandRejectedException, IOException, InterruptedException {
+        RawImage header = new RawImage();
+        SocketChannel adbChan = AdbHelper.openFrameBuffer(adbSockAddr, mDevice, header);
+        if (adbChan == null) {
+            throw new IOException("Unsupported frame buffer protocol: " + header.version);
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = takeBuffer(header.size);
+            try {
+                AdbHelper.read(adbChan, buffer, selector, mTimeout);
+            } catch (IOException e) {
+                releaseBuffer(buffer);
+                throw e;
+            } catch (TimeoutException e) {
+                releaseBuffer(buffer);
+                throw e;
+            }
+        } finally {
+            adbChan.close();
+        }
+        buffer.flip();
+
+        long sequence = mCapturedFrames.getAndIncrement();
+        long now = System.currentTimeMillis();
+        updateFrameInterval(now);
+
+        boolean sameFormat = mPreviousHeader != null && sameFormat(mPreviousHeader, header);
+        int tileSize = mTileSize;
+        int columns = (header.width + tileSize - 1) / tileSize;
+        int rows = (header.height + tileSize - 1) / tileSize;
+        long[] hashes = hashTiles(buffer, header, tileSize, columns, rows);
+        boolean[] dirtyTiles = new boolean[hashes.length];
+        int dirtyCount = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            if (!sameFormat || mPreviousHashes.length != hashes.length
+                    || hashes[i] != mPreviousHashes[i]) {
+                dirtyTiles[i] = true;
+                dirtyCount++;
+            }
+        }
+        mPreviousHeader = header;
+        mPreviousHashes = hashes;
+
+        if (dirtyCount == 0) {
+            mUnchangedFrames.incrementAndGet();
+            releaseBuffer(buffer);
+            return;
+        }
+
+        final Frame frame = new Frame(header, buffer, sequence, now, tileSize, columns, rows,
+                dirtyTiles, dirtyCount);
+        mListenerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mListener.frameCaptured(frame);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, e);
+                } finally {
+                    releaseBuffer(frame.mData);
+                }
+            }
+        });
+    }
+
+    private void notifyFailure(final Exception e) {
+        mListenerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mListener.captureFailed(e);
+            }
+        });
+    }
+
+    private void updateFrameInterval(long now) {
+        long last = mLastCaptureTime;
+        mLastCaptureTime = now;
+        if (last == 0) {
+            return;
+        }
+        double interval = now - last;
+        double average = mFrameInterval;
+        mFrameInterval = average == 0 ? interval
+                : average + FPS_SMOOTHING * (interval - average);
+    }
+
+    /**
+     * Returns a free direct buffer of at least <var>size</var> bytes, waiting for the listener to
+     * release one if they are all in use.
+     */
+    private ByteBuffer takeBuffer(int size) throws InterruptedException {
+        ByteBuffer buffer = mFreeBuffers.poll();
+        if (buffer == null) {
+            synchronized (mFreeBuffers) {
+                if (mAllocatedBuffers < BUFFER_COUNT) {
+                    mAllocatedBuffers++;
+                    return ByteBuffer.allocateDirect(size);
+                }
+            }
+            buffer = mFreeBuffers.take();
+        }
+        if (buffer.capacity() < size) {
+            // the screen grew, after a rotation or a resolution change.
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        mFreeBuffers.offer(buffer);
+    }
+
+    /**
+     * Hashes each tile of the frame, row by row, 8 bytes at a time.
+     */
+    static long[] hashTiles(ByteBuffer data, RawImage header, int tileSize, int columns,
+            int rows) {
+        long[] hashes = new long[columns * rows];
+        Arrays.fill(hashes, 0xcbf29ce484222325L);
+        int bytesPerPixel = header.bpp >> 3;
+        int stride = header.width * bytesPerPixel;
+        int tileBytes = tileSize * bytesPerPixel;
+        int height = Math.min(header.height, data.limit() / Math.max(stride, 1));
+        for (int y = 0; y < height; y++) {
+            int rowStart = y * stride;
+            int rowEnd = rowStart + stride;
+            int tileRow = (y / tileSize) * columns;
+            for (int column = 0; column < columns; column++) {
+                long hash = hashes[tileRow + column];
+                int start = rowStart + column * tileBytes;
+                int end = Math.min(start + tileBytes, rowEnd);
+                int i = start;
+                for (; i + 8 <= end; i += 8) {
+                    hash = (hash ^ data.getLong(i)) * 0x100000001b3L;
+                }
+                for (; i < end; i++) {
+                    hash = (hash ^ data.get(i)) * 0x100000001b3L;
+                }
+                hashes[tileRow + column] = hash;
+            }
+        }
+        return hashes;
+    }
+
+    private static boolean sameFormat(RawImage a, RawImage b) {
+        return a.version == b.version && a.bpp == b.bpp && a.size == b.size
+                && a.width == b.width && a.height == b.height
+                && a.red_offset == b.red_offset && a.green_offset == b.green_offset
+                && a.blue_offset == b.blue_offset && a.alpha_offset == b.alpha_offset;
+    }
+
+    private static RawImage copyHeader(RawImage header) {
+        RawImage copy = new RawImage();
+        copy.version = header.version;
+        copy.bpp = header.bpp;
+        copy.colorSpace = header.colorSpace;
+        copy.size = header.size;
+        copy.width = header.width;
+        copy.height = header.height;
+        copy.red_offset = header.red_offset;
+        copy.red_length = header.red_length;
+        copy.blue_offset = header.blue_offset;
+        copy.blue_length = header.blue_length;
+        copy.green_offset = header.green_offset;
+        copy.green_length = header.green_length;
+        copy.alpha_offset = header.alpha_offset;
+        copy.alpha_length = header.alpha_length;
+        return copy;
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.AdbHelper.AdbService;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs remote commands on the adb server without blocking the callers.
+ * <p>All the sessions share a few selector threads: each session is a small state machine
+ * walking through the transport and service requests, then streaming the output of the command
+ * to its {@link IShellOutputReceiver}. The output is read into a buffer owned by the selector
+ * thread, so the receivers must not keep the array they are handed, nor block.
+ */
+final class ShellReactor {
+
+    private static final int BUFFER_SIZE = 16384;
+
+    /** Maximum number of reads of a session per select, for fairness with the other sessions. */
+    private static final int MAX_READS = 4;
+
+    /** Time between two checks of the timeouts and cancellations (ms). */
+    private static final long CHECK_INTERVAL = AdbHelper.WAIT_TIME * 5;
+
+    private static ShellReactor sInstance;
+
+    private final Loop[] mLoops;
+    private final AtomicInteger mNextLoop = new AtomicInteger();
+
+    private ShellReactor(int count) throws IOException {
+        mLoops = new Loop[count];
+        for (int i = 0; i < count; i++) {
+            mLoops[i] = new Loop("Shell Reactor-" + i, Selector.open());
+            mLoops[i].setDaemon(true);
+            mLoops[i].start();
+        }
+    }
+
+    @NonNull
+    static synchronized ShellReactor getInstance() throws IOException {
+        if (sInstance == null) {
+            sInstance = new ShellReactor(DdmPreferences.getShellReactorThreadCount());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts a remote command.
+     *
+     * @param maxTimeout max time for the command to return (ms), or 0.
+     * @param maxTimeToOutput max time between command output (ms), or 0.
+     * @return a future set when the command ends or the receiver cancels it, or failed with the
+     *     exceptions thrown by the blocking
+     *     {@link AdbHelper#executeRemoteCommand(InetSocketAddress, AdbService, String, IDevice,
+     *     IShellOutputReceiver, long, long, java.util.concurrent.TimeUnit, java.io.InputStream)}.
+     */
+    @NonNull
+    ListenableFuture<Void> execute(@NonNull InetSocketAddress adbSockAddr,
+            @NonNull AdbService adbService, @NonNull String command, @Nullable IDevice device,
+            @Nullable IShellOutputReceiver rcvr, long maxTimeout, long maxTimeToOutput) {
+        Session session = new Session(adbSockAddr,
+                AdbHelper.formAdbRequest(adbService.name().toLowerCase() + ":" + command), //$NON-NLS-1$
+                command, device, rcvr, maxTimeout, maxTimeToOutput);
+        Loop loop = mLoops[(mNextLoop.getAndIncrement() & Integer.MAX_VALUE) % mLoops.length];
+        loop.mPending.add(session);
+        loop.mSelector.wakeup();
+        return session.mFuture;
+    }
+
+    /**
+     * Returns the number of commands started and not finished yet.
+     */
+    int getActiveCount() {
+        int count = 0;
+        for (Loop loop : mLoops) {
+            count += loop.mPending.size() + loop.mActiveCount;
+        }
+        return count;
+    }
+
+    private static final class Loop extends Thread {
+
+        private final Selector mSelector;
+        private final Queue<Session> mPending = new ConcurrentLinkedQueue<Session>();
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        private volatile int mActiveCount;
+        private long mLastCheck;
+
+        Loop(String name, Selector selector) {
+            super(name);
+            mSelector = selector;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Session session;
+                while ((session = mPending.poll()) != null) {
+                    start(session);
+                }
+
+                try {
+                    mSelector.select(mActiveCount > 0 ? CHECK_INTERVAL : 0);
+                } catch (IOException ioe) {
+                    Log.e("ddms", ioe);
+                    continue;
+                }
+
+                Iterator<SelectionKey> iter = mSelector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    try {
+                        process((Session) key.attachment());
+                    } catch (CancelledKeyException cke) {
+                        // the session completed.
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - mLastCheck >= CHECK_INTERVAL) {
+                    mLastCheck = now;
+                    for (SelectionKey key : mSelector.keys()) {
+                        if (key.isValid()) {
+                            check((Session) key.attachment(), now);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void start(Session session) {
+            if (session.mFuture.isDone()) {
+                return;
+            }
+            mActiveCount++;
+            try {
+                session.mChannel = SocketChannel.open();
+                session.mChannel.configureBlocking(false);
+                session.mKey = session.mChannel.register(mSelector, 0, session);
+                session.mChannel.connect(session.mAdbSockAddr);
+            } catch (Exception e) {
+                // unchecked ones too, such as an UnresolvedAddressException, which would
+                // otherwise kill the loop.
+                complete(session, e);
+                return;
+            }
+            process(session);
+        }
+
+        private void process(Session session) {
+            try {
+                session.process(this);
+            } catch (Exception e) {
+                complete(session, e);
+            }
+        }
+
+        private void check(Session session, long now) {
+            if (session.isCancelled()) {
+                Log.v("ddms", "execute: cancelled");
+                complete(session, null);
+                return;
+            }
+            try {
+                session.check(now);
+            } catch (Exception e) {
+                complete(session, e);
+            }
+        }
+
+        void complete(@NonNull Session session, @Nullable Throwable t) {
+            if (session.mKey != null && !session.mKey.isValid()) {
+                return;
+            }
+            mActiveCount--;
+            if (session.mKey != null) {
+                session.mKey.cancel();
+            }
+            if (session.mChannel != null) {
+                try {
+                    session.mChannel.close();
+                } catch (IOException e) {
+                    // ignore.
+                }
+            }
+            if (t == null) {
+                session.mFuture.set(null);
+            } else {
+                session.mFuture.setException(t);
+            }
+            Log.v("ddms", "execute: returning");
+        }
+    }
+
+    private enum State {
+        CONNECTING,
+        WRITING_REQUEST,
+        READING_STATUS,
+        READING_FAIL_LENGTH,
+        READING_FAIL_MESSAGE,
+        STREAMING
+    }
+
+    private static final class Session {
+
+        private final SettableFuture<Void> mFuture = SettableFuture.create();
+        private final InetSocketAddress mAdbSockAddr;
+        private final byte[] mRequest;
+        private final String mCommand;
+        private final IDevice mDevice;
+        private final IShellOutputReceiver mRcvr;
+        private final long mMaxTimeout;
+        private final long mMaxTimeToOutput;
+        private final long mStartTime = System.currentTimeMillis();
+
+        private SocketChannel mChannel;
+        private SelectionKey mKey;
+        private State mState = State.CONNECTING;
+        /** Whether the transport request, selecting the device, is being sent. */
+        private boolean mSelectingDevice;
+        private ByteBuffer mOut;
+        private final ByteBuffer mStatus = ByteBuffer.allocate(4);
+        private ByteBuffer mMessage;
+        private long mLastOutputTime;
+
+        Session(InetSocketAddress adbSockAddr, byte[] request, String command, IDevice device,
+                IShellOutputReceiver rcvr, long maxTimeout, long maxTimeToOutput) {
+            mAdbSockAddr = adbSockAddr;
+            mRequest = request;
+            mCommand = command;
+            mDevice = device;
+            mRcvr = rcvr;
+            mMaxTimeout = maxTimeout;
+            mMaxTimeToOutput = maxTimeToOutput;
+        }
+
+        /**
+         * Goes as far as possible without blocking, then waits for the channel to be ready.
+         */
+        void process(Loop loop) throws IOException, AdbCommandRejectedException {
+            while (true) {
+                switch (mState) {
+                    case CONNECTING:
+                        if (!mChannel.finishConnect()) {
+                            mKey.interestOps(SelectionKey.OP_CONNECT);
+                            return;
+                        }
+                        Log.v("ddms", "execute: running " + mCommand);
+                        if (mDevice != null) {
+                            // if the device is not -1, then we first tell adb we're looking to
+                            // talk to a specific device
+                            mSelectingDevice = true;
+                            send(AdbHelper.formAdbRequest(
+                                    "host:transport:" + mDevice.getSerialNumber())); //$NON-NLS-1$
+                        } else {
+                            send(mRequest);
+                        }
+                        break;
+                    case WRITING_REQUEST:
+                        mChannel.write(mOut);
+                        if (mOut.hasRemaining()) {
+                            mKey.interestOps(SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        mStatus.clear();
+                        mState = State.READING_STATUS;
+                        break;
+                    case READING_STATUS:
+                        if (!fill(mStatus)) {
+                            return;
+                        }
+                        byte[] reply = mStatus.array();
+                        if (AdbHelper.isOkay(reply)) {
+                            if (mSelectingDevice) {
+                                mSelectingDevice = false;
+                                send(mRequest);
+                            } else {
+                                mState = State.STREAMING;
+                                mLastOutputTime = System.currentTimeMillis();
+                            }
+                        } else {
+                            // look for a reason after the FAIL
+                            mStatus.clear();
+                            mState = State.READING_FAIL_LENGTH;
+                        }
+                        break;
+                    case READING_FAIL_LENGTH:
+                        if (!fill(mStatus)) {
+                            return;
+                        }
+                        String lenStr = AdbHelper.replyToString(mStatus.array());
+                        try {
+                            mMessage = ByteBuffer.allocate(Integer.parseInt(lenStr, 16));
+                        } catch (NumberFormatException nfe) {
+                            Log.w("ddms", "Expected digits, got '" + lenStr + "'");
+                            throw reject(null);
+                        }
+                        mState = State.READING_FAIL_MESSAGE;
+                        break;
+                    case READING_FAIL_MESSAGE:
+                        if (!fill(mMessage)) {
+                            return;
+                        }
+                        throw reject(AdbHelper.replyToString(mMessage.array()));
+                    case STREAMING:
+                        stream(loop);
+                        return;
+                }
+            }
+        }
+
+        private void send(byte[] request) {
+            mOut = ByteBuffer.wrap(request);
+            mState = State.WRITING_REQUEST;
+        }
+
+        /**
+         * Reads into <var>buf</var>, and returns whether it is full. Waits for more data
+         * otherwise.
+         */
+        private boolean fill(ByteBuffer buf) throws IOException {
+            if (mChannel.read(buf) < 0) {
+                Log.d("ddms", "read: channel EOF");
+                throw new IOException("EOF");
+            }
+            if (buf.hasRemaining()) {
+                mKey.interestOps(SelectionKey.OP_READ);
+                return false;
+            }
+            return true;
+        }
+
+        private AdbCommandRejectedException reject(String message) {
+            if (mSelectingDevice) {
+                return new AdbCommandRejectedException(message,
+                        true/*errorDuringDeviceSelection*/);
+            }
+            Log.e("ddms", "ADB rejected shell command (" + mCommand + "): " + message);
+            return new AdbCommandRejectedException(message);
+        }
+
+        private void stream(Loop loop) throws IOException {
+            ByteBuffer buf = loop.mBuffer;
+            for (int i = 0; i < MAX_READS; i++) {
+                if (isCancelled()) {
+                    Log.v("ddms", "execute: cancelled");
+                    loop.complete(this, null);
+                    return;
+                }
+                buf.clear();
+                int count = mChannel.read(buf);
+                if (count < 0) {
+                    // we're at the end, we flush the output
+                    if (mRcvr != null) {
+                        mRcvr.flush();
+                    }
+                    Log.v("ddms", "execute '" + mCommand + "' on '" + mDevice
+                            + "' : EOF hit. Read: " + count);
+                    loop.complete(this, null);
+                    return;
+                }
+                if (count == 0) {
+                    break;
+                }
+                mLastOutputTime = System.currentTimeMillis();
+                if (mRcvr != null) {
+                    mRcvr.addOutput(buf.array(), buf.arrayOffset(), count);
+                }
+            }
+            mKey.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * Returns whether the receiver or the caller, through the future, cancelled the command.
+         */
+        boolean isCancelled() {
+            return mFuture.isDone() || (mRcvr != null && mRcvr.isCancelled());
+        }
+
+        /**
+         * Throws if a timeout expired.
+         */
+        void check(long now) throws TimeoutException, ShellCommandUnresponsiveException {
+            if (mState != State.STREAMING) {
+                if (now - mStartTime > DdmPreferences.getTimeOut()) {
+                    throw new TimeoutException();
+                }
+                return;
+            }
+            if (mMaxTimeToOutput > 0 && now - mLastOutputTime > mMaxTimeToOutput) {
+                throw new ShellCommandUnresponsiveException();
+            }
+            // if the overall timeout exists and is exceeded, we throw timeout exception.
+            if (mMaxTimeout > 0 && now - mStartTime > mMaxTimeout) {
+                throw new TimeoutException(
+                        String.format("executeRemoteCommand timed out after %sms", mMaxTimeout));
+            }
+        }
+    }
+}
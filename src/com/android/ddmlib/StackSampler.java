@@ -0,0 +1,613 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A wall-clock sampling profiler, which periodically requests the stack traces of all the threads
+ * of a {@link Client} with DDM STKL requests, and merges them into a call tree per thread.
+ * <p>At most {@link #setMaxInFlight(int)} requests are pending at any time. The time between two
+ * rounds of requests is at least {@link #setInterval(long, TimeUnit)}, and is stretched so that
+ * the requests, timed by their measured round trip, keep the VM busy for at most
+ * {@link #setMaxDutyCycle(double)} of the time.
+ * <p>Frames are identified by class and method name, and interned from the bytes of the replies:
+ * a frame already seen does not allocate.
+ */
+public final class StackSampler {
+
+    /** Requests without a reply after this long are given up. */
+    private static final long REQUEST_TIMEOUT_MS = 5000;
+
+    /** Weight of the last round trip in the average. */
+    private static final double ROUND_TRIP_WEIGHT = 0.125;
+
+    /**
+     * The call tree of the samples of a thread. Node 0 is the root, which is not a frame; the
+     * children of a node are the methods it called when it was sampled.
+     */
+    public static final class CallTree {
+        private String mThreadName;
+        private String[] mFrameNames;
+        private int mCount = 1;
+        private int[] mFrames = new int[64];
+        private int[] mParents = new int[64];
+        private int[] mFirstChildren = new int[64];
+        private int[] mNextSiblings = new int[64];
+        private long[] mSelfCounts = new long[64];
+        private long[] mTotalCounts = new long[64];
+
+        private CallTree(String threadName) {
+            mThreadName = threadName;
+            mFrames[0] = -1;
+            mParents[0] = -1;
+            mFirstChildren[0] = -1;
+            mNextSiblings[0] = -1;
+        }
+
+        private CallTree(CallTree tree, String[] frameNames) {
+            mThreadName = tree.mThreadName;
+            mFrameNames = frameNames;
+            mCount = tree.mCount;
+            mFrames = Arrays.copyOf(tree.mFrames, mCount);
+            mParents = Arrays.copyOf(tree.mParents, mCount);
+            mFirstChildren = Arrays.copyOf(tree.mFirstChildren, mCount);
+            mNextSiblings = Arrays.copyOf(tree.mNextSiblings, mCount);
+            mSelfCounts = Arrays.copyOf(tree.mSelfCounts, mCount);
+            mTotalCounts = Arrays.copyOf(tree.mTotalCounts, mCount);
+        }
+
+        /**
+         * Adds a sample, whose frames are ordered from the outermost call.
+         */
+        private void add(int[] frames, int depth) {
+            int node = 0;
+            mTotalCounts[0]++;
+            for (int i = 0; i < depth; i++) {
+                int frame = frames[i];
+                int child = mFirstChildren[node];
+                while (child >= 0 && mFrames[child] != frame) {
+                    child = mNextSiblings[child];
+                }
+                if (child < 0) {
+                    child = addNode(node, frame);
+                }
+                node = child;
+                mTotalCounts[node]++;
+            }
+            mSelfCounts[node]++;
+        }
+
+        private int addNode(int parent, int frame) {
+            if (mCount == mFrames.length) {
+                int capacity = mCount * 2;
+                mFrames = Arrays.copyOf(mFrames, capacity);
+                mParents = Arrays.copyOf(mParents, capacity);
+                mFirstChildren = Arrays.copyOf(mFirstChildren, capacity);
+                mNextSiblings = Arrays.copyOf(mNextSiblings, capacity);
+                mSelfCounts = Arrays.copyOf(mSelfCounts, capacity);
+                mTotalCounts = Arrays.copyOf(mTotalCounts, capacity);
+            }
+            int node = mCount++;
+            mFrames[node] = frame;
+            mParents[node] = parent;
+            mFirstChildren[node] = -1;
+            mNextSiblings[node] = mFirstChildren[parent];
+            mFirstChildren[parent] = node;
+            mSelfCounts[node] = 0;
+            mTotalCounts[node] = 0;
+            return node;
+        }
+
+        public String getThreadName() {
+            return mThreadName;
+        }
+
+        public int getNodeCount() {
+            return mCount;
+        }
+
+        /**
+         * Returns the interned frame of a node, or -1 for the root.
+         */
+        public int getFrame(int node) {
+            return mFrames[node];
+        }
+
+        /**
+         * Returns the class and method name of the frame of a node, or null for the root.
+         */
+        @Nullable
+        public String getFrameName(int node) {
+            int frame = mFrames[node];
+            return frame < 0 ? null : mFrameNames[frame];
+        }
+
+        /**
+         * Returns the parent of a node, or -1 for the root.
+         */
+        public int getParent(int node) {
+            return mParents[node];
+        }
+
+        /**
+         * Returns the first child of a node, or -1 if it has none.
+         */
+        public int getFirstChild(int node) {
+            return mFirstChildren[node];
+        }
+
+        /**
+         * Returns the next child of the parent of a node, or -1.
+         */
+        public int getNextSibling(int node) {
+            return mNextSiblings[node];
+        }
+
+        /**
+         * Returns the number of samples whose innermost frame is the frame of a node.
+         */
+        public long getSelfCount(int node) {
+            return mSelfCounts[node];
+        }
+
+        /**
+         * Returns the number of samples which went through a node.
+         */
+        public long getTotalCount(int node) {
+            return mTotalCounts[node];
+        }
+
+        /**
+         * Writes the samples in collapsed stack format: one line per stack, with the thread name
+         * and the frames separated by ';', then a space and the number of samples.
+         */
+        public void writeCollapsed(@NonNull Writer out) throws IOException {
+            StringBuilder stack = new StringBuilder(mThreadName.replace(';', '_'));
+            writeCollapsed(out, 0, stack);
+        }
+
+        private void writeCollapsed(Writer out, int node, StringBuilder stack) throws IOException {
+            int length = stack.length();
+            if (mSelfCounts[node] > 0) {
+                out.append(stack).append(' ').append(Long.toString(mSelfCounts[node]))
+                        .append('\n');
+            }
+            for (int child = mFirstChildren[node]; child >= 0; child = mNextSiblings[child]) {
+                stack.append(';').append(mFrameNames[mFrames[child]]);
+                writeCollapsed(out, child, stack);
+                stack.setLength(length);
+            }
+        }
+    }
+
+    private static final class Request {
+        final int mThreadId;
+        final long mSendTime;
+
+        Request(int threadId, long sendTime) {
+            mThreadId = threadId;
+            mSendTime = sendTime;
+        }
+    }
+
+    private final Client mClient;
+    private long mInterval = TimeUnit.MILLISECONDS.toNanos(20);
+    private int mMaxInFlight = 4;
+    private double mMaxDutyCycle = 0.1;
+
+    private volatile boolean mRunning;
+    private Thread mSamplingThread;
+    private Semaphore mInFlight;
+
+    /** The pending requests, by packet id. */
+    private final Map<Integer, Request> mPending = new ConcurrentHashMap<Integer, Request>();
+
+    private final AtomicLong mSamples = new AtomicLong();
+    private final AtomicLong mRounds = new AtomicLong();
+    private final AtomicLong mFailedRequests = new AtomicLong();
+    private volatile double mRoundTrip;
+    private volatile long mEffectiveInterval;
+
+    // guarded by this.
+    private final Map<Integer, CallTree> mTrees = new HashMap<Integer, CallTree>();
+    private String[] mFrameNames = new String[256];
+    private byte[][] mFrameKeys = new byte[256][];
+    private int[] mFrameClassLengths = new int[256];
+    private int[] mFrameHashes = new int[256];
+    private int mFrameCount;
+    private int[] mFrameTable = new int[512];
+
+    // client dispatch thread only (serial per client).
+    private byte[] mScratch = new byte[4096];
+    private int[] mStack = new int[64];
+
+    public StackSampler(@NonNull Client client) {
+        mClient = client;
+    }
+
+    /**
+     * Sets the minimum time between the start of two rounds of requests. Defaults to 20ms.
+     */
+    public void setInterval(long interval, @NonNull TimeUnit unit) {
+        mInterval = unit.toNanos(interval);
+    }
+
+    /**
+     * Sets the maximum number of pending requests. Defaults to 4.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        mMaxInFlight = maxInFlight;
+    }
+
+    /**
+     * Sets the maximum fraction of the time during which the VM serves requests of the sampler,
+     * estimated from their round trip. Defaults to 0.1.
+     */
+    public void setMaxDutyCycle(double maxDutyCycle) {
+        if (maxDutyCycle <= 0 || maxDutyCycle > 1) {
+            throw new IllegalArgumentException("maxDutyCycle must be in (0, 1]");
+        }
+        mMaxDutyCycle = maxDutyCycle;
+    }
+
+    /**
+     * Starts sampling, on a new thread. Enables the thread updates of the client if needed.
+     */
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        if (!mClient.isThreadUpdateEnabled()) {
+            mClient.setThreadUpdateEnabled(true);
+        }
+        mRunning = true;
+        mInFlight = new Semaphore(mMaxInFlight);
+        mPending.clear();
+        mClient.setStackSampler(this);
+        mSamplingThread = new Thread("Stack Sampler " + mClient) {
+            @Override
+            public void run() {
+                sampleLoop();
+            }
+        };
+        mSamplingThread.setDaemon(true);
+        mSamplingThread.start();
+    }
+
+    /**
+     * Stops sampling. The samples are kept.
+     */
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mSamplingThread.interrupt();
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Returns the number of stack traces merged into the call trees.
+     */
+    public long getSampleCount() {
+        return mSamples.get();
+    }
+
+    /**
+     * Returns the number of rounds of requests.
+     */
+    public long getRoundCount() {
+        return mRounds.get();
+    }
+
+    /**
+     * Returns the number of requests which failed or timed out, e.g. as their thread ended.
+     */
+    public long getFailedRequestCount() {
+        return mFailedRequests.get();
+    }
+
+    /**
+     * Returns the average round trip of the requests.
+     */
+    public long getAverageRoundTrip(@NonNull TimeUnit unit) {
+        return unit.convert((long) mRoundTrip, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the time between the start of two rounds, as tuned from the round trip.
+     */
+    public long getEffectiveInterval(@NonNull TimeUnit unit) {
+        return unit.convert(mEffectiveInterval, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the ids of the threads which were sampled.
+     */
+    @NonNull
+    public synchronized int[] getThreadIds() {
+        int[] ids = new int[mTrees.size()];
+        int i = 0;
+        for (Integer id : mTrees.keySet()) {
+            ids[i++] = id;
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Returns a copy of the call tree of a thread, or null if it was not sampled.
+     */
+    @Nullable
+    public synchronized CallTree getCallTree(int threadId) {
+        CallTree tree = mTrees.get(threadId);
+        return tree == null ? null : new CallTree(tree, mFrameNames);
+    }
+
+    /**
+     * Writes the samples of all the threads in collapsed stack format.
+     *
+     * @see CallTree#writeCollapsed(Writer)
+     */
+    public synchronized void writeCollapsed(@NonNull Writer out) throws IOException {
+        for (int threadId : getThreadIds()) {
+            new CallTree(mTrees.get(threadId), mFrameNames).writeCollapsed(out);
+        }
+    }
+
+    /**
+     * Discards the samples.
+     */
+    public synchronized void reset() {
+        mTrees.clear();
+        mSamples.set(0);
+    }
+
+    private void sampleLoop() {
+        try {
+            long nextRound = System.nanoTime();
+            while (mRunning && mClient.isValid()) {
+                long wait = nextRound - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                long start = System.nanoTime();
+                ThreadInfo[] threads = mClient.getClientData().getThreads();
+                HandleThread.sendTHST(mClient);
+                for (ThreadInfo thread : threads) {
+                    acquire();
+                    JdwpPacket packet = HandleThread.createSTKL(thread.getThreadId());
+                    mPending.put(packet.getId(),
+                            new Request(thread.getThreadId(), System.nanoTime()));
+                    HandleThread.sendSTKL(mClient, thread.getThreadId(), packet);
+                }
+                mRounds.incrementAndGet();
+
+                // the requests of a round are served about mMaxInFlight at a time.
+                long batches = (threads.length + mMaxInFlight - 1) / mMaxInFlight;
+                long busy = (long) (batches * mRoundTrip / mMaxDutyCycle);
+                mEffectiveInterval = Math.max(mInterval, busy);
+                nextRound = start + mEffectiveInterval;
+            }
+        } catch (InterruptedException e) {
+            // stopped.
+        } catch (IOException e) {
+            Log.d("ddms", "Stack sampling of " + mClient + " stopped: " + e.getMessage());
+        } finally {
+            mRunning = false;
+            mClient.clearStackSampler(this);
+            mPending.clear();
+        }
+    }
+
+    /**
+     * Waits for a request slot, giving up the requests which timed out.
+     */
+    private void acquire() throws InterruptedException {
+        while (!mInFlight.tryAcquire(REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            long expiry = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(REQUEST_TIMEOUT_MS);
+            Iterator<Request> iterator = mPending.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().mSendTime - expiry < 0) {
+                    iterator.remove();
+                    mFailedRequests.incrementAndGet();
+                    mInFlight.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether a reply is for a request of the sampler.
+     */
+    boolean isPending(int msgId) {
+        return mPending.containsKey(msgId);
+    }
+
+    /**
+     * Handles a failed request. Called on the client dispatch thread (serial per client).
+     */
+    void handleFailure(int msgId) {
+        if (mPending.remove(msgId) != null) {
+            mFailedRequests.incrementAndGet();
+            mInFlight.release();
+        }
+    }
+
+    /**
+     * Merges the stack trace of a STKL reply. Called on the client dispatch thread (serial per
+     * client).
+     */
+    void handleStackTrace(int msgId, ByteBuffer data) {
+        Request request = mPending.remove(msgId);
+        if (request == null) {
+            return;
+        }
+        mInFlight.release();
+        long roundTrip = System.nanoTime() - request.mSendTime;
+        double average = mRoundTrip;
+        mRoundTrip = average == 0 ? roundTrip
+                : average + (roundTrip - average) * ROUND_TRIP_WEIGHT;
+
+        int length = data.remaining();
+        if (mScratch.length < length) {
+            mScratch = new byte[Math.max(length, mScratch.length * 2)];
+        }
+        data.get(mScratch, 0, length);
+        byte[] b = mScratch;
+
+        // (4b) future, (4b) thread id, (4b) depth, then per frame (4b) class name length,
+        // class name, (4b) method name length, method name, (4b) file name length, file name,
+        // (4b) line number. Strings are UTF-16.
+        int threadId = readInt(b, 4);
+        int depth = readInt(b, 8);
+        if (mStack.length < depth) {
+            mStack = new int[Math.max(depth, mStack.length * 2)];
+        }
+        int p = 12;
+        synchronized (this) {
+            // the first frame is the innermost call.
+            for (int i = depth - 1; i >= 0; i--) {
+                int classStart = p + 4;
+                int classEnd = classStart + readInt(b, p) * 2;
+                int methodStart = classEnd + 4;
+                int methodEnd = methodStart + readInt(b, classEnd) * 2;
+                int fileEnd = methodEnd + 4 + readInt(b, methodEnd) * 2;
+                p = fileEnd + 4;
+                mStack[i] = internFrame(b, classStart, classEnd, methodStart, methodEnd);
+            }
+            CallTree tree = mTrees.get(request.mThreadId);
+            if (tree == null) {
+                tree = new CallTree(getThreadName(threadId));
+                mTrees.put(request.mThreadId, tree);
+            }
+            tree.add(mStack, depth);
+        }
+        mSamples.incrementAndGet();
+    }
+
+    private String getThreadName(int threadId) {
+        ThreadInfo thread = mClient.getClientData().getThread(threadId);
+        String name = thread != null ? thread.getThreadName() : null;
+        return name != null ? name : "Thread " + threadId;
+    }
+
+    private int internFrame(byte[] b, int classStart, int classEnd, int methodStart,
+            int methodEnd) {
+        int hash = 1;
+        for (int i = classStart; i < classEnd; i++) {
+            hash = 31 * hash + b[i];
+        }
+        for (int i = methodStart; i < methodEnd; i++) {
+            hash = 31 * hash + b[i];
+        }
+        int classLength = classEnd - classStart;
+        int methodLength = methodEnd - methodStart;
+        int mask = mFrameTable.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (true) {
+            int frame = mFrameTable[slot] - 1;
+            if (frame < 0) {
+                break;
+            }
+            byte[] key = mFrameKeys[frame];
+            if (mFrameHashes[frame] == hash && mFrameClassLengths[frame] == classLength
+                    && key.length == classLength + methodLength
+                    && regionEquals(key, 0, b, classStart, classLength)
+                    && regionEquals(key, classLength, b, methodStart, methodLength)) {
+                return frame;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int frame = mFrameCount++;
+        if (frame == mFrameNames.length) {
+            mFrameNames = Arrays.copyOf(mFrameNames, frame * 2);
+            mFrameKeys = Arrays.copyOf(mFrameKeys, frame * 2);
+            mFrameClassLengths = Arrays.copyOf(mFrameClassLengths, frame * 2);
+            mFrameHashes = Arrays.copyOf(mFrameHashes, frame * 2);
+        }
+        byte[] key = new byte[classLength + methodLength];
+        System.arraycopy(b, classStart, key, 0, classLength);
+        System.arraycopy(b, methodStart, key, classLength, methodLength);
+        mFrameKeys[frame] = key;
+        mFrameClassLengths[frame] = classLength;
+        mFrameHashes[frame] = hash;
+        mFrameNames[frame] = readString(b, classStart, classEnd) + "."
+                + readString(b, methodStart, methodEnd);
+        mFrameTable[slot] = frame + 1;
+        if (mFrameCount * 2 > mFrameTable.length) {
+            rehashFrames();
+        }
+        return frame;
+    }
+
+    private void rehashFrames() {
+        int[] table = new int[mFrameTable.length * 2];
+        int mask = table.length - 1;
+        for (int frame = 0; frame < mFrameCount; frame++) {
+            int hash = mFrameHashes[frame];
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = frame + 1;
+        }
+        mFrameTable = table;
+    }
+
+    private static boolean regionEquals(byte[] a, int aStart, byte[] b, int bStart, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aStart + i] != b[bStart + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readInt(byte[] b, int p) {
+        return (b[p] & 0xff) << 24 | (b[p + 1] & 0xff) << 16 | (b[p + 2] & 0xff) << 8
+                | (b[p + 3] & 0xff);
+    }
+
+    private static String readString(byte[] b, int start, int end) {
+        char[] chars = new char[(end - start) / 2];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ((b[start + 2 * i] & 0xff) << 8 | (b[start + 2 * i + 1] & 0xff));
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.ddmlib.utils.LineScanner;
+import com.google.common.base.Charsets;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Implementation of {@link IShellOutputReceiver} that splits the output in lines, and hands each
+ * of them to {@link #processNewLine(CharSequence)} as it becomes available.
+ *
+ * <p>Unlike {@link MultiLineReceiver}, no {@link String} or array is created per line: the lines
+ * are decoded into a single reused buffer. The {@link CharSequence} given to
+ * {@link #processNewLine(CharSequence)} is only valid for the duration of the call, and must be
+ * copied (e.g. with {@code toString()}) if it needs to be kept.
+ */
+public abstract class StreamingLineReceiver implements IShellOutputReceiver {
+
+    private static final int INITIAL_LINE_SIZE = 256;
+
+    private boolean mTrimLines = true;
+
+    private final LineScanner mScanner = new LineScanner();
+
+    private final CharsetDecoder mDecoder = Charsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private char[] mChars = new char[INITIAL_LINE_SIZE];
+    private CharBuffer mLine = CharBuffer.wrap(mChars);
+
+    private final LineScanner.LineHandler mLineHandler = new LineScanner.LineHandler() {
+        @Override
+        public void onLine(byte[] data, int offset, int length) {
+            int start = offset;
+            int end = offset + length;
+            if (mTrimLines) {
+                start = LineScanner.trimStart(data, start, end);
+                end = LineScanner.trimEnd(data, start, end);
+            }
+            processNewLine(decode(data, start, end - start));
+        }
+    };
+
+    private final LineScanner.LineHandler mUnfinishedLineHandler = new LineScanner.LineHandler() {
+        @Override
+        public void onLine(byte[] data, int offset, int length) {
+            processNewLine(decode(data, offset, length));
+        }
+    };
+
+    /**
+     * Set the trim lines flag.
+     *
+     * @param trim whether the lines are trimmed, or not.
+     */
+    public void setTrimLine(boolean trim) {
+        mTrimLines = trim;
+    }
+
+    @Override
+    public final void addOutput(byte[] data, int offset, int length) {
+        if (!isCancelled()) {
+            mScanner.scan(data, offset, length, mLineHandler);
+        }
+    }
+
+    @Override
+    public void flush() {
+        mScanner.flush(mUnfinishedLineHandler);
+
+        done();
+    }
+
+    /**
+     * Terminates the process. This is called after the last line has been through {@link
+     * #processNewLine(CharSequence)}.
+     */
+    public void done() {
+        // do nothing.
+    }
+
+    /**
+     * Called for each new line received from the remote process.
+     *
+     * @param line the line, without its terminator. Only valid until this method returns.
+     */
+    public abstract void processNewLine(@NonNull CharSequence line);
+
+    private CharSequence decode(byte[] data, int offset, int length) {
+        // UTF-8 never decodes to more chars than it has bytes
+        if (mChars.length < length) {
+            mChars = new char[Math.max(length, mChars.length * 2)];
+            mLine = CharBuffer.wrap(mChars);
+        }
+
+        // fast path for ASCII lines, which is most of them.
+        int i = 0;
+        while (i < length && data[offset + i] >= 0) {
+            mChars[i] = (char) data[offset + i];
+            i++;
+        }
+
+        mLine.clear();
+        if (i < length) {
+            mLine.position(i);
+            mDecoder.reset();
+            mDecoder.decode(ByteBuffer.wrap(data, offset + i, length - i), mLine, true);
+            mDecoder.flush(mLine);
+        } else {
+            mLine.position(length);
+        }
+        mLine.flip();
+        return mLine;
+    }
+}
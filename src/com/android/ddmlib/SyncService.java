@@ -279,8 +279,8 @@ public class SyncService {
             throw new SyncException(SyncError.TARGET_IS_FILE);
         }
 
-        // get a FileListingService object
-        FileListingService fls = new FileListingService(mDevice);
+        // get the FileListingService object of the device, to share its cache
+        FileListingService fls = mDevice.getFileListingService();
 
         // compute the number of file to move
         int total = getTotalRemoteFileSize(entries, fls);
@@ -420,8 +420,9 @@ public class SyncService {
         for (FileEntry e : entries) {
             int type = e.getType();
             if (type == FileListingService.TYPE_DIRECTORY) {
-                // get the children
-                FileEntry[] children = fls.getChildren(e, false, null);
+                // get the children. The first call lists the whole tree, and the recursive
+                // calls then use the cache.
+                FileEntry[] children = getChildrenRecursive(e, fls);
                 count += getTotalRemoteFileSize(children, fls) + 1;
             } else if (type == FileListingService.TYPE_FILE) {
                 count += e.getSizeValue();
@@ -431,6 +432,19 @@ public class SyncService {
         return count;
     }
 
+    /**
+     * Returns the children of a remote directory, listing the whole tree under it at once if
+     * it is not cached.
+     */
+    private static FileEntry[] getChildrenRecursive(FileEntry entry, FileListingService fls) {
+        try {
+            return fls.getChildrenRecursiveSync(entry, true);
+        } catch (Exception e) {
+            // fall back to listing the directory alone.
+            return fls.getChildren(entry, false, null);
+        }
+    }
+
     /**
      * compute the recursive file size of all the files in the list. Folder
      * have a weight of 1.
@@ -487,7 +501,7 @@ public class SyncService {
 
                 // then recursively call the content. Since we did a ls command
                 // to get the number of files, we can use the cache
-                FileEntry[] children = fileListingService.getChildren(e, true, null);
+                FileEntry[] children = getChildrenRecursive(e, fileListingService);
                 doPull(children, dest, fileListingService, monitor);
                 monitor.advance(1);
             } else if (type == FileListingService.TYPE_FILE) {
@@ -711,6 +725,9 @@ public class SyncService {
         byte[] result = new byte[8];
         AdbHelper.read(mChannel, result, -1 /* full length */, timeOut);
 
+        // the remote file changed, even if the transfer failed.
+        mDevice.invalidateFileListing(remotePath);
+
         if (!checkResult(result, ID_OKAY)) {
             throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR,
                     readErrorMessage(result, timeOut));
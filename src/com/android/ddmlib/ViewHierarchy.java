@@ -0,0 +1,691 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A view hierarchy dump, as returned by
+ * {@link HandleViewDebug#dumpViewHierarchy(Client, String, boolean, boolean,
+ * HandleViewDebug.ViewDumpHandler)}, stored as arrays indexed by view.
+ * <p>Views are numbered in the order of the dump, which is a pre-order: the descendants of a
+ * view are the views from its index + 1 to {@link #getSubtreeEnd(int)}. Class names and property
+ * keys are interned in a {@link StringPool} shared by the dumps of a {@link Parser}, and property
+ * values are kept as bytes of the dump until they are read.
+ * <p>Each view has a hash of its own content, and a hash of its subtree, which
+ * {@link ViewHierarchyDiff} uses to skip the unchanged subtrees.
+ */
+public final class ViewHierarchy {
+
+    private static final byte[] DONE = "DONE.".getBytes(StandardCharsets.US_ASCII);
+
+    private static final long HASH_SEED = 0xcbf29ce484222325L;
+    private static final long HASH_PRIME = 0x100000001b3L;
+
+    /**
+     * Interns the class names and property keys of the dumps, by their UTF-8 bytes.
+     * <p>Not thread safe: it is meant to be used by a single {@link Parser}.
+     */
+    public static final class StringPool {
+        private int[] mTable = new int[256];
+        private byte[][] mBytes = new byte[64][];
+        private String[] mStrings = new String[64];
+        private long[] mHashes = new long[64];
+        private int mCount;
+
+        /**
+         * Returns the id of a string, interning it if needed.
+         */
+        int intern(byte[] data, int start, int end) {
+            long hash = hash(HASH_SEED, data, start, end);
+            int mask = mTable.length - 1;
+            int slot = (int) (hash ^ (hash >>> 32)) & mask;
+            while (true) {
+                int id = mTable[slot] - 1;
+                if (id < 0) {
+                    break;
+                }
+                if (mHashes[id] == hash && equals(mBytes[id], data, start, end)) {
+                    return id;
+                }
+                slot = (slot + 1) & mask;
+            }
+            int id = mCount++;
+            if (id == mStrings.length) {
+                mBytes = Arrays.copyOf(mBytes, id * 2);
+                mStrings = Arrays.copyOf(mStrings, id * 2);
+                mHashes = Arrays.copyOf(mHashes, id * 2);
+            }
+            mBytes[id] = Arrays.copyOfRange(data, start, end);
+            mStrings[id] = new String(data, start, end - start, StandardCharsets.UTF_8);
+            mHashes[id] = hash;
+            mTable[slot] = id + 1;
+            if (mCount * 2 > mTable.length) {
+                rehash();
+            }
+            return id;
+        }
+
+        /**
+         * Returns the id of a string, or -1 if it was never interned.
+         */
+        int find(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            long hash = hash(HASH_SEED, bytes, 0, bytes.length);
+            int mask = mTable.length - 1;
+            int slot = (int) (hash ^ (hash >>> 32)) & mask;
+            while (true) {
+                int id = mTable[slot] - 1;
+                if (id < 0) {
+                    return -1;
+                }
+                if (mHashes[id] == hash && Arrays.equals(mBytes[id], bytes)) {
+                    return id;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        String getString(int id) {
+            return mStrings[id];
+        }
+
+        long getHash(int id) {
+            return mHashes[id];
+        }
+
+        private void rehash() {
+            int[] table = new int[mTable.length * 2];
+            int mask = table.length - 1;
+            for (int id = 0; id < mCount; id++) {
+                long hash = mHashes[id];
+                int slot = (int) (hash ^ (hash >>> 32)) & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = id + 1;
+            }
+            mTable = table;
+        }
+
+        private static boolean equals(byte[] bytes, byte[] data, int start, int end) {
+            if (bytes.length != end - start) {
+                return false;
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] != data[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Parses view hierarchy dumps, from bytes which can be fed as they arrive.
+     * <p>A parser can parse several dumps in turn, one at a time. Their class names and property
+     * keys share the same {@link StringPool}. Not thread safe.
+     */
+    public static final class Parser {
+        private final StringPool mPool;
+        private ViewHierarchy mHierarchy;
+        private int mPosition;
+        /** The views which are not closed yet, from the root. */
+        private int[] mStack = new int[32];
+        private int mStackSize;
+        private boolean mDone;
+
+        public Parser() {
+            this(new StringPool());
+        }
+
+        public Parser(@NonNull StringPool pool) {
+            mPool = pool;
+        }
+
+        @NonNull
+        public StringPool getPool() {
+            return mPool;
+        }
+
+        /**
+         * Parses a whole dump.
+         */
+        @NonNull
+        public ViewHierarchy parse(@NonNull ByteBuffer data) {
+            feed(data);
+            return finish();
+        }
+
+        /**
+         * Parses the next bytes of a dump, from the position to the limit of <var>data</var>. The
+         * lines are parsed as soon as they are complete.
+         */
+        public void feed(@NonNull ByteBuffer data) {
+            if (mHierarchy == null) {
+                mHierarchy = new ViewHierarchy(mPool, Math.max(data.remaining(), 256));
+                mPosition = 0;
+                mStackSize = 0;
+                mDone = false;
+            }
+            mHierarchy.append(data);
+            parseLines(false);
+        }
+
+        /**
+         * Parses the end of the dump, and returns it. The parser is then ready for the next dump.
+         */
+        @NonNull
+        public ViewHierarchy finish() {
+            if (mHierarchy == null) {
+                mHierarchy = new ViewHierarchy(mPool, 0);
+            }
+            parseLines(true);
+            while (mStackSize > 0) {
+                mHierarchy.close(mStack[--mStackSize]);
+            }
+            ViewHierarchy hierarchy = mHierarchy;
+            mHierarchy = null;
+            return hierarchy;
+        }
+
+        private void parseLines(boolean atEnd) {
+            ViewHierarchy h = mHierarchy;
+            while (!mDone && mPosition < h.mDataSize) {
+                int next = parseLine(h, mPosition, atEnd);
+                if (next < 0) {
+                    return;
+                }
+                mPosition = next;
+            }
+        }
+
+        /**
+         * Parses the line at <var>start</var>, and returns the position of the next line, or -1
+         * if the line is not complete yet.
+         */
+        private int parseLine(ViewHierarchy h, int start, boolean atEnd) {
+            byte[] b = h.mData;
+            int n = h.mDataSize;
+            int p = start;
+            while (p < n && b[p] == ' ') {
+                p++;
+            }
+            int depth = p - start;
+            if (p == n) {
+                return atEnd ? n : -1;
+            }
+            if (b[p] == '\n' || b[p] == '\r') {
+                return p + 1;
+            }
+            if (n - p < DONE.length && !atEnd) {
+                return -1;
+            }
+            if (startsWith(b, p, n, DONE)) {
+                mDone = true;
+                return n;
+            }
+
+            // name@hashCode
+            int nameStart = p;
+            while (p < n && b[p] != '@' && b[p] != '\n') {
+                p++;
+            }
+            if (p == n) {
+                return atEnd ? n : -1;
+            }
+            if (b[p] == '\n') {
+                // malformed line.
+                return p + 1;
+            }
+            int nameEnd = p++;
+            int hashCode = 0;
+            while (p < n && isHexDigit(b[p])) {
+                hashCode = (hashCode << 4) | Character.digit(b[p], 16);
+                p++;
+            }
+            if (p == n && !atEnd) {
+                return -1;
+            }
+
+            // key=length,value properties, where the length is in chars.
+            int firstProperty = h.mPropertyCount;
+            while (true) {
+                while (p < n && (b[p] == ' ' || b[p] == '\r')) {
+                    p++;
+                }
+                if (p == n) {
+                    if (!atEnd) {
+                        h.mPropertyCount = firstProperty;
+                        return -1;
+                    }
+                    break;
+                }
+                if (b[p] == '\n') {
+                    p++;
+                    break;
+                }
+                int keyStart = p;
+                while (p < n && b[p] != '=' && b[p] != '\n') {
+                    p++;
+                }
+                int keyEnd = p;
+                int length = 0;
+                boolean valid = p < n && b[p] == '=';
+                if (valid) {
+                    p++;
+                    while (p < n && b[p] >= '0' && b[p] <= '9') {
+                        length = length * 10 + (b[p++] - '0');
+                    }
+                    valid = p < n && b[p] == ',';
+                }
+                int valueEnd = valid ? skipChars(b, p + 1, n, length) : -1;
+                if (valueEnd < 0) {
+                    if (valid || p >= n) {
+                        // the value goes past the bytes received so far.
+                        if (!atEnd) {
+                            h.mPropertyCount = firstProperty;
+                            return -1;
+                        }
+                        p = n;
+                        break;
+                    }
+                    // malformed property: skip the rest of the line.
+                    while (p < n && b[p] != '\n') {
+                        p++;
+                    }
+                    continue;
+                }
+                h.addProperty(mPool.intern(b, keyStart, keyEnd), p + 1, valueEnd);
+                p = valueEnd;
+            }
+
+            while (mStackSize > 0 && h.mDepths[mStack[mStackSize - 1]] >= depth) {
+                h.close(mStack[--mStackSize]);
+            }
+            int parent = mStackSize > 0 ? mStack[mStackSize - 1] : -1;
+            int node = h.addNode(parent, depth, mPool.intern(b, nameStart, nameEnd), hashCode,
+                    firstProperty);
+            if (mStackSize == mStack.length) {
+                mStack = Arrays.copyOf(mStack, mStackSize * 2);
+            }
+            mStack[mStackSize++] = node;
+            return p;
+        }
+
+        /**
+         * Returns the position after <var>count</var> UTF-16 chars encoded in UTF-8 from
+         * <var>p</var>, or -1 if they go past <var>n</var>.
+         */
+        private static int skipChars(byte[] b, int p, int n, int count) {
+            while (count > 0) {
+                if (p >= n) {
+                    return -1;
+                }
+                int c = b[p] & 0xff;
+                if (c < 0x80) {
+                    p++;
+                    count--;
+                } else if (c < 0xe0) {
+                    p += 2;
+                    count--;
+                } else if (c < 0xf0) {
+                    p += 3;
+                    count--;
+                } else {
+                    // a surrogate pair.
+                    p += 4;
+                    count -= 2;
+                }
+            }
+            return p <= n ? p : -1;
+        }
+
+        private static boolean isHexDigit(byte c) {
+            return c >= '0' && c <= '9' || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F';
+        }
+
+        private static boolean startsWith(byte[] b, int p, int n, byte[] prefix) {
+            if (n - p < prefix.length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (b[p + i] != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final StringPool mPool;
+
+    private byte[] mData;
+    private int mDataSize;
+
+    private int mCount;
+    private int[] mParents = new int[64];
+    private int[] mDepths = new int[64];
+    private int[] mSubtreeEnds = new int[64];
+    private int[] mNameIds = new int[64];
+    private int[] mHashCodes = new int[64];
+    private int[] mFirstProperties = new int[65];
+    private long[] mContentHashes = new long[64];
+    private long[] mSubtreeHashes = new long[64];
+
+    private int mPropertyCount;
+    private int[] mKeyIds = new int[1024];
+    private int[] mValueStarts = new int[1024];
+    private int[] mValueEnds = new int[1024];
+
+    private ViewHierarchy(StringPool pool, int capacity) {
+        mPool = pool;
+        mData = new byte[capacity];
+    }
+
+    private void append(ByteBuffer data) {
+        int length = data.remaining();
+        if (mDataSize + length > mData.length) {
+            mData = Arrays.copyOf(mData, Math.max(mDataSize + length, mData.length * 2));
+        }
+        data.get(mData, mDataSize, length);
+        mDataSize += length;
+    }
+
+    private void addProperty(int keyId, int valueStart, int valueEnd) {
+        if (mPropertyCount == mKeyIds.length) {
+            int capacity = mPropertyCount * 2;
+            mKeyIds = Arrays.copyOf(mKeyIds, capacity);
+            mValueStarts = Arrays.copyOf(mValueStarts, capacity);
+            mValueEnds = Arrays.copyOf(mValueEnds, capacity);
+        }
+        mKeyIds[mPropertyCount] = keyId;
+        mValueStarts[mPropertyCount] = valueStart;
+        mValueEnds[mPropertyCount] = valueEnd;
+        mPropertyCount++;
+    }
+
+    private int addNode(int parent, int depth, int nameId, int hashCode, int firstProperty) {
+        if (mCount == mParents.length) {
+            int capacity = mCount * 2;
+            mParents = Arrays.copyOf(mParents, capacity);
+            mDepths = Arrays.copyOf(mDepths, capacity);
+            mSubtreeEnds = Arrays.copyOf(mSubtreeEnds, capacity);
+            mNameIds = Arrays.copyOf(mNameIds, capacity);
+            mHashCodes = Arrays.copyOf(mHashCodes, capacity);
+            mFirstProperties = Arrays.copyOf(mFirstProperties, capacity + 1);
+            mContentHashes = Arrays.copyOf(mContentHashes, capacity);
+            mSubtreeHashes = Arrays.copyOf(mSubtreeHashes, capacity);
+        }
+        int node = mCount++;
+        mParents[node] = parent;
+        mDepths[node] = depth;
+        mNameIds[node] = nameId;
+        mHashCodes[node] = hashCode;
+        mFirstProperties[node] = firstProperty;
+        mFirstProperties[node + 1] = mPropertyCount;
+
+        long hash = mix(mix(HASH_SEED, mPool.getHash(nameId)), hashCode);
+        for (int i = firstProperty; i < mPropertyCount; i++) {
+            hash = mix(hash, mPool.getHash(mKeyIds[i]));
+            hash = hash(hash, mData, mValueStarts[i], mValueEnds[i]);
+        }
+        mContentHashes[node] = hash;
+        return node;
+    }
+
+    /**
+     * Closes a view once all its descendants were added.
+     */
+    private void close(int node) {
+        mSubtreeEnds[node] = mCount;
+        long hash = mContentHashes[node];
+        for (int child = node + 1; child < mCount; child = mSubtreeEnds[child]) {
+            hash = mix(hash, mSubtreeHashes[child]);
+        }
+        mSubtreeHashes[node] = mix(hash, mCount - node);
+    }
+
+    private static long mix(long hash, long value) {
+        hash = (hash ^ value) * HASH_PRIME;
+        return hash ^ (hash >>> 29);
+    }
+
+    private static long hash(long hash, byte[] data, int start, int end) {
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ data[i]) * HASH_PRIME;
+        }
+        return hash;
+    }
+
+    @NonNull
+    public StringPool getPool() {
+        return mPool;
+    }
+
+    /**
+     * Returns the number of views.
+     */
+    public int getNodeCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the parent of a view, or -1 for the root.
+     */
+    public int getParent(int node) {
+        return mParents[node];
+    }
+
+    /**
+     * Returns the depth of a view, as indented in the dump.
+     */
+    public int getDepth(int node) {
+        return mDepths[node];
+    }
+
+    /**
+     * Returns the index after the last descendant of a view.
+     */
+    public int getSubtreeEnd(int node) {
+        return mSubtreeEnds[node];
+    }
+
+    /**
+     * Returns the first child of a view, or -1 if it has none.
+     */
+    public int getFirstChild(int node) {
+        return node + 1 < mSubtreeEnds[node] ? node + 1 : -1;
+    }
+
+    /**
+     * Returns the next sibling of a view, or -1 if it is the last child of its parent.
+     */
+    public int getNextSibling(int node) {
+        int next = mSubtreeEnds[node];
+        int parent = mParents[node];
+        int end = parent >= 0 ? mSubtreeEnds[parent] : mCount;
+        return next < end ? next : -1;
+    }
+
+    public int getChildCount(int node) {
+        int count = 0;
+        for (int child = getFirstChild(node); child >= 0; child = getNextSibling(child)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the class name of a view.
+     */
+    @NonNull
+    public String getName(int node) {
+        return mPool.getString(mNameIds[node]);
+    }
+
+    int getNameId(int node) {
+        return mNameIds[node];
+    }
+
+    /**
+     * Returns the identity hash code of a view, which identifies it across dumps.
+     */
+    public int getHashCode(int node) {
+        return mHashCodes[node];
+    }
+
+    /**
+     * Returns the name of a view as used by the view debug commands: its class name, '@', and
+     * its hash code in hexadecimal.
+     */
+    @NonNull
+    public String getViewName(int node) {
+        return getName(node) + "@" + Integer.toHexString(mHashCodes[node]);
+    }
+
+    /**
+     * Returns a hash of the class name, hash code and properties of a view.
+     */
+    public long getContentHash(int node) {
+        return mContentHashes[node];
+    }
+
+    /**
+     * Returns a hash of the content of a view and of its descendants.
+     */
+    public long getSubtreeHash(int node) {
+        return mSubtreeHashes[node];
+    }
+
+    public int getPropertyCount(int node) {
+        return mFirstProperties[node + 1] - mFirstProperties[node];
+    }
+
+    @NonNull
+    public String getPropertyKey(int node, int property) {
+        return mPool.getString(getKeyId(node, property));
+    }
+
+    int getKeyId(int node, int property) {
+        return mKeyIds[mFirstProperties[node] + property];
+    }
+
+    @NonNull
+    public String getPropertyValue(int node, int property) {
+        int i = mFirstProperties[node] + property;
+        return new String(mData, mValueStarts[i], mValueEnds[i] - mValueStarts[i],
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns whether a property of a view has the same value as a property of a view of
+     * another dump.
+     */
+    boolean valueEquals(int node, int property, ViewHierarchy other, int otherNode,
+            int otherProperty) {
+        int i = mFirstProperties[node] + property;
+        int j = other.mFirstProperties[otherNode] + otherProperty;
+        int length = mValueEnds[i] - mValueStarts[i];
+        if (length != other.mValueEnds[j] - other.mValueStarts[j]) {
+            return false;
+        }
+        for (int k = 0; k < length; k++) {
+            if (mData[mValueStarts[i] + k] != other.mData[other.mValueStarts[j] + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of a property of a view, or -1 if the view does not have it.
+     */
+    public int findProperty(int node, @NonNull String key) {
+        int keyId = mPool.find(key);
+        if (keyId < 0) {
+            return -1;
+        }
+        return findProperty(node, keyId);
+    }
+
+    int findProperty(int node, int keyId) {
+        int first = mFirstProperties[node];
+        int end = mFirstProperties[node + 1];
+        for (int i = first; i < end; i++) {
+            if (mKeyIds[i] == keyId) {
+                return i - first;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the value of a property of a view, or null if the view does not have it.
+     */
+    @Nullable
+    public String getProperty(int node, @NonNull String key) {
+        int property = findProperty(node, key);
+        return property >= 0 ? getPropertyValue(node, property) : null;
+    }
+
+    /**
+     * Returns the value of an integer property of a view, read from the bytes of the dump.
+     */
+    public int getIntProperty(int node, @NonNull String key, int defaultValue) {
+        int property = findProperty(node, key);
+        if (property < 0) {
+            return defaultValue;
+        }
+        int i = mFirstProperties[node] + property;
+        int p = mValueStarts[i];
+        int end = mValueEnds[i];
+        boolean negative = p < end && mData[p] == '-';
+        if (negative) {
+            p++;
+        }
+        if (p == end) {
+            return defaultValue;
+        }
+        long value = 0;
+        for (; p < end; p++) {
+            byte c = mData[p];
+            if (c < '0' || c > '9' || value > Integer.MAX_VALUE) {
+                return defaultValue;
+            }
+            value = value * 10 + (c - '0');
+        }
+        value = negative ? -value : value;
+        return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? defaultValue : (int) value;
+    }
+
+    /**
+     * Returns the first view with a class name and hash code, or -1.
+     */
+    public int findView(@NonNull String name, int hashCode) {
+        for (int i = 0; i < mCount; i++) {
+            if (mHashCodes[i] == hashCode && getName(i).equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The structural differences between two dumps of a view hierarchy.
+ * <p>Views are matched across the dumps by class name and hash code. A subtree whose
+ * {@link ViewHierarchy#getSubtreeHash(int) hash} did not change is skipped as a whole, so the
+ * cost of a diff mostly depends on how much changed.
+ * <p>A view whose parent is added is only reported within the added subtree: a view moved under
+ * a new parent shows as removed and added.
+ */
+public final class ViewHierarchyDiff {
+
+    private static final int[] EMPTY = new int[0];
+
+    private final ViewHierarchy mPrevious;
+    private final ViewHierarchy mCurrent;
+
+    /** For each view of the current dump, the matching view of the previous one, or -1. */
+    private final int[] mMatches;
+
+    private int[] mAdded = EMPTY;
+    private int mAddedCount;
+    private int[] mRemoved = EMPTY;
+    private int mRemovedCount;
+    private int[] mChanged = EMPTY;
+    private int mChangedCount;
+    private int[] mRestructured = EMPTY;
+    private int mRestructuredCount;
+
+    private ViewHierarchyDiff(ViewHierarchy previous, ViewHierarchy current) {
+        mPrevious = previous;
+        mCurrent = current;
+        mMatches = new int[current.getNodeCount()];
+        Arrays.fill(mMatches, -1);
+    }
+
+    /**
+     * Computes the differences from <var>previous</var> to <var>current</var>.
+     *
+     * @param previous the previous dump, or null to report all the views as added.
+     */
+    @NonNull
+    public static ViewHierarchyDiff compute(@Nullable ViewHierarchy previous,
+            @NonNull ViewHierarchy current) {
+        if (previous == null) {
+            previous = new ViewHierarchy.Parser(current.getPool()).finish();
+        }
+        ViewHierarchyDiff diff = new ViewHierarchyDiff(previous, current);
+        diff.compute();
+        return diff;
+    }
+
+    private void compute() {
+        int previousCount = mPrevious.getNodeCount();
+        int count = mCurrent.getNodeCount();
+
+        // previous views sorted by hash code, then index.
+        long[] index = new long[previousCount];
+        for (int i = 0; i < previousCount; i++) {
+            index[i] = ((long) mPrevious.getHashCode(i) << 32) | i;
+        }
+        Arrays.sort(index);
+
+        boolean[] matched = new boolean[previousCount];
+        int i = 0;
+        while (i < count) {
+            int match = findMatch(index, matched, i);
+            if (match < 0) {
+                mAdded = add(mAdded, mAddedCount++, i);
+                i = mCurrent.getSubtreeEnd(i);
+                continue;
+            }
+            mMatches[i] = match;
+            matched[match] = true;
+            if (mCurrent.getSubtreeHash(i) == mPrevious.getSubtreeHash(match)
+                    && mCurrent.getSubtreeEnd(i) - i
+                            == mPrevious.getSubtreeEnd(match) - match) {
+                int end = mCurrent.getSubtreeEnd(i);
+                for (int offset = 1; i + offset < end; offset++) {
+                    mMatches[i + offset] = match + offset;
+                    matched[match + offset] = true;
+                }
+                i = end;
+                continue;
+            }
+            if (mCurrent.getContentHash(i) != mPrevious.getContentHash(match)) {
+                mChanged = add(mChanged, mChangedCount++, i);
+            }
+            if (!sameChildren(i, match)) {
+                mRestructured = add(mRestructured, mRestructuredCount++, i);
+            }
+            i++;
+        }
+
+        for (int j = 0; j < previousCount; j++) {
+            int parent = mPrevious.getParent(j);
+            if (!matched[j] && (parent < 0 || matched[parent])) {
+                mRemoved = add(mRemoved, mRemovedCount++, j);
+            }
+        }
+    }
+
+    /**
+     * Returns the first previous view not matched yet with the same class name and hash code as
+     * a current view, or -1.
+     */
+    private int findMatch(long[] index, boolean[] matched, int node) {
+        long key = (long) mCurrent.getHashCode(node) << 32;
+        int position = Arrays.binarySearch(index, key);
+        if (position < 0) {
+            position = -position - 1;
+        }
+        String name = null;
+        for (; position < index.length && (index[position] & 0xffffffff00000000L) == key;
+                position++) {
+            int candidate = (int) index[position];
+            if (matched[candidate]) {
+                continue;
+            }
+            if (mPrevious.getPool() == mCurrent.getPool()) {
+                if (mPrevious.getNameId(candidate) == mCurrent.getNameId(node)) {
+                    return candidate;
+                }
+            } else {
+                if (name == null) {
+                    name = mCurrent.getName(node);
+                }
+                if (mPrevious.getName(candidate).equals(name)) {
+                    return candidate;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns whether two views have children with the same hash codes, in the same order.
+     */
+    private boolean sameChildren(int node, int previousNode) {
+        int child = mCurrent.getFirstChild(node);
+        int previousChild = mPrevious.getFirstChild(previousNode);
+        while (child >= 0 && previousChild >= 0) {
+            if (mCurrent.getHashCode(child) != mPrevious.getHashCode(previousChild)) {
+                return false;
+            }
+            child = mCurrent.getNextSibling(child);
+            previousChild = mPrevious.getNextSibling(previousChild);
+        }
+        return child < 0 && previousChild < 0;
+    }
+
+    private static int[] add(int[] array, int count, int value) {
+        if (count == array.length) {
+            array = Arrays.copyOf(array, Math.max(8, count * 2));
+        }
+        array[count] = value;
+        return array;
+    }
+
+    @NonNull
+    public ViewHierarchy getPrevious() {
+        return mPrevious;
+    }
+
+    @NonNull
+    public ViewHierarchy getCurrent() {
+        return mCurrent;
+    }
+
+    /**
+     * Returns whether the two dumps have the same views, with the same properties.
+     */
+    public boolean isEmpty() {
+        return mAddedCount == 0 && mRemovedCount == 0 && mChangedCount == 0
+                && mRestructuredCount == 0;
+    }
+
+    /**
+     * Returns the view of the previous dump matching a view of the current one, or -1 if the
+     * view was added.
+     */
+    public int getPreviousNode(int node) {
+        return mMatches[node];
+    }
+
+    /**
+     * Returns the roots of the added subtrees, as views of the current dump.
+     */
+    @NonNull
+    public int[] getAddedNodes() {
+        return Arrays.copyOf(mAdded, mAddedCount);
+    }
+
+    /**
+     * Returns the roots of the removed subtrees, as views of the previous dump.
+     */
+    @NonNull
+    public int[] getRemovedNodes() {
+        return Arrays.copyOf(mRemoved, mRemovedCount);
+    }
+
+    /**
+     * Returns the views of the current dump whose properties changed.
+     */
+    @NonNull
+    public int[] getChangedNodes() {
+        return Arrays.copyOf(mChanged, mChangedCount);
+    }
+
+    /**
+     * Returns the views of the current dump whose children were added, removed or reordered.
+     */
+    @NonNull
+    public int[] getRestructuredNodes() {
+        return Arrays.copyOf(mRestructured, mRestructuredCount);
+    }
+
+    /**
+     * Returns the smallest set of subtrees of the current dump which contain all the changes:
+     * the topmost views which are added, changed or restructured, in the order of the dump.
+     */
+    @NonNull
+    public int[] getChangedSubtrees() {
+        int count = mCurrent.getNodeCount();
+        boolean[] marked = new boolean[count];
+        for (int i = 0; i < mAddedCount; i++) {
+            marked[mAdded[i]] = true;
+        }
+        for (int i = 0; i < mChangedCount; i++) {
+            marked[mChanged[i]] = true;
+        }
+        for (int i = 0; i < mRestructuredCount; i++) {
+            marked[mRestructured[i]] = true;
+        }
+        int[] roots = EMPTY;
+        int rootCount = 0;
+        int i = 0;
+        while (i < count) {
+            if (marked[i]) {
+                roots = add(roots, rootCount++, i);
+                i = mCurrent.getSubtreeEnd(i);
+            } else {
+                i++;
+            }
+        }
+        return Arrays.copyOf(roots, rootCount);
+    }
+
+    /**
+     * Returns the keys of the properties which were added, removed or changed on a view of the
+     * current dump.
+     */
+    @NonNull
+    public List<String> getChangedProperties(int node) {
+        List<String> keys = new ArrayList<String>();
+        int previousNode = mMatches[node];
+        int count = mCurrent.getPropertyCount(node);
+        if (previousNode < 0) {
+            for (int p = 0; p < count; p++) {
+                keys.add(mCurrent.getPropertyKey(node, p));
+            }
+            return keys;
+        }
+        boolean samePool = mPrevious.getPool() == mCurrent.getPool();
+        int previousCount = mPrevious.getPropertyCount(previousNode);
+        boolean[] seen = new boolean[previousCount];
+        for (int p = 0; p < count; p++) {
+            int previousProperty;
+            // dumps list the properties in the same order, so try the same index first.
+            if (p < previousCount && sameKey(node, p, previousNode, p, samePool)) {
+                previousProperty = p;
+            } else if (samePool) {
+                previousProperty = mPrevious.findProperty(previousNode,
+                        mCurrent.getKeyId(node, p));
+            } else {
+                previousProperty = mPrevious.findProperty(previousNode,
+                        mCurrent.getPropertyKey(node, p));
+            }
+            if (previousProperty < 0) {
+                keys.add(mCurrent.getPropertyKey(node, p));
+                continue;
+            }
+            seen[previousProperty] = true;
+            if (!mCurrent.valueEquals(node, p, mPrevious, previousNode, previousProperty)) {
+                keys.add(mCurrent.getPropertyKey(node, p));
+            }
+        }
+        for (int p = 0; p < previousCount; p++) {
+            if (!seen[p]) {
+                keys.add(mPrevious.getPropertyKey(previousNode, p));
+            }
+        }
+        return keys;
+    }
+
+    private boolean sameKey(int node, int property, int previousNode, int previousProperty,
+            boolean samePool) {
+        if (samePool) {
+            return mCurrent.getKeyId(node, property)
+                    == mPrevious.getKeyId(previousNode, previousProperty);
+        }
+        return mCurrent.getPropertyKey(node, property)
+                .equals(mPrevious.getPropertyKey(previousNode, previousProperty));
+    }
+}
@@ -17,15 +17,68 @@ package com.android.ddmlib.jdwp;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.ddmlib.DdmPreferences;
 import com.android.ddmlib.JdwpPacket;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 public abstract class JdwpAgent {
 
+    /**
+     * The time spent in an interceptor by the packets received by an agent.
+     * <p>Only the thread intercepting the packets of the agent updates it.
+     */
+    public static final class InterceptorStats {
+        @NonNull
+        private final JdwpInterceptor mInterceptor;
+        private volatile long mCount;
+        private volatile long mTotalTime;
+        private volatile long mMaxTime;
+
+        private InterceptorStats(@NonNull JdwpInterceptor interceptor) {
+            mInterceptor = interceptor;
+        }
+
+        private void record(long time) {
+            mCount++;
+            mTotalTime += time;
+            if (time > mMaxTime) {
+                mMaxTime = time;
+            }
+        }
+
+        @NonNull
+        public JdwpInterceptor getInterceptor() {
+            return mInterceptor;
+        }
+
+        /**
+         * Returns the number of packets which went through the interceptor.
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getTotalTime(@NonNull TimeUnit unit) {
+            return unit.convert(mTotalTime, TimeUnit.NANOSECONDS);
+        }
+
+        public long getMaxTime(@NonNull TimeUnit unit) {
+            return unit.convert(mMaxTime, TimeUnit.NANOSECONDS);
+        }
+
+        public long getAverageTime(@NonNull TimeUnit unit) {
+            long count = mCount;
+            return count == 0 ? 0 : unit.convert(mTotalTime / count, TimeUnit.NANOSECONDS);
+        }
+    }
+
     /**
      * Interceptors waiting for a specific reply id.
      */
@@ -33,15 +86,23 @@ public abstract class JdwpAgent {
     private final ConcurrentMap<Integer, JdwpInterceptor> mReplyInterceptors;
 
     @NonNull
-    private final List<JdwpInterceptor> mInterceptors;
+    private final List<InterceptorStats> mInterceptors;
 
     @NonNull
     private final JdwpProtocol mProtocol;
 
+    /**
+     * Runs the interceptors off the thread reading the packets, or null to run them inline.
+     */
+    @Nullable
+    private final JdwpPipeline mPipeline;
+
     public JdwpAgent(@NonNull JdwpProtocol protocol) {
         mReplyInterceptors = new ConcurrentHashMap<Integer, JdwpInterceptor>();
-        mInterceptors = new LinkedList<JdwpInterceptor>();
+        mInterceptors = new CopyOnWriteArrayList<InterceptorStats>();
         mProtocol = protocol;
+        mPipeline = DdmPreferences.getJdwpPipelineThreadCount() > 0
+                ? new JdwpPipeline(this) : null;
     }
 
     /**
@@ -64,14 +125,83 @@ public abstract class JdwpAgent {
     }
 
     public void addJdwpInterceptor(@NonNull JdwpInterceptor interceptor) {
-        mInterceptors.add(interceptor);
+        mInterceptors.add(new InterceptorStats(interceptor));
     }
 
     public void removeJdwpInterceptor(@NonNull JdwpInterceptor interceptor) {
-        mInterceptors.remove(interceptor);
+        for (InterceptorStats stats : mInterceptors) {
+            if (stats.mInterceptor == interceptor) {
+                mInterceptors.remove(stats);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the time spent in each interceptor, in the order they run.
+     */
+    @NonNull
+    public List<InterceptorStats> getInterceptorStats() {
+        return Collections.unmodifiableList(new ArrayList<InterceptorStats>(mInterceptors));
+    }
+
+    /**
+     * Returns the number of received packets waiting for their interceptors.
+     */
+    public int getPendingPacketCount() {
+        return mPipeline != null ? mPipeline.getPendingCount() : 0;
     }
 
+    /**
+     * Returns the average time between the reception of a packet and the end of the
+     * interception and forwarding of its batch, or 0 when interceptors run inline.
+     */
+    public long getAveragePipelineLatency(@NonNull TimeUnit unit) {
+        return mPipeline != null ? mPipeline.getAverageLatency(unit) : 0;
+    }
+
+    /**
+     * Returns whether the packets received by this agent can't be queued for their interceptors
+     * for now. The reader must then leave the packets in its buffer and stop reading, without
+     * blocking, until {@link #resumeIncoming()} is called.
+     */
+    public boolean isIncomingPaused() {
+        return mPipeline != null && mPipeline.pauseIfFull();
+    }
+
+    /**
+     * Called on a pipeline thread once received packets can be queued again, after
+     * {@link #isIncomingPaused()} returned true.
+     */
+    protected void resumeIncoming() {
+    }
+
+    /**
+     * Runs the interceptors of a received packet, and forwards it to <var>target</var> unless
+     * an interceptor consumed it.
+     * <p>The packet is only valid during this call. Unless
+     * {@link DdmPreferences#getJdwpPipelineThreadCount()} is 0, it is copied, and intercepted
+     * and forwarded on a pipeline thread, in order with the other packets of this agent;
+     * failures of the forwarding are then reported to {@link #incomingFailed(IOException)}.
+     * Callers must check {@link #isIncomingPaused()} first.
+     */
     public void incoming(@NonNull JdwpPacket packet, @Nullable JdwpAgent target) throws IOException {
+        if (mPipeline != null) {
+            mPipeline.offer(packet.copy(), target);
+            return;
+        }
+        packet = intercept(packet, target);
+        if (target != null && packet != null) {
+            target.send(packet);
+        }
+    }
+
+    /**
+     * Runs the interceptors of a received packet, and returns it, or null if an interceptor
+     * consumed it.
+     */
+    @Nullable
+    JdwpPacket intercept(@NonNull JdwpPacket packet, @Nullable JdwpAgent target) {
         mProtocol.incoming(packet, target);
         int id = packet.getId();
         if (packet.isReply()) {
@@ -80,14 +210,21 @@ public abstract class JdwpAgent {
                 packet = interceptor.intercept(this, packet);
             }
         }
-        for (JdwpInterceptor interceptor : mInterceptors) {
+        for (InterceptorStats stats : mInterceptors) {
             if (packet == null) break;
-            packet = interceptor.intercept(this, packet);
+            long start = System.nanoTime();
+            packet = stats.mInterceptor.intercept(this, packet);
+            stats.record(System.nanoTime() - start);
         }
+        return packet;
+    }
 
-        if (target != null && packet != null) {
-            target.send(packet);
-        }
+    /**
+     * Called on the pipeline thread when forwarding the packets received by this agent failed.
+     * In the inline mode, the exception is thrown by {@link #incoming(JdwpPacket, JdwpAgent)}
+     * instead.
+     */
+    protected void incomingFailed(@NonNull IOException e) {
     }
 
     public void send(@NonNull JdwpPacket packet, @NonNull JdwpInterceptor interceptor) throws IOException {
@@ -97,6 +234,21 @@ public abstract class JdwpAgent {
 
     protected abstract void send(@NonNull JdwpPacket packet) throws IOException;
 
+    /**
+     * Sends the first <var>count</var> packets, in order, from a pipeline thread. Agents writing
+     * to a channel should override this to write them at once, without blocking.
+     * @param onWritable run once the agent can take more packets, if this returns false.
+     * @return true, or false if the agent keeps the packets to send them once its channel is
+     * writable: the caller must then wait for <var>onWritable</var> before sending more.
+     */
+    protected boolean send(@NonNull JdwpPacket[] packets, int count,
+            @NonNull Runnable onWritable) throws IOException {
+        for (int i = 0; i < count; i++) {
+            send(packets[i]);
+        }
+        return true;
+    }
+
     @NonNull
     public JdwpProtocol getJdwpProtocol() {
         return mProtocol;
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.jdwp;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.DdmPreferences;
+import com.android.ddmlib.JdwpPacket;
+import com.android.ddmlib.Log;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the interceptors of the packets received by a {@link JdwpAgent} off the thread reading
+ * them, and forwards the packets to their target in batches.
+ * <p>Packets go through a bounded ring with a single producer, the thread reading the agent's
+ * channel, and a single consumer at a time, a task on a shared executor which is scheduled when
+ * the ring becomes non-empty. The task drains at most {@link #MAX_BATCH} packets before
+ * scheduling itself again, so that the agents sharing the executor take turns.
+ * <p>The producer never waits: when the ring is full, it must stop reading the channel, and is
+ * told with {@link JdwpAgent#resumeIncoming()} once the consumer made room.
+ * <p>The consumer never waits either: when the target of a batch can't write it for now, the
+ * task gives up its thread, and the draining goes on once the target wrote it, leaving the
+ * packets in the ring meanwhile.
+ */
+final class JdwpPipeline {
+
+    private static final int CAPACITY = 1024;
+
+    /** Maximum number of packets processed by a run of the drain task. */
+    private static final int MAX_BATCH = 64;
+
+    /** Weight of the last batch in the average latency. */
+    private static final double LATENCY_WEIGHT = 0.125;
+
+    // states of the last write to a target.
+    private static final int WRITE_DONE = 0;
+    /** The target kept the batch, and will run {@link #mResume} once it wrote it. */
+    private static final int WRITE_PENDING = 1;
+    /** As pending, and the drain task gave up its thread until {@link #mResume} runs. */
+    private static final int WRITE_PARKED = 2;
+
+    private static ExecutorService sExecutor;
+
+    private final JdwpAgent mAgent;
+
+    private final JdwpPacket[] mPackets = new JdwpPacket[CAPACITY];
+    private final JdwpAgent[] mTargets = new JdwpAgent[CAPACITY];
+    private final long[] mEnqueueTimes = new long[CAPACITY];
+
+    /** Next slot to read, only written by the consumer. */
+    private final AtomicLong mHead = new AtomicLong();
+    /** Next slot to write, only written by the producer. */
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    /** Whether the producer found the ring full, and waits for {@link JdwpAgent#resumeIncoming()}. */
+    private final AtomicBoolean mPaused = new AtomicBoolean();
+
+    private final AtomicInteger mWriteState = new AtomicInteger(WRITE_DONE);
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /** Run by the target of a batch once it wrote it, after it returned false from send. */
+    private final Runnable mResume = new Runnable() {
+        @Override
+        public void run() {
+            if (mWriteState.getAndSet(WRITE_DONE) == WRITE_PARKED) {
+                // still scheduled: the task can run again right away.
+                execute();
+            }
+        }
+    };
+
+    // consumer only. A batch may be left for the next drain when its target can't take it.
+    private final JdwpPacket[] mBatch = new JdwpPacket[MAX_BATCH];
+    private int mBatchCount;
+    private JdwpAgent mBatchTarget;
+
+    private volatile double mLatency;
+
+    JdwpPipeline(@NonNull JdwpAgent agent) {
+        mAgent = agent;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(
+                    Math.max(1, DdmPreferences.getJdwpPipelineThreadCount()),
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("JDWP Pipeline-%d")
+                            .setDaemon(true)
+                            .build());
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Returns whether the ring is full, in which case {@link JdwpAgent#resumeIncoming()} will be
+     * called once it is not anymore.
+     */
+    boolean pauseIfFull() {
+        if (mTail.get() - mHead.get() < CAPACITY) {
+            return false;
+        }
+        mPaused.set(true);
+        // the consumer may have made room before seeing the flag.
+        if (mTail.get() - mHead.get() < CAPACITY && mPaused.compareAndSet(true, false)) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Queues a packet, which must not be shared with the producer's read buffer. The ring must
+     * not be full, see {@link #pauseIfFull()}.
+     */
+    void offer(@NonNull JdwpPacket packet, @Nullable JdwpAgent target) {
+        long tail = mTail.get();
+        if (tail - mHead.get() == CAPACITY) {
+            throw new IllegalStateException("JDWP pipeline full for " + mAgent);
+        }
+        int slot = (int) (tail & (CAPACITY - 1));
+        mPackets[slot] = packet;
+        mTargets[slot] = target;
+        mEnqueueTimes[slot] = System.nanoTime();
+        mTail.lazySet(tail + 1);
+        schedule();
+    }
+
+    int getPendingCount() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    long getAverageLatency(@NonNull TimeUnit unit) {
+        return unit.convert((long) mLatency, TimeUnit.NANOSECONDS);
+    }
+
+    private void schedule() {
+        if (mScheduled.compareAndSet(false, true)) {
+            execute();
+        }
+    }
+
+    private void execute() {
+        try {
+            getExecutor().execute(mDrain);
+        } catch (RejectedExecutionException e) {
+            mScheduled.set(false);
+        }
+    }
+
+    private void drain() {
+        boolean pending = false;
+        if (mBatchCount > 0) {
+            // left by the previous run, as its target couldn't take it.
+            try {
+                pending = !flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        long head = mHead.get();
+        long tail = mTail.get();
+        if (!pending && head != tail) {
+            pending = drainBatch(head, Math.min(tail, head + MAX_BATCH));
+            if (mPaused.compareAndSet(true, false)) {
+                mAgent.resumeIncoming();
+            }
+        }
+
+        // unless the target already wrote the batch, stay scheduled, without a thread, until it
+        // did: the producer doesn't schedule the task meanwhile.
+        if (pending && mWriteState.compareAndSet(WRITE_PENDING, WRITE_PARKED)) {
+            return;
+        }
+
+        // a batch left for the next run must not wait for the producer.
+        boolean left = mBatchCount > 0;
+        mScheduled.set(false);
+        // the producer may have queued packets without scheduling, as we were running. They are
+        // drained by a new task, behind the other agents waiting for the executor.
+        if (left || mTail.get() != mHead.get()) {
+            schedule();
+        }
+    }
+
+    /**
+     * Intercepts the packets from <var>head</var> to <var>end</var>, and sends them in batches
+     * to their targets. Stops early when a target keeps a batch to write it later.
+     * @return whether a target kept a batch, in which case its {@link #mResume} is pending.
+     */
+    private boolean drainBatch(long head, long end) {
+        long oldest = mEnqueueTimes[(int) (head & (CAPACITY - 1))];
+        boolean failed = false;
+        boolean pending = false;
+        long i = head;
+        while (i < end && !pending) {
+            int slot = (int) (i & (CAPACITY - 1));
+            i++;
+            JdwpPacket packet = mPackets[slot];
+            JdwpAgent target = mTargets[slot];
+            mPackets[slot] = null;
+            mTargets[slot] = null;
+            if (failed) {
+                continue;
+            }
+            try {
+                packet = mAgent.intercept(packet, target);
+                if (packet != null && target != null) {
+                    if (target != mBatchTarget) {
+                        // if kept by the target, the new batch is left for the next run.
+                        pending = !flush();
+                        mBatchTarget = target;
+                    }
+                    mBatch[mBatchCount++] = packet;
+                }
+            } catch (IOException e) {
+                failed = fail(e);
+            } catch (Exception e) {
+                // same as on the selector thread, don't let an interceptor kill the pipeline.
+                Log.e("ddms", "Exception while intercepting packet for " + mAgent);
+                Log.e("ddms", e);
+            }
+        }
+        if (!failed && !pending) {
+            try {
+                pending = !flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        // not lazySet: the producer must see the room made before we check mPaused.
+        mHead.set(i);
+        long latency = System.nanoTime() - oldest;
+        double average = mLatency;
+        mLatency = average == 0 ? latency : average + (latency - average) * LATENCY_WEIGHT;
+        return pending;
+    }
+
+    /**
+     * Drops the current batch after a failed write, and reports the failure to the agent.
+     * Returns true, as the rest of the packets being drained are dropped too.
+     */
+    private boolean fail(IOException e) {
+        for (int i = 0; i < mBatchCount; i++) {
+            mBatch[i] = null;
+        }
+        mBatchCount = 0;
+        mBatchTarget = null;
+        mAgent.incomingFailed(e);
+        return true;
+    }
+
+    /**
+     * Sends the current batch to its target.
+     * @return true, or false if the target kept it to write it later, and will run
+     * {@link #mResume} then.
+     */
+    private boolean flush() throws IOException {
+        if (mBatchCount == 0) {
+            return true;
+        }
+        int count = mBatchCount;
+        mBatchCount = 0;
+        // set before sending, as the target may run mResume before send returns.
+        mWriteState.set(WRITE_PENDING);
+        boolean sent = true;
+        try {
+            sent = mBatchTarget.send(mBatch, count, mResume);
+        } finally {
+            if (sent) {
+                // written, or failed: the target won't run mResume.
+                mWriteState.set(WRITE_DONE);
+            }
+            for (int i = 0; i < count; i++) {
+                mBatch[i] = null;
+            }
+        }
+        return sent;
+    }
+}
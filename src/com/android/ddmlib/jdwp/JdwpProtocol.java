@@ -25,8 +25,9 @@ import java.nio.ByteBuffer;
 
 public class JdwpProtocol {
 
+    /** Shared by a client and its debugger, whose packets are intercepted on different threads. */
     @Nullable
-    private IdSizesReply mIdSizes;
+    private volatile IdSizesReply mIdSizes;
 
     public long readObjectId(@NonNull ByteBuffer buffer) {
         assert mIdSizes != null;
@@ -70,8 +71,10 @@ public class JdwpProtocol {
             target.addReplyInterceptor(packet.getId(), new JdwpInterceptor() {
                 @Override
                 public JdwpPacket intercept(@NonNull JdwpAgent agent, @NonNull JdwpPacket packet) {
-                    mIdSizes = new IdSizesReply();
-                    mIdSizes.parse(packet.getPayload(), JdwpProtocol.this);
+                    // only publish the sizes once parsed, they are read from other threads.
+                    IdSizesReply idSizes = new IdSizesReply();
+                    idSizes.parse(packet.getPayload(), JdwpProtocol.this);
+                    mIdSizes = idSizes;
                     return packet;
                 }
             });
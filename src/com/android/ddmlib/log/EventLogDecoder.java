@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.log;
+
+import com.android.ddmlib.log.LogReceiver.ILogEntryViewListener;
+import com.android.ddmlib.log.LogReceiver.LogEntryView;
+import com.android.ddmlib.utils.ArrayHelper;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Dispatches the entries of the binary event log to listeners subscribed to specific tags.
+ * <p>
+ * The decoder is given to a {@link LogReceiver} as its {@link ILogEntryViewListener}. For each
+ * entry, only the tag is read; entries whose tag has no listener are skipped without being
+ * decoded. Others are handed to their listeners as a reused {@link EventView}, which only
+ * decodes the values that are read.
+ * <p>
+ * Listeners can be added and removed from any thread. They are called on the thread feeding
+ * the {@link LogReceiver}.
+ */
+public final class EventLogDecoder implements ILogEntryViewListener {
+
+    /**
+     * Classes which implement this interface receive events from an {@link EventLogDecoder}.
+     */
+    public interface IEventListener {
+        /**
+         * Sent when an event the listener subscribed to is received.
+         * @param event the event, only valid during this call.
+         */
+        void newEvent(EventView event);
+    }
+
+    /**
+     * Immutable snapshot of the subscriptions, replaced on every change.
+     */
+    private static final class Subscriptions {
+        /** Sorted tags with at least one listener. */
+        final int[] tags;
+        /** Listeners of each tag of {@link #tags}. */
+        final IEventListener[][] listeners;
+        /** Listeners of all tags. */
+        final IEventListener[] allListeners;
+
+        Subscriptions(int[] tags, IEventListener[][] listeners, IEventListener[] allListeners) {
+            this.tags = tags;
+            this.listeners = listeners;
+            this.allListeners = allListeners;
+        }
+    }
+
+    private static final IEventListener[] NO_LISTENERS = new IEventListener[0];
+
+    private final EventLogParser mParser;
+    private final EventView mView;
+
+    private volatile Subscriptions mSubscriptions =
+            new Subscriptions(new int[0], new IEventListener[0][], NO_LISTENERS);
+
+    private long mEntryCount;
+    private long mEventCount;
+
+    /**
+     * Creates a decoder.
+     * @param parser an initialized parser, used to resolve tag names and to build
+     * {@link EventContainer}s from views. Can be <code>null</code>.
+     */
+    public EventLogDecoder(EventLogParser parser) {
+        mParser = parser;
+        mView = new EventView(parser);
+    }
+
+    /**
+     * Subscribes a listener to the events of a tag.
+     * @param tag the tag value.
+     * @param listener the listener.
+     */
+    public synchronized void addListener(int tag, IEventListener listener) {
+        Subscriptions subs = mSubscriptions;
+        int index = Arrays.binarySearch(subs.tags, tag);
+        int[] tags;
+        IEventListener[][] listeners;
+        if (index >= 0) {
+            tags = subs.tags;
+            listeners = subs.listeners.clone();
+            listeners[index] = append(listeners[index], listener);
+        } else {
+            index = -index - 1;
+            int count = subs.tags.length;
+            tags = new int[count + 1];
+            listeners = new IEventListener[count + 1][];
+            System.arraycopy(subs.tags, 0, tags, 0, index);
+            System.arraycopy(subs.tags, index, tags, index + 1, count - index);
+            System.arraycopy(subs.listeners, 0, listeners, 0, index);
+            System.arraycopy(subs.listeners, index, listeners, index + 1, count - index);
+            tags[index] = tag;
+            listeners[index] = new IEventListener[] { listener };
+        }
+        mSubscriptions = new Subscriptions(tags, listeners, subs.allListeners);
+    }
+
+    /**
+     * Subscribes a listener to the events of a tag, by name.
+     * @param tagName the tag name, as found in the event-log-tags of the parser.
+     * @param listener the listener.
+     * @return <code>false</code> if the tag is unknown.
+     */
+    public boolean addListener(String tagName, IEventListener listener) {
+        if (mParser == null) {
+            return false;
+        }
+        for (Map.Entry<Integer, String> entry : mParser.getTagMap().entrySet()) {
+            if (tagName.equals(entry.getValue())) {
+                addListener(entry.getKey(), listener);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Subscribes a listener to all events. This makes every entry be handed over as an
+     * {@link EventView}, though values are still only decoded when read.
+     * @param listener the listener.
+     */
+    public synchronized void addGlobalListener(IEventListener listener) {
+        Subscriptions subs = mSubscriptions;
+        mSubscriptions = new Subscriptions(subs.tags, subs.listeners,
+                append(subs.allListeners, listener));
+    }
+
+    /**
+     * Removes a listener from all its subscriptions.
+     * @param listener the listener.
+     */
+    public synchronized void removeListener(IEventListener listener) {
+        Subscriptions subs = mSubscriptions;
+        int count = 0;
+        int[] tags = new int[subs.tags.length];
+        IEventListener[][] listeners = new IEventListener[subs.tags.length][];
+        for (int i = 0; i < subs.tags.length; i++) {
+            IEventListener[] remaining = remove(subs.listeners[i], listener);
+            if (remaining.length > 0) {
+                tags[count] = subs.tags[i];
+                listeners[count] = remaining;
+                count++;
+            }
+        }
+        mSubscriptions = new Subscriptions(Arrays.copyOf(tags, count),
+                Arrays.copyOf(listeners, count), remove(subs.allListeners, listener));
+    }
+
+    /**
+     * Returns the number of entries received.
+     */
+    public long getEntryCount() {
+        return mEntryCount;
+    }
+
+    /**
+     * Returns the number of entries that had at least one listener.
+     */
+    public long getEventCount() {
+        return mEventCount;
+    }
+
+    @Override
+    public void newEntry(LogEntryView entry) {
+        mEntryCount++;
+        if (entry.getLength() < 4) {
+            return;
+        }
+
+        Subscriptions subs = mSubscriptions;
+        int tag = ArrayHelper.swap32bitFromArray(entry.getData(), entry.getOffset());
+        int index = Arrays.binarySearch(subs.tags, tag);
+        if (index < 0 && subs.allListeners.length == 0) {
+            return;
+        }
+
+        mEventCount++;
+        EventView view = mView;
+        view.reset(entry);
+        try {
+            if (index >= 0) {
+                for (IEventListener listener : subs.listeners[index]) {
+                    listener.newEvent(view);
+                }
+            }
+            for (IEventListener listener : subs.allListeners) {
+                listener.newEvent(view);
+            }
+        } finally {
+            view.clear();
+        }
+    }
+
+    private static IEventListener[] append(IEventListener[] listeners, IEventListener listener) {
+        IEventListener[] result = Arrays.copyOf(listeners, listeners.length + 1);
+        result[listeners.length] = listener;
+        return result;
+    }
+
+    private static IEventListener[] remove(IEventListener[] listeners, IEventListener listener) {
+        int count = 0;
+        IEventListener[] result = new IEventListener[listeners.length];
+        for (IEventListener l : listeners) {
+            if (l != listener) {
+                result[count++] = l;
+            }
+        }
+        return count == 0 ? NO_LISTENERS : Arrays.copyOf(result, count);
+    }
+}
@@ -22,6 +22,7 @@ import com.android.ddmlib.MultiLineReceiver;
 import com.android.ddmlib.log.EventContainer.EventValueType;
 import com.android.ddmlib.log.EventValueDescription.ValueType;
 import com.android.ddmlib.log.LogReceiver.LogEntry;
+import com.android.ddmlib.log.LogReceiver.LogEntryView;
 import com.android.ddmlib.utils.ArrayHelper;
 import com.google.common.base.Charsets;
 
@@ -51,10 +52,10 @@ public final class EventLogParser {
      * Event log entry types.  These must match up with the declarations in
      * java/android/android/util/EventLog.java.
      */
-    private static final int EVENT_TYPE_INT      = 0;
-    private static final int EVENT_TYPE_LONG     = 1;
-    private static final int EVENT_TYPE_STRING   = 2;
-    private static final int EVENT_TYPE_LIST     = 3;
+    static final int EVENT_TYPE_INT      = 0;
+    static final int EVENT_TYPE_LONG     = 1;
+    static final int EVENT_TYPE_STRING   = 2;
+    static final int EVENT_TYPE_LIST     = 3;
 
     private static final Pattern PATTERN_SIMPLE_TAG = Pattern.compile(
     "^(\\d+)\\s+([A-Za-z0-9_]+)\\s*$"); //$NON-NLS-1$
@@ -263,23 +264,11 @@ public final class EventLogParser {
         int tagValue = ArrayHelper.swap32bitFromArray(entry.data, inOffset);
         inOffset += 4;
 
-        String tag = mTagMap.get(tagValue);
-        if (tag == null) {
-            Log.e("EventLogParser", String.format("unknown tag number: %1$d", tagValue));
-        }
-
-        ArrayList<Object> list = new ArrayList<Object>();
-        if (parseBinaryEvent(entry.data, inOffset, list) == -1) {
+        Object data = parseEventData(entry.data, inOffset, entry.data.length, tagValue);
+        if (data == null) {
             return null;
         }
 
-        Object data;
-        if (list.size() == 1) {
-            data = list.get(0);
-        } else{
-            data = list.toArray();
-        }
-
         EventContainer event = null;
         if (tagValue == GcEventContainer.GC_EVENT_TAG) {
             event = new GcEventContainer(entry, tagValue, data);
@@ -290,6 +279,57 @@ public final class EventLogParser {
         return event;
     }
 
+    /**
+     * Parses an entry received through a {@link LogReceiver.ILogEntryViewListener}.
+     * <p>
+     * Unlike the view, the returned {@link EventContainer} can be kept. To read values without
+     * creating objects, use an {@link EventView} through an {@link EventLogDecoder} instead.
+     * @param entry the entry view.
+     * @return the event or <code>null</code> if the entry could not be parsed.
+     */
+    public EventContainer parse(LogEntryView entry) {
+        if (entry.getLength() < 4) {
+            return null;
+        }
+
+        byte[] buffer = entry.getData();
+        int offset = entry.getOffset();
+        int tagValue = ArrayHelper.swap32bitFromArray(buffer, offset);
+
+        Object data = parseEventData(buffer, offset + 4, offset + entry.getLength(), tagValue);
+        if (data == null) {
+            return null;
+        }
+
+        if (tagValue == GcEventContainer.GC_EVENT_TAG) {
+            return new GcEventContainer(tagValue, entry.getPid(), entry.getTid(),
+                    entry.getSec(), entry.getNsec(), data);
+        }
+        return new EventContainer(tagValue, entry.getPid(), entry.getTid(),
+                entry.getSec(), entry.getNsec(), data);
+    }
+
+    /**
+     * Decodes the values of a binary event into the data object of an {@link EventContainer}.
+     * @return the data, or <code>null</code> if the event is malformed.
+     */
+    private Object parseEventData(byte[] eventData, int offset, int end, int tagValue) {
+        String tag = mTagMap.get(tagValue);
+        if (tag == null) {
+            Log.e("EventLogParser", String.format("unknown tag number: %1$d", tagValue));
+        }
+
+        ArrayList<Object> list = new ArrayList<Object>();
+        if (parseBinaryEvent(eventData, offset, end, list) == -1) {
+            return null;
+        }
+
+        if (list.size() == 1) {
+            return list.get(0);
+        }
+        return list.toArray();
+    }
+
     public EventContainer parse(String textLogLine) {
         // line will look like
         // 04-29 23:16:16.691 I/dvm_gc_info(  427): <data>
@@ -377,9 +417,10 @@ public final class EventLogParser {
      *
      * Returns the amount read on success, -1 on failure.
      */
-    private static int parseBinaryEvent(byte[] eventData, int dataOffset, ArrayList<Object> list) {
+    private static int parseBinaryEvent(byte[] eventData, int dataOffset, int end,
+            ArrayList<Object> list) {
 
-        if (eventData.length - dataOffset < 1)
+        if (end - dataOffset < 1)
             return -1;
 
         int offset = dataOffset;
@@ -392,7 +433,7 @@ public final class EventLogParser {
         case EVENT_TYPE_INT: { /* 32-bit signed int */
                 int ival;
 
-                if (eventData.length - offset < 4)
+                if (end - offset < 4)
                     return -1;
                 ival = ArrayHelper.swap32bitFromArray(eventData, offset);
                 offset += 4;
@@ -403,7 +444,7 @@ public final class EventLogParser {
         case EVENT_TYPE_LONG: { /* 64-bit signed long */
                 long lval;
 
-                if (eventData.length - offset < 8)
+                if (end - offset < 8)
                     return -1;
                 lval = ArrayHelper.swap64bitFromArray(eventData, offset);
                 offset += 8;
@@ -414,12 +455,12 @@ public final class EventLogParser {
         case EVENT_TYPE_STRING: { /* UTF-8 chars, not NULL-terminated */
                 int strLen;
 
-                if (eventData.length - offset < 4)
+                if (end - offset < 4)
                     return -1;
                 strLen = ArrayHelper.swap32bitFromArray(eventData, offset);
                 offset += 4;
 
-                if (eventData.length - offset < strLen)
+                if (end - offset < strLen)
                     return -1;
 
                 // get the string
@@ -430,7 +471,7 @@ public final class EventLogParser {
             }
         case EVENT_TYPE_LIST: { /* N items, all different types */
 
-                if (eventData.length - offset < 1)
+                if (end - offset < 1)
                     return -1;
 
                 int count = eventData[offset++];
@@ -438,7 +479,7 @@ public final class EventLogParser {
                 // make a new temp list
                 ArrayList<Object> subList = new ArrayList<Object>();
                 for (int i = 0; i < count; i++) {
-                    int result = parseBinaryEvent(eventData, offset, subList);
+                    int result = parseBinaryEvent(eventData, offset, end, subList);
                     if (result == -1) {
                         return result;
                     }
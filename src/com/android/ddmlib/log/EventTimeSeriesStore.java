@@ -0,0 +1,588 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.log;
+
+import com.android.ddmlib.log.EventContainer.EventValueType;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory store of event log values, kept as one set of primitive columns per event tag.
+ * <p>
+ * Each tag gets a time column (nanoseconds since epoch), a pid column, and one column per
+ * {@link EventValueType#INT} or {@link EventValueType#LONG} value of its
+ * {@link EventValueDescription}s, as read from the event-log-tags by the
+ * {@link EventLogParser}. String values are not stored. Events whose values don't match the
+ * description of their tag are dropped.
+ * <p>
+ * The store is fed either with {@link EventView}s, by registering it on an
+ * {@link EventLogDecoder} with {@link #attach(EventLogDecoder)}, or with
+ * {@link EventContainer}s through {@link #add(EventContainer)}. Queries work on a time window
+ * of one column, and never create {@link EventContainer}s.
+ */
+public final class EventTimeSeriesStore implements EventLogDecoder.IEventListener {
+
+    /** Pid value matching all processes in queries. */
+    public static final int ANY_PID = -1;
+
+    /**
+     * Aggregation applied to each bucket by
+     * {@link EventTimeSeriesStore#downsample(int, int, int, long, long, long, Aggregation)}.
+     */
+    public enum Aggregation {
+        MIN, MAX, SUM, MEAN, COUNT, LAST
+    }
+
+    /**
+     * Columns of a single tag.
+     */
+    private static final class Series {
+        final EventValueDescription[] descriptions;
+        /** Index of the column of each value, -1 for values that aren't stored. */
+        final int[] columnOfValue;
+        /** Description index of each column. */
+        final int[] valueOfColumn;
+
+        int size;
+        long[] times = new long[64];
+        int[] pids = new int[64];
+        final long[][] columns;
+
+        Series(EventValueDescription[] descriptions) {
+            this.descriptions = descriptions;
+            columnOfValue = new int[descriptions.length];
+            int count = 0;
+            for (int i = 0; i < descriptions.length; i++) {
+                EventValueType type = descriptions[i].getEventValueType();
+                if (type == EventValueType.INT || type == EventValueType.LONG) {
+                    columnOfValue[i] = count++;
+                } else {
+                    columnOfValue[i] = -1;
+                }
+            }
+            valueOfColumn = new int[count];
+            for (int i = 0; i < descriptions.length; i++) {
+                if (columnOfValue[i] != -1) {
+                    valueOfColumn[columnOfValue[i]] = i;
+                }
+            }
+            columns = new long[count][64];
+        }
+
+        /**
+         * Makes room for a row at <code>index</code>, and returns the index.
+         */
+        int insert(long time) {
+            if (size == times.length) {
+                int capacity = size * 2;
+                times = Arrays.copyOf(times, capacity);
+                pids = Arrays.copyOf(pids, capacity);
+                for (int c = 0; c < columns.length; c++) {
+                    columns[c] = Arrays.copyOf(columns[c], capacity);
+                }
+            }
+            int index = size;
+            if (size > 0 && time < times[size - 1]) {
+                // events from different buffers can come slightly out of order.
+                index = upperBound(time);
+                int moved = size - index;
+                System.arraycopy(times, index, times, index + 1, moved);
+                System.arraycopy(pids, index, pids, index + 1, moved);
+                for (long[] column : columns) {
+                    System.arraycopy(column, index, column, index + 1, moved);
+                }
+            }
+            times[index] = time;
+            size++;
+            return index;
+        }
+
+        /** Index of the first row at or after <code>time</code>. */
+        int lowerBound(long time) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (times[mid] < time) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /** Index of the first row after <code>time</code>. */
+        int upperBound(long time) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (times[mid] <= time) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        void removeFirst(int count) {
+            int remaining = size - count;
+            System.arraycopy(times, count, times, 0, remaining);
+            System.arraycopy(pids, count, pids, 0, remaining);
+            for (long[] column : columns) {
+                System.arraycopy(column, count, column, 0, remaining);
+            }
+            size = remaining;
+        }
+    }
+
+    private final EventLogParser mParser;
+    private final Map<Integer, Series> mSeries = new HashMap<Integer, Series>();
+    /** Last series used, to skip the map lookup for runs of the same tag. */
+    private Series mLastSeries;
+    private int mLastTag;
+
+    /** Scratch buffer for percentiles. */
+    private long[] mScratch = new long[0];
+
+    private long mDroppedCount;
+
+    /**
+     * Creates a store.
+     * @param parser an initialized parser, providing the description of each tag.
+     */
+    public EventTimeSeriesStore(EventLogParser parser) {
+        mParser = parser;
+    }
+
+    /**
+     * Subscribes the store to every tag of the parser that has at least one numerical value,
+     * so that the decoder skips the other events.
+     * @param decoder the decoder to receive events from.
+     */
+    public void attach(EventLogDecoder decoder) {
+        for (Map.Entry<Integer, EventValueDescription[]> entry :
+                mParser.getEventInfoMap().entrySet()) {
+            for (EventValueDescription description : entry.getValue()) {
+                EventValueType type = description.getEventValueType();
+                if (type == EventValueType.INT || type == EventValueType.LONG) {
+                    decoder.addListener(entry.getKey(), this);
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void newEvent(EventView event) {
+        int tag = event.getTag();
+        if (tag == GcEventContainer.GC_EVENT_TAG) {
+            // the gc values are packed in 2 longs, let the container unpack them.
+            EventContainer container = event.toEventContainer();
+            if (container != null) {
+                add(container);
+            }
+            return;
+        }
+
+        synchronized (this) {
+            Series series = getSeries(tag);
+            if (series == null) {
+                return;
+            }
+            int valueCount = event.getValueCount();
+            if (valueCount < series.descriptions.length) {
+                mDroppedCount++;
+                return;
+            }
+            for (int column = 0; column < series.valueOfColumn.length; column++) {
+                EventValueType type = event.getValueType(series.valueOfColumn[column]);
+                if (type != EventValueType.INT && type != EventValueType.LONG) {
+                    mDroppedCount++;
+                    return;
+                }
+            }
+
+            int row = series.insert(toTime(event.getSec(), event.getNsec()));
+            series.pids[row] = event.getPid();
+            try {
+                for (int column = 0; column < series.valueOfColumn.length; column++) {
+                    series.columns[column][row] = event.getLong(series.valueOfColumn[column]);
+                }
+            } catch (InvalidTypeException e) {
+                // can't happen, the types were checked above.
+            }
+        }
+    }
+
+    /**
+     * Adds an event.
+     * @param event the event.
+     */
+    public synchronized void add(EventContainer event) {
+        Series series = getSeries(event.mTag);
+        if (series == null) {
+            return;
+        }
+
+        long[] values = new long[series.valueOfColumn.length];
+        for (int column = 0; column < values.length; column++) {
+            Object value = event.getValue(series.valueOfColumn[column]);
+            if (value instanceof Integer) {
+                values[column] = (Integer) value;
+            } else if (value instanceof Long) {
+                values[column] = (Long) value;
+            } else {
+                mDroppedCount++;
+                return;
+            }
+        }
+
+        int row = series.insert(toTime(event.sec, event.nsec));
+        series.pids[row] = event.pid;
+        for (int column = 0; column < values.length; column++) {
+            series.columns[column][row] = values[column];
+        }
+    }
+
+    /**
+     * Returns the index of the column holding a value, to be used in queries.
+     * @param tag the event tag.
+     * @param valueName the name of the value, as in its {@link EventValueDescription}.
+     * @return the column index, or -1 if the tag has no numerical value with this name.
+     */
+    public synchronized int getColumnIndex(int tag, String valueName) {
+        Series series = getSeries(tag);
+        if (series != null) {
+            for (int i = 0; i < series.descriptions.length; i++) {
+                if (series.columnOfValue[i] != -1
+                        && series.descriptions[i].getName().equals(valueName)) {
+                    return series.columnOfValue[i];
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the description of the value stored in a column.
+     */
+    public synchronized EventValueDescription getColumnDescription(int tag, int column) {
+        Series series = getSeries(tag);
+        return series != null ? series.descriptions[series.valueOfColumn[column]] : null;
+    }
+
+    /**
+     * Returns the number of events stored for a tag.
+     */
+    public synchronized int getSize(int tag) {
+        Series series = mSeries.get(tag);
+        return series != null ? series.size : 0;
+    }
+
+    /**
+     * Returns the number of events dropped because they didn't match their tag description.
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Returns the number of events of a tag in a time window.
+     * @param tag the event tag.
+     * @param pid the pid of the events to count, or {@link #ANY_PID}.
+     * @param startTime the start of the window, inclusive, in nanoseconds since epoch.
+     * @param endTime the end of the window, exclusive, in nanoseconds since epoch.
+     */
+    public synchronized int getCount(int tag, int pid, long startTime, long endTime) {
+        Series series = mSeries.get(tag);
+        if (series == null) {
+            return 0;
+        }
+        int start = series.lowerBound(startTime);
+        int end = series.lowerBound(endTime);
+        if (pid == ANY_PID) {
+            return Math.max(0, end - start);
+        }
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (series.pids[i] == pid) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the minimum of a column over a time window, or {@link Double#NaN} if the
+     * window has no event.
+     * @see #getCount(int, int, long, long)
+     */
+    public synchronized double getMin(int tag, int column, int pid, long startTime,
+            long endTime) {
+        return aggregate(tag, column, pid, startTime, endTime, Aggregation.MIN);
+    }
+
+    /**
+     * Returns the maximum of a column over a time window, or {@link Double#NaN} if the
+     * window has no event.
+     * @see #getCount(int, int, long, long)
+     */
+    public synchronized double getMax(int tag, int column, int pid, long startTime,
+            long endTime) {
+        return aggregate(tag, column, pid, startTime, endTime, Aggregation.MAX);
+    }
+
+    /**
+     * Returns the mean of a column over a time window, or {@link Double#NaN} if the
+     * window has no event.
+     * @see #getCount(int, int, long, long)
+     */
+    public synchronized double getMean(int tag, int column, int pid, long startTime,
+            long endTime) {
+        return aggregate(tag, column, pid, startTime, endTime, Aggregation.MEAN);
+    }
+
+    /**
+     * Returns a percentile of a column over a time window, using the nearest-rank method,
+     * or {@link Double#NaN} if the window has no event.
+     * @param percentile the percentile, between 0 and 100.
+     * @see #getCount(int, int, long, long)
+     */
+    public synchronized double getPercentile(int tag, int column, int pid, long startTime,
+            long endTime, double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        Series series = mSeries.get(tag);
+        if (series == null) {
+            return Double.NaN;
+        }
+        int start = series.lowerBound(startTime);
+        int end = series.lowerBound(endTime);
+        if (end <= start) {
+            return Double.NaN;
+        }
+
+        if (mScratch.length < end - start) {
+            mScratch = new long[end - start];
+        }
+        long[] values = series.columns[column];
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (pid == ANY_PID || series.pids[i] == pid) {
+                mScratch[count++] = values[i];
+            }
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+
+        int rank = (int) Math.ceil(percentile / 100 * count) - 1;
+        return select(mScratch, count, Math.max(rank, 0));
+    }
+
+    /**
+     * Downsamples a column into fixed size time buckets.
+     * @param tag the event tag.
+     * @param column the column index.
+     * @param pid the pid of the events to use, or {@link #ANY_PID}.
+     * @param startTime the start of the first bucket, in nanoseconds since epoch.
+     * @param endTime the end of the last bucket, exclusive, in nanoseconds since epoch.
+     * @param bucketDuration the duration of a bucket, in nanoseconds.
+     * @param aggregation how the events of a bucket are combined.
+     * @return one value per bucket, {@link Double#NaN} for buckets without event except for
+     * {@link Aggregation#COUNT} and {@link Aggregation#SUM}.
+     */
+    public synchronized double[] downsample(int tag, int column, int pid, long startTime,
+            long endTime, long bucketDuration, Aggregation aggregation) {
+        if (bucketDuration <= 0 || endTime < startTime) {
+            throw new IllegalArgumentException("invalid window");
+        }
+        int bucketCount = (int) ((endTime - startTime + bucketDuration - 1) / bucketDuration);
+        double[] result = new double[bucketCount];
+        boolean emptyIsZero = aggregation == Aggregation.COUNT || aggregation == Aggregation.SUM;
+        Arrays.fill(result, emptyIsZero ? 0 : Double.NaN);
+
+        Series series = mSeries.get(tag);
+        if (series == null) {
+            return result;
+        }
+
+        int start = series.lowerBound(startTime);
+        int end = series.lowerBound(endTime);
+        long[] values = series.columns[column];
+        int bucket = -1;
+        int count = 0;
+        double acc = 0;
+        for (int i = start; i < end; i++) {
+            if (pid != ANY_PID && series.pids[i] != pid) {
+                continue;
+            }
+            int b = (int) ((series.times[i] - startTime) / bucketDuration);
+            if (b != bucket) {
+                if (bucket != -1) {
+                    result[bucket] = finish(aggregation, acc, count);
+                }
+                bucket = b;
+                count = 0;
+                acc = 0;
+            }
+            acc = accumulate(aggregation, acc, values[i], count);
+            count++;
+        }
+        if (bucket != -1) {
+            result[bucket] = finish(aggregation, acc, count);
+        }
+        return result;
+    }
+
+    /**
+     * Removes the events older than a given time, for all tags.
+     * @param time the time, in nanoseconds since epoch.
+     */
+    public synchronized void removeBefore(long time) {
+        for (Series series : mSeries.values()) {
+            int count = series.lowerBound(time);
+            if (count > 0) {
+                series.removeFirst(count);
+            }
+        }
+    }
+
+    /**
+     * Removes all events.
+     */
+    public synchronized void clear() {
+        mSeries.clear();
+        mLastSeries = null;
+        mDroppedCount = 0;
+    }
+
+    /**
+     * Converts an event timestamp into the time unit of the store.
+     */
+    public static long toTime(int sec, int nsec) {
+        return (sec & 0xFFFFFFFFL) * 1000000000L + nsec;
+    }
+
+    private Series getSeries(int tag) {
+        if (mLastSeries != null && mLastTag == tag) {
+            return mLastSeries;
+        }
+        Series series = mSeries.get(tag);
+        if (series == null) {
+            EventValueDescription[] descriptions = mParser.getEventInfoMap().get(tag);
+            if (descriptions == null) {
+                return null;
+            }
+            series = new Series(descriptions);
+            mSeries.put(tag, series);
+        }
+        mLastSeries = series;
+        mLastTag = tag;
+        return series;
+    }
+
+    private double aggregate(int tag, int column, int pid, long startTime, long endTime,
+            Aggregation aggregation) {
+        Series series = mSeries.get(tag);
+        if (series == null) {
+            return Double.NaN;
+        }
+        int start = series.lowerBound(startTime);
+        int end = series.lowerBound(endTime);
+        long[] values = series.columns[column];
+        int count = 0;
+        double acc = 0;
+        for (int i = start; i < end; i++) {
+            if (pid == ANY_PID || series.pids[i] == pid) {
+                acc = accumulate(aggregation, acc, values[i], count);
+                count++;
+            }
+        }
+        return count == 0 ? Double.NaN : finish(aggregation, acc, count);
+    }
+
+    private static double accumulate(Aggregation aggregation, double acc, long value,
+            int count) {
+        switch (aggregation) {
+            case MIN:
+                return count == 0 || value < acc ? value : acc;
+            case MAX:
+                return count == 0 || value > acc ? value : acc;
+            case SUM:
+            case MEAN:
+                return acc + value;
+            case LAST:
+                return value;
+            default:
+                return acc;
+        }
+    }
+
+    private static double finish(Aggregation aggregation, double acc, int count) {
+        switch (aggregation) {
+            case MEAN:
+                return acc / count;
+            case COUNT:
+                return count;
+            default:
+                return acc;
+        }
+    }
+
+    /**
+     * Returns the k-th smallest of the first <code>count</code> values, reordering them.
+     */
+    private static long select(long[] values, int count, int k) {
+        int left = 0;
+        int right = count - 1;
+        while (left < right) {
+            long pivot = values[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (values[i] < pivot) {
+                    i++;
+                }
+                while (values[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    long tmp = values[i];
+                    values[i] = values[j];
+                    values[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                break;
+            }
+        }
+        return values[k];
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.log;
+
+import com.android.ddmlib.log.EventContainer.EventValueType;
+import com.android.ddmlib.log.LogReceiver.LogEntryView;
+import com.android.ddmlib.utils.ArrayHelper;
+import com.google.common.base.Charsets;
+
+/**
+ * Reusable view of a binary event, read in place from the buffer of a {@link LogEntryView}.
+ * <p>
+ * The values are only located on the first access to them, and ints and longs are read
+ * straight from the buffer, so looking at an event does not create any object unless its
+ * strings are requested. Like the {@link LogEntryView} it is built on, a view is only valid
+ * during the {@link EventLogDecoder.IEventListener#newEvent(EventView)} call that received it;
+ * use {@link #toEventContainer()} to keep an event.
+ * <p>
+ * As with {@link EventContainer}, if the event data is a list its items are the values of the
+ * event, and otherwise the event has a single value. Lists nested in the data are reported as
+ * {@link EventValueType#LIST} values, and are not readable through the view.
+ */
+public final class EventView {
+
+    private final EventLogParser mParser;
+
+    private byte[] mData;
+    private int mStart;
+    private int mEnd;
+    private int mTag;
+    private int mPid;
+    private int mTid;
+    private int mSec;
+    private int mNsec;
+
+    /** Whether the values have been located since the last {@link #reset(LogEntryView)}. */
+    private boolean mIndexed;
+    /** Whether the event data was well formed. Only valid when {@link #mIndexed}. */
+    private boolean mValid;
+    /** Whether the top level value is a list. Only valid when {@link #mIndexed}. */
+    private boolean mIsList;
+    /** Whether the top level list contains a list. Only valid when {@link #mIndexed}. */
+    private boolean mIsTree;
+    private int mValueCount;
+    /** Offset of the first byte after the type of each value. */
+    private int[] mValueOffsets = new int[8];
+    /** Binary type of each value (EVENT_TYPE_*). */
+    private byte[] mValueTypes = new byte[8];
+
+    /**
+     * Creates a view.
+     * @param parser the parser providing tag names, and decoding for
+     * {@link #toEventContainer()}. Can be <code>null</code>.
+     */
+    EventView(EventLogParser parser) {
+        mParser = parser;
+    }
+
+    /**
+     * Points the view at a new entry. The entry must be at least 4 bytes long.
+     */
+    void reset(LogEntryView entry) {
+        mData = entry.getData();
+        mStart = entry.getOffset();
+        mEnd = mStart + entry.getLength();
+        mTag = ArrayHelper.swap32bitFromArray(mData, mStart);
+        mPid = entry.getPid();
+        mTid = entry.getTid();
+        mSec = entry.getSec();
+        mNsec = entry.getNsec();
+        mIndexed = false;
+    }
+
+    /**
+     * Releases the buffer of the last entry.
+     */
+    void clear() {
+        mData = null;
+        mIndexed = false;
+    }
+
+    /** Returns the event tag value. */
+    public int getTag() {
+        return mTag;
+    }
+
+    /**
+     * Returns the name of the event tag, or <code>null</code> if it is unknown.
+     */
+    public String getTagName() {
+        return mParser != null ? mParser.getTagMap().get(mTag) : null;
+    }
+
+    /** Returns the pid of the process that generated the event. */
+    public int getPid() {
+        return mPid;
+    }
+
+    /** Returns the tid of the thread that generated the event. */
+    public int getTid() {
+        return mTid;
+    }
+
+    /** Returns the seconds since epoch. */
+    public int getSec() {
+        return mSec;
+    }
+
+    /** Returns the nanoseconds. */
+    public int getNsec() {
+        return mNsec;
+    }
+
+    /**
+     * Returns whether the event data is well formed. Accessors on a malformed event throw
+     * {@link InvalidTypeException}.
+     */
+    public boolean isValid() {
+        index();
+        return mValid;
+    }
+
+    /**
+     * Returns the type of the event data, as {@link EventContainer#getType()} would.
+     */
+    public EventValueType getType() {
+        index();
+        if (!mValid) {
+            return EventValueType.UNKNOWN;
+        }
+        if (mIsList) {
+            return mIsTree ? EventValueType.TREE : EventValueType.LIST;
+        }
+        return toValueType(mValueTypes[0]);
+    }
+
+    /**
+     * Returns the number of values of the event.
+     */
+    public int getValueCount() {
+        index();
+        return mValid ? mValueCount : 0;
+    }
+
+    /**
+     * Returns the type of a value.
+     * @param valueIndex the index of the value.
+     * @return the type, or {@link EventValueType#UNKNOWN} if there is no such value.
+     */
+    public EventValueType getValueType(int valueIndex) {
+        index();
+        if (!mValid || valueIndex < 0 || valueIndex >= mValueCount) {
+            return EventValueType.UNKNOWN;
+        }
+        return toValueType(mValueTypes[valueIndex]);
+    }
+
+    /**
+     * Returns a value as an int.
+     * @param valueIndex the index of the value.
+     * @throws InvalidTypeException if the value is not of type {@link EventValueType#INT}.
+     */
+    public int getInt(int valueIndex) throws InvalidTypeException {
+        int offset = checkValue(valueIndex, EventLogParser.EVENT_TYPE_INT);
+        return ArrayHelper.swap32bitFromArray(mData, offset);
+    }
+
+    /**
+     * Returns a value as a long.
+     * @param valueIndex the index of the value.
+     * @throws InvalidTypeException if the value is not of type {@link EventValueType#INT}
+     * or {@link EventValueType#LONG}.
+     */
+    public long getLong(int valueIndex) throws InvalidTypeException {
+        index();
+        if (mValid && valueIndex >= 0 && valueIndex < mValueCount
+                && mValueTypes[valueIndex] == EventLogParser.EVENT_TYPE_INT) {
+            return ArrayHelper.swap32bitFromArray(mData, mValueOffsets[valueIndex]);
+        }
+        int offset = checkValue(valueIndex, EventLogParser.EVENT_TYPE_LONG);
+        return ArrayHelper.swap64bitFromArray(mData, offset);
+    }
+
+    /**
+     * Returns a value as a double.
+     * @param valueIndex the index of the value.
+     * @throws InvalidTypeException if the value is not of type {@link EventValueType#INT}
+     * or {@link EventValueType#LONG}.
+     */
+    public double getValueAsDouble(int valueIndex) throws InvalidTypeException {
+        return getLong(valueIndex);
+    }
+
+    /**
+     * Returns a value as a String. This allocates the String.
+     * @param valueIndex the index of the value.
+     * @throws InvalidTypeException if the value is not of type {@link EventValueType#STRING}.
+     */
+    public String getString(int valueIndex) throws InvalidTypeException {
+        int offset = checkValue(valueIndex, EventLogParser.EVENT_TYPE_STRING);
+        int length = ArrayHelper.swap32bitFromArray(mData, offset);
+        return new String(mData, offset + 4, length, Charsets.UTF_8);
+    }
+
+    /**
+     * Returns the UTF-8 length in bytes of a string value. The bytes start at
+     * {@link #getStringOffset(int)} in {@link #getBuffer()}.
+     * @param valueIndex the index of the value.
+     * @throws InvalidTypeException if the value is not of type {@link EventValueType#STRING}.
+     */
+    public int getStringLength(int valueIndex) throws InvalidTypeException {
+        int offset = checkValue(valueIndex, EventLogParser.EVENT_TYPE_STRING);
+        return ArrayHelper.swap32bitFromArray(mData, offset);
+    }
+
+    /**
+     * Returns the offset of the UTF-8 bytes of a string value in {@link #getBuffer()}.
+     * @param valueIndex the index of the value.
+     * @throws InvalidTypeException if the value is not of type {@link EventValueType#STRING}.
+     */
+    public int getStringOffset(int valueIndex) throws InvalidTypeException {
+        return checkValue(valueIndex, EventLogParser.EVENT_TYPE_STRING) + 4;
+    }
+
+    /**
+     * Returns the buffer the event is read from. It must not be modified.
+     */
+    public byte[] getBuffer() {
+        return mData;
+    }
+
+    /**
+     * Decodes the event into a new {@link EventContainer}, which can be kept.
+     * @return the container, or <code>null</code> if the event is malformed or the view has no
+     * parser.
+     */
+    public EventContainer toEventContainer() {
+        if (mParser == null || mData == null) {
+            return null;
+        }
+        LogEntryView entry = new LogEntryView();
+        entry.set(mData, mStart, mEnd - mStart, mPid, mTid, mSec, mNsec);
+        return mParser.parse(entry);
+    }
+
+    private int checkValue(int valueIndex, int type) throws InvalidTypeException {
+        index();
+        if (!mValid) {
+            throw new InvalidTypeException("malformed event");
+        }
+        if (valueIndex < 0 || valueIndex >= mValueCount || mValueTypes[valueIndex] != type) {
+            throw new InvalidTypeException();
+        }
+        return mValueOffsets[valueIndex];
+    }
+
+    private static EventValueType toValueType(int type) {
+        switch (type) {
+            case EventLogParser.EVENT_TYPE_INT:
+                return EventValueType.INT;
+            case EventLogParser.EVENT_TYPE_LONG:
+                return EventValueType.LONG;
+            case EventLogParser.EVENT_TYPE_STRING:
+                return EventValueType.STRING;
+            case EventLogParser.EVENT_TYPE_LIST:
+                return EventValueType.LIST;
+        }
+        return EventValueType.UNKNOWN;
+    }
+
+    /**
+     * Locates the values of the event, once per entry.
+     */
+    private void index() {
+        if (mIndexed) {
+            return;
+        }
+        mIndexed = true;
+        mValid = false;
+        mIsList = false;
+        mIsTree = false;
+        mValueCount = 0;
+
+        if (mData == null) {
+            return;
+        }
+
+        int offset = mStart + 4;
+        if (offset >= mEnd) {
+            return;
+        }
+
+        if (mData[offset] == EventLogParser.EVENT_TYPE_LIST) {
+            offset++;
+            if (offset >= mEnd) {
+                return;
+            }
+            int count = mData[offset++];
+            mIsList = true;
+            for (int i = 0; i < count; i++) {
+                if (offset >= mEnd) {
+                    return;
+                }
+                int type = mData[offset];
+                if (type == EventLogParser.EVENT_TYPE_LIST) {
+                    mIsTree = true;
+                }
+                addValue(type, offset + 1);
+                offset = skipValue(offset);
+                if (offset < 0) {
+                    return;
+                }
+            }
+        } else {
+            addValue(mData[offset], offset + 1);
+            if (skipValue(offset) < 0) {
+                return;
+            }
+        }
+
+        mValid = true;
+    }
+
+    private void addValue(int type, int offset) {
+        if (mValueCount == mValueOffsets.length) {
+            int[] offsets = new int[mValueCount * 2];
+            System.arraycopy(mValueOffsets, 0, offsets, 0, mValueCount);
+            mValueOffsets = offsets;
+            byte[] types = new byte[mValueCount * 2];
+            System.arraycopy(mValueTypes, 0, types, 0, mValueCount);
+            mValueTypes = types;
+        }
+        mValueOffsets[mValueCount] = offset;
+        mValueTypes[mValueCount] = (byte) type;
+        mValueCount++;
+    }
+
+    /**
+     * Returns the offset following the value whose type byte is at <code>offset</code>, or -1
+     * if the value is malformed or runs past the end of the entry.
+     */
+    private int skipValue(int offset) {
+        if (offset >= mEnd) {
+            return -1;
+        }
+        int type = mData[offset++];
+        switch (type) {
+            case EventLogParser.EVENT_TYPE_INT:
+                offset += 4;
+                break;
+            case EventLogParser.EVENT_TYPE_LONG:
+                offset += 8;
+                break;
+            case EventLogParser.EVENT_TYPE_STRING:
+                if (mEnd - offset < 4) {
+                    return -1;
+                }
+                int length = ArrayHelper.swap32bitFromArray(mData, offset);
+                if (length < 0) {
+                    return -1;
+                }
+                offset += 4 + length;
+                break;
+            case EventLogParser.EVENT_TYPE_LIST:
+                if (offset >= mEnd) {
+                    return -1;
+                }
+                int count = mData[offset++];
+                for (int i = 0; i < count && offset >= 0; i++) {
+                    offset = skipValue(offset);
+                }
+                break;
+            default:
+                return -1;
+        }
+        return offset >= 0 && offset <= mEnd ? offset : -1;
+    }
+}
@@ -36,7 +36,7 @@ public final class LogReceiver {
          * See //device/include/utils/logger.h
          */
         /** 16bit unsigned: length of the payload. */
-        public int  len; /* This is normally followed by a 16 bit padding */
+        public int  len; /* This is followed by a 16 bit padding, or the header size */
         /** pid of the process that generated this {@link LogEntry} */
         public int   pid;
         /** tid of the process that generated this {@link LogEntry} */
@@ -49,6 +49,88 @@ public final class LogReceiver {
         public byte[] data;
     }
 
+    /**
+     * Reusable view of a log entry, used by {@link ILogEntryViewListener}.
+     * <p>
+     * The payload is not copied out of the buffer it was received in, unless it was split
+     * across several calls to {@link LogReceiver#parseNewData(byte[], int, int)}. The view, and
+     * the buffer it points to, are only valid during the call to
+     * {@link ILogEntryViewListener#newEntry(LogEntryView)}. Use {@link #toLogEntry()} to keep
+     * an entry.
+     */
+    public static final class LogEntryView {
+        private int mLen;
+        private int mPid;
+        private int mTid;
+        private int mSec;
+        private int mNsec;
+        private byte[] mData;
+        private int mOffset;
+
+        /** Returns the length of the payload. */
+        public int getLength() {
+            return mLen;
+        }
+
+        /** Returns the pid of the process that generated the entry. */
+        public int getPid() {
+            return mPid;
+        }
+
+        /** Returns the tid of the thread that generated the entry. */
+        public int getTid() {
+            return mTid;
+        }
+
+        /** Returns the seconds since epoch. */
+        public int getSec() {
+            return mSec;
+        }
+
+        /** Returns the nanoseconds. */
+        public int getNsec() {
+            return mNsec;
+        }
+
+        /**
+         * Returns the buffer holding the payload, which starts at {@link #getOffset()}.
+         * This buffer must not be modified.
+         */
+        public byte[] getData() {
+            return mData;
+        }
+
+        /** Returns the offset of the payload in {@link #getData()}. */
+        public int getOffset() {
+            return mOffset;
+        }
+
+        void set(byte[] data, int offset, int len, int pid, int tid, int sec, int nsec) {
+            mData = data;
+            mOffset = offset;
+            mLen = len;
+            mPid = pid;
+            mTid = tid;
+            mSec = sec;
+            mNsec = nsec;
+        }
+
+        /**
+         * Copies this view into a new {@link LogEntry}.
+         */
+        public LogEntry toLogEntry() {
+            LogEntry entry = new LogEntry();
+            entry.len = mLen;
+            entry.pid = mPid;
+            entry.tid = mTid;
+            entry.sec = mSec;
+            entry.nsec = mNsec;
+            entry.data = new byte[mLen];
+            System.arraycopy(mData, mOffset, entry.data, 0, mLen);
+            return entry;
+        }
+    }
+
     /**
      * Classes which implement this interface provide a method that deals
      * with {@link LogEntry} objects coming from log service through a {@link LogReceiver}.
@@ -76,18 +158,42 @@ public final class LogReceiver {
         void newData(byte[] data, int offset, int length);
     }
 
+    /**
+     * Classes which implement this interface receive the entries parsed by a
+     * {@link LogReceiver} as a reused {@link LogEntryView}, without a {@link LogEntry} and
+     * its data array being allocated for each of them.
+     */
+    public interface ILogEntryViewListener {
+        /**
+         * Sent when a new entry has been parsed by the {@link LogReceiver}.
+         * @param entry the view of the entry, only valid during this call.
+         */
+        void newEntry(LogEntryView entry);
+    }
+
     /** Current {@link LogEntry} being read, before sending it to the listener. */
     private LogEntry mCurrentEntry;
 
+    /** Header of the entry being read, and view sent to {@link #mViewListener}. */
+    private final LogEntryView mEntryView = new LogEntryView();
+    /** Whether the header of {@link #mEntryView} has been read. */
+    private boolean mInEntry = false;
+    /** Payloads split over several data buffers are gathered here for the view listener. */
+    private byte[] mPayloadBuffer;
+
     /** Temp buffer to store partial entry headers. */
     private byte[] mEntryHeaderBuffer = new byte[ENTRY_HEADER_SIZE];
     /** Offset in the partial header buffer */
     private int mEntryHeaderOffset = 0;
     /** Offset in the partial entry data */
     private int mEntryDataOffset = 0;
+    /** Bytes of the current entry header past {@link #ENTRY_HEADER_SIZE} left to skip. */
+    private int mEntryHeaderSkip = 0;
     
     /** Listener waiting for receive fully read {@link LogEntry} objects */
     private ILogListener mListener;
+    /** Listener waiting for views of the entries */
+    private ILogEntryViewListener mViewListener;
 
     private boolean mIsCancelled = false;
     
@@ -101,6 +207,18 @@ public final class LogReceiver {
     public LogReceiver(ILogListener listener) {
         mListener = listener;
     }
+
+    /**
+     * Creates a {@link LogReceiver} with an {@link ILogEntryViewListener}.
+     * <p>
+     * The listener receives each entry as a {@link LogEntryView} that is reused for all
+     * entries, pointing into the buffer given to {@link #parseNewData(byte[], int, int)}
+     * whenever the entry is fully contained in it.
+     * @param listener the listener to receive new log entries.
+     */
+    public LogReceiver(ILogEntryViewListener listener) {
+        mViewListener = listener;
+    }
     
 
     /**
@@ -118,7 +236,7 @@ public final class LogReceiver {
         // loop while there is still data to be read and the receiver has not be cancelled.
         while (length > 0 && !mIsCancelled) {
             // first check if we have no current entry.
-            if (mCurrentEntry == null) {
+            if (!mInEntry) {
                 if (mEntryHeaderOffset + length < ENTRY_HEADER_SIZE) {
                     // if we don't have enough data to finish the header, save
                     // the data we have and return
@@ -135,7 +253,7 @@ public final class LogReceiver {
                                 size);
                         
                         // create the entry from the header buffer
-                        mCurrentEntry = createEntry(mEntryHeaderBuffer, 0);
+                        readEntryHeader(mEntryHeaderBuffer, 0);
     
                         // since we used the whole entry header buffer, we reset  the offset
                         mEntryHeaderOffset = 0;
@@ -146,7 +264,7 @@ public final class LogReceiver {
                         length -= size;
                     } else {
                         // create the entry directly from the data array
-                        mCurrentEntry = createEntry(data, offset);
+                        readEntryHeader(data, offset);
                         
                         // adjust current offset and remaining length to the beginning
                         // of the entry data
@@ -156,27 +274,55 @@ public final class LogReceiver {
                 }
             }
             
+            // newer loggers have a bigger header (see hdr_size in LogEntry), which we skip.
+            if (mEntryHeaderSkip > 0) {
+                int skip = Math.min(mEntryHeaderSkip, length);
+                offset += skip;
+                length -= skip;
+                mEntryHeaderSkip -= skip;
+                if (mEntryHeaderSkip > 0) {
+                    return;
+                }
+            }
+
             // at this point, we have an entry, and offset/length have been updated to skip
             // the entry header.
     
             // if we have enough data for this entry or more, we'll need to end this entry
-            if (length >= mCurrentEntry.len - mEntryDataOffset) {
+            if (length >= mEntryView.mLen - mEntryDataOffset) {
                 // compute and save the size of the data that we have to read for this entry,
                 // based on how much we may already have read.
-                int dataSize = mCurrentEntry.len - mEntryDataOffset;  
-    
-                // we only read what we need, and put it in the entry buffer.
-                System.arraycopy(data, offset, mCurrentEntry.data, mEntryDataOffset, dataSize);
-                
-                // notify the listener of a new entry
-                if (mListener != null) {
+                int dataSize = mEntryView.mLen - mEntryDataOffset;
+
+                if (mCurrentEntry != null) {
+                    // we only read what we need, and put it in the entry buffer.
+                    System.arraycopy(data, offset, mCurrentEntry.data, mEntryDataOffset,
+                            dataSize);
+
+                    // notify the listener of a new entry
                     mListener.newEntry(mCurrentEntry);
                 }
-    
+
+                if (mViewListener != null) {
+                    if (mEntryDataOffset == 0) {
+                        // the whole payload is in this buffer, point the view right at it.
+                        mEntryView.mData = data;
+                        mEntryView.mOffset = offset;
+                    } else {
+                        System.arraycopy(data, offset, mPayloadBuffer, mEntryDataOffset,
+                                dataSize);
+                        mEntryView.mData = mPayloadBuffer;
+                        mEntryView.mOffset = 0;
+                    }
+                    mViewListener.newEntry(mEntryView);
+                    mEntryView.mData = null;
+                }
+
                 // reset some flags: we have read 0 data of the current entry.
                 // and we have no current entry being read.
                 mEntryDataOffset = 0;
                 mCurrentEntry = null;
+                mInEntry = false;
                 
                 // and update the data buffer info to the end of the current entry / start
                 // of the next one.
@@ -185,7 +331,16 @@ public final class LogReceiver {
             } else {
                 // we don't have enough data to fill this entry, so we store what we have
                 // in the entry itself.
-                System.arraycopy(data, offset, mCurrentEntry.data, mEntryDataOffset, length);
+                if (mCurrentEntry != null) {
+                    System.arraycopy(data, offset, mCurrentEntry.data, mEntryDataOffset, length);
+                }
+                if (mViewListener != null) {
+                    if (mPayloadBuffer == null || mPayloadBuffer.length < mEntryView.mLen) {
+                        // len is 16 bits, so this grows to 64KB at most.
+                        mPayloadBuffer = new byte[Math.max(mEntryView.mLen, 4096)];
+                    }
+                    System.arraycopy(data, offset, mPayloadBuffer, mEntryDataOffset, length);
+                }
                 
                 // save the amount read for the data.
                 mEntryDataOffset += length;
@@ -209,39 +364,50 @@ public final class LogReceiver {
     }
     
     /**
-     * Creates a {@link LogEntry} from the array of bytes. This expects the data buffer size
-     * to be at least <code>offset + {@link #ENTRY_HEADER_SIZE}</code>.
+     * Reads an entry header from the array of bytes into {@link #mEntryView}, creating
+     * {@link #mCurrentEntry} if a {@link ILogListener} is set. This expects the data buffer
+     * size to be at least <code>offset + {@link #ENTRY_HEADER_SIZE}</code>.
      * @param data the data buffer the entry is read from.
      * @param offset the offset of the first byte from the buffer representing the entry.
-     * @return a new {@link LogEntry} or <code>null</code> if some error happened.
      */
-    private LogEntry createEntry(byte[] data, int offset) {
+    private void readEntryHeader(byte[] data, int offset) {
         if (data.length < offset + ENTRY_HEADER_SIZE) {
             throw new InvalidParameterException(
                     "Buffer not big enough to hold full LoggerEntry header");
         }
 
-        // create the new entry and fill it.
-        LogEntry entry = new LogEntry();
-        entry.len = ArrayHelper.swapU16bitFromArray(data, offset);
-        
-        // we've read only 16 bits, but since there's also a 16 bit padding,
-        // we can skip right over both.
-        offset += 4;
-        
-        entry.pid = ArrayHelper.swap32bitFromArray(data, offset);
+        LogEntryView view = mEntryView;
+        view.mLen = ArrayHelper.swapU16bitFromArray(data, offset);
+
+        // the next 16 bits are padding in the original logger_entry, and the header size
+        // in later versions, whose extra fields we don't read.
+        int headerSize = ArrayHelper.swapU16bitFromArray(data, offset + 2);
+        mEntryHeaderSkip = headerSize > ENTRY_HEADER_SIZE ? headerSize - ENTRY_HEADER_SIZE : 0;
         offset += 4;
-        entry.tid = ArrayHelper.swap32bitFromArray(data, offset);
+
+        view.mPid = ArrayHelper.swap32bitFromArray(data, offset);
         offset += 4;
-        entry.sec = ArrayHelper.swap32bitFromArray(data, offset);
+        view.mTid = ArrayHelper.swap32bitFromArray(data, offset);
         offset += 4;
-        entry.nsec = ArrayHelper.swap32bitFromArray(data, offset);
+        view.mSec = ArrayHelper.swap32bitFromArray(data, offset);
         offset += 4;
-        
-        // allocate the data
-        entry.data = new byte[entry.len];
-        
-        return entry;
+        view.mNsec = ArrayHelper.swap32bitFromArray(data, offset);
+
+        mInEntry = true;
+
+        if (mListener != null) {
+            // create the new entry and fill it.
+            LogEntry entry = new LogEntry();
+            entry.len = view.mLen;
+            entry.pid = view.mPid;
+            entry.tid = view.mTid;
+            entry.sec = view.mSec;
+            entry.nsec = view.mNsec;
+
+            // allocate the data
+            entry.data = new byte[entry.len];
+            mCurrentEntry = entry;
+        }
     }
-    
+
 }
@@ -16,6 +16,7 @@
 package com.android.ddmlib.logcat;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.ddmlib.Log.LogLevel;
 
 import java.util.ArrayList;
@@ -186,6 +187,21 @@ public final class LogCatFilter {
         return mLogLevel;
     }
 
+    @Nullable
+    Pattern getAppNamePattern() {
+        return mCheckAppName ? mAppNamePattern : null;
+    }
+
+    @Nullable
+    Pattern getTagPattern() {
+        return mCheckTag ? mTagPattern : null;
+    }
+
+    @Nullable
+    Pattern getTextPattern() {
+        return mCheckText ? mTextPattern : null;
+    }
+
     /**
      * Check whether a given message will make it through this filter.
      * @param m message to check
@@ -0,0 +1,548 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.Log.LogLevel;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A set of {@link LogCatFilter}s compiled together, so that a message can be checked against all
+ * of them in one pass.
+ *
+ * <p>Instead of running {@link LogCatFilter#matches(LogCatMessage)} for each filter, the filters
+ * are indexed by level and pid, patterns which are plain words are merged into a single
+ * automaton per field, and anchored words ({@code ^word$}) go in a hash index. Only the filters
+ * using real regexes, and still matching after the cheaper checks, evaluate their pattern.
+ *
+ * <p>The result is the same as calling {@link LogCatFilter#matches(LogCatMessage)} on each
+ * filter. This class is not thread safe.
+ */
+public final class LogCatFilterSet {
+
+    private static final String REGEX_META_CHARS = "\\^$.|?*+()[]{}"; //$NON-NLS-1$
+
+    @NonNull
+    private final List<LogCatFilter> mFilters;
+
+    /** Filters accepting each priority, indexed by {@link LogLevel#getPriority()}. */
+    @NonNull
+    private final BitSet[] mLevelFilters;
+
+    /** Filters with no pid restriction. */
+    @NonNull
+    private final BitSet mAnyPidFilters = new BitSet();
+
+    @NonNull
+    private final Map<Integer, BitSet> mPidFilters = new HashMap<Integer, BitSet>();
+
+    @NonNull
+    private final FieldIndex mAppNameIndex;
+    @NonNull
+    private final FieldIndex mTagIndex;
+    @NonNull
+    private final FieldIndex mTextIndex;
+
+    @NonNull
+    private final BitSet mScratch = new BitSet();
+    @NonNull
+    private final BitSet mAnyResult = new BitSet();
+
+    /**
+     * Compiles the given filters. The index of a filter in the list is used to report matches.
+     */
+    public LogCatFilterSet(@NonNull List<LogCatFilter> filters) {
+        mFilters = new ArrayList<LogCatFilter>(filters);
+
+        int maxPriority = 0;
+        for (LogLevel level : LogLevel.values()) {
+            maxPriority = Math.max(maxPriority, level.getPriority());
+        }
+        mLevelFilters = new BitSet[maxPriority + 1];
+        for (int i = 0; i < mLevelFilters.length; i++) {
+            mLevelFilters[i] = new BitSet();
+        }
+
+        int count = mFilters.size();
+        mAppNameIndex = new FieldIndex(count);
+        mTagIndex = new FieldIndex(count);
+        mTextIndex = new FieldIndex(count);
+
+        for (int i = 0; i < count; i++) {
+            LogCatFilter filter = mFilters.get(i);
+
+            int minPriority = filter.getLogLevel().getPriority();
+            for (int p = minPriority; p < mLevelFilters.length; p++) {
+                mLevelFilters[p].set(i);
+            }
+
+            String pid = filter.getPid();
+            if (pid.isEmpty()) {
+                mAnyPidFilters.set(i);
+            } else {
+                Integer value = parseCanonicalInt(pid);
+                // a pid that isn't written the way Integer.toString() would never matches
+                if (value != null) {
+                    BitSet set = mPidFilters.get(value);
+                    if (set == null) {
+                        set = new BitSet();
+                        mPidFilters.put(value, set);
+                    }
+                    set.set(i);
+                }
+            }
+
+            mAppNameIndex.add(i, filter.getAppNamePattern());
+            mTagIndex.add(i, filter.getTagPattern());
+            mTextIndex.add(i, filter.getTextPattern());
+        }
+
+        mAppNameIndex.build();
+        mTagIndex.build();
+        mTextIndex.build();
+    }
+
+    /**
+     * Returns the number of filters in the set.
+     */
+    public int size() {
+        return mFilters.size();
+    }
+
+    /**
+     * Returns the filter at the given index.
+     */
+    @NonNull
+    public LogCatFilter getFilter(int index) {
+        return mFilters.get(index);
+    }
+
+    /**
+     * Checks a message against all the filters.
+     *
+     * @param m the message to check
+     * @param result cleared, then set with the index of every filter matching the message
+     */
+    public void matches(@NonNull LogCatMessage m, @NonNull BitSet result) {
+        result.clear();
+
+        int priority = m.getLogLevel().getPriority();
+        if (priority < 0 || priority >= mLevelFilters.length) {
+            return;
+        }
+        result.or(mLevelFilters[priority]);
+        if (result.isEmpty()) {
+            return;
+        }
+
+        mScratch.clear();
+        mScratch.or(mAnyPidFilters);
+        BitSet pidFilters = mPidFilters.get(m.getPid());
+        if (pidFilters != null) {
+            mScratch.or(pidFilters);
+        }
+        result.and(mScratch);
+
+        // cheapest fields first, the text is usually the longest.
+        mAppNameIndex.match(m.getAppName(), result, mScratch);
+        mTagIndex.match(m.getTag(), result, mScratch);
+        mTextIndex.match(m.getMessage(), result, mScratch);
+    }
+
+    /**
+     * Returns whether the message matches at least one of the filters.
+     */
+    public boolean matchesAny(@NonNull LogCatMessage m) {
+        matches(m, mAnyResult);
+        return !mAnyResult.isEmpty();
+    }
+
+    @Nullable
+    private static Integer parseCanonicalInt(@NonNull String s) {
+        try {
+            int value = Integer.parseInt(s);
+            return Integer.toString(value).equals(s) ? value : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean isLiteral(@NonNull String regex) {
+        for (int i = 0; i < regex.length(); i++) {
+            if (REGEX_META_CHARS.indexOf(regex.charAt(i)) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lower cases ASCII letters only, like {@link Pattern#CASE_INSENSITIVE} without
+     * {@link Pattern#UNICODE_CASE}. Returns the same string if it has no upper case letter.
+     */
+    @NonNull
+    private static String asciiLowerCase(@NonNull String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                char[] chars = s.toCharArray();
+                for (int j = i; j < chars.length; j++) {
+                    chars[j] = asciiLowerCase(chars[j]);
+                }
+                return new String(chars);
+            }
+        }
+        return s;
+    }
+
+    private static char asciiLowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * Whether the string ends with a character that {@code $} matches before, in which case the
+     * exact match index can't be used.
+     */
+    private static boolean endsWithLineTerminator(@NonNull String s) {
+        if (s.isEmpty()) {
+            return false;
+        }
+        char c = s.charAt(s.length() - 1);
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * The patterns of all the filters for one of the message fields.
+     */
+    private static final class FieldIndex {
+        /** Filters that don't check this field, or whose pattern is invalid. */
+        private final BitSet mUnchecked = new BitSet();
+
+        /** Filters with a "^word$" pattern, by word. */
+        private final Map<String, BitSet> mExact = new HashMap<String, BitSet>();
+        private final Map<String, BitSet> mExactIgnoreCase = new HashMap<String, BitSet>();
+        private final BitSet mExactFilters = new BitSet();
+
+        /** Filters with a plain word pattern, which matches if the field contains the word. */
+        private final LiteralMatcher.Builder mLiteralsBuilder = new LiteralMatcher.Builder(false);
+        private final LiteralMatcher.Builder mLiteralsIgnoreCaseBuilder =
+                new LiteralMatcher.Builder(true);
+        private final BitSet mLiteralFilters = new BitSet();
+        private LiteralMatcher mLiterals;
+        private LiteralMatcher mLiteralsIgnoreCase;
+
+        /** Filters with any other regex. */
+        private final BitSet mRegexFilters = new BitSet();
+        private final Matcher[] mMatchers;
+
+        FieldIndex(int filterCount) {
+            mMatchers = new Matcher[filterCount];
+        }
+
+        void add(int index, @Nullable Pattern pattern) {
+            if (pattern == null) {
+                mUnchecked.set(index);
+                return;
+            }
+
+            mMatchers[index] = pattern.matcher("");
+
+            String regex = pattern.pattern();
+            boolean ignoreCase = (pattern.flags() & Pattern.CASE_INSENSITIVE) != 0
+                    && (pattern.flags() & Pattern.UNICODE_CASE) == 0;
+            boolean caseSensitive = (pattern.flags() & Pattern.CASE_INSENSITIVE) == 0;
+            if (!ignoreCase && !caseSensitive) {
+                mRegexFilters.set(index);
+                return;
+            }
+
+            if (isLiteral(regex)) {
+                mLiteralFilters.set(index);
+                if (ignoreCase) {
+                    mLiteralsIgnoreCaseBuilder.add(regex, index);
+                } else {
+                    mLiteralsBuilder.add(regex, index);
+                }
+            } else if (regex.length() >= 2 && regex.charAt(0) == '^'
+                    && regex.charAt(regex.length() - 1) == '$'
+                    && isLiteral(regex.substring(1, regex.length() - 1))) {
+                String word = regex.substring(1, regex.length() - 1);
+                Map<String, BitSet> map = mExact;
+                if (ignoreCase) {
+                    word = asciiLowerCase(word);
+                    map = mExactIgnoreCase;
+                }
+                BitSet set = map.get(word);
+                if (set == null) {
+                    set = new BitSet();
+                    map.put(word, set);
+                }
+                set.set(index);
+                mExactFilters.set(index);
+            } else {
+                mRegexFilters.set(index);
+            }
+        }
+
+        void build() {
+            mLiterals = mLiteralsBuilder.build();
+            mLiteralsIgnoreCase = mLiteralsIgnoreCaseBuilder.build();
+        }
+
+        /**
+         * Removes from {@code candidates} the filters rejecting the given field value.
+         */
+        void match(@NonNull String value, @NonNull BitSet candidates, @NonNull BitSet scratch) {
+            if (candidates.isEmpty()) {
+                return;
+            }
+
+            scratch.clear();
+            scratch.or(mUnchecked);
+
+            if (candidates.intersects(mExactFilters)) {
+                if (endsWithLineTerminator(value)) {
+                    evaluate(mExactFilters, value, candidates, scratch);
+                } else {
+                    BitSet set = mExact.get(value);
+                    if (set != null) {
+                        scratch.or(set);
+                    }
+                    if (!mExactIgnoreCase.isEmpty()) {
+                        set = mExactIgnoreCase.get(asciiLowerCase(value));
+                        if (set != null) {
+                            scratch.or(set);
+                        }
+                    }
+                }
+            }
+
+            if (candidates.intersects(mLiteralFilters)) {
+                if (mLiterals != null) {
+                    mLiterals.find(value, scratch);
+                }
+                if (mLiteralsIgnoreCase != null) {
+                    mLiteralsIgnoreCase.find(value, scratch);
+                }
+            }
+
+            evaluate(mRegexFilters, value, candidates, scratch);
+
+            candidates.and(scratch);
+        }
+
+        private void evaluate(@NonNull BitSet filters, @NonNull String value,
+                @NonNull BitSet candidates, @NonNull BitSet scratch) {
+            for (int i = filters.nextSetBit(0); i >= 0; i = filters.nextSetBit(i + 1)) {
+                if (candidates.get(i) && mMatchers[i].reset(value).find()) {
+                    scratch.set(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Aho-Corasick automaton finding which of a set of words appear in a string, in a single
+     * pass over it.
+     */
+    private static final class LiteralMatcher {
+        private static final int[] NO_OUTPUT = new int[0];
+
+        private final boolean mIgnoreCase;
+
+        /** Sorted transition characters of each node, and the matching target nodes. */
+        private final char[][] mKeys;
+        private final int[][] mNext;
+        private final int[] mFail;
+        /** Filter indices of the words ending at each node, including through fail links. */
+        private final int[][] mOutputs;
+
+        private LiteralMatcher(boolean ignoreCase, char[][] keys, int[][] next, int[] fail,
+                int[][] outputs) {
+            mIgnoreCase = ignoreCase;
+            mKeys = keys;
+            mNext = next;
+            mFail = fail;
+            mOutputs = outputs;
+        }
+
+        /**
+         * Sets in {@code result} the filter index of every word found in {@code text}.
+         */
+        void find(@NonNull String text, @NonNull BitSet result) {
+            // the empty word matches everything
+            for (int index : mOutputs[0]) {
+                result.set(index);
+            }
+
+            int state = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (mIgnoreCase) {
+                    c = asciiLowerCase(c);
+                }
+
+                int next;
+                while ((next = transition(state, c)) < 0 && state != 0) {
+                    state = mFail[state];
+                }
+                state = next < 0 ? 0 : next;
+
+                for (int index : mOutputs[state]) {
+                    result.set(index);
+                }
+            }
+        }
+
+        private int transition(int state, char c) {
+            char[] keys = mKeys[state];
+            int lo = 0;
+            int hi = keys.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid] < c) {
+                    lo = mid + 1;
+                } else if (keys[mid] > c) {
+                    hi = mid - 1;
+                } else {
+                    return mNext[state][mid];
+                }
+            }
+            return -1;
+        }
+
+        static final class Builder {
+            private final boolean mIgnoreCase;
+            private final List<TreeMap<Character, Integer>> mTrie =
+                    new ArrayList<TreeMap<Character, Integer>>();
+            private final List<List<Integer>> mWordEnds = new ArrayList<List<Integer>>();
+
+            Builder(boolean ignoreCase) {
+                mIgnoreCase = ignoreCase;
+                newNode();
+            }
+
+            private int newNode() {
+                mTrie.add(new TreeMap<Character, Integer>());
+                mWordEnds.add(new ArrayList<Integer>());
+                return mTrie.size() - 1;
+            }
+
+            void add(@NonNull String word, int filterIndex) {
+                if (mIgnoreCase) {
+                    word = asciiLowerCase(word);
+                }
+                int node = 0;
+                for (int i = 0; i < word.length(); i++) {
+                    Integer next = mTrie.get(node).get(word.charAt(i));
+                    if (next == null) {
+                        next = newNode();
+                        mTrie.get(node).put(word.charAt(i), next);
+                    }
+                    node = next;
+                }
+                mWordEnds.get(node).add(filterIndex);
+            }
+
+            /**
+             * Returns the automaton, or null if no word was added.
+             */
+            @Nullable
+            LiteralMatcher build() {
+                int size = mTrie.size();
+                boolean empty = size == 1 && mWordEnds.get(0).isEmpty();
+                if (empty) {
+                    return null;
+                }
+
+                char[][] keys = new char[size][];
+                int[][] next = new int[size][];
+                for (int node = 0; node < size; node++) {
+                    TreeMap<Character, Integer> children = mTrie.get(node);
+                    keys[node] = new char[children.size()];
+                    next[node] = new int[children.size()];
+                    int i = 0;
+                    for (Map.Entry<Character, Integer> child : children.entrySet()) {
+                        keys[node][i] = child.getKey();
+                        next[node][i] = child.getValue();
+                        i++;
+                    }
+                }
+
+                // breadth first, so that the fail target of a node is always done before it.
+                int[] fail = new int[size];
+                int[][] outputs = new int[size][];
+                outputs[0] = toArray(mWordEnds.get(0), NO_OUTPUT);
+                Queue<Integer> queue = new ArrayDeque<Integer>();
+                for (int child : next[0]) {
+                    fail[child] = 0;
+                    queue.add(child);
+                }
+                while (!queue.isEmpty()) {
+                    int node = queue.remove();
+                    outputs[node] = toArray(mWordEnds.get(node), outputs[fail[node]]);
+                    for (int i = 0; i < keys[node].length; i++) {
+                        char c = keys[node][i];
+                        int child = next[node][i];
+                        int f = fail[node];
+                        int target = find(keys, next, f, c);
+                        while (target < 0 && f != 0) {
+                            f = fail[f];
+                            target = find(keys, next, f, c);
+                        }
+                        fail[child] = target < 0 || target == child ? 0 : target;
+                        queue.add(child);
+                    }
+                }
+
+                return new LiteralMatcher(mIgnoreCase, keys, next, fail, outputs);
+            }
+
+            private static int find(char[][] keys, int[][] next, int node, char c) {
+                for (int i = 0; i < keys[node].length; i++) {
+                    if (keys[node][i] == c) {
+                        return next[node][i];
+                    }
+                }
+                return -1;
+            }
+
+            private static int[] toArray(List<Integer> own, int[] inherited) {
+                if (own.isEmpty()) {
+                    return inherited;
+                }
+                int[] result = new int[own.size() + inherited.length];
+                for (int i = 0; i < own.size(); i++) {
+                    result[i] = own.get(i);
+                }
+                System.arraycopy(inherited, 0, result, own.size(), inherited.length);
+                return result;
+            }
+        }
+    }
+}
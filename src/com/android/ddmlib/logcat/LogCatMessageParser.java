@@ -20,33 +20,59 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.log.LogReceiver.LogEntry;
+import com.google.common.base.Charsets;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Class to parse raw output of {@code adb logcat -v long} to {@link LogCatMessage} objects.
+ *
+ * <p>It can also convert the binary entries of {@code logcat -B} (see {@link LogEntry}) directly,
+ * with {@link #processLogEntry(LogEntry, IDevice)}.
  */
 public final class LogCatMessageParser {
 
-    /**
-     * Pattern for logcat -v long header ([ MM-DD HH:MM:SS.mmm PID:TID LEVEL/TAG ])
+    /*
+     * logcat -v long header ([ MM-DD HH:MM:SS.mmm PID:TID LEVEL/TAG ])
      * Ex: [ 08-18 16:39:11.760  2977: 2988 D/PhoneInterfaceManager ]
-     * Group 1: Date + Time
-     * Group 2: PID
-     * Group 3: TID (hex on some systems!)
-     * Group 4: Log Level character
-     * Group 5: Tag
+     * The TID may be in hex on some systems.
+     *
+     * The header is parsed by hand rather than with a regex, as it runs for every
+     * line of the log. It must accept the same lines as:
+     * ^\[\s(\d\d-\d\d\s\d\d:\d\d:\d\d\.\d+)\s+(\d*):\s*(\S+)\s([VDIWEAF])/(.*?)\s*\]$
      */
-    private static final Pattern sLogHeaderPattern = Pattern.compile(
-            "^\\[\\s(\\d\\d-\\d\\d\\s\\d\\d:\\d\\d:\\d\\d\\.\\d+)"
-                    + "\\s+(\\d*):\\s*(\\S+)\\s([VDIWEAF])/(.*?)\\s*\\]$");
+
+    /** Must be a power of 2. */
+    private static final int TAG_CACHE_SIZE = 512;
 
     @Nullable
     LogCatHeader mPrevHeader;
 
+    /** Recently seen tags, so that we don't allocate a new string for each message. */
+    private final String[] mTagCache = new String[TAG_CACHE_SIZE];
+
+    /** Last created timestamp, and the fields it was created from. */
+    @Nullable
+    private LogCatTimestamp mPrevTimestamp;
+    private long mPrevTimestampKey = -1;
+
+    /**
+     * Time zone of the device the binary entries come from, used to report them in the device
+     * local time like the text format does.
+     */
+    @Nullable
+    private TimeZone mTimeZone;
+    @Nullable
+    private IDevice mTimeZoneDevice;
+    @Nullable
+    private Future<String> mTimeZoneProperty;
+
     /**
      * Parse a header line into a {@link LogCatHeader} object, or {@code null} if the input line
      * doesn't match the expected format.
@@ -57,25 +83,197 @@ public final class LogCatMessageParser {
      */
     @Nullable
     public LogCatHeader processLogHeader(@NonNull String line, @Nullable IDevice device) {
-        Matcher matcher = sLogHeaderPattern.matcher(line);
-        if (!matcher.matches()) {
+        int length = line.length();
+        // fixed part: "[ MM-DD HH:MM:SS." and at least one millisecond digit
+        if (length < 18 || line.charAt(0) != '[' || !isSpace(line.charAt(1))
+                || line.charAt(length - 1) != ']') {
             return null;
         }
 
-        int pid = -1;
-        try {
-            pid = Integer.parseInt(matcher.group(2));
-        } catch (NumberFormatException ignored) {
+        int month = twoDigits(line, 2);
+        int day = twoDigits(line, 5);
+        int hour = twoDigits(line, 8);
+        int minute = twoDigits(line, 11);
+        int second = twoDigits(line, 14);
+        if (month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0
+                || line.charAt(4) != '-' || !isSpace(line.charAt(7))
+                || line.charAt(10) != ':' || line.charAt(13) != ':'
+                || line.charAt(16) != '.' || !isDigit(line.charAt(17))) {
+            return null;
+        }
+
+        int i = 17;
+        long millisecond = 0;
+        for (; i < length && isDigit(line.charAt(i)); i++) {
+            if (millisecond < 100000000000000000L) {
+                millisecond = millisecond * 10 + (line.charAt(i) - '0');
+            }
+        }
+        // ms is 3 digits max. e.g. convert "123456" into "123" (and rounding error is fine)
+        while (millisecond >= 1000) {
+            millisecond /= 10;
+        }
+
+        // \s+
+        int spaceStart = i;
+        while (i < length && isSpace(line.charAt(i))) {
+            i++;
+        }
+        if (i == spaceStart) {
+            return null;
+        }
+
+        // PID: \d*
+        int pidStart = i;
+        while (i < length && isDigit(line.charAt(i))) {
+            i++;
+        }
+        int pid = parseDecimal(line, pidStart, i);
+        if (i >= length || line.charAt(i) != ':') {
+            return null;
+        }
+        i++;
+
+        // TID: \s*\S+
+        while (i < length && isSpace(line.charAt(i))) {
+            i++;
+        }
+        int tidStart = i;
+        while (i < length && !isSpace(line.charAt(i))) {
+            i++;
         }
+        if (i == tidStart) {
+            return null;
+        }
+        int tid = parseTid(line, tidStart, i);
+
+        // single space, level letter and '/'
+        if (i + 3 > length - 1 || line.charAt(i + 2) != '/') {
+            return null;
+        }
+        char letter = line.charAt(i + 1);
+        LogLevel logLevel;
+        switch (letter) {
+            case 'V': logLevel = LogLevel.VERBOSE; break;
+            case 'D': logLevel = LogLevel.DEBUG; break;
+            case 'I': logLevel = LogLevel.INFO; break;
+            case 'W': logLevel = LogLevel.WARN; break;
+            case 'E': logLevel = LogLevel.ERROR; break;
+            case 'A':
+            case 'F': logLevel = LogLevel.ASSERT; break;
+            default: return null;
+        }
+
+        // tag, up to the trailing spaces and ']'
+        int tagStart = i + 3;
+        int tagEnd = length - 1;
+        while (tagEnd > tagStart && isSpace(line.charAt(tagEnd - 1))) {
+            tagEnd--;
+        }
+
+        mPrevHeader = new LogCatHeader(logLevel, pid, tid, getAppName(device, pid),
+                getTag(line, tagStart, tagEnd),
+                getTimestamp(month, day, hour, minute, second, (int) millisecond));
+
+        return mPrevHeader;
+    }
+
+    /**
+     * Converts a binary log entry, as output by {@code logcat -B} for the text log buffers, into
+     * {@link LogCatMessage} objects, one per line of the entry message.
+     * <p>The entry payload is made of the priority byte, the null terminated tag and the null
+     * terminated message. The timestamps are converted to the local time of the device, as printed
+     * by the text format.
+     *
+     * @param entry  the entry read by a {@link com.android.ddmlib.log.LogReceiver}
+     * @param device device from which these log messages have been received
+     * @return the messages, empty if the entry isn't a valid text log entry
+     */
+    @NonNull
+    public List<LogCatMessage> processLogEntry(@NonNull LogEntry entry, @Nullable IDevice device) {
+        byte[] data = entry.data;
+        int length = Math.min(entry.len, data.length);
+        if (length < 2) {
+            return Collections.emptyList();
+        }
+
+        LogLevel logLevel;
+        switch (data[0]) {
+            case 0: // ANDROID_LOG_UNKNOWN
+            case 1: // ANDROID_LOG_DEFAULT
+            case 2: logLevel = LogLevel.VERBOSE; break;
+            case 3: logLevel = LogLevel.DEBUG; break;
+            case 4: logLevel = LogLevel.INFO; break;
+            case 5: logLevel = LogLevel.WARN; break;
+            case 6: logLevel = LogLevel.ERROR; break;
+            default: logLevel = LogLevel.ASSERT; break;
+        }
+
+        int tagEnd = indexOf(data, (byte) 0, 1, length);
+        int messageEnd = indexOf(data, (byte) 0, tagEnd + 1, length);
+
+        long millis = entry.sec * 1000L + entry.nsec / 1000000;
+        millis += getTimeZone(device).getOffset(millis);
+
+        LogCatHeader header = new LogCatHeader(logLevel, entry.pid, entry.tid,
+                getAppName(device, entry.pid), getTag(data, 1, tagEnd), getTimestamp(millis));
+
+        // like the text format, one message per non empty line.
+        List<LogCatMessage> messages = new ArrayList<LogCatMessage>(1);
+        int lineStart = tagEnd + 1;
+        while (lineStart < messageEnd) {
+            int lineEnd = indexOf(data, (byte) '\n', lineStart, messageEnd);
+            int end = lineEnd;
+            if (end > lineStart && data[end - 1] == '\r') {
+                end--;
+            }
+            if (end > lineStart) {
+                messages.add(new LogCatMessage(header,
+                        new String(data, lineStart, end - lineStart, Charsets.UTF_8)));
+            }
+            lineStart = lineEnd + 1;
+        }
+
+        return messages;
+    }
 
-        int tid = -1;
+    /**
+     * Returns the time zone of the device, from its {@link IDevice#PROP_DEVICE_TIME_ZONE}
+     * property. The property is read asynchronously: until it is known, and for devices that don't
+     * report one, the time zone of the host is used.
+     */
+    @NonNull
+    private TimeZone getTimeZone(@Nullable IDevice device) {
+        if (device != mTimeZoneDevice) {
+            mTimeZoneDevice = device;
+            mTimeZone = null;
+            mTimeZoneProperty = device == null ? null
+                    : device.getSystemProperty(IDevice.PROP_DEVICE_TIME_ZONE);
+        }
+        if (mTimeZone != null) {
+            return mTimeZone;
+        }
+
+        TimeZone timeZone = TimeZone.getDefault();
+        if (mTimeZoneProperty == null || !mTimeZoneProperty.isDone()) {
+            return timeZone;
+        }
         try {
-            // Thread id's may be in hex on some platforms.
-            // Decode and store them in radix 10.
-            tid = Integer.decode(matcher.group(3));
-        } catch (NumberFormatException ignored) {
+            String id = mTimeZoneProperty.get();
+            if (id != null && !id.isEmpty()) {
+                timeZone = TimeZone.getTimeZone(id);
+            }
+        } catch (InterruptedException e) {
+            // ignore
+        } catch (ExecutionException e) {
+            // ignore
         }
+        mTimeZone = timeZone;
+        return timeZone;
+    }
 
+    @NonNull
+    private static String getAppName(@Nullable IDevice device, int pid) {
         String pkgName = null;
         if (device != null && pid != -1) {
             pkgName = device.getClientName(pid);
@@ -83,20 +281,156 @@ public final class LogCatMessageParser {
         if (pkgName == null || pkgName.isEmpty()) {
             pkgName = "?"; //$NON-NLS-1$
         }
+        return pkgName;
+    }
 
-        LogLevel logLevel = LogLevel.getByLetterString(matcher.group(4));
-        if (logLevel == null && matcher.group(4).equals("F")) {
-            logLevel = LogLevel.ASSERT;
+    @NonNull
+    private String getTag(@NonNull String line, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + line.charAt(i);
         }
-        if (logLevel == null) {
-            // Should never happen but warn seems like a decent default just in case
-            logLevel = LogLevel.WARN;
+        int slot = (hash ^ (hash >>> 16)) & (TAG_CACHE_SIZE - 1);
+
+        String tag = mTagCache[slot];
+        int length = end - start;
+        if (tag == null || tag.length() != length || !line.regionMatches(start, tag, 0, length)) {
+            tag = line.substring(start, end);
+            mTagCache[slot] = tag;
         }
+        return tag;
+    }
 
-        mPrevHeader = new LogCatHeader(logLevel, pid, tid, pkgName,
-                matcher.group(5), LogCatTimestamp.fromString(matcher.group(1)));
+    @NonNull
+    private String getTag(@NonNull byte[] data, int start, int end) {
+        int hash = 0;
+        boolean ascii = true;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + data[i];
+            ascii &= data[i] >= 0;
+        }
+        if (!ascii) {
+            return new String(data, start, end - start, Charsets.UTF_8);
+        }
+        int slot = (hash ^ (hash >>> 16)) & (TAG_CACHE_SIZE - 1);
 
-        return mPrevHeader;
+        String tag = mTagCache[slot];
+        if (tag == null || !asciiEquals(tag, data, start, end)) {
+            tag = new String(data, start, end - start, Charsets.US_ASCII);
+            mTagCache[slot] = tag;
+        }
+        return tag;
+    }
+
+    @NonNull
+    private LogCatTimestamp getTimestamp(int month, int day, int hour, int minute, int second,
+            int millisecond) {
+        long key = LogCatTimestamp.toKey(month, day, hour, minute, second, millisecond);
+        if (key != mPrevTimestampKey || mPrevTimestamp == null) {
+            mPrevTimestamp = new LogCatTimestamp(month, day, hour, minute, second, millisecond);
+            mPrevTimestampKey = key;
+        }
+        return mPrevTimestamp;
+    }
+
+    /**
+     * Returns the timestamp for a time in milliseconds since the epoch, already adjusted to the
+     * local time zone.
+     */
+    @NonNull
+    private LogCatTimestamp getTimestamp(long localMillis) {
+        long days = Math.floorDiv(localMillis, 86400000L);
+        int millisOfDay = (int) Math.floorMod(localMillis, 86400000L);
+
+        // civil date from days since 1970-01-01, in the proleptic Gregorian calendar.
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+
+        return getTimestamp(month, day, millisOfDay / 3600000, (millisOfDay / 60000) % 60,
+                (millisOfDay / 1000) % 60, millisOfDay % 1000);
+    }
+
+    private static int parseDecimal(@NonNull String line, int start, int end) {
+        if (start == end) {
+            return -1;
+        }
+        if (end - start > 9) {
+            // may overflow, let Integer figure it out.
+            try {
+                return Integer.parseInt(line.substring(start, end));
+            } catch (NumberFormatException ignored) {
+                return -1;
+            }
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + (line.charAt(i) - '0');
+        }
+        return value;
+    }
+
+    private static int parseTid(@NonNull String line, int start, int end) {
+        boolean decimal = line.charAt(start) != '0' || end - start == 1;
+        for (int i = start; decimal && i < end; i++) {
+            decimal = isDigit(line.charAt(i));
+        }
+        if (decimal) {
+            return parseDecimal(line, start, end);
+        }
+
+        // Thread id's may be in hex on some platforms.
+        // Decode and store them in radix 10.
+        try {
+            return Integer.decode(line.substring(start, end));
+        } catch (NumberFormatException ignored) {
+            return -1;
+        }
+    }
+
+    private static int twoDigits(@NonNull String line, int index) {
+        char c1 = line.charAt(index);
+        char c2 = line.charAt(index + 1);
+        if (!isDigit(c1) || !isDigit(c2)) {
+            return -1;
+        }
+        return (c1 - '0') * 10 + (c2 - '0');
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /** Same as the regex {@code \s} */
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static int indexOf(@NonNull byte[] data, byte value, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static boolean asciiEquals(@NonNull String s, @NonNull byte[] data, int start,
+            int end) {
+        if (s.length() != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i - start) != data[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -25,6 +25,8 @@ import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.MultiLineReceiver;
 import com.android.ddmlib.ShellCommandUnresponsiveException;
 import com.android.ddmlib.TimeoutException;
+import com.android.ddmlib.log.LogReceiver;
+import com.android.ddmlib.log.LogReceiver.LogEntry;
 
 import java.io.IOException;
 import java.util.Collections;
@@ -35,6 +37,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 public class LogCatReceiverTask implements Runnable {
     private static final String LOGCAT_COMMAND = "logcat -v long"; //$NON-NLS-1$
+    /** Log buffer read in binary mode, through the log service */
+    private static final String LOG_BUFFER = "main"; //$NON-NLS-1$
     private static final int DEVICE_POLL_INTERVAL_MSEC = 1000;
 
     private static final LogCatMessage sDeviceDisconnectedMsg =
@@ -46,16 +50,32 @@ public class LogCatReceiverTask implements Runnable {
 
     private final IDevice mDevice;
     private final LogCatOutputReceiver mReceiver;
+    private final LogReceiver mLogReceiver;
     private final LogCatMessageParser mParser;
     private final AtomicBoolean mCancelled;
+    private final boolean mUseBinaryFormat;
 
     @GuardedBy("this")
     private final Set<LogCatListener> mListeners = new HashSet<LogCatListener>();
 
     public LogCatReceiverTask(@NonNull IDevice device) {
+        this(device, false);
+    }
+
+    /**
+     * Creates a task reading the device log.
+     *
+     * @param device the device to read the log from
+     * @param useBinaryFormat whether to read the binary log entries of the "main" buffer through
+     *            the log service, instead of the text output of {@code logcat -v long}. This skips
+     *            the text formatting and parsing altogether.
+     */
+    public LogCatReceiverTask(@NonNull IDevice device, boolean useBinaryFormat) {
         mDevice = device;
+        mUseBinaryFormat = useBinaryFormat;
 
         mReceiver = new LogCatOutputReceiver();
+        mLogReceiver = new LogReceiver(new LogCatEntryListener());
         mParser = new LogCatMessageParser();
         mCancelled = new AtomicBoolean();
     }
@@ -72,7 +92,11 @@ public class LogCatReceiverTask implements Runnable {
         }
 
         try {
-            mDevice.executeShellCommand(LOGCAT_COMMAND, mReceiver, 0);
+            if (mUseBinaryFormat) {
+                mDevice.runLogService(LOG_BUFFER, mLogReceiver);
+            } else {
+                mDevice.executeShellCommand(LOGCAT_COMMAND, mReceiver, 0);
+            }
         } catch (TimeoutException e) {
             notifyListeners(Collections.singletonList(sConnectionTimeoutMsg));
         } catch (AdbCommandRejectedException ignored) {
@@ -88,6 +112,7 @@ public class LogCatReceiverTask implements Runnable {
 
     public void stop() {
         mCancelled.set(true);
+        mLogReceiver.cancel();
     }
 
     private class LogCatOutputReceiver extends MultiLineReceiver {
@@ -116,6 +141,23 @@ public class LogCatReceiverTask implements Runnable {
         }
     }
 
+    private class LogCatEntryListener implements LogReceiver.ILogListener {
+        @Override
+        public void newEntry(LogEntry entry) {
+            if (!mCancelled.get()) {
+                List<LogCatMessage> newMessages = mParser.processLogEntry(entry, mDevice);
+                if (!newMessages.isEmpty()) {
+                    notifyListeners(newMessages);
+                }
+            }
+        }
+
+        @Override
+        public void newData(byte[] data, int offset, int length) {
+            // we only care about the entries.
+        }
+    }
+
     public synchronized void addLogCatListener(LogCatListener l) {
         mListeners.add(l);
     }
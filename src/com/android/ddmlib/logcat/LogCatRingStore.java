@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.logcat;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.Log.LogLevel;
+import com.google.common.base.Charsets;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed capacity store of the most recent logcat messages of a device.
+ *
+ * <p>Message texts are kept UTF-8 encoded in direct (off-heap) segments, reused in a round robin
+ * fashion, while the header fields are kept in primitive arrays. Tags and application names are
+ * interned, and released once the last message using them is evicted. The oldest messages are
+ * evicted once either the entry capacity or the text storage is full. {@link LogCatMessage}
+ * objects are only created when a message is read back.
+ *
+ * <p>Messages are identified by a sequence number, increasing from 0 for the first message ever
+ * added. Any number of {@link Cursor}s can read the store concurrently with the writer.
+ *
+ * <p>To fill a store from a {@link LogCatReceiverTask}, register it as a listener with
+ * {@link LogCatReceiverTask#addLogCatListener(LogCatListener)}.
+ */
+public final class LogCatRingStore implements LogCatListener {
+
+    /** Number of entries summarized together by the level index. Must be a power of 2. */
+    private static final int BLOCK_SIZE = 64;
+
+    private static final LogLevel[] LEVELS = LogLevel.values();
+
+    /** Span of the {@link LogCatTimestamp#toKey()} keys of a month, and of a whole year. */
+    private static final long MONTH_KEYS = LogCatTimestamp.toKey(1, 0, 0, 0, 0, 0);
+    private static final long YEAR_KEYS = LogCatTimestamp.toKey(13, 0, 0, 0, 0, 0);
+
+    private final int mCapacity;
+    private final int mSegmentSize;
+    @NonNull
+    private final ByteBuffer[] mSegments;
+
+    /*
+     * entries, indexed by sequence number modulo the capacity. The time keys count the years
+     * since the first message, so that they keep increasing over New Year.
+     */
+    private final long[] mTimeKeys;
+    private final int[] mPids;
+    private final int[] mTids;
+    private final int[] mTagIds;
+    private final int[] mAppNameIds;
+    private final byte[] mLevels;
+    private final int[] mSegmentIndices;
+    private final int[] mOffsets;
+    private final int[] mLengths;
+
+    /** Highest level ordinal of the entries in each block, so readers can skip whole blocks. */
+    private final byte[] mBlockMaxLevels;
+
+    /* interned strings, with the number of entries referencing each of them. */
+    @NonNull
+    private final List<String> mStrings = new ArrayList<String>();
+    @NonNull
+    private int[] mStringRefs = new int[64];
+    @NonNull
+    private final Map<String, Integer> mStringIds = new HashMap<String, Integer>();
+    /** Ids of the released strings, to be reused. */
+    @NonNull
+    private final Deque<Integer> mFreeStringIds = new ArrayDeque<Integer>();
+
+    /** Sequence number of the oldest entry still in the store. */
+    private long mFirstSeq = 0;
+    /** Sequence number of the next entry to be added. */
+    private long mNextSeq = 0;
+
+    /** Year of the newest messages, and their month, to detect New Year like isBefore does. */
+    private long mYear = 0;
+    private int mMonth = 0;
+
+    private int mWriteSegment = 0;
+    private int mWritePosition = 0;
+
+    @NonNull
+    private final CharsetEncoder mEncoder = Charsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    @NonNull
+    private byte[] mDecodeBuffer = new byte[256];
+
+    /**
+     * Creates a store.
+     *
+     * @param capacity maximum number of messages kept
+     * @param segmentSize size in bytes of each off-heap segment. Longer messages are truncated.
+     * @param segmentCount number of segments. The messages text takes at most
+     *            {@code segmentSize * segmentCount} bytes.
+     */
+    public LogCatRingStore(int capacity, int segmentSize, int segmentCount) {
+        if (capacity <= 0 || segmentSize <= 0 || segmentCount <= 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid store size: %d entries, %d segments of %d bytes",
+                    capacity, segmentCount, segmentSize));
+        }
+        // round up to whole blocks
+        mCapacity = (capacity + BLOCK_SIZE - 1) & ~(BLOCK_SIZE - 1);
+        mSegmentSize = segmentSize;
+        mSegments = new ByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            mSegments[i] = ByteBuffer.allocateDirect(segmentSize);
+        }
+
+        mTimeKeys = new long[mCapacity];
+        mPids = new int[mCapacity];
+        mTids = new int[mCapacity];
+        mTagIds = new int[mCapacity];
+        mAppNameIds = new int[mCapacity];
+        mLevels = new byte[mCapacity];
+        mSegmentIndices = new int[mCapacity];
+        mOffsets = new int[mCapacity];
+        mLengths = new int[mCapacity];
+        mBlockMaxLevels = new byte[mCapacity / BLOCK_SIZE];
+    }
+
+    @Override
+    public void log(List<LogCatMessage> msgList) {
+        synchronized (this) {
+            for (LogCatMessage m : msgList) {
+                append(m);
+            }
+        }
+    }
+
+    /**
+     * Adds a message to the store, evicting the oldest ones if needed.
+     *
+     * @return the sequence number of the message
+     */
+    public synchronized long append(@NonNull LogCatMessage m) {
+        if (mNextSeq - mFirstSeq == mCapacity) {
+            evictOldest();
+        }
+
+        long seq = mNextSeq;
+        int index = (int) (seq % mCapacity);
+
+        // encode the text straight into the current segment, moving to the next one if it
+        // doesn't fit.
+        CharBuffer text = CharBuffer.wrap(m.getMessage());
+        ByteBuffer segment = mSegments[mWriteSegment];
+        segment.limit(mSegmentSize).position(mWritePosition);
+        mEncoder.reset();
+        CoderResult result = mEncoder.encode(text, segment, true);
+        if (result.isOverflow() && mWritePosition > 0) {
+            nextSegment();
+            text.rewind();
+            segment = mSegments[mWriteSegment];
+            segment.limit(mSegmentSize).position(0);
+            mEncoder.reset();
+            mEncoder.encode(text, segment, true);
+            // if it still overflows, the message is truncated.
+        }
+        int length = segment.position() - mWritePosition;
+
+        mTimeKeys[index] = toTimeKey(m.getTimestamp(), true);
+        mPids[index] = m.getPid();
+        mTids[index] = m.getTid();
+        mTagIds[index] = intern(m.getTag());
+        mAppNameIds[index] = intern(m.getAppName());
+        mLevels[index] = (byte) m.getLogLevel().ordinal();
+        mSegmentIndices[index] = mWriteSegment;
+        mOffsets[index] = mWritePosition;
+        mLengths[index] = length;
+
+        int block = index / BLOCK_SIZE;
+        if ((index & (BLOCK_SIZE - 1)) == 0 || mLevels[index] > mBlockMaxLevels[block]) {
+            mBlockMaxLevels[block] = mLevels[index];
+        }
+
+        mWritePosition += length;
+        mNextSeq++;
+        return seq;
+    }
+
+    /**
+     * Moves writing to the next segment, evicting the entries it holds. Since segments are filled
+     * in order, those are always the oldest entries.
+     */
+    private void nextSegment() {
+        mWriteSegment = (mWriteSegment + 1) % mSegments.length;
+        mWritePosition = 0;
+        while (mFirstSeq < mNextSeq
+                && mSegmentIndices[(int) (mFirstSeq % mCapacity)] == mWriteSegment) {
+            evictOldest();
+        }
+    }
+
+    /**
+     * Returns the time key of a timestamp, in the year of the newest messages unless it is a
+     * December timestamp received after New Year.
+     *
+     * @param append whether the timestamp is the one of a new message, which may start a year.
+     */
+    private long toTimeKey(@NonNull LogCatTimestamp timestamp, boolean append) {
+        long key = timestamp.toKey();
+        int month = (int) (key / MONTH_KEYS);
+        if (append && mMonth == 12 && month == 1) {
+            mYear++;
+            mMonth = 1;
+        }
+        if (mMonth == 1 && month == 12) {
+            return (mYear - 1) * YEAR_KEYS + key;
+        }
+        if (append) {
+            mMonth = month;
+        }
+        return mYear * YEAR_KEYS + key;
+    }
+
+    private void evictOldest() {
+        int index = (int) (mFirstSeq % mCapacity);
+        release(mTagIds[index]);
+        release(mAppNameIds[index]);
+        mFirstSeq++;
+    }
+
+    private int intern(@NonNull String s) {
+        Integer id = mStringIds.get(s);
+        if (id == null) {
+            id = mFreeStringIds.poll();
+            if (id == null) {
+                id = mStrings.size();
+                mStrings.add(s);
+                if (id == mStringRefs.length) {
+                    mStringRefs = Arrays.copyOf(mStringRefs, id * 2);
+                }
+            } else {
+                mStrings.set(id, s);
+            }
+            mStringIds.put(s, id);
+        }
+        mStringRefs[id]++;
+        return id;
+    }
+
+    private void release(int id) {
+        if (--mStringRefs[id] == 0) {
+            mStringIds.remove(mStrings.get(id));
+            mStrings.set(id, null);
+            mFreeStringIds.push(id);
+        }
+    }
+
+    /**
+     * Removes all the messages. Sequence numbers keep increasing.
+     */
+    public synchronized void clear() {
+        while (mFirstSeq < mNextSeq) {
+            evictOldest();
+        }
+        mWriteSegment = (mWriteSegment + 1) % mSegments.length;
+        mWritePosition = 0;
+    }
+
+    /**
+     * Returns the sequence number of the oldest message in the store.
+     */
+    public synchronized long getFirstSequence() {
+        return mFirstSeq;
+    }
+
+    /**
+     * Returns the sequence number the next message added to the store will get.
+     */
+    public synchronized long getNextSequence() {
+        return mNextSeq;
+    }
+
+    /**
+     * Returns the number of messages in the store.
+     */
+    public synchronized int size() {
+        return (int) (mNextSeq - mFirstSeq);
+    }
+
+    /**
+     * Returns the message with the given sequence number, or {@code null} if it is not, or no
+     * longer, in the store.
+     */
+    @Nullable
+    public synchronized LogCatMessage get(long seq) {
+        if (seq < mFirstSeq || seq >= mNextSeq) {
+            return null;
+        }
+        return materialize((int) (seq % mCapacity));
+    }
+
+    /**
+     * Returns the sequence number of the first message whose timestamp is not before the given
+     * one. Messages are assumed to be stored in time order, which logcat mostly guarantees.
+     */
+    public synchronized long findSequence(@NonNull LogCatTimestamp timestamp) {
+        long key = toTimeKey(timestamp, false);
+        long lo = mFirstSeq;
+        long hi = mNextSeq;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (mTimeKeys[(int) (mid % mCapacity)] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Creates a cursor reading the messages of at least the given level, starting at the oldest
+     * message in the store.
+     */
+    @NonNull
+    public Cursor newCursor(@NonNull LogLevel minLevel) {
+        return new Cursor(minLevel);
+    }
+
+    private LogCatMessage materialize(int index) {
+        int length = mLengths[index];
+        if (mDecodeBuffer.length < length) {
+            mDecodeBuffer = new byte[Math.max(length, mDecodeBuffer.length * 2)];
+        }
+        ByteBuffer segment = mSegments[mSegmentIndices[index]];
+        segment.limit(mSegmentSize).position(mOffsets[index]);
+        segment.get(mDecodeBuffer, 0, length);
+
+        long key = Math.floorMod(mTimeKeys[index], YEAR_KEYS);
+        int millisecond = (int) (key % 1000);
+        key /= 1000;
+        int second = (int) (key % 60);
+        key /= 60;
+        int minute = (int) (key % 60);
+        key /= 60;
+        int hour = (int) (key % 24);
+        key /= 24;
+        int day = (int) (key % 32);
+        int month = (int) (key / 32);
+
+        LogCatHeader header = new LogCatHeader(LEVELS[mLevels[index]], mPids[index],
+                mTids[index], mStrings.get(mAppNameIds[index]), mStrings.get(mTagIds[index]),
+                new LogCatTimestamp(month, day, hour, minute, second, millisecond));
+        return new LogCatMessage(header, new String(mDecodeBuffer, 0, length, Charsets.UTF_8));
+    }
+
+    /**
+     * Reads messages from the store, oldest first. A cursor is not thread safe, but each reader
+     * can use its own.
+     */
+    public final class Cursor {
+        private final int mMinLevel;
+        private long mPosition;
+        private long mDropped = 0;
+
+        private Cursor(@NonNull LogLevel minLevel) {
+            mMinLevel = minLevel.ordinal();
+            synchronized (LogCatRingStore.this) {
+                mPosition = mFirstSeq;
+            }
+        }
+
+        /**
+         * Moves the cursor to the oldest message in the store.
+         */
+        public void seekToOldest() {
+            synchronized (LogCatRingStore.this) {
+                mPosition = mFirstSeq;
+            }
+        }
+
+        /**
+         * Moves the cursor past the newest message, to only read messages added from now on.
+         */
+        public void seekToNewest() {
+            synchronized (LogCatRingStore.this) {
+                mPosition = mNextSeq;
+            }
+        }
+
+        /**
+         * Moves the cursor to the first message whose timestamp is not before the given one.
+         */
+        public void seekToTime(@NonNull LogCatTimestamp timestamp) {
+            mPosition = findSequence(timestamp);
+        }
+
+        /**
+         * Returns the sequence number of the next message this cursor will look at.
+         */
+        public long getPosition() {
+            return mPosition;
+        }
+
+        /**
+         * Returns the number of messages evicted from the store before this cursor could read
+         * them.
+         */
+        public long getDroppedCount() {
+            return mDropped;
+        }
+
+        /**
+         * Returns the next message of at least the cursor level, or {@code null} if there is none
+         * yet.
+         */
+        @Nullable
+        public LogCatMessage next() {
+            synchronized (LogCatRingStore.this) {
+                if (mPosition < mFirstSeq) {
+                    mDropped += mFirstSeq - mPosition;
+                    mPosition = mFirstSeq;
+                }
+                while (mPosition < mNextSeq) {
+                    int index = (int) (mPosition % mCapacity);
+                    if ((index & (BLOCK_SIZE - 1)) == 0
+                            && mBlockMaxLevels[index / BLOCK_SIZE] < mMinLevel
+                            && mPosition + BLOCK_SIZE <= mNextSeq) {
+                        // nothing of interest in this whole block
+                        mPosition += BLOCK_SIZE;
+                        continue;
+                    }
+                    mPosition++;
+                    if (mLevels[index] >= mMinLevel) {
+                        return materialize(index);
+                    }
+                }
+                return null;
+            }
+        }
+
+        /**
+         * Reads up to {@code max} messages into {@code out}.
+         *
+         * @return the number of messages read
+         */
+        public int next(@NonNull List<LogCatMessage> out, int max) {
+            synchronized (LogCatRingStore.this) {
+                int count = 0;
+                LogCatMessage m;
+                while (count < max && (m = next()) != null) {
+                    out.add(m);
+                    count++;
+                }
+                return count;
+            }
+        }
+    }
+}
@@ -101,6 +101,18 @@ public final class LogCatTimestamp {
         mMilli = milli;
     }
 
+    /**
+     * Returns a number that orders timestamps within a year, for compact storage.
+     */
+    long toKey() {
+        return toKey(mMonth, mDay, mHour, mMinute, mSecond, mMilli);
+    }
+
+    static long toKey(int month, int day, int hour, int minute, int second, int milli) {
+        return ((((((long) month * 32 + day) * 24 + hour) * 60 + minute) * 60 + second) * 1000)
+                + milli;
+    }
+
     public boolean isBefore(@NonNull LogCatTimestamp other) {
         if (mMonth == 12 && other.mMonth == 1) {
             // Timestamps don't indicate year, so in practice, if you get two timestamps in short
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.testrunner;
+
+import com.android.annotations.NonNull;
+import com.android.ddmlib.IShellEnabledDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.Futures;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local stand-in for a device, answering <code>am instrument -r</code> commands with the raw
+ * output of an instrumentation run, without any device.
+ * <p>
+ * The device knows a test suite, and runs the tests selected by the <code>class</code>
+ * argument of the command (all of them if there is none). The outcome of each test is given by
+ * a {@link TestBehavior}, and tests can be given a duration, during which the device sleeps.
+ * This makes {@link RemoteAndroidTestRunner} and {@link ShardedTestOrchestrator} usable end to
+ * end on the host.
+ */
+public class FakeInstrumentationDevice implements IShellEnabledDevice {
+
+    /**
+     * Outcome of a test on a {@link FakeInstrumentationDevice}.
+     */
+    public enum Outcome {
+        PASS,
+        FAIL,
+        IGNORE,
+        /** The instrumentation process crashes while the test runs. */
+        CRASH
+    }
+
+    /**
+     * Decides the outcome of the tests run on a {@link FakeInstrumentationDevice}.
+     */
+    public interface TestBehavior {
+        /**
+         * Returns the outcome of a test.
+         * @param device the device running the test.
+         * @param test the test.
+         * @param runCount the number of times the test was run on this device before.
+         */
+        @NonNull
+        Outcome run(@NonNull FakeInstrumentationDevice device, @NonNull TestIdentifier test,
+                int runCount);
+    }
+
+    private static final Pattern CLASS_ARG = Pattern.compile("-e class '([^']*)'"); //$NON-NLS-1$
+
+    private static final TestBehavior ALWAYS_PASS = new TestBehavior() {
+        @Override
+        public Outcome run(FakeInstrumentationDevice device, TestIdentifier test, int runCount) {
+            return Outcome.PASS;
+        }
+    };
+
+    private final String mName;
+    private final List<TestIdentifier> mTests = new ArrayList<TestIdentifier>();
+    private final Map<TestIdentifier, Long> mDurations = new HashMap<TestIdentifier, Long>();
+    private final Map<TestIdentifier, Integer> mRunCounts = new HashMap<TestIdentifier, Integer>();
+    private TestBehavior mBehavior = ALWAYS_PASS;
+    private long mDefaultDuration = 0;
+    private volatile boolean mOffline = false;
+    private final List<String> mCommands = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * Creates a device.
+     * @param name the name of the device.
+     * @param tests the test suite of the instrumentation.
+     */
+    public FakeInstrumentationDevice(@NonNull String name,
+            @NonNull Collection<TestIdentifier> tests) {
+        mName = name;
+        mTests.addAll(tests);
+    }
+
+    /**
+     * Sets the behavior deciding the outcome of tests. All tests pass by default.
+     */
+    public synchronized void setBehavior(@NonNull TestBehavior behavior) {
+        mBehavior = behavior;
+    }
+
+    /**
+     * Sets how long a test runs, in milliseconds.
+     */
+    public synchronized void setDuration(@NonNull TestIdentifier test, long duration) {
+        mDurations.put(test, duration);
+    }
+
+    /**
+     * Sets how long tests without a specific duration run, in milliseconds.
+     */
+    public synchronized void setDefaultDuration(long duration) {
+        mDefaultDuration = duration;
+    }
+
+    /**
+     * Makes the device fail all shell commands with an {@link IOException}, as a disconnected
+     * device would.
+     */
+    public void setOffline(boolean offline) {
+        mOffline = offline;
+    }
+
+    /**
+     * Returns the commands received by the device.
+     */
+    @NonNull
+    public List<String> getCommands() {
+        synchronized (mCommands) {
+            return new ArrayList<String>(mCommands);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public void executeShellCommand(String command, IShellOutputReceiver receiver,
+            long maxTimeToOutputResponse, TimeUnit maxTimeUnits) throws IOException {
+        executeShellCommand(command, receiver, 0, maxTimeToOutputResponse, maxTimeUnits);
+    }
+
+    @Override
+    public void executeShellCommand(String command, IShellOutputReceiver receiver,
+            long maxTimeout, long maxTimeToOutputResponse, TimeUnit maxTimeUnits)
+            throws IOException {
+        if (mOffline) {
+            throw new IOException("device " + mName + " is offline");
+        }
+        mCommands.add(command);
+        if (!command.startsWith("am instrument")) {
+            receiver.flush();
+            return;
+        }
+
+        List<TestIdentifier> tests = selectTests(command);
+        StringBuilder out = new StringBuilder();
+        long start = System.currentTimeMillis();
+        int current = 0;
+        for (TestIdentifier test : tests) {
+            if (receiver.isCancelled() || mOffline) {
+                break;
+            }
+            current++;
+            Outcome outcome;
+            long duration;
+            synchronized (this) {
+                Integer runCount = mRunCounts.get(test);
+                runCount = runCount == null ? 0 : runCount;
+                mRunCounts.put(test, runCount + 1);
+                outcome = mBehavior.run(this, test, runCount);
+                Long testDuration = mDurations.get(test);
+                duration = testDuration != null ? testDuration : mDefaultDuration;
+            }
+
+            appendStatus(out, test, tests.size(), current);
+            out.append("INSTRUMENTATION_STATUS_CODE: 1\n");
+            send(receiver, out);
+            sleep(duration);
+
+            appendStatus(out, test, tests.size(), current);
+            int code;
+            switch (outcome) {
+                case CRASH:
+                    out.append("INSTRUMENTATION_RESULT: shortMsg=Process crashed.\n");
+                    out.append("INSTRUMENTATION_CODE: 0\n");
+                    send(receiver, out);
+                    receiver.flush();
+                    return;
+                case FAIL:
+                    out.append("INSTRUMENTATION_STATUS: stack=java.lang.AssertionError\n");
+                    out.append("\tat ").append(test.getClassName()).append('.')
+                            .append(test.getTestName()).append("(Fake.java:1)\n");
+                    code = -2;
+                    break;
+                case IGNORE:
+                    code = -3;
+                    break;
+                default:
+                    code = 0;
+                    break;
+            }
+            out.append("INSTRUMENTATION_STATUS_CODE: ").append(code).append('\n');
+            send(receiver, out);
+        }
+
+        out.append("INSTRUMENTATION_RESULT: stream=\n\nTime: ")
+                .append((System.currentTimeMillis() - start) / 1000.0)
+                .append("\n\nOK (").append(tests.size()).append(" tests)\n\n\n")
+                .append("INSTRUMENTATION_CODE: -1\n");
+        send(receiver, out);
+        receiver.flush();
+    }
+
+    @NonNull
+    @Override
+    public Future<String> getSystemProperty(@NonNull String name) {
+        return Futures.immediateFuture(null);
+    }
+
+    /**
+     * Returns the tests selected by the class argument of an instrument command, in the order
+     * of the suite.
+     */
+    private List<TestIdentifier> selectTests(String command) {
+        Matcher m = CLASS_ARG.matcher(command);
+        if (!m.find()) {
+            return mTests;
+        }
+        Set<String> classes = new LinkedHashSet<String>();
+        Set<TestIdentifier> methods = new LinkedHashSet<TestIdentifier>();
+        for (String filter : m.group(1).split(",")) {
+            int hash = filter.indexOf('#');
+            if (hash == -1) {
+                classes.add(filter);
+            } else {
+                methods.add(new TestIdentifier(filter.substring(0, hash),
+                        filter.substring(hash + 1)));
+            }
+        }
+        List<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        for (TestIdentifier test : mTests) {
+            if (classes.contains(test.getClassName()) || methods.contains(test)) {
+                tests.add(test);
+            }
+        }
+        return tests;
+    }
+
+    private static void appendStatus(StringBuilder out, TestIdentifier test, int numTests,
+            int current) {
+        out.append("INSTRUMENTATION_STATUS: numtests=").append(numTests).append('\n');
+        out.append("INSTRUMENTATION_STATUS: stream=\n");
+        out.append("INSTRUMENTATION_STATUS: id=AndroidJUnitRunner\n");
+        out.append("INSTRUMENTATION_STATUS: test=").append(test.getTestName()).append('\n');
+        out.append("INSTRUMENTATION_STATUS: class=").append(test.getClassName()).append('\n');
+        out.append("INSTRUMENTATION_STATUS: current=").append(current).append('\n');
+    }
+
+    private static void send(IShellOutputReceiver receiver, StringBuilder out) {
+        byte[] data = out.toString().getBytes(Charsets.UTF_8);
+        out.setLength(0);
+        receiver.addOutput(data, 0, data.length);
+    }
+
+    private static void sleep(long duration) {
+        if (duration > 0) {
+            try {
+                Thread.sleep(duration);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
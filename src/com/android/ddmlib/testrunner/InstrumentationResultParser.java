@@ -18,10 +18,13 @@ package com.android.ddmlib.testrunner;
 
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log;
+import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.MultiLineReceiver;
+import com.google.common.base.Charsets;
 import java.text.NumberFormat;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -65,6 +68,10 @@ import java.util.regex.Pattern;
  * Time: X
  * </pre>
  * <p>Note that the "value" portion of the key-value pair may wrap over several text lines
+ *
+ * <p>Lines are parsed on the raw bytes of the output: values are gathered in a reused buffer and
+ * only decoded when they are used, and the class and test names of consecutive bundles are
+ * decoded once.
  */
 public class InstrumentationResultParser extends MultiLineReceiver {
 
@@ -119,6 +126,29 @@ public class InstrumentationResultParser extends MultiLineReceiver {
         private static final String TIME_REPORT = "Time: ";
     }
 
+    /** {@link Prefixes} encoded as bytes, to be matched against the raw output. */
+    private static final byte[] STATUS_BYTES = Prefixes.STATUS.getBytes(Charsets.UTF_8);
+    private static final byte[] STATUS_CODE_BYTES = Prefixes.STATUS_CODE.getBytes(Charsets.UTF_8);
+    private static final byte[] STATUS_FAILED_BYTES =
+            Prefixes.STATUS_FAILED.getBytes(Charsets.UTF_8);
+    private static final byte[] CODE_BYTES = Prefixes.CODE.getBytes(Charsets.UTF_8);
+    private static final byte[] RESULT_BYTES = Prefixes.RESULT.getBytes(Charsets.UTF_8);
+    private static final byte[] TIME_REPORT_BYTES = Prefixes.TIME_REPORT.getBytes(Charsets.UTF_8);
+
+    /** Status keys that are looked up without decoding, see {@link #decodeKey}. */
+    private static final String[] COMMON_KEYS = KNOWN_KEYS.toArray(new String[KNOWN_KEYS.size()]);
+    private static final byte[][] COMMON_KEY_BYTES = new byte[COMMON_KEYS.length][];
+    static {
+        for (int i = 0; i < COMMON_KEYS.length; i++) {
+            COMMON_KEY_BYTES[i] = COMMON_KEYS[i].getBytes(Charsets.UTF_8);
+        }
+    }
+
+    private static final byte[] LINE_BREAK = {'\r', '\n'};
+
+    private static final Pattern TIME_PATTERN =
+            Pattern.compile(String.format("%s\\s*([\\d\\,]*[\\d\\.]+)", Prefixes.TIME_REPORT));
+
     private final Collection<ITestRunListener> mTestListeners;
 
     /**
@@ -166,8 +196,17 @@ public class InstrumentationResultParser extends MultiLineReceiver {
     /** Stores the current "key" portion of the status key-value being parsed. */
     private String mCurrentKey = null;
 
-    /** Stores the current "value" portion of the status key-value being parsed. */
-    private StringBuilder mCurrentValue = null;
+    /** Stores the current "value" portion of the status key-value being parsed, as UTF-8. */
+    private byte[] mCurrentValue = new byte[256];
+    /** Length of {@link #mCurrentValue}, or -1 if no value is being parsed. */
+    private int mCurrentValueLength = -1;
+
+    /** Last decoded test class, reused while the class bytes don't change. */
+    private final DecodedValue mLastTestClass = new DecodedValue();
+    /** Last decoded test name, reused for the start and end bundles of a test. */
+    private final DecodedValue mLastTestName = new DecodedValue();
+    /** Last reported test, reused when the end of a test is reported. */
+    private TestIdentifier mLastTestId = null;
 
     /** True if start of test has already been reported to listener. */
     private boolean mTestStartReported = false;
@@ -212,7 +251,7 @@ public class InstrumentationResultParser extends MultiLineReceiver {
      * Stores key-value pairs of metrics emitted during the execution of each test case.  Note that
      * standard keys that are stored in the TestResults class are filtered out of this Map.
      */
-    private Map<String, String> mTestMetrics = new HashMap<String, String>();
+    private Map<String, String> mTestMetrics = null;
 
     private static final String LOG_TAG = "InstrumentationResultParser";
 
@@ -264,14 +303,13 @@ public class InstrumentationResultParser extends MultiLineReceiver {
     @Override
     public void processNewLines(String[] lines) {
         for (String line : lines) {
-            parse(line);
-            // in verbose mode, dump all adb output to log
-            Log.v(LOG_TAG, line);
+            byte[] bytes = line.getBytes(Charsets.UTF_8);
+            processNewLine(bytes, 0, bytes.length);
         }
     }
 
     /**
-     * Parse an individual output line. Expects a line that is one of:
+     * Parses an individual output line, in UTF-8. Expects a line that is one of:
      * <ul>
      * <li>
      * The start of a new status line (starts with Prefixes.STATUS or Prefixes.STATUS_CODE),
@@ -286,41 +324,49 @@ public class InstrumentationResultParser extends MultiLineReceiver {
      * <li> A line reporting the total elapsed time of the test run. (Prefixes.TIME_REPORT) </li>
      * </ul>
      *
-     * @param line  Text output line
+     * @see MultiLineReceiver#processNewLine
      */
-    private void parse(String line) {
-        if (line.startsWith(Prefixes.STATUS_CODE)) {
+    @Override
+    protected void processNewLine(byte[] line, int offset, int length) {
+        // in verbose mode, dump all adb output to log
+        if (Log.isAtLeast(LogLevel.VERBOSE)) {
+            Log.v(LOG_TAG, new String(line, offset, length, Charsets.UTF_8));
+        }
+
+        if (startsWith(line, offset, length, STATUS_CODE_BYTES)) {
             // Previous status key-value has been collected. Store it.
             submitCurrentKeyValue();
             mInInstrumentationResultKey = false;
-            parseStatusCode(line);
-        } else if (line.startsWith(Prefixes.STATUS)) {
+            parseStatusCode(line, offset + STATUS_CODE_BYTES.length,
+                    length - STATUS_CODE_BYTES.length);
+        } else if (startsWith(line, offset, length, STATUS_BYTES)) {
             // Previous status key-value has been collected. Store it.
             submitCurrentKeyValue();
             mInInstrumentationResultKey = false;
-            parseKey(line, Prefixes.STATUS.length());
-        } else if (line.startsWith(Prefixes.RESULT)) {
+            parseKey(line, offset + STATUS_BYTES.length, offset + length);
+        } else if (startsWith(line, offset, length, RESULT_BYTES)) {
             // Previous status key-value has been collected. Store it.
             submitCurrentKeyValue();
             mInInstrumentationResultKey = true;
-            parseKey(line, Prefixes.RESULT.length());
-        } else if (line.startsWith(Prefixes.STATUS_FAILED) ||
-                   line.startsWith(Prefixes.CODE)) {
+            parseKey(line, offset + RESULT_BYTES.length, offset + length);
+        } else if (startsWith(line, offset, length, STATUS_FAILED_BYTES) ||
+                   startsWith(line, offset, length, CODE_BYTES)) {
             // Previous status key-value has been collected. Store it.
             submitCurrentKeyValue();
             mInInstrumentationResultKey = false;
             // these codes signal the end of the instrumentation run
             mTestRunFinished = true;
             // just ignore the remaining data on this line
-        } else if (line.startsWith(Prefixes.TIME_REPORT)) {
-            parseTime(line);
+        } else if (startsWith(line, offset, length, TIME_REPORT_BYTES)) {
+            parseTime(new String(line, offset, length, Charsets.UTF_8));
         } else {
-            if (mCurrentValue != null) {
+            if (mCurrentValueLength != -1) {
                 // this is a value that has wrapped to next line.
-                mCurrentValue.append("\r\n");
-                mCurrentValue.append(line);
-            } else if (!line.trim().isEmpty()) {
-                Log.d(LOG_TAG, "unrecognized line " + line);
+                appendValue(LINE_BREAK, 0, LINE_BREAK.length);
+                appendValue(line, offset, length);
+            } else if (trimStart(line, offset, offset + length) < offset + length) {
+                Log.d(LOG_TAG, "unrecognized line "
+                        + new String(line, offset, length, Charsets.UTF_8));
             }
         }
     }
@@ -329,9 +375,9 @@ public class InstrumentationResultParser extends MultiLineReceiver {
      * Stores the currently parsed key-value pair in the appropriate place.
      */
     private void submitCurrentKeyValue() {
-        if (mCurrentKey != null && mCurrentValue != null) {
-            String statusValue = mCurrentValue.toString();
+        if (mCurrentKey != null && mCurrentValueLength != -1) {
             if (mInInstrumentationResultKey) {
+                String statusValue = decodeValue();
                 if (!KNOWN_KEYS.contains(mCurrentKey)) {
                     mInstrumentationResultBundle.put(mCurrentKey, statusValue);
                 } else if (mCurrentKey.equals(StatusKeys.SHORTMSG)) {
@@ -347,29 +393,36 @@ public class InstrumentationResultParser extends MultiLineReceiver {
                 TestResult testInfo = getCurrentTestInfo();
 
                 if (mCurrentKey.equals(StatusKeys.CLASS)) {
-                    testInfo.mTestClass = statusValue.trim();
+                    testInfo.mTestClass = mLastTestClass.decodeTrimmed(
+                            mCurrentValue, mCurrentValueLength);
                 } else if (mCurrentKey.equals(StatusKeys.TEST)) {
-                    testInfo.mTestName = statusValue.trim();
+                    testInfo.mTestName = mLastTestName.decodeTrimmed(
+                            mCurrentValue, mCurrentValueLength);
                 } else if (mCurrentKey.equals(StatusKeys.NUMTESTS)) {
-                    try {
-                        testInfo.mNumTests = Integer.parseInt(statusValue);
-                    } catch (NumberFormatException e) {
+                    long numTests = parseInt(mCurrentValue, 0, mCurrentValueLength);
+                    if (numTests != Long.MIN_VALUE) {
+                        testInfo.mNumTests = (int) numTests;
+                    } else {
                         Log.w(LOG_TAG, "Unexpected integer number of tests, received "
-                                + statusValue);
+                                + decodeValue());
                     }
                 } else if (mCurrentKey.equals(StatusKeys.ERROR)) {
                     // test run must have failed
-                    handleTestRunFailed(statusValue);
+                    handleTestRunFailed(decodeValue());
                 } else if (mCurrentKey.equals(StatusKeys.STACK)) {
-                    testInfo.mStackTrace = statusValue;
+                    testInfo.mStackTrace = decodeValue();
                 } else if (!KNOWN_KEYS.contains(mCurrentKey)) {
                     // Not one of the recognized key/value pairs, so dump it in mTestMetrics
-                    mTestMetrics.put(mCurrentKey, statusValue);
+                    if (mTestMetrics == null) {
+                        mTestMetrics = new HashMap<String, String>();
+                    }
+                    mTestMetrics.put(mCurrentKey, decodeValue());
                 }
+                // the other known keys, like the per test "stream" output, are not decoded.
             }
 
             mCurrentKey = null;
-            mCurrentValue = null;
+            mCurrentValueLength = -1;
         }
     }
 
@@ -379,8 +432,8 @@ public class InstrumentationResultParser extends MultiLineReceiver {
      */
     private Map<String, String> getAndResetTestMetrics() {
         Map<String, String> retVal = mTestMetrics;
-        mTestMetrics = new HashMap<String, String>();
-        return retVal;
+        mTestMetrics = null;
+        return retVal != null ? retVal : new HashMap<String, String>();
     }
 
     private TestResult getCurrentTestInfo() {
@@ -399,39 +452,73 @@ public class InstrumentationResultParser extends MultiLineReceiver {
      * Parses the key from the current line.
      * Expects format of "key=value".
      *
-     * @param line full line of text to parse
+     * @param line buffer holding the line
      * @param keyStartPos the starting position of the key in the given line
+     * @param end the end of the line
      */
-    private void parseKey(String line, int keyStartPos) {
-        int endKeyPos = line.indexOf('=', keyStartPos);
+    private void parseKey(byte[] line, int keyStartPos, int end) {
+        int endKeyPos = indexOf(line, keyStartPos, end, (byte) '=');
         if (endKeyPos != -1) {
-            mCurrentKey = line.substring(keyStartPos, endKeyPos).trim();
-            parseValue(line, endKeyPos + 1);
+            mCurrentKey = decodeKey(line, keyStartPos, endKeyPos);
+            parseValue(line, endKeyPos + 1, end);
         }
     }
 
     /**
      * Parses the start of a key=value pair.
      *
-     * @param line - full line of text to parse
-     * @param valueStartPos - the starting position of the value in the given line
+     * @param line buffer holding the line
+     * @param valueStartPos the starting position of the value in the given line
+     * @param end the end of the line
+     */
+    private void parseValue(byte[] line, int valueStartPos, int end) {
+        mCurrentValueLength = 0;
+        appendValue(line, valueStartPos, end - valueStartPos);
+    }
+
+    private void appendValue(byte[] data, int offset, int length) {
+        int required = mCurrentValueLength + length;
+        if (required > mCurrentValue.length) {
+            mCurrentValue = Arrays.copyOf(mCurrentValue,
+                    Math.max(required, mCurrentValue.length * 2));
+        }
+        System.arraycopy(data, offset, mCurrentValue, mCurrentValueLength, length);
+        mCurrentValueLength = required;
+    }
+
+    private String decodeValue() {
+        return new String(mCurrentValue, 0, mCurrentValueLength, Charsets.UTF_8);
+    }
+
+    /**
+     * Returns the trimmed key, reusing the known key strings.
      */
-    private void parseValue(String line, int valueStartPos) {
-        mCurrentValue = new StringBuilder();
-        mCurrentValue.append(line.substring(valueStartPos));
+    private static String decodeKey(byte[] line, int start, int end) {
+        start = trimStart(line, start, end);
+        end = trimEnd(line, start, end);
+        int length = end - start;
+        for (int i = 0; i < COMMON_KEY_BYTES.length; i++) {
+            byte[] key = COMMON_KEY_BYTES[i];
+            if (key.length == length && startsWith(line, start, length, key)) {
+                return COMMON_KEYS[i];
+            }
+        }
+        return new String(line, start, length, Charsets.UTF_8);
     }
 
     /**
      * Parses out a status code result.
      */
-    private void parseStatusCode(String line) {
-        String value = line.substring(Prefixes.STATUS_CODE.length()).trim();
+    private void parseStatusCode(byte[] line, int offset, int length) {
         TestResult testInfo = getCurrentTestInfo();
-        testInfo.mCode = StatusCodes.ERROR;
-        try {
-            testInfo.mCode = Integer.parseInt(value);
-        } catch (NumberFormatException e) {
-            Log.w(LOG_TAG, "Expected integer status code, received: " + value);
+        int start = trimStart(line, offset, offset + length);
+        int end = trimEnd(line, start, offset + length);
+        long code = parseInt(line, start, end - start);
+        if (code != Long.MIN_VALUE) {
+            testInfo.mCode = (int) code;
+        } else {
+            Log.w(LOG_TAG, "Expected integer status code, received: "
+                    + new String(line, start, end - start, Charsets.UTF_8));
             testInfo.mCode = StatusCodes.ERROR;
         }
         if (testInfo.mCode != StatusCodes.IN_PROGRESS) {
@@ -441,6 +528,95 @@ public class InstrumentationResultParser extends MultiLineReceiver {
         }
     }
 
+    /**
+     * Parses a decimal int like {@link Integer#parseInt(String)} does.
+     *
+     * @return the value, or {@link Long#MIN_VALUE} if it is not a valid int.
+     */
+    private static long parseInt(byte[] data, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        boolean negative = false;
+        if (i < end && (data[i] == '-' || data[i] == '+')) {
+            negative = data[i] == '-';
+            i++;
+        }
+        if (i == end) {
+            return Long.MIN_VALUE;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return Long.MIN_VALUE;
+            }
+        }
+        value = negative ? -value : value;
+        return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? Long.MIN_VALUE : value;
+    }
+
+    private static boolean startsWith(byte[] data, int offset, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] data, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int trimStart(byte[] data, int start, int end) {
+        while (start < end && (data[start] & 0xff) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(byte[] data, int start, int end) {
+        while (end > start && (data[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * A value decoded from bytes, reused as long as the same bytes come again.
+     */
+    private static final class DecodedValue {
+        private byte[] mBytes = new byte[0];
+        private String mValue;
+
+        /**
+         * Returns the trimmed value of the given bytes, reusing the last value if they match.
+         */
+        String decodeTrimmed(byte[] data, int length) {
+            int start = trimStart(data, 0, length);
+            int end = trimEnd(data, start, length);
+            int size = end - start;
+            if (mValue == null || mBytes.length != size
+                    || !startsWith(data, start, size, mBytes)) {
+                mBytes = Arrays.copyOfRange(data, start, end);
+                mValue = new String(mBytes, Charsets.UTF_8);
+            }
+            return mValue;
+        }
+    }
+
     /**
      * Returns true if test run canceled.
      *
@@ -470,7 +646,14 @@ public class InstrumentationResultParser extends MultiLineReceiver {
             return;
         }
         reportTestRunStarted(testInfo);
-        TestIdentifier testId = new TestIdentifier(testInfo.mTestClass, testInfo.mTestName);
+        TestIdentifier testId = mLastTestId;
+        if (testId == null || testId.getClassName() != testInfo.mTestClass
+                || testId.getTestName() != testInfo.mTestName) {
+            // names are reused as long as they don't change, so this only allocates once per
+            // test.
+            testId = new TestIdentifier(testInfo.mTestClass, testInfo.mTestName);
+            mLastTestId = testId;
+        }
         Map<String, String> metrics;
 
         switch (testInfo.mCode) {
@@ -566,9 +749,7 @@ public class InstrumentationResultParser extends MultiLineReceiver {
      * For example: "Time: 1,745.755" which should be handled.
      */
     private void parseTime(String line) {
-        final Pattern timePattern =
-                Pattern.compile(String.format("%s\\s*([\\d\\,]*[\\d\\.]+)", Prefixes.TIME_REPORT));
-        Matcher timeMatcher = timePattern.matcher(line);
+        Matcher timeMatcher = TIME_PATTERN.matcher(line);
         if (timeMatcher.find()) {
             String timeString = timeMatcher.group(1);
             try {
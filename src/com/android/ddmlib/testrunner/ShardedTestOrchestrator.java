@@ -0,0 +1,534 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.testrunner;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.IShellEnabledDevice;
+import com.android.ddmlib.Log;
+import com.android.ddmlib.ShellCommandUnresponsiveException;
+import com.android.ddmlib.TimeoutException;
+import com.android.ddmlib.testrunner.TestResult.TestStatus;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a test suite on a set of devices, splitting it into shards that are balanced dynamically
+ * across the devices.
+ * <p>
+ * Shards are cut from the expected durations of the tests, read from a
+ * {@link TestDurationStore}, and keep the tests of a class together when possible. Each device
+ * runs shards through a {@link RemoteAndroidTestRunner} and pulls the next one as soon as it is
+ * done, longest shards first. Tests that fail or do not complete, for instance because the
+ * instrumentation crashed, are queued again, preferably for another device, until they run out
+ * of attempts. A device failing to run shards repeatedly is dropped.
+ * <p>
+ * Once all shards ran, the final result of each test is reported to the listeners as a single
+ * test run, in the order of the suite.
+ */
+public class ShardedTestOrchestrator {
+
+    private static final String LOG_TAG = "ShardedTestOrchestrator";
+
+    /** Duration assumed for tests that were never run, in milliseconds. */
+    private static final long DEFAULT_TEST_DURATION = 1000;
+
+    /** Number of consecutive failed shard runs after which a device is dropped. */
+    private static final int MAX_DEVICE_FAILURES = 2;
+
+    private static final String CLASS_SEPARATOR = ",";
+    private static final String METHOD_SEPARATOR = "#";
+
+    private final String mPackageName;
+    private final String mRunnerName;
+    private final List<IShellEnabledDevice> mDevices;
+    private String mRunName;
+    private int mMaxAttempts = 2;
+    private int mShardsPerDevice = 2;
+    private TestDurationStore mDurationStore = new TestDurationStore();
+    private File mReportDir;
+    private final Map<String, String> mInstrumentationArgs = new LinkedHashMap<String, String>();
+    private long mMaxTimeToOutputResponseMs = 0;
+    private long mMaxTimeoutMs = 0;
+
+    /** Lock guarding the state of a run, below. */
+    private final Object mLock = new Object();
+    private final LinkedList<Shard> mPending = new LinkedList<Shard>();
+    private final Map<TestIdentifier, TestResult> mFinalResults =
+            new HashMap<TestIdentifier, TestResult>();
+    private final Map<TestIdentifier, Integer> mAttempts = new HashMap<TestIdentifier, Integer>();
+    private final Map<String, String> mRunMetrics = new HashMap<String, String>();
+    private int mRunning;
+    private int mWaiting;
+    private int mLiveDevices;
+
+    /**
+     * A set of tests run by a single instrumentation.
+     */
+    private static final class Shard {
+        final List<TestIdentifier> tests;
+        final long estimate;
+        /** The device which last ran the tests, or null. */
+        final IShellEnabledDevice lastDevice;
+
+        Shard(List<TestIdentifier> tests, long estimate, IShellEnabledDevice lastDevice) {
+            this.tests = tests;
+            this.estimate = estimate;
+            this.lastDevice = lastDevice;
+        }
+    }
+
+    /**
+     * Creates an orchestrator.
+     * @param packageName the Android application package that contains the tests to run.
+     * @param runnerName the instrumentation test runner to execute. If null, will use the
+     *            default runner.
+     * @param devices the devices to run the tests on.
+     */
+    public ShardedTestOrchestrator(@NonNull String packageName, @Nullable String runnerName,
+            @NonNull Collection<? extends IShellEnabledDevice> devices) {
+        if (devices.isEmpty()) {
+            throw new IllegalArgumentException("no devices to run tests on");
+        }
+        mPackageName = packageName;
+        mRunnerName = runnerName;
+        mDevices = new ArrayList<IShellEnabledDevice>(devices);
+    }
+
+    /**
+     * Sets the name of the test run reported to listeners. Defaults to the package name.
+     */
+    public void setRunName(@Nullable String runName) {
+        mRunName = runName;
+    }
+
+    /**
+     * Sets how many times a test is run before its failure is reported. Defaults to 2.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * Sets how many shards are cut per device. More shards balance better, at the cost of
+     * starting more instrumentations. Defaults to 2.
+     */
+    public void setShardsPerDevice(int shardsPerDevice) {
+        if (shardsPerDevice < 1) {
+            throw new IllegalArgumentException("shardsPerDevice must be at least 1");
+        }
+        mShardsPerDevice = shardsPerDevice;
+    }
+
+    /**
+     * Sets the store of test durations used to cut shards. It is updated with the results of
+     * each run.
+     */
+    public void setTestDurationStore(@NonNull TestDurationStore durationStore) {
+        mDurationStore = durationStore;
+    }
+
+    /**
+     * Returns the store of test durations used to cut shards.
+     */
+    @NonNull
+    public TestDurationStore getTestDurationStore() {
+        return mDurationStore;
+    }
+
+    /**
+     * Sets a directory to write a merged XML report of each run in, through a
+     * {@link XmlTestRunListener}.
+     */
+    public void setReportDir(@Nullable File reportDir) {
+        mReportDir = reportDir;
+    }
+
+    /**
+     * Adds an argument to the instrumentation of each shard.
+     * @see RemoteAndroidTestRunner#addInstrumentationArg(String, String)
+     */
+    public void addInstrumentationArg(@NonNull String name, @NonNull String value) {
+        mInstrumentationArgs.put(name, value);
+    }
+
+    /**
+     * Sets the maximum time allowed between output of a shard instrumentation.
+     * @see RemoteAndroidTestRunner#setMaxTimeToOutputResponse(long, TimeUnit)
+     */
+    public void setMaxTimeToOutputResponse(long maxTimeToOutputResponse, TimeUnit maxTimeUnits) {
+        mMaxTimeToOutputResponseMs = maxTimeUnits.toMillis(maxTimeToOutputResponse);
+    }
+
+    /**
+     * Sets the maximum time allowed for a shard instrumentation to run.
+     * @see RemoteAndroidTestRunner#setMaxTimeout(long, TimeUnit)
+     */
+    public void setMaxTimeout(long maxTimeout, TimeUnit maxTimeUnits) {
+        mMaxTimeoutMs = maxTimeUnits.toMillis(maxTimeout);
+    }
+
+    /**
+     * Runs a test suite, and blocks until all its tests ran.
+     * @param tests the tests to run.
+     * @param listeners the listeners to report the merged test run to.
+     * @return the merged result of the run.
+     */
+    @NonNull
+    public TestRunResult run(@NonNull Collection<TestIdentifier> tests,
+            @NonNull ITestRunListener... listeners) {
+        List<TestIdentifier> suite =
+                new ArrayList<TestIdentifier>(new LinkedHashSet<TestIdentifier>(tests));
+        long start = System.currentTimeMillis();
+
+        synchronized (mLock) {
+            mPending.clear();
+            mFinalResults.clear();
+            mAttempts.clear();
+            mRunMetrics.clear();
+            mRunning = 0;
+            mWaiting = 0;
+            mLiveDevices = mDevices.size();
+            mPending.addAll(createShards(suite));
+        }
+
+        ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Test Shard-%d")
+                .build();
+        List<Thread> workers = new ArrayList<Thread>(mDevices.size());
+        for (final IShellEnabledDevice device : mDevices) {
+            Thread worker = threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    runShards(device);
+                }
+            });
+            worker.setName(worker.getName() + " " + device.getName());
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        Map<TestIdentifier, TestResult> results;
+        Map<String, String> runMetrics;
+        synchronized (mLock) {
+            results = new HashMap<TestIdentifier, TestResult>(mFinalResults);
+            runMetrics = new HashMap<String, String>(mRunMetrics);
+        }
+        TestRunResult merged = new TestRunResult();
+        List<ITestRunListener> allListeners = new ArrayList<ITestRunListener>();
+        allListeners.add(merged);
+        allListeners.addAll(Arrays.asList(listeners));
+        if (mReportDir != null) {
+            XmlTestRunListener xmlListener = new XmlTestRunListener();
+            xmlListener.setReportDir(mReportDir);
+            allListeners.add(xmlListener);
+        }
+        report(suite, results, runMetrics, System.currentTimeMillis() - start, allListeners);
+        mDurationStore.update(merged);
+        return merged;
+    }
+
+    /**
+     * Splits a suite into shards of similar expected durations, keeping the tests of a class
+     * together unless the class is longer than a shard. The shards are sorted longest first.
+     */
+    private List<Shard> createShards(List<TestIdentifier> suite) {
+        long defaultDuration = mDurationStore.getAverageDuration(DEFAULT_TEST_DURATION);
+        Map<String, List<TestIdentifier>> classes = new LinkedHashMap<String, List<TestIdentifier>>();
+        long total = 0;
+        for (TestIdentifier test : suite) {
+            List<TestIdentifier> classTests = classes.get(test.getClassName());
+            if (classTests == null) {
+                classTests = new ArrayList<TestIdentifier>();
+                classes.put(test.getClassName(), classTests);
+            }
+            classTests.add(test);
+            total += mDurationStore.getDuration(test, defaultDuration);
+        }
+        long target = Math.max(1, total / ((long) mDevices.size() * mShardsPerDevice));
+
+        List<Shard> shards = new ArrayList<Shard>();
+        List<TestIdentifier> current = new ArrayList<TestIdentifier>();
+        long currentEstimate = 0;
+        for (List<TestIdentifier> classTests : classes.values()) {
+            long classEstimate = 0;
+            for (TestIdentifier test : classTests) {
+                classEstimate += mDurationStore.getDuration(test, defaultDuration);
+            }
+            if (!current.isEmpty() && currentEstimate + classEstimate > target) {
+                shards.add(new Shard(current, currentEstimate, null));
+                current = new ArrayList<TestIdentifier>();
+                currentEstimate = 0;
+            }
+            if (classEstimate <= target) {
+                current.addAll(classTests);
+                currentEstimate += classEstimate;
+                continue;
+            }
+            // class longer than a shard: split it.
+            for (TestIdentifier test : classTests) {
+                long duration = mDurationStore.getDuration(test, defaultDuration);
+                if (!current.isEmpty() && currentEstimate + duration > target) {
+                    shards.add(new Shard(current, currentEstimate, null));
+                    current = new ArrayList<TestIdentifier>();
+                    currentEstimate = 0;
+                }
+                current.add(test);
+                currentEstimate += duration;
+            }
+        }
+        if (!current.isEmpty()) {
+            shards.add(new Shard(current, currentEstimate, null));
+        }
+
+        Collections.sort(shards, new Comparator<Shard>() {
+            @Override
+            public int compare(Shard s1, Shard s2) {
+                return Long.compare(s2.estimate, s1.estimate);
+            }
+        });
+        return shards;
+    }
+
+    /**
+     * Runs shards on a device until none are left, or the device is dropped.
+     */
+    private void runShards(IShellEnabledDevice device) {
+        int failures = 0;
+        try {
+            Shard shard;
+            while ((shard = takeShard(device)) != null) {
+                TestRunResult shardResult = new TestRunResult();
+                boolean deviceError = false;
+                try {
+                    createRunner(device, shard).run(shardResult);
+                } catch (TimeoutException | AdbCommandRejectedException
+                        | ShellCommandUnresponsiveException | IOException e) {
+                    Log.w(LOG_TAG, String.format("%1$s when running a shard on %2$s",
+                            e.toString(), device.getName()));
+                    deviceError = true;
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, e);
+                    deviceError = true;
+                }
+                failures = deviceError || shardResult.isRunFailure() ? failures + 1 : 0;
+                completeShard(device, shard, shardResult, deviceError);
+                if (failures >= MAX_DEVICE_FAILURES) {
+                    Log.w(LOG_TAG, String.format("Dropping %1$s after %2$d failed shards",
+                            device.getName(), failures));
+                    break;
+                }
+            }
+        } finally {
+            synchronized (mLock) {
+                mLiveDevices--;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    private RemoteAndroidTestRunner createRunner(IShellEnabledDevice device, Shard shard) {
+        RemoteAndroidTestRunner runner =
+                new RemoteAndroidTestRunner(mPackageName, mRunnerName, device);
+        runner.setRunName(mRunName);
+        for (Map.Entry<String, String> arg : mInstrumentationArgs.entrySet()) {
+            runner.addInstrumentationArg(arg.getKey(), arg.getValue());
+        }
+        runner.setMaxTimeToOutputResponse(mMaxTimeToOutputResponseMs, TimeUnit.MILLISECONDS);
+        runner.setMaxTimeout(mMaxTimeoutMs, TimeUnit.MILLISECONDS);
+
+        StringBuilder classArg = new StringBuilder();
+        for (TestIdentifier test : shard.tests) {
+            if (classArg.length() > 0) {
+                classArg.append(CLASS_SEPARATOR);
+            }
+            classArg.append(test.getClassName()).append(METHOD_SEPARATOR)
+                    .append(test.getTestName());
+        }
+        runner.setClassName(classArg.toString());
+        return runner;
+    }
+
+    /**
+     * Returns the next shard for a device, preferring shards it did not run already, or null
+     * if there are none left.
+     */
+    @Nullable
+    private Shard takeShard(IShellEnabledDevice device) {
+        synchronized (mLock) {
+            while (true) {
+                for (Iterator<Shard> it = mPending.iterator(); it.hasNext(); ) {
+                    Shard shard = it.next();
+                    if (shard.lastDevice != device) {
+                        it.remove();
+                        mRunning++;
+                        return shard;
+                    }
+                }
+                // only retries of shards this device ran are left: leave them to another idle
+                // device if there is one, but don't wait for busy ones.
+                if (!mPending.isEmpty() && (mWaiting == 0 || mLiveDevices == 1)) {
+                    mRunning++;
+                    return mPending.removeFirst();
+                }
+                if (mPending.isEmpty() && mRunning == 0) {
+                    return null;
+                }
+                mWaiting++;
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                } finally {
+                    mWaiting--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the results of a shard, and queues again the tests to retry.
+     * @param deviceError whether the shard could not run because of the device. Tests which did
+     *            not start are then not charged an attempt.
+     */
+    private void completeShard(IShellEnabledDevice device, Shard shard, TestRunResult result,
+            boolean deviceError) {
+        Map<TestIdentifier, TestResult> testResults = result.getTestResults();
+        // if nothing started on a working device, the instrumentation itself failed: count it
+        // against all tests.
+        boolean chargeUnstarted = !deviceError && testResults.isEmpty();
+        List<TestIdentifier> retries = new ArrayList<TestIdentifier>();
+        long retryEstimate = 0;
+        long defaultDuration = mDurationStore.getAverageDuration(DEFAULT_TEST_DURATION);
+        synchronized (mLock) {
+            mRunMetrics.putAll(result.getRunMetrics());
+            for (TestIdentifier test : shard.tests) {
+                TestResult testResult = testResults.get(test);
+                if (testResult == null && !chargeUnstarted) {
+                    // never reached, typically because the instrumentation crashed before.
+                    retries.add(test);
+                    retryEstimate += mDurationStore.getDuration(test, defaultDuration);
+                    continue;
+                }
+                TestStatus status = testResult != null
+                        ? testResult.getStatus() : TestStatus.INCOMPLETE;
+                if (status == TestStatus.FAILURE || status == TestStatus.INCOMPLETE) {
+                    Integer attempts = mAttempts.get(test);
+                    attempts = attempts == null ? 1 : attempts + 1;
+                    mAttempts.put(test, attempts);
+                    if (attempts < mMaxAttempts) {
+                        retries.add(test);
+                        retryEstimate += mDurationStore.getDuration(test, defaultDuration);
+                        continue;
+                    }
+                    if (testResult == null) {
+                        testResult = new TestResult();
+                        testResult.setStackTrace(result.getRunFailureMessage());
+                    }
+                }
+                mFinalResults.put(test, testResult);
+            }
+            if (!retries.isEmpty()) {
+                mPending.addLast(new Shard(retries, retryEstimate, device));
+            }
+            mRunning--;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Reports the final results of a run to listeners, as a single test run.
+     */
+    private void report(List<TestIdentifier> suite, Map<TestIdentifier, TestResult> results,
+            Map<String, String> runMetrics, long elapsedTime, List<ITestRunListener> listeners) {
+        String runName = mRunName == null ? mPackageName : mRunName;
+        for (ITestRunListener listener : listeners) {
+            listener.testRunStarted(runName, suite.size());
+        }
+        int incomplete = 0;
+        for (TestIdentifier test : suite) {
+            TestResult result = results.get(test);
+            if (result == null) {
+                result = new TestResult();
+                result.setStackTrace("No device left to run the test");
+            }
+            Map<String, String> metrics = result.getMetrics() != null
+                    ? result.getMetrics() : Collections.<String, String>emptyMap();
+            long endTime = result.getEndTime() != 0
+                    ? result.getEndTime() : result.getStartTime();
+            for (ITestRunListener listener : listeners) {
+                listener.testStarted(test, result.getStartTime());
+                switch (result.getStatus()) {
+                    case FAILURE:
+                        listener.testFailed(test, result.getStackTrace());
+                        break;
+                    case INCOMPLETE:
+                        listener.testFailed(test, result.getStackTrace() != null
+                                ? result.getStackTrace() : "Test did not complete");
+                        break;
+                    case ASSUMPTION_FAILURE:
+                        listener.testAssumptionFailure(test, result.getStackTrace());
+                        break;
+                    case IGNORED:
+                        listener.testIgnored(test);
+                        break;
+                    default:
+                        break;
+                }
+                listener.testEnded(test, endTime, metrics);
+            }
+            if (result.getStatus() == TestStatus.INCOMPLETE) {
+                incomplete++;
+            }
+        }
+        for (ITestRunListener listener : listeners) {
+            if (incomplete > 0) {
+                listener.testRunFailed(String.format("%1$d tests did not complete", incomplete));
+            }
+            listener.testRunEnded(elapsedTime, runMetrics);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.ddmlib.testrunner;
+
+import com.android.annotations.NonNull;
+import com.android.ddmlib.Log;
+import com.android.ddmlib.testrunner.TestResult.TestStatus;
+import com.google.common.base.Charsets;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Historical durations of tests, used by {@link ShardedTestOrchestrator} to balance shards.
+ * <p>
+ * Durations are updated from {@link TestRunResult}s, as a moving average over runs, and can be
+ * persisted to a file between runs. The file has one <code>class#method duration</code> line per
+ * test, the duration being in milliseconds.
+ */
+public class TestDurationStore {
+
+    private static final String LOG_TAG = "TestDurationStore";
+
+    /** Weight of the newest duration in the moving average. */
+    private static final double NEW_SAMPLE_WEIGHT = 0.5;
+
+    private final Map<TestIdentifier, Long> mDurations = new HashMap<TestIdentifier, Long>();
+
+    /**
+     * Returns the expected duration of a test, in milliseconds.
+     * @param test the test.
+     * @param defaultDuration the duration to return for tests that were never run.
+     */
+    public synchronized long getDuration(@NonNull TestIdentifier test, long defaultDuration) {
+        Long duration = mDurations.get(test);
+        return duration != null ? duration : defaultDuration;
+    }
+
+    /**
+     * Returns the average duration of the known tests, or <code>defaultDuration</code> if no
+     * test is known.
+     */
+    public synchronized long getAverageDuration(long defaultDuration) {
+        if (mDurations.isEmpty()) {
+            return defaultDuration;
+        }
+        long total = 0;
+        for (long duration : mDurations.values()) {
+            total += duration;
+        }
+        return total / mDurations.size();
+    }
+
+    /**
+     * Records the duration of a test.
+     * @param test the test.
+     * @param duration the duration, in milliseconds.
+     */
+    public synchronized void setDuration(@NonNull TestIdentifier test, long duration) {
+        Long previous = mDurations.get(test);
+        if (previous != null) {
+            duration = (long) (previous * (1 - NEW_SAMPLE_WEIGHT) + duration * NEW_SAMPLE_WEIGHT);
+        }
+        mDurations.put(test, duration);
+    }
+
+    /**
+     * Records the durations of the completed tests of a run. Incomplete tests are skipped.
+     * @param result the result of the run.
+     */
+    public void update(@NonNull TestRunResult result) {
+        for (Map.Entry<TestIdentifier, TestResult> entry : result.getTestResults().entrySet()) {
+            TestResult testResult = entry.getValue();
+            if (testResult.getStatus() != TestStatus.INCOMPLETE
+                    && testResult.getEndTime() >= testResult.getStartTime()
+                    && testResult.getStartTime() > 0) {
+                setDuration(entry.getKey(), testResult.getEndTime() - testResult.getStartTime());
+            }
+        }
+    }
+
+    /**
+     * Returns the number of known tests.
+     */
+    public synchronized int size() {
+        return mDurations.size();
+    }
+
+    /**
+     * Loads durations from a file, in addition to the ones already known. A missing file is
+     * ignored.
+     * @param file the file.
+     * @throws IOException
+     */
+    public void load(@NonNull File file) throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+        Reader reader = new InputStreamReader(new FileInputStream(file), Charsets.UTF_8);
+        try {
+            load(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Loads durations from a reader.
+     * @throws IOException
+     */
+    public synchronized void load(@NonNull Reader reader) throws IOException {
+        BufferedReader br = new BufferedReader(reader);
+        String line;
+        while ((line = br.readLine()) != null) {
+            int separator = line.lastIndexOf(' ');
+            int hash = line.lastIndexOf('#', separator);
+            if (separator == -1 || hash == -1) {
+                continue;
+            }
+            try {
+                long duration = Long.parseLong(line.substring(separator + 1).trim());
+                mDurations.put(new TestIdentifier(line.substring(0, hash),
+                        line.substring(hash + 1, separator)), duration);
+            } catch (NumberFormatException e) {
+                Log.w(LOG_TAG, "Ignoring malformed line " + line);
+            }
+        }
+    }
+
+    /**
+     * Saves the durations to a file.
+     * @param file the file.
+     * @throws IOException
+     */
+    public void save(@NonNull File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8);
+        try {
+            save(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Saves the durations to a writer.
+     * @throws IOException
+     */
+    public synchronized void save(@NonNull Writer writer) throws IOException {
+        BufferedWriter bw = new BufferedWriter(writer);
+        for (Map.Entry<TestIdentifier, Long> entry : mDurations.entrySet()) {
+            bw.write(entry.getKey().toString());
+            bw.write(' ');
+            bw.write(Long.toString(entry.getValue()));
+            bw.newLine();
+        }
+        bw.flush();
+    }
+}
@@ -193,6 +193,14 @@ public class TestRunResult implements ITestRunListener {
         mTestResults.put(test, testResult);
     }
 
+    /**
+     * Removes the result of a test, for listeners which do not keep results once reported.
+     */
+    TestResult removeTestResult(TestIdentifier test) {
+        mIsCountDirty = true;
+        return mTestResults.remove(test);
+    }
+
     private void updateTestResult(TestIdentifier test, TestStatus status, String trace) {
         TestResult r = mTestResults.get(test);
         if (r == null) {
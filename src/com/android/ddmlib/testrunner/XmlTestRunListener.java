@@ -30,8 +30,14 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
@@ -41,6 +47,10 @@ import java.util.TimeZone;
  * Ant's XMLJUnitResultFormatter.
  * <p>
  * Creates a separate XML file per test run.
+ * <p>
+ * By default the results of a run are kept in memory and the report is written when the run
+ * ends. In streaming mode, see {@link #setStreaming(boolean)}, each test case is appended to the
+ * report as soon as the test ends, and only the tests in progress are kept in memory.
  *
  * @see <a href="https://svn.jenkins-ci.org/trunk/hudson/dtkit/dtkit-format/dtkit-junit-model/src/main/resources/com/thalesgroup/dtkit/junit/model/xsd/junit-4.xsd">https://svn.jenkins-ci.org/trunk/hudson/dtkit/dtkit-format/dtkit-junit-model/src/main/resources/com/thalesgroup/dtkit/junit/model/xsd/junit-4.xsd</a> */
 public class XmlTestRunListener implements ITestRunListener {
@@ -73,6 +83,17 @@ public class XmlTestRunListener implements ITestRunListener {
     /** the XML namespace */
     private static final String ns = null;
 
+    private static final String SUITE_END = "\n</testsuite>\n";
+
+    /** Room left in the streamed suite header for its counts to grow. */
+    private static final int HEADER_RESERVE = 64;
+
+    /** Size of the buffer of a streamed report. */
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    /** Maximum time between two writes of a streamed report, in milliseconds. */
+    private static final long STREAM_FLUSH_INTERVAL_MS = 1000;
+
     private String mHostName = "localhost";
 
     private File mReportDir = new File(System.getProperty("java.io.tmpdir"));
@@ -81,6 +102,11 @@ public class XmlTestRunListener implements ITestRunListener {
 
     private TestRunResult mRunResult = new TestRunResult();
 
+    private boolean mStreaming = false;
+
+    /** The report of the current run in streaming mode, or null. */
+    private StreamingReport mStreamingReport;
+
     /**
      * Sets the report file to use.
      */
@@ -88,6 +114,20 @@ public class XmlTestRunListener implements ITestRunListener {
         mReportDir = file;
     }
 
+    /**
+     * Sets whether the report is streamed, taking effect at the next run.
+     * <p>
+     * A streamed report is opened when the run starts, and test cases are appended to it as the
+     * tests end, the counts of the suite being updated in place. The {@link TestRunResult}
+     * returned by {@link #getRunResult()} then only holds the tests in progress.
+     * <p>
+     * The report is always cut between test cases, so the report of a run which never ended
+     * is made valid by {@link #recoverReport(File)}.
+     */
+    public void setStreaming(boolean streaming) {
+        mStreaming = streaming;
+    }
+
     public void setHostName(String hostName) {
         mHostName = hostName;
     }
@@ -102,8 +142,16 @@ public class XmlTestRunListener implements ITestRunListener {
 
     @Override
     public void testRunStarted(String runName, int numTests) {
+        closeStreamingReport();
         mRunResult = new TestRunResult();
         mRunResult.testRunStarted(runName, numTests);
+        if (mStreaming) {
+            try {
+                mStreamingReport = new StreamingReport(getResultFile(mReportDir));
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to create streamed report, falling back to full report");
+            }
+        }
     }
 
     @Override
@@ -111,6 +159,11 @@ public class XmlTestRunListener implements ITestRunListener {
        mRunResult.testStarted(test);
     }
 
+    @Override
+    public void testStarted(TestIdentifier test, long startTime) {
+        mRunResult.testStarted(test, startTime);
+    }
+
     @Override
     public void testFailed(TestIdentifier test, String trace) {
         mRunResult.testFailed(test, trace);
@@ -128,7 +181,21 @@ public class XmlTestRunListener implements ITestRunListener {
 
     @Override
     public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
-        mRunResult.testEnded(test, testMetrics);
+        testEnded(test, System.currentTimeMillis(), testMetrics);
+    }
+
+    @Override
+    public void testEnded(TestIdentifier test, long endTime, Map<String, String> testMetrics) {
+        mRunResult.testEnded(test, endTime, testMetrics);
+        if (mStreamingReport != null) {
+            TestResult result = mRunResult.removeTestResult(test);
+            try {
+                mStreamingReport.append(test, result);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to write streamed report");
+                closeStreamingReport();
+            }
+        }
     }
 
     @Override
@@ -144,7 +211,67 @@ public class XmlTestRunListener implements ITestRunListener {
     @Override
     public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
         mRunResult.testRunEnded(elapsedTime, runMetrics);
-        generateDocument(mReportDir, elapsedTime);
+        if (mStreamingReport == null) {
+            generateDocument(mReportDir, elapsedTime);
+            return;
+        }
+        StreamingReport report = mStreamingReport;
+        mStreamingReport = null;
+        try {
+            // tests which never ended are reported as in the full report.
+            for (Map.Entry<TestIdentifier, TestResult> testEntry :
+                    mRunResult.getTestResults().entrySet()) {
+                report.append(testEntry.getKey(), testEntry.getValue());
+            }
+            report.finish(elapsedTime);
+            String msg = String.format("XML test result file generated at %s. %s",
+                    getAbsoluteReportPath(), report.getTextSummary());
+            Log.logAndDisplay(LogLevel.INFO, LOG_TAG, msg);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to generate report data");
+        } finally {
+            report.close();
+        }
+    }
+
+    private void closeStreamingReport() {
+        if (mStreamingReport != null) {
+            mStreamingReport.close();
+            mStreamingReport = null;
+        }
+    }
+
+    /**
+     * Makes a streamed report whose run never ended valid, by closing its test suite.
+     * @param reportFile the report file.
+     * @return true if the report was recovered, false if it was complete already.
+     * @throws IOException if the report could not be read or written.
+     */
+    public static boolean recoverReport(@NonNull File reportFile) throws IOException {
+        byte[] end = SUITE_END.getBytes(StandardCharsets.UTF_8);
+        FileChannel channel = FileChannel.open(reportFile.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long size = channel.size();
+            if (size >= end.length) {
+                ByteBuffer tail = ByteBuffer.allocate(end.length);
+                while (tail.hasRemaining()) {
+                    if (channel.read(tail, size - end.length + tail.position()) < 0) {
+                        break;
+                    }
+                }
+                if (new String(tail.array(), StandardCharsets.UTF_8).equals(SUITE_END)) {
+                    return false;
+                }
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(end);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, size + buffer.position());
+            }
+            return true;
+        } finally {
+            channel.close();
+        }
     }
 
     /**
@@ -227,23 +354,38 @@ public class XmlTestRunListener implements ITestRunListener {
 
     void printTestResults(KXmlSerializer serializer, String timestamp, long elapsedTime)
             throws IOException {
+        printTestSuiteStart(serializer, timestamp, elapsedTime, mRunResult.getNumTests(),
+                mRunResult.getNumAllFailedTests(), mRunResult.getNumTestsInState(
+                        TestStatus.IGNORED));
+        printProperties(serializer);
+
+        Map<TestIdentifier, TestResult> testResults = mRunResult.getTestResults();
+        for (Map.Entry<TestIdentifier, TestResult> testEntry : testResults.entrySet()) {
+            print(serializer, testEntry.getKey(), testEntry.getValue());
+        }
+
+        serializer.endTag(ns, TESTSUITE);
+    }
+
+    private void printTestSuiteStart(KXmlSerializer serializer, String timestamp,
+            long elapsedTime, int numTests, int numFailures, int numSkipped) throws IOException {
         serializer.startTag(ns, TESTSUITE);
         String name = getTestSuiteName();
         if (name != null) {
             serializer.attribute(ns, ATTR_NAME, name);
         }
-        serializer.attribute(ns, ATTR_TESTS, Integer.toString(mRunResult.getNumTests()));
-        serializer.attribute(ns, ATTR_FAILURES, Integer.toString(
-                mRunResult.getNumAllFailedTests()));
+        serializer.attribute(ns, ATTR_TESTS, Integer.toString(numTests));
+        serializer.attribute(ns, ATTR_FAILURES, Integer.toString(numFailures));
         // legacy - there are no errors in JUnit4
         serializer.attribute(ns, ATTR_ERRORS, "0");
-        serializer.attribute(ns, ATTR_SKIPPED, Integer.toString(mRunResult.getNumTestsInState(
-                TestStatus.IGNORED)));
+        serializer.attribute(ns, ATTR_SKIPPED, Integer.toString(numSkipped));
 
         serializer.attribute(ns, ATTR_TIME, Double.toString((double) elapsedTime / 1000.f));
         serializer.attribute(ns, TIMESTAMP, timestamp);
         serializer.attribute(ns, HOSTNAME, mHostName);
+    }
 
+    private void printProperties(KXmlSerializer serializer) throws IOException {
         serializer.startTag(ns, PROPERTIES);
         for (Map.Entry<String,String> entry: getPropertiesAttributes().entrySet()) {
             serializer.startTag(ns, PROPERTY);
@@ -252,13 +394,6 @@ public class XmlTestRunListener implements ITestRunListener {
             serializer.endTag(ns, PROPERTY);
         }
         serializer.endTag(ns, PROPERTIES);
-
-        Map<TestIdentifier, TestResult> testResults = mRunResult.getTestResults();
-        for (Map.Entry<TestIdentifier, TestResult> testEntry : testResults.entrySet()) {
-            print(serializer, testEntry.getKey(), testEntry.getValue());
-        }
-
-        serializer.endTag(ns, TESTSUITE);
     }
 
     /**
@@ -318,4 +453,172 @@ public class XmlTestRunListener implements ITestRunListener {
     private String sanitize(String text) {
         return text.replace("\0", "<\\0>");
     }
+
+    /**
+     * A report written as the tests end.
+     * <p>
+     * Test cases are serialized into a buffer which is written to the file whenever it cannot
+     * hold the next test case, so the file always ends between two test cases. The suite header
+     * is padded so that its counts can be rewritten in place, which is done with each write.
+     */
+    private final class StreamingReport {
+        private final FileChannel mChannel;
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+        private final StringWriter mText = new StringWriter();
+        private final KXmlSerializer mSerializer = new KXmlSerializer();
+        private final String mTimestamp = getTimestamp();
+        private final long mStartTime = System.currentTimeMillis();
+        private final long mHeaderOffset;
+        private final int mHeaderLength;
+        private long mPosition;
+        private long mLastWrite;
+        private int mNumTests;
+        private int mNumFailures;
+        private int mNumSkipped;
+        private final Map<TestStatus, Integer> mStatusCounts =
+                new LinkedHashMap<TestStatus, Integer>();
+
+        StreamingReport(File reportFile) throws IOException {
+            mReportPath = reportFile.getAbsolutePath();
+            mChannel = FileChannel.open(reportFile.toPath(), StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                mSerializer.setOutput(mText);
+                mSerializer.startDocument(SdkConstants.UTF_8, null);
+                mSerializer.flush();
+                mHeaderOffset = mText.getBuffer().toString().getBytes(StandardCharsets.UTF_8)
+                        .length + 1;
+                mText.write('\n');
+                byte[] header = serializeHeader(0);
+                mHeaderLength = header.length + HEADER_RESERVE;
+                mText.write(new String(pad(header, mHeaderLength), StandardCharsets.UTF_8));
+
+                mSerializer.setOutput(mText);
+                printProperties(mSerializer);
+                mSerializer.flush();
+                writeText();
+                write();
+            } catch (IOException e) {
+                mChannel.close();
+                throw e;
+            }
+        }
+
+        void append(TestIdentifier test, TestResult result) throws IOException {
+            mSerializer.setOutput(mText);
+            mText.write("\n");
+            print(mSerializer, test, result);
+            mSerializer.flush();
+            // counted once written, as the header written with the buffer must not count it.
+            writeText();
+            mNumTests++;
+            switch (result.getStatus()) {
+                case FAILURE:
+                    mNumFailures++;
+                    break;
+                case IGNORED:
+                    mNumSkipped++;
+                    break;
+                default:
+                    break;
+            }
+            Integer count = mStatusCounts.get(result.getStatus());
+            mStatusCounts.put(result.getStatus(), count == null ? 1 : count + 1);
+            if (System.currentTimeMillis() - mLastWrite >= STREAM_FLUSH_INTERVAL_MS) {
+                write();
+            }
+        }
+
+        void finish(long elapsedTime) throws IOException {
+            mText.write(SUITE_END);
+            writeText();
+            write();
+            writeHeader(elapsedTime);
+            mChannel.truncate(mPosition);
+        }
+
+        void close() {
+            try {
+                mChannel.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        String getTextSummary() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format("Total tests %d, ", mNumTests));
+            for (Map.Entry<TestStatus, Integer> entry : mStatusCounts.entrySet()) {
+                builder.append(String.format("%s %d, ", entry.getKey().toString().toLowerCase(),
+                        entry.getValue()));
+            }
+            return builder.toString();
+        }
+
+        /**
+         * Moves the serialized text to the buffer, writing the buffer first if it is too full.
+         */
+        private void writeText() throws IOException {
+            byte[] bytes = mText.getBuffer().toString().getBytes(StandardCharsets.UTF_8);
+            mText.getBuffer().setLength(0);
+            if (bytes.length > mBuffer.remaining()) {
+                write();
+            }
+            if (bytes.length > mBuffer.remaining()) {
+                writeFully(ByteBuffer.wrap(bytes), mPosition);
+                mPosition += bytes.length;
+            } else {
+                mBuffer.put(bytes);
+            }
+        }
+
+        /**
+         * Writes the buffer, and the current counts in the header.
+         */
+        private void write() throws IOException {
+            mBuffer.flip();
+            int length = mBuffer.remaining();
+            writeFully(mBuffer, mPosition);
+            mPosition += length;
+            mBuffer.clear();
+            writeHeader(System.currentTimeMillis() - mStartTime);
+            mLastWrite = System.currentTimeMillis();
+        }
+
+        private void writeHeader(long elapsedTime) throws IOException {
+            byte[] header = serializeHeader(elapsedTime);
+            if (header.length <= mHeaderLength) {
+                writeFully(ByteBuffer.wrap(pad(header, mHeaderLength)), mHeaderOffset);
+            } else {
+                Log.w(LOG_TAG, "Streamed report header out of space, counts not updated");
+            }
+        }
+
+        private byte[] serializeHeader(long elapsedTime) throws IOException {
+            StringWriter text = new StringWriter();
+            mSerializer.setOutput(text);
+            printTestSuiteStart(mSerializer, mTimestamp, elapsedTime, mNumTests, mNumFailures,
+                    mNumSkipped);
+            mSerializer.flush();
+            return text.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        private void writeFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += mChannel.write(buffer, position);
+            }
+        }
+    }
+
+    /**
+     * Pads a start tag with spaces before its closing bracket.
+     */
+    private static byte[] pad(byte[] startTag, int length) {
+        byte[] padded = new byte[length];
+        System.arraycopy(startTag, 0, padded, 0, startTag.length - 1);
+        for (int i = startTag.length - 1; i < length - 1; i++) {
+            padded[i] = ' ';
+        }
+        padded[length - 1] = '>';
+        return padded;
+    }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib.utils;
+
+import com.android.annotations.NonNull;
+import java.util.Arrays;
+
+/**
+ * Splits a byte stream into lines without decoding it.
+ *
+ * <p>Lines are terminated by {@code \n}, optionally preceded by {@code \r}. Complete lines are
+ * handed to the {@link LineHandler} straight out of the input array; only the tail of a packet
+ * that doesn't end with a newline is copied, into a carry-over buffer that is reused for the
+ * whole stream. Since {@code \n} never appears inside a multi-byte UTF-8 sequence, this is safe
+ * for UTF-8 data, and characters split across packets are reassembled before being decoded.
+ *
+ * <p>This class is not thread safe.
+ */
+public final class LineScanner {
+
+    /** Receives the lines found by a {@link LineScanner}. */
+    public interface LineHandler {
+        /**
+         * Called for each line. The line bytes, without the line terminator, are only valid for
+         * the duration of the call.
+         */
+        void onLine(@NonNull byte[] data, int offset, int length);
+    }
+
+    private static final int INITIAL_CARRY_SIZE = 256;
+
+    private byte[] mCarry = new byte[INITIAL_CARRY_SIZE];
+    private int mCarryLength = 0;
+
+    /**
+     * Scans new data, calling the handler for every line completed by it.
+     */
+    public void scan(@NonNull byte[] data, int offset, int length, @NonNull LineHandler handler) {
+        int end = offset + length;
+        int start = offset;
+        for (int i = offset; i < end; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+
+            if (mCarryLength > 0) {
+                // complete the line started in a previous packet.
+                append(data, start, i - start);
+                emit(mCarry, 0, mCarryLength, handler);
+                mCarryLength = 0;
+            } else {
+                emit(data, start, i - start, handler);
+            }
+            start = i + 1;
+        }
+
+        if (start < end) {
+            append(data, start, end - start);
+        }
+    }
+
+    /**
+     * Returns whether some bytes were received after the last line terminator.
+     */
+    public boolean hasUnfinishedLine() {
+        return mCarryLength > 0;
+    }
+
+    /**
+     * Hands the unfinished line, if any, to the handler as is, and resets the scanner.
+     */
+    public void flush(@NonNull LineHandler handler) {
+        if (mCarryLength > 0) {
+            handler.onLine(mCarry, 0, mCarryLength);
+            mCarryLength = 0;
+        }
+    }
+
+    /**
+     * Drops any unfinished line.
+     */
+    public void reset() {
+        mCarryLength = 0;
+    }
+
+    private static void emit(byte[] data, int offset, int length, LineHandler handler) {
+        // in older devices, \n is preceded by a \r
+        if (length > 0 && data[offset + length - 1] == '\r') {
+            length--;
+        }
+        handler.onLine(data, offset, length);
+    }
+
+    private void append(byte[] data, int offset, int length) {
+        int required = mCarryLength + length;
+        if (required > mCarry.length) {
+            mCarry = Arrays.copyOf(mCarry, Math.max(required, mCarry.length * 2));
+        }
+        System.arraycopy(data, offset, mCarry, mCarryLength, length);
+        mCarryLength = required;
+    }
+
+    /**
+     * Returns the offset of the first byte that isn't whitespace, in the same sense as
+     * {@link String#trim()}.
+     */
+    public static int trimStart(@NonNull byte[] data, int offset, int end) {
+        while (offset < end && (data[offset] & 0xff) <= ' ') {
+            offset++;
+        }
+        return offset;
+    }
+
+    /**
+     * Returns the offset following the last byte that isn't whitespace, in the same sense as
+     * {@link String#trim()}.
+     */
+    public static int trimEnd(@NonNull byte[] data, int start, int end) {
+        while (end > start && (data[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+}
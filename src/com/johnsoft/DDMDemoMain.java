@@ -20,15 +20,12 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.StringReader;
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -51,6 +48,8 @@ import com.android.ddmlib.ClientData;
 import com.android.ddmlib.HandleViewDebug;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.ThreadInfo;
+import com.android.ddmlib.ViewHierarchy;
+import com.android.ddmlib.ViewHierarchyDiff;
 
 /**
  * @author John Kenrinus Lee
@@ -155,6 +154,8 @@ public final class DDMDemoMain {
     private static Client client;
     private static String viewRoot;
     private static ViewNode viewNode;
+    private static final ViewHierarchy.Parser viewHierarchyParser = new ViewHierarchy.Parser();
+    private static ViewHierarchy viewHierarchy;
 
     /*
      * ddmlib is core bridge between pc adb and phone adbd via jdwp debugger.
@@ -385,9 +386,14 @@ public final class DDMDemoMain {
                             new HandleViewDebug.ViewDumpHandler(HandleViewDebug.CHUNK_VURT) {
                                 @Override
                                 protected void handleViewDebugResult(ByteBuffer byteBuffer) {
-                                    byte[] bytes = new byte[byteBuffer.remaining()];
-                                    byteBuffer.get(bytes);
-                                    ViewNode rootViewNode = ViewNode.parseViewNode(bytes, viewRoot);
+                                    ViewHierarchy hierarchy = viewHierarchyParser.parse(byteBuffer);
+                                    ViewHierarchyDiff diff = ViewHierarchyDiff.compute(viewHierarchy, hierarchy);
+                                    viewHierarchy = hierarchy;
+                                    System.out.println("view hierarchy: " + hierarchy.getNodeCount() + " views, "
+                                            + diff.getAddedNodes().length + " added, "
+                                            + diff.getRemovedNodes().length + " removed, "
+                                            + diff.getChangedNodes().length + " changed");
+                                    ViewNode rootViewNode = ViewNode.fromHierarchy(hierarchy, viewRoot);
                                     if (rootViewNode != null) {
                                         System.out.println("found root view node: " + rootViewNode.toString());
                                         ArrayList<String> ids = new ArrayList<>();
@@ -687,7 +693,7 @@ public final class DDMDemoMain {
         public ProfileRating layoutRating = ProfileRating.NONE;
         public ProfileRating drawRating = ProfileRating.NONE;
 
-        public ViewNode(String viewRoot, ViewNode parent, String data) {
+        public ViewNode(String viewRoot, ViewNode parent, ViewHierarchy hierarchy, int node) {
             this.viewRoot = viewRoot;
             this.parent = parent;
             index = this.parent == null ? 0 : this.parent.children.size();
@@ -695,30 +701,13 @@ public final class DDMDemoMain {
                 this.parent.children.add(this);
             }
 
-            int delimIndex = data.indexOf('@');
-            name = data.substring(0, delimIndex);
-            data = data.substring(delimIndex + 1);
-            delimIndex = data.indexOf(' ');
-            hashCode = data.substring(0, delimIndex);
-
-            if (data.length() > delimIndex + 1) {
-                data = data.substring(delimIndex + 1).trim();
-                int start = 0;
-                boolean stop;
-                do {
-                    int index = data.indexOf('=', start);
-                    String key = data.substring(start, index);
-                    int index2 = data.indexOf(',', index + 1);
-                    int length = Integer.parseInt(data.substring(index + 1, index2));
-                    start = index2 + 1 + length;
-                    String value = data.substring(index2 + 1, index2 + 1 + length);
-                    properties.put(key, value);
-                    stop = start >= data.length();
-                    if (!stop) {
-                        start += 1;
-                    }
-                } while (!stop);
-
+            name = hierarchy.getName(node);
+            hashCode = Integer.toHexString(hierarchy.getHashCode(node));
+            final int N = hierarchy.getPropertyCount(node);
+            for (int i = 0; i < N; i++) {
+                properties.put(hierarchy.getPropertyKey(node, i), hierarchy.getPropertyValue(node, i));
+            }
+            if (N > 0) {
                 id = properties.get("mID");
                 left = properties.containsKey("mLeft") ? getInt("mLeft", 0) : getInt("layout:mLeft", 0);
                 top = properties.containsKey("mTop") ? getInt("mTop", 0) : getInt("layout:mTop", 0);
@@ -809,40 +798,20 @@ public final class DDMDemoMain {
         }
 
         public static ViewNode parseViewNode(byte[] bytes, String viewRoot) {
-            BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes),
-                    Charset.forName("UTF-8")));
-            ViewNode currentNode = null;
-            int currentDepth = -1;
-            String line;
-            try {
-                while ((line = in.readLine()) != null) {
-                    if ("DONE.".equalsIgnoreCase(line)) {
-                        break;
-                    }
-                    int depth = 0;
-                    while (line.charAt(depth) == ' ') {
-                        depth++;
-                    }
-                    while (depth <= currentDepth) {
-                        if (currentNode != null) {
-                            currentNode = currentNode.parent;
-                        }
-                        currentDepth--;
-                    }
-                    currentNode = new ViewNode(viewRoot, currentNode, line.substring(depth));
-                    currentDepth = depth;
-                }
-            } catch (IOException e) {
-                System.err.println("Error reading view hierarchy stream: " + e.getMessage());
-                return null;
-            }
-            if (currentNode == null) {
+            return fromHierarchy(new ViewHierarchy.Parser().parse(ByteBuffer.wrap(bytes)), viewRoot);
+        }
+
+        public static ViewNode fromHierarchy(ViewHierarchy hierarchy, String viewRoot) {
+            final int N = hierarchy.getNodeCount();
+            if (N == 0) {
                 return null;
             }
-            while (currentNode.parent != null) {
-                currentNode = currentNode.parent;
+            ViewNode[] nodes = new ViewNode[N];
+            for (int i = 0; i < N; i++) {
+                int parent = hierarchy.getParent(i);
+                nodes[i] = new ViewNode(viewRoot, parent < 0 ? null : nodes[parent], hierarchy, i);
             }
-            return currentNode;
+            return nodes[0];
         }
 
         public static void collectViewIds(ViewNode rootViewNode, List<String> ids, List<ViewNode> nodes) {
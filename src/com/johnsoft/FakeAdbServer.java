@@ -0,0 +1,393 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+package com.johnsoft;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.android.annotations.NonNull;
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.Log;
+import com.google.common.base.Charsets;
+
+/**
+ * Local stand-in for the adb server, answering shell commands for a set of fake devices
+ * without any device.
+ * <p>
+ * The server answers <code>host:track-devices</code> with the devices added with
+ * {@link #addDevice(String)}, all online, and accepts the
+ * <code>host:transport:&lt;serial&gt;</code> request for them. Any following service request,
+ * such as <code>shell:&lt;command&gt;</code>, is answered with a fixed output: a number of
+ * chunks, each written after a delay, after which the connection is closed. All the connections are served by a single selector thread, so that
+ * thousands of concurrent commands can be run against it, to measure the throughput of
+ * {@link IDevice#executeShellCommandAsync} (see {@link ShellThroughputBenchmark}).
+ * <p>
+ * Give the port of {@link #getSocketAddress()} to
+ * {@link AndroidDebugBridge#enableFakeAdbServerMode(int)} before initializing the bridge.
+ *
+ * @author John Kenrinus Lee
+ * @version 2026-10-19
+ */
+public final class FakeAdbServer {
+
+    private static final byte[] OKAY = "OKAY".getBytes(Charsets.UTF_8); //$NON-NLS-1$
+
+    private static final int REQUEST_BUFFER_SIZE = 1024;
+
+    private static final String TRACK_DEVICES = "host:track-devices"; //$NON-NLS-1$
+    private static final String TRANSPORT = "host:transport:"; //$NON-NLS-1$
+
+    private final ServerSocketChannel mServerChannel;
+    private final Selector mSelector;
+    private final Set<String> mDevices = new CopyOnWriteArraySet<String>();
+
+    private final byte[] mChunk;
+    private final int mChunkCount;
+    private final long mChunkDelayMillis;
+
+    /** Connections waiting for their next chunk, by due time. Selector thread only. */
+    private final PriorityQueue<Connection> mWaiting = new PriorityQueue<Connection>();
+
+    private final AtomicLong mCommandCount = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    private Thread mThread;
+    private volatile boolean mQuit = false;
+
+    /**
+     * Creates a server, listening on a free port of the loopback interface.
+     * @param chunkSize the size of each chunk of command output, in bytes.
+     * @param chunkCount the number of chunks output by each command.
+     * @param chunkDelayMillis the delay before each chunk is written.
+     * @throws IOException if the server socket can't be opened.
+     */
+    public FakeAdbServer(int chunkSize, int chunkCount, long chunkDelayMillis)
+            throws IOException {
+        mChunk = new byte[chunkSize];
+        // lines of output, so that line based receivers can be used too.
+        Arrays.fill(mChunk, (byte) 'a');
+        for (int i = 63; i < chunkSize; i += 64) {
+            mChunk[i] = '\n';
+        }
+        mChunkCount = chunkCount;
+        mChunkDelayMillis = chunkDelayMillis;
+
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.socket().bind(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4096);
+        mServerChannel.configureBlocking(false);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Adds a device, whose serial number is accepted by the transport requests.
+     */
+    public void addDevice(@NonNull String serialNumber) {
+        mDevices.add(serialNumber);
+    }
+
+    /**
+     * Returns the address of the server, on the loopback interface.
+     */
+    @NonNull
+    public InetSocketAddress getSocketAddress() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                mServerChannel.socket().getLocalPort());
+    }
+
+    /**
+     * Returns the number of service requests accepted so far.
+     */
+    public long getCommandCount() {
+        return mCommandCount.get();
+    }
+
+    /**
+     * Returns the number of bytes of command output written so far.
+     */
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    /**
+     * Starts serving the connections.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread("Fake Adb Server") { //$NON-NLS-1$
+            @Override
+            public void run() {
+                loop();
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stops the server, closing all the connections.
+     */
+    public void stop() {
+        mQuit = true;
+        mSelector.wakeup();
+    }
+
+    private void loop() {
+        while (!mQuit) {
+            long timeout = 0;
+            Connection next = mWaiting.peek();
+            if (next != null) {
+                timeout = Math.max(1, next.mDueTime - System.currentTimeMillis());
+            }
+            try {
+                mSelector.select(timeout);
+            } catch (IOException e) {
+                Log.e("FakeAdbServer", e);
+                break;
+            }
+
+            Iterator<SelectionKey> iter = mSelector.selectedKeys().iterator();
+            while (iter.hasNext()) {
+                SelectionKey key = iter.next();
+                iter.remove();
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    }
+                } catch (IOException e) {
+                    if (key.attachment() instanceof Connection) {
+                        // the client went away.
+                        ((Connection) key.attachment()).close();
+                    } else {
+                        Log.e("FakeAdbServer", e);
+                    }
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            while ((next = mWaiting.peek()) != null && next.mDueTime <= now) {
+                mWaiting.poll();
+                try {
+                    next.nextChunk();
+                } catch (IOException e) {
+                    next.close();
+                }
+            }
+        }
+
+        for (SelectionKey key : mSelector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = mServerChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel);
+            connection.mKey = channel.register(mSelector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    /**
+     * A connection from a client of the server.
+     */
+    private final class Connection implements Comparable<Connection> {
+        private final SocketChannel mChannel;
+        private SelectionKey mKey;
+
+        private final ByteBuffer mRequest = ByteBuffer.allocate(REQUEST_BUFFER_SIZE);
+        private boolean mTransportSet = false;
+        /** Whether the connection tracks the devices, and is kept open. */
+        private boolean mTracking = false;
+
+        /** Data being written, or null. */
+        private ByteBuffer mOutput;
+        private boolean mCloseAfterOutput = false;
+        private int mChunksLeft = -1;
+        private long mDueTime;
+
+        Connection(@NonNull SocketChannel channel) {
+            mChannel = channel;
+        }
+
+        void read() throws IOException {
+            if (mChannel.read(mRequest) < 0) {
+                close();
+                return;
+            }
+            // requests are made of 4 hex digits giving the length, then the request itself.
+            while (mChunksLeft < 0 && !mTracking && mRequest.position() >= 4) {
+                int length = Integer.parseInt(
+                        new String(mRequest.array(), 0, 4, Charsets.UTF_8), 16);
+                if (mRequest.position() < 4 + length) {
+                    return;
+                }
+                String request = new String(mRequest.array(), 4, length, Charsets.UTF_8);
+                mRequest.flip();
+                mRequest.position(4 + length);
+                mRequest.compact();
+                handle(request);
+            }
+        }
+
+        private void handle(@NonNull String request) throws IOException {
+            if (!mTransportSet) {
+                if (request.equals(TRACK_DEVICES)) {
+                    mTracking = true;
+                    send(deviceList());
+                    return;
+                }
+                String serial = request.startsWith(TRANSPORT)
+                        ? request.substring(TRANSPORT.length()) : null;
+                if (serial == null || !mDevices.contains(serial)) {
+                    fail(serial == null ? "unsupported request" //$NON-NLS-1$
+                            : "device '" + serial + "' not found"); //$NON-NLS-1$
+                    return;
+                }
+                mTransportSet = true;
+                send(ByteBuffer.wrap(OKAY));
+                return;
+            }
+
+            mCommandCount.incrementAndGet();
+            // the chunks are scheduled once the OKAY is written.
+            mChunksLeft = mChunkCount;
+            send(ByteBuffer.wrap(OKAY));
+        }
+
+        private void fail(@NonNull String message) throws IOException {
+            mCloseAfterOutput = true;
+            send(reply("FAIL", message)); //$NON-NLS-1$
+        }
+
+        /**
+         * Returns the OKAY of a device tracking request, with the list of the devices. As the
+         * list never changes, no other list is sent.
+         */
+        private ByteBuffer deviceList() {
+            StringBuilder sb = new StringBuilder();
+            for (String serial : mDevices) {
+                sb.append(serial).append("\tdevice\n"); //$NON-NLS-1$
+            }
+            return reply("OKAY", sb.toString()); //$NON-NLS-1$
+        }
+
+        /**
+         * Returns a status followed by a message, prefixed by its length in 4 hex digits.
+         */
+        private ByteBuffer reply(@NonNull String status, @NonNull String message) {
+            byte[] bytes = message.getBytes(Charsets.UTF_8);
+            ByteBuffer buffer = ByteBuffer.allocate(8 + bytes.length);
+            buffer.put(status.getBytes(Charsets.UTF_8));
+            buffer.put(String.format("%04x", bytes.length).getBytes(Charsets.UTF_8)); //$NON-NLS-1$
+            buffer.put(bytes);
+            buffer.flip();
+            return buffer;
+        }
+
+        private void schedule() {
+            mDueTime = System.currentTimeMillis() + mChunkDelayMillis;
+            mWaiting.add(this);
+        }
+
+        void nextChunk() throws IOException {
+            mChunksLeft--;
+            send(ByteBuffer.wrap(mChunk));
+            mBytesSent.addAndGet(mChunk.length);
+        }
+
+        /**
+         * Queues data for the client. As it is only done once the previous data was written,
+         * a connection never has more than one buffer pending.
+         */
+        private void send(ByteBuffer buffer) throws IOException {
+            mOutput = buffer;
+            write();
+        }
+
+        void write() throws IOException {
+            if (mOutput != null) {
+                mChannel.write(mOutput);
+                if (mOutput.hasRemaining()) {
+                    mKey.interestOps(mKey.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                mOutput = null;
+                mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            if (mCloseAfterOutput) {
+                close();
+            } else if (mChunksLeft > 0) {
+                schedule();
+            } else if (mChunksLeft == 0) {
+                // all the output was written.
+                close();
+            }
+        }
+
+        void close() {
+            mWaiting.remove(this);
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        @Override
+        public int compareTo(@NonNull Connection other) {
+            return mDueTime < other.mDueTime ? -1 : (mDueTime == other.mDueTime ? 0 : 1);
+        }
+    }
+}
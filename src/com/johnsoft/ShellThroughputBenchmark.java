@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+package com.johnsoft;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.DdmPreferences;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Measures the throughput of shell commands run concurrently against a {@link FakeAdbServer},
+ * with {@link IDevice#executeShellCommandAsync} on the shared shell reactor threads, then with
+ * the blocking {@link IDevice#executeShellCommand(String, IShellOutputReceiver, long, long,
+ * TimeUnit)} on a thread per command.
+ * <p>
+ * Usage: <code>ShellThroughputBenchmark [commands [devices [blocking threads [chunk size
+ * [chunks [chunk delay ms]]]]]]</code>, by default 2000 commands spread over 100 devices, 200
+ * blocking threads, and 3 chunks of 2048 bytes written 50ms apart per command.
+ *
+ * @author John Kenrinus Lee
+ * @version 2026-10-19
+ */
+public final class ShellThroughputBenchmark {
+
+    private static final String COMMAND = "cat /proc/meminfo";
+
+    private ShellThroughputBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int commands = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int devices = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int chunkSize = args.length > 3 ? Integer.parseInt(args[3]) : 2048;
+        int chunks = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+        long chunkDelay = args.length > 5 ? Long.parseLong(args[5]) : 50;
+
+        FakeAdbServer server = new FakeAdbServer(chunkSize, chunks, chunkDelay);
+        for (int i = 0; i < devices; i++) {
+            server.addDevice("fake-" + i);
+        }
+        server.start();
+
+        AndroidDebugBridge.enableFakeAdbServerMode(server.getSocketAddress().getPort());
+        AndroidDebugBridge.init(false);
+        try {
+            IDevice[] fakeDevices = waitForDevices(AndroidDebugBridge.createBridge(), devices);
+            if (fakeDevices == null) {
+                System.err.println("The devices of the fake adb server were not listed");
+                return;
+            }
+
+            long expectedBytes = (long) commands * chunks * chunkSize;
+            System.out.printf("%d commands on %d devices, %d bytes of output each%n",
+                    commands, devices, (long) chunks * chunkSize);
+
+            // warm up both paths, so that class loading and the JIT don't count.
+            runAsync(fakeDevices, Math.min(commands, 100));
+            runBlocking(fakeDevices, Math.min(commands, 100), threads);
+
+            long start = System.nanoTime();
+            long bytes = runAsync(fakeDevices, commands);
+            report(String.format("async, %d reactor threads",
+                    DdmPreferences.getShellReactorThreadCount()),
+                    System.nanoTime() - start, commands, bytes, expectedBytes);
+
+            start = System.nanoTime();
+            bytes = runBlocking(fakeDevices, commands, threads);
+            report(String.format("blocking, %d threads", threads),
+                    System.nanoTime() - start, commands, bytes, expectedBytes);
+        } finally {
+            AndroidDebugBridge.terminate();
+            server.stop();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Waits for the bridge to list the given number of online devices.
+     * @return the devices, or null after 10 seconds.
+     */
+    private static IDevice[] waitForDevices(AndroidDebugBridge bridge, int count)
+            throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            IDevice[] devices = bridge.getDevices();
+            if (devices.length == count) {
+                boolean online = true;
+                for (IDevice device : devices) {
+                    online &= device.isOnline();
+                }
+                if (online) {
+                    return devices;
+                }
+            }
+            Thread.sleep(100);
+        }
+        return null;
+    }
+
+    private static long runAsync(IDevice[] devices, int commands) throws Exception {
+        AtomicLong bytes = new AtomicLong();
+        IShellOutputReceiver receiver = new CountingReceiver(bytes);
+        List<ListenableFuture<Void>> futures = new ArrayList<>(commands);
+        for (int i = 0; i < commands; i++) {
+            futures.add(devices[i % devices.length].executeShellCommandAsync(
+                    COMMAND, receiver, 0, 0, TimeUnit.MILLISECONDS));
+        }
+        Futures.allAsList(futures).get();
+        return bytes.get();
+    }
+
+    private static long runBlocking(final IDevice[] devices, int commands, int threads)
+            throws Exception {
+        AtomicLong bytes = new AtomicLong();
+        final IShellOutputReceiver receiver = new CountingReceiver(bytes);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>(commands);
+            for (int i = 0; i < commands; i++) {
+                final IDevice device = devices[i % devices.length];
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        device.executeShellCommand(COMMAND, receiver, 0, 0,
+                                TimeUnit.MILLISECONDS);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return bytes.get();
+    }
+
+    private static void report(String mode, long nanos, int commands, long bytes,
+            long expectedBytes) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-28s %6d ms  %8.0f commands/s  %s%n", mode, nanos / 1000000,
+                commands / seconds,
+                bytes == expectedBytes ? "output complete"
+                        : "output incomplete: " + bytes + "/" + expectedBytes + " bytes");
+    }
+
+    /**
+     * Counts the output without keeping it, as it may be called from several threads.
+     */
+    private static final class CountingReceiver implements IShellOutputReceiver {
+        private final AtomicLong mBytes;
+
+        CountingReceiver(AtomicLong bytes) {
+            mBytes = bytes;
+        }
+
+        @Override
+        public void addOutput(byte[] data, int offset, int length) {
+            mBytes.addAndGet(length);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+}
@@ -16,6 +16,11 @@
  */
 package com.johnsoft.base.utils;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 import org.jetbrains.annotations.NotNull;
 
 /**
@@ -46,13 +51,29 @@ import org.jetbrains.annotations.NotNull;
  *      }
  * }
  * </code></pre>
+ * <p>
+ * {@link #markInitialized(Object, Class)} is the cheapest check, and is what
+ * {@link InitializerInjector} weaves in. {@link #markInitialized(Object)} finds the calling
+ * class itself, through {@code StackWalker.getCallerClass()} when the runtime has it, without
+ * capturing the stack.
+ * <p>
+ * The callback is invoked once, even if the initializer is marked from several threads.
  *
  * @author John Kenrinus Lee
  * @version 2018-07-13
  */
 public class Initializer {
-    private OnInitializedCallback callback;
-    private boolean initialized;
+    private static final AtomicReferenceFieldUpdater<Initializer, OnInitializedCallback> CALLBACK =
+            AtomicReferenceFieldUpdater.newUpdater(Initializer.class, OnInitializedCallback.class,
+                    "callback");
+
+    /**
+     * {@code StackWalker.getCallerClass()} bound to a walker, or null before Java 9.
+     */
+    private static final MethodHandle GET_CALLER_CLASS = findGetCallerClass();
+
+    private volatile OnInitializedCallback callback;
+    private volatile boolean initialized;
 
     public Initializer(OnInitializedCallback callback) {
         this.callback = callback;
@@ -63,28 +84,60 @@ public class Initializer {
     }
 
     public void markInitialized(@NotNull Object thiz, @NotNull Class callClass) {
-        if (thiz.getClass().equals(callClass)) {
+        if (thiz.getClass() == callClass) {
             markInitialized();
         }
     }
 
     public void markInitialized(@NotNull Object thiz) {
-        final String callClass = Thread.currentThread().getStackTrace()[2].getClassName();
-        if (thiz.getClass().getCanonicalName().equals(callClass)) {
-            markInitialized();
+        if (initialized) {
+            return;
+        }
+        if (GET_CALLER_CLASS != null) {
+            // must be invoked from here: the caller class is the caller of this method.
+            final Class<?> callClass;
+            try {
+                callClass = (Class<?>) GET_CALLER_CLASS.invokeExact();
+            } catch (Throwable thr) {
+                throw new IllegalStateException(thr);
+            }
+            if (thiz.getClass() == callClass) {
+                markInitialized();
+            }
+        } else {
+            final String callClass = new Throwable().getStackTrace()[1].getClassName();
+            if (thiz.getClass().getName().equals(callClass)) {
+                markInitialized();
+            }
         }
     }
 
     public void markInitialized() {
         if (!initialized) {
             initialized = true;
-            if (callback != null) {
-                callback.onInitialized();
-                callback = null;
+            final OnInitializedCallback cb = CALLBACK.getAndSet(this, null);
+            if (cb != null) {
+                cb.onInitialized();
             }
         }
     }
 
+    private static MethodHandle findGetCallerClass() {
+        try {
+            final Class<?> walkerClass = Class.forName("java.lang.StackWalker");
+            final Class<?> optionClass = Class.forName("java.lang.StackWalker$Option");
+            final Object walker = walkerClass.getMethod("getInstance", optionClass)
+                    .invoke(null, optionClass.getField("RETAIN_CLASS_REFERENCE").get(null));
+            // getCallerClass is caller sensitive, so needs a full privilege lookup.
+            return MethodHandles.lookup()
+                    .findVirtual(walkerClass, "getCallerClass", MethodType.methodType(Class.class))
+                    .bindTo(walker);
+        } catch (Exception e) {
+            // before Java 9
+            return null;
+        }
+    }
+
     public interface OnInitializedCallback {
         void onInitialized();
     }
@@ -17,6 +17,9 @@
 package com.johnsoft.base.utils;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import javassist.CannotCompileException;
 import javassist.ClassPool;
@@ -33,137 +36,171 @@ import javassist.expr.MethodCall;
 import javassist.expr.NewExpr;
 
 /**
+ * Usage: <code>InitializerInjector input [output] [-j threads] [-cp classpath]</code>, where input
+ * and output are a classes directory or a jar. The output defaults to the input.
+ *
  * @author John Kenrinus Lee
  * @version 2018-07-13
+ * @see InitializerWeaver
  */
 public class InitializerInjector {
-    public static void main(String[] args) throws NotFoundException {
-        final ClassPool classPool = ClassPool.getDefault();
-        classPool.insertClassPath(args[0]);
-        inject(classPool, classPool.getCtClass("test.B"));
-        inject(classPool, classPool.getCtClass("test.A"));
-        inject(classPool, classPool.getCtClass("test.C"));
+    public static void main(String[] args) throws Exception {
+        File input = null;
+        File output = null;
+        int threads = 0;
+        final List<String> classPath = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-j".equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("-cp".equals(args[i]) && i + 1 < args.length) {
+                classPath.addAll(Arrays.asList(args[++i].split(File.pathSeparator)));
+            } else if (input == null) {
+                input = new File(args[i]);
+            } else {
+                output = new File(args[i]);
+            }
+        }
+        if (input == null) {
+            System.err.println("Usage: InitializerInjector input [output] [-j threads] [-cp classpath]");
+            return;
+        }
+        final InitializerWeaver weaver = new InitializerWeaver(input, output != null ? output : input);
+        if (threads > 0) {
+            weaver.setThreads(threads);
+        }
+        for (String path : classPath) {
+            weaver.addClassPath(path);
+        }
+        System.out.println(weaver.weave());
     }
 
-    private static final String INITIALIZER = "com.johnsoft.base.utils.Initializer";
-    private static final String ON_INITIALIZED_CALLBACK = "com.johnsoft.base.utils.Initializer$OnInitializedCallback";
+    static final String INITIALIZER = "com.johnsoft.base.utils.Initializer";
+    static final String ON_INITIALIZED_CALLBACK = "com.johnsoft.base.utils.Initializer$OnInitializedCallback";
     private static final String FIELD_NAME = "initializer";
     private static final String METHOD_NAME = "markInitialized";
 
     public static void inject(ClassPool classPool, CtClass ctClass) {
         try {
-            final CtClass objectClass = classPool.getCtClass("java.lang.Object");
-            boolean shouldInject = false;
-            CtClass currentClass = ctClass;
-            outer:
-            while (currentClass != null && !currentClass.equals(objectClass)) {
-                final CtClass[] interfaces = currentClass.getInterfaces();
-                if (interfaces != null && interfaces.length > 0) {
-                    for (CtClass anInterface : interfaces) {
-                        if (ON_INITIALIZED_CALLBACK.equals(anInterface.getName())) {
-                            shouldInject = true;
-                            break outer;
-                        }
+            if (instrument(classPool, ctClass)) {
+                ctClass.writeFile(getClassWrittenDirectory(ctClass));
+            }
+        } catch (Throwable thr) {
+            thr.printStackTrace();
+        }
+    }
+
+    /**
+     * Weaves the initializer into a class, without writing it.
+     *
+     * @return whether the class was changed.
+     */
+    static boolean instrument(ClassPool classPool, CtClass ctClass)
+            throws NotFoundException, CannotCompileException {
+        final CtClass objectClass = classPool.getCtClass("java.lang.Object");
+        boolean shouldInject = false;
+        CtClass currentClass = ctClass;
+        outer:
+        while (currentClass != null && !currentClass.equals(objectClass)) {
+            final CtClass[] interfaces = currentClass.getInterfaces();
+            if (interfaces != null && interfaces.length > 0) {
+                for (CtClass anInterface : interfaces) {
+                    if (ON_INITIALIZED_CALLBACK.equals(anInterface.getName())) {
+                        shouldInject = true;
+                        break outer;
                     }
                 }
-                currentClass = currentClass.getSuperclass();
             }
-            if (!shouldInject) {
-                return;
+            currentClass = currentClass.getSuperclass();
+        }
+        if (!shouldInject) {
+            return false;
+        }
+        if (ctClass.isFrozen()) {
+            ctClass.defrost();
+        }
+        if (currentClass == ctClass) { // base class
+            final int modifiers = ctClass.getModifiers();
+            if (Modifier.isFinal(modifiers) || Modifier.isPrivate(modifiers)) {
+                return false;
             }
-            if (ctClass.isFrozen()) {
-                ctClass.defrost();
+            boolean changed = false;
+            try {
+                ctClass.getDeclaredField(FIELD_NAME);
+            } catch (NotFoundException e) {
+                ctClass.addField(CtField.make("protected final " + INITIALIZER + " " + FIELD_NAME + ";",
+                        ctClass));
+                changed = true;
             }
-            if (currentClass == ctClass) { // base class
-                final int modifiers = ctClass.getModifiers();
-                if (Modifier.isFinal(modifiers) || Modifier.isPrivate(modifiers)) {
-                    return;
-                }
-                boolean changed = false;
-                try {
-                    ctClass.getDeclaredField(FIELD_NAME);
-                } catch (NotFoundException e) {
-                    ctClass.addField(CtField.make("protected final " + INITIALIZER + " " + FIELD_NAME + ";",
-                            ctClass));
-                    changed = true;
-                }
-                final CtConstructor[] constructors = ctClass.getDeclaredConstructors();
-                if (constructors != null && constructors.length > 0) {
-                    for (CtConstructor constructor : constructors) {
-                        final ExprCheck check = new ExprCheck(FIELD_NAME, INITIALIZER, INITIALIZER,
-                                "(" + ExprCheck.signatureType(ON_INITIALIZED_CALLBACK) + ")V") {
-                            @Override
-                            public void edit(NewExpr e) throws CannotCompileException {
-                                super.edit(e);
-                                if (e.getClassName().equals(targetMethod)
-                                        && e.getSignature().equals(methodSignature)
-                                        && instanceSignature.equals(signatureType(e.getClassName()))) {
-                                    setMethodOk(true);
-                                }
+            final CtConstructor[] constructors = ctClass.getDeclaredConstructors();
+            if (constructors != null && constructors.length > 0) {
+                for (CtConstructor constructor : constructors) {
+                    final ExprCheck check = new ExprCheck(FIELD_NAME, INITIALIZER, INITIALIZER,
+                            "(" + ExprCheck.signatureType(ON_INITIALIZED_CALLBACK) + ")V") {
+                        @Override
+                        public void edit(NewExpr e) throws CannotCompileException {
+                            super.edit(e);
+                            if (e.getClassName().equals(targetMethod)
+                                    && e.getSignature().equals(methodSignature)
+                                    && instanceSignature.equals(signatureType(e.getClassName()))) {
+                                setMethodOk(true);
                             }
-                        };
-                        constructor.instrument(check);
-                        if (!check.isExistsExpr()) {
-                            constructor.insertBeforeBody(FIELD_NAME + " = new " + INITIALIZER + "(this);");
-                            changed = true;
                         }
+                    };
+                    constructor.instrument(check);
+                    if (!check.isExistsExpr()) {
+                        constructor.insertBeforeBody(FIELD_NAME + " = new " + INITIALIZER + "(this);");
+                        changed = true;
                     }
-                } else {
-                    CtConstructor constructor = CtNewConstructor.defaultConstructor(ctClass);
-                    constructor.insertBeforeBody("super();\n" + FIELD_NAME + " = new " + INITIALIZER + "(this);");
-                    ctClass.addConstructor(constructor);
-                    changed = true;
-                }
-                if (changed) {
-                    ctClass.writeFile(getClassWrittenDirectory(ctClass));
                 }
-            } else { // subclass
-                boolean changed = false;
-                try {
-                    ctClass.getField(FIELD_NAME);
-                } catch (NotFoundException e) {
-                    if (currentClass.isFrozen()) {
-                        currentClass.defrost();
-                    }
-                    currentClass.addField(CtField.make("protected final " + INITIALIZER + " " + FIELD_NAME + ";",
-                            currentClass));
-                    // no changed: don't currentClass.writeFile(...) here
+            } else {
+                CtConstructor constructor = CtNewConstructor.defaultConstructor(ctClass);
+                constructor.insertBeforeBody("super();\n" + FIELD_NAME + " = new " + INITIALIZER + "(this);");
+                ctClass.addConstructor(constructor);
+                changed = true;
+            }
+            return changed;
+        } else { // subclass
+            boolean changed = false;
+            try {
+                ctClass.getField(FIELD_NAME);
+            } catch (NotFoundException e) {
+                if (currentClass.isFrozen()) {
+                    currentClass.defrost();
                 }
-                final CtConstructor[] constructors = ctClass.getDeclaredConstructors();
-                if (constructors != null && constructors.length > 0) {
-                    for (CtConstructor constructor : constructors) {
-                        final ExprCheck check = new ExprCheck(FIELD_NAME, INITIALIZER, METHOD_NAME,
-                                "(Ljava/lang/Object;Ljava/lang/Class;)V") {
-                            @Override
-                            public void edit(MethodCall m) throws CannotCompileException {
-                                super.edit(m);
-                                if (m.getMethodName().equals(targetMethod)
-                                        && m.getSignature().equals(methodSignature)
-                                        && instanceSignature.equals(signatureType(m.getClassName()))) {
-                                    setMethodOk(true);
-                                }
+                currentClass.addField(CtField.make("protected final " + INITIALIZER + " " + FIELD_NAME + ";",
+                        currentClass));
+                // no changed: don't currentClass.writeFile(...) here
+            }
+            final CtConstructor[] constructors = ctClass.getDeclaredConstructors();
+            if (constructors != null && constructors.length > 0) {
+                for (CtConstructor constructor : constructors) {
+                    final ExprCheck check = new ExprCheck(FIELD_NAME, INITIALIZER, METHOD_NAME,
+                            "(Ljava/lang/Object;Ljava/lang/Class;)V") {
+                        @Override
+                        public void edit(MethodCall m) throws CannotCompileException {
+                            super.edit(m);
+                            if (m.getMethodName().equals(targetMethod)
+                                    && m.getSignature().equals(methodSignature)
+                                    && instanceSignature.equals(signatureType(m.getClassName()))) {
+                                setMethodOk(true);
                             }
-                        };
-                        constructor.instrument(check);
-                        if (!check.isExistsExpr()) {
-                            constructor.insertAfter(FIELD_NAME + "." + METHOD_NAME + "(this, "
-                                    + ctClass.getName() + ".class);");
-                            changed = true;
                         }
+                    };
+                    constructor.instrument(check);
+                    if (!check.isExistsExpr()) {
+                        constructor.insertAfter(FIELD_NAME + "." + METHOD_NAME + "(this, "
+                                + ctClass.getName() + ".class);");
+                        changed = true;
                     }
-                } else {
-                    CtConstructor constructor = CtNewConstructor.defaultConstructor(ctClass);
-                    constructor.insertAfter("super();\n" + FIELD_NAME + "." + METHOD_NAME + "(this, "
-                            + ctClass.getName() + ".class);");
-                    ctClass.addConstructor(constructor);
-                    changed = true;
-                }
-                if (changed) {
-                    ctClass.writeFile(getClassWrittenDirectory(ctClass));
                 }
+            } else {
+                CtConstructor constructor = CtNewConstructor.defaultConstructor(ctClass);
+                constructor.insertAfter("super();\n" + FIELD_NAME + "." + METHOD_NAME + "(this, "
+                        + ctClass.getName() + ".class);");
+                ctClass.addConstructor(constructor);
+                changed = true;
             }
-        } catch (Throwable thr) {
-            thr.printStackTrace();
+            return changed;
         }
     }
 
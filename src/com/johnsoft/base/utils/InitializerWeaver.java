@@ -0,0 +1,622 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache license, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the license for the specific language governing permissions and
+ * limitations under the license.
+ */
+package com.johnsoft.base.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import javassist.ClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.NotFoundException;
+import javassist.bytecode.ClassFile;
+
+/**
+ * Build time pipeline weaving {@link Initializer} into all the classes of a classes directory or
+ * a jar, with {@link InitializerInjector#instrument(ClassPool, CtClass)}.
+ * <p>
+ * The pipeline runs in phases:
+ * <ol>
+ * <li>scan: reads all the entries of the input in memory;</li>
+ * <li>analyze: hashes the entries and reads the class headers, in parallel;</li>
+ * <li>plan: computes the {@link Initializer.OnInitializedCallback} hierarchy once, and selects
+ * the classes to weave, skipping those whose input and role are unchanged since the previous
+ * run according to the manifest;</li>
+ * <li>weave: instruments the selected classes in parallel, each worker with its own
+ * {@link ClassPool};</li>
+ * <li>write: writes all the outputs in one pass, then the manifest.</li>
+ * </ol>
+ * The input and output are both directories, or both jars. A directory can be woven in place.
+ *
+ * @author John Kenrinus Lee
+ * @version 2026-10-19
+ */
+public class InitializerWeaver {
+    private static final String CLASS_SUFFIX = ".class";
+    private static final String MANIFEST_SUFFIX = ".weaving";
+    private static final String OBJECT = "java.lang.Object";
+
+    /** The role of a class in the {@link Initializer.OnInitializedCallback} hierarchy. */
+    enum Role {
+        /** Not a callback: copied as is. */
+        NONE,
+        /** Declares the callback interface itself: creates the initializer. */
+        BASE,
+        /** Extends a base: marks the initializer. */
+        SUB
+    }
+
+    /**
+     * Timings and counts of a run, in milliseconds.
+     */
+    public static final class Report {
+        private final Map<String, Long> phaseTimes = new LinkedHashMap<>();
+        private int entries;
+        private int classes;
+        private int targets;
+        private int skipped;
+        private int woven;
+        private int failed;
+
+        public Map<String, Long> getPhaseTimes() {
+            return Collections.unmodifiableMap(phaseTimes);
+        }
+
+        public int getEntryCount() {
+            return entries;
+        }
+
+        public int getClassCount() {
+            return classes;
+        }
+
+        /** Returns the number of classes in the callback hierarchy. */
+        public int getTargetCount() {
+            return targets;
+        }
+
+        /** Returns the number of classes skipped as unchanged since the previous run. */
+        public int getSkippedCount() {
+            return skipped;
+        }
+
+        /** Returns the number of classes changed by the weaving. */
+        public int getWovenCount() {
+            return woven;
+        }
+
+        public int getFailedCount() {
+            return failed;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(entries).append(" entries, ").append(classes).append(" classes, ")
+                    .append(targets).append(" in hierarchy, ").append(skipped).append(" unchanged, ")
+                    .append(woven).append(" woven, ").append(failed).append(" failed");
+            for (Map.Entry<String, Long> phase : phaseTimes.entrySet()) {
+                sb.append("\n  ").append(phase.getKey()).append(": ").append(phase.getValue()).append(" ms");
+            }
+            return sb.toString();
+        }
+    }
+
+    /** An entry of the input. */
+    private static final class Entry {
+        final String path;
+        final byte[] input;
+        String className;
+        String superName;
+        String[] interfaces;
+        String hash;
+        Role role = Role.NONE;
+        /** The bytes to write, or null to keep the existing output. */
+        byte[] output;
+        /** Whether weaving failed, in which case the class is left out of the manifest. */
+        boolean failed;
+
+        Entry(String path, byte[] input) {
+            this.path = path;
+            this.input = input;
+        }
+
+        boolean isClass() {
+            return path.endsWith(CLASS_SUFFIX);
+        }
+    }
+
+    /** A line of the manifest: the role and the input and output hashes of a class. */
+    private static final class ManifestEntry {
+        final Role role;
+        final String inputHash;
+        final String outputHash;
+
+        ManifestEntry(Role role, String inputHash, String outputHash) {
+            this.role = role;
+            this.inputHash = inputHash;
+            this.outputHash = outputHash;
+        }
+    }
+
+    /** Serves the classes of the input from memory to the worker {@link ClassPool}s. */
+    private static final class EntryClassPath implements ClassPath {
+        private final Map<String, Entry> classes;
+
+        EntryClassPath(Map<String, Entry> classes) {
+            this.classes = classes;
+        }
+
+        @Override
+        public InputStream openClassfile(String classname) throws NotFoundException {
+            final Entry entry = classes.get(classname);
+            if (entry == null) {
+                return null;
+            }
+            return new ByteArrayInputStream(entry.input);
+        }
+
+        @Override
+        public URL find(String classname) {
+            if (!classes.containsKey(classname)) {
+                return null;
+            }
+            try {
+                return new URL("file", "", "/" + classname.replace('.', '/') + CLASS_SUFFIX);
+            } catch (MalformedURLException e) {
+                return null;
+            }
+        }
+    }
+
+    private final File input;
+    private final File output;
+    private final boolean jar;
+    private final List<String> classPath = new ArrayList<>();
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private File manifestFile;
+
+    /**
+     * @param input the classes directory or jar to weave.
+     * @param output the directory or jar to write, which can be the input directory.
+     */
+    public InitializerWeaver(File input, File output) {
+        this.input = input;
+        this.output = output;
+        this.jar = input.isFile();
+        this.manifestFile = new File(output.getAbsoluteFile().getParentFile(), output.getName() + MANIFEST_SUFFIX);
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Adds a path, directory or jar, to resolve the classes the input depends on.
+     */
+    public void addClassPath(String path) {
+        classPath.add(path);
+    }
+
+    /**
+     * Sets the file remembering the classes woven by the previous run. Defaults to a file next to
+     * the output, named after it.
+     */
+    public void setManifestFile(File manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    public Report weave() throws IOException, InterruptedException {
+        final Report report = new Report();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long start = System.nanoTime();
+            final List<Entry> entries = jar ? scanJar(input) : scanDirectory(input);
+            report.entries = entries.size();
+            start = phase(report, "scan", start);
+
+            analyze(executor, entries);
+            final Map<String, Entry> classes = new HashMap<>();
+            for (Entry entry : entries) {
+                if (entry.className != null) {
+                    classes.put(entry.className, entry);
+                }
+            }
+            report.classes = classes.size();
+            start = phase(report, "analyze", start);
+
+            final Map<String, ManifestEntry> manifest = readManifest();
+            final Map<String, byte[]> previousOutputs = jar && output.isFile()
+                    ? readJarClasses(output) : Collections.<String, byte[]>emptyMap();
+            final List<Entry> targets = plan(classes, manifest, previousOutputs, report);
+            start = phase(report, "plan", start);
+
+            weave(executor, classes, targets, report);
+            start = phase(report, "weave", start);
+
+            if (jar) {
+                writeJar(entries, previousOutputs);
+            } else {
+                writeDirectory(entries);
+            }
+            writeManifest(classes.values(), manifest);
+            phase(report, "write", start);
+            return report;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static long phase(Report report, String name, long start) {
+        final long now = System.nanoTime();
+        report.phaseTimes.put(name, (now - start) / 1000000);
+        return now;
+    }
+
+    private static List<Entry> scanDirectory(File dir) throws IOException {
+        final List<Entry> entries = new ArrayList<>();
+        scanDirectory(dir, "", entries);
+        return entries;
+    }
+
+    private static void scanDirectory(File dir, String prefix, List<Entry> entries) throws IOException {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final String path = prefix + file.getName();
+            if (file.isDirectory()) {
+                scanDirectory(file, path + "/", entries);
+            } else if (!path.endsWith(MANIFEST_SUFFIX)) {
+                entries.add(new Entry(path, Files.readAllBytes(file.toPath())));
+            }
+        }
+    }
+
+    private static List<Entry> scanJar(File file) throws IOException {
+        final List<Entry> entries = new ArrayList<>();
+        try (JarFile jarFile = new JarFile(file)) {
+            for (JarEntry jarEntry : Collections.list(jarFile.entries())) {
+                if (!jarEntry.isDirectory()) {
+                    try (InputStream in = jarFile.getInputStream(jarEntry)) {
+                        entries.add(new Entry(jarEntry.getName(), readFully(in)));
+                    }
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static Map<String, byte[]> readJarClasses(File file) throws IOException {
+        final Map<String, byte[]> classes = new HashMap<>();
+        for (Entry entry : scanJar(file)) {
+            if (entry.isClass()) {
+                classes.put(entry.path, entry.input);
+            }
+        }
+        return classes;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Hashes the classes and reads their headers, in parallel.
+     */
+    private void analyze(ExecutorService executor, final List<Entry> entries) throws IOException, InterruptedException {
+        final AtomicInteger next = new AtomicInteger();
+        final List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(() -> {
+                final MessageDigest digest = newDigest();
+                int index;
+                while ((index = next.getAndIncrement()) < entries.size()) {
+                    final Entry entry = entries.get(index);
+                    if (!entry.isClass()) {
+                        continue;
+                    }
+                    entry.hash = hash(digest, entry.input);
+                    final ClassFile classFile = new ClassFile(new DataInputStream(
+                            new ByteArrayInputStream(entry.input)));
+                    entry.className = classFile.getName();
+                    entry.superName = classFile.getSuperclass();
+                    entry.interfaces = classFile.getInterfaces();
+                }
+                return null;
+            }));
+        }
+        await(futures);
+    }
+
+    /**
+     * Computes the role of each class, and returns the classes to weave.
+     */
+    private List<Entry> plan(Map<String, Entry> classes, Map<String, ManifestEntry> manifest,
+                             Map<String, byte[]> previousOutputs, Report report) throws IOException {
+        final ClassPool externalPool = createPool(Collections.<String, Entry>emptyMap());
+        final Map<String, Role> roles = new HashMap<>();
+        final List<Entry> targets = new ArrayList<>();
+        for (Entry entry : classes.values()) {
+            entry.role = resolveRole(entry.className, classes, externalPool, roles);
+            final ManifestEntry previous = manifest.get(entry.className);
+            final boolean unchanged = previous != null && previous.role == entry.role
+                    && (entry.hash.equals(previous.inputHash) || entry.hash.equals(previous.outputHash))
+                    && hasOutput(entry, previousOutputs);
+            if (entry.role != Role.NONE) {
+                report.targets++;
+            }
+            if (unchanged) {
+                if (entry.role != Role.NONE) {
+                    report.skipped++;
+                }
+            } else if (entry.role != Role.NONE) {
+                targets.add(entry);
+            } else {
+                entry.output = entry.input;
+            }
+        }
+        return targets;
+    }
+
+    private boolean hasOutput(Entry entry, Map<String, byte[]> previousOutputs) {
+        if (jar) {
+            return previousOutputs.containsKey(entry.path);
+        }
+        return new File(output, entry.path).isFile();
+    }
+
+    /**
+     * Returns the role of a class, as {@link InitializerInjector#instrument(ClassPool, CtClass)} finds
+     * it: the first class up the hierarchy declaring the callback interface is the base.
+     */
+    private static Role resolveRole(String className, Map<String, Entry> classes, ClassPool externalPool,
+                                    Map<String, Role> roles) {
+        final Role cached = roles.get(className);
+        if (cached != null) {
+            return cached;
+        }
+        String superName;
+        String[] interfaces;
+        final Entry entry = classes.get(className);
+        if (entry != null) {
+            superName = entry.superName;
+            interfaces = entry.interfaces;
+        } else {
+            try {
+                final CtClass ctClass = externalPool.get(className);
+                superName = ctClass.getClassFile2().getSuperclass();
+                interfaces = ctClass.getClassFile2().getInterfaces();
+            } catch (NotFoundException e) {
+                // unknown class: not in the hierarchy.
+                roles.put(className, Role.NONE);
+                return Role.NONE;
+            }
+        }
+        Role role = Role.NONE;
+        for (String anInterface : interfaces) {
+            if (InitializerInjector.ON_INITIALIZED_CALLBACK.equals(anInterface)) {
+                role = Role.BASE;
+                break;
+            }
+        }
+        if (role == Role.NONE && superName != null && !OBJECT.equals(className)) {
+            role = resolveRole(superName, classes, externalPool, roles) == Role.NONE ? Role.NONE : Role.SUB;
+        }
+        roles.put(className, role);
+        return role;
+    }
+
+    /**
+     * Instruments the targets in parallel, each worker with its own {@link ClassPool}.
+     */
+    private void weave(ExecutorService executor, final Map<String, Entry> classes, final List<Entry> targets,
+                       final Report report) throws IOException, InterruptedException {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger woven = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(() -> {
+                final ClassPool pool = createPool(classes);
+                final MessageDigest digest = newDigest();
+                int index;
+                while ((index = next.getAndIncrement()) < targets.size()) {
+                    final Entry entry = targets.get(index);
+                    try {
+                        final CtClass ctClass = pool.get(entry.className);
+                        if (InitializerInjector.instrument(pool, ctClass)) {
+                            entry.output = ctClass.toBytecode();
+                            woven.incrementAndGet();
+                        } else {
+                            entry.output = entry.input;
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Failed to weave " + entry.className + ": " + e);
+                        entry.output = entry.input;
+                        entry.failed = true;
+                        failed.incrementAndGet();
+                    }
+                    if (entry.output != entry.input) {
+                        // remembered to recognize the woven class as unchanged when woven in place.
+                        entry.hash = entry.hash + " " + hash(digest, entry.output);
+                    }
+                }
+                return null;
+            }));
+        }
+        await(futures);
+        report.woven = woven.get();
+        report.failed = failed.get();
+    }
+
+    private ClassPool createPool(Map<String, Entry> classes) throws IOException {
+        final ClassPool pool = new ClassPool(true);
+        pool.appendClassPath(new EntryClassPath(classes));
+        for (String path : classPath) {
+            try {
+                pool.appendClassPath(path);
+            } catch (NotFoundException e) {
+                throw new IOException("Invalid class path: " + path, e);
+            }
+        }
+        return pool;
+    }
+
+    private void writeDirectory(List<Entry> entries) throws IOException {
+        final boolean inPlace = output.getCanonicalFile().equals(input.getCanonicalFile());
+        for (Entry entry : entries) {
+            if (entry.isClass() ? entry.output == null || (inPlace && entry.output == entry.input) : inPlace) {
+                continue;
+            }
+            final File file = new File(output, entry.path);
+            final File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Failed to create " + parent);
+            }
+            Files.write(file.toPath(), entry.isClass() ? entry.output : entry.input);
+        }
+    }
+
+    private void writeJar(List<Entry> entries, Map<String, byte[]> previousOutputs) throws IOException {
+        final File temp = new File(output.getAbsoluteFile().getParentFile(), output.getName() + ".tmp");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(temp))) {
+            for (Entry entry : entries) {
+                byte[] bytes = entry.input;
+                if (entry.isClass()) {
+                    bytes = entry.output != null ? entry.output : previousOutputs.get(entry.path);
+                }
+                out.putNextEntry(new ZipEntry(entry.path));
+                out.write(bytes);
+                out.closeEntry();
+            }
+        }
+        Files.move(temp.toPath(), output.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Map<String, ManifestEntry> readManifest() throws IOException {
+        final Map<String, ManifestEntry> manifest = new HashMap<>();
+        if (!manifestFile.isFile()) {
+            return manifest;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(manifestFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(" ");
+                if (fields.length < 3) {
+                    continue;
+                }
+                try {
+                    manifest.put(fields[0], new ManifestEntry(Role.valueOf(fields[1]), fields[2],
+                            fields.length > 3 ? fields[3] : fields[2]));
+                } catch (IllegalArgumentException e) {
+                    // unknown role: woven again.
+                }
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Writes one <code>class role inputHash [outputHash]</code> line per class, except for the
+     * classes which failed to weave, so that the next run tries them again.
+     */
+    private void writeManifest(Iterable<Entry> classes, Map<String, ManifestEntry> previous) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(manifestFile), StandardCharsets.UTF_8))) {
+            for (Entry entry : classes) {
+                if (entry.failed) {
+                    continue;
+                }
+                String hashes = entry.hash;
+                if (entry.output == null) {
+                    // unchanged: keep the hashes of the run which wove it.
+                    final ManifestEntry manifestEntry = previous.get(entry.className);
+                    hashes = manifestEntry.inputHash + " " + manifestEntry.outputHash;
+                }
+                writer.write(entry.className + " " + entry.role + " " + hashes + "\n");
+            }
+        }
+    }
+
+    private static void await(List<Future<Void>> futures) throws IOException, InterruptedException {
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hash(MessageDigest digest, byte[] bytes) {
+        final byte[] hash = digest.digest(bytes);
+        final StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}